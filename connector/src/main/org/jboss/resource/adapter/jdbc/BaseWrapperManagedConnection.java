@@ -32,6 +32,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -49,8 +50,9 @@ import javax.security.auth.Subject;
 
 import org.jboss.logging.Logger;
 import org.jboss.resource.JBossResourceException;
-
+import org.jboss.resource.connectionmanager.PoolFiller;
 import org.jboss.resource.statistic.JBossConnectionStatistics;
+import org.jboss.util.CachePolicy;
 
 /**
  * BaseWrapperManagedConnection
@@ -81,7 +83,9 @@ public abstract class BaseWrapperManagedConnection implements ManagedConnection
 
    private final Set handles = new HashSet();
 
-   private PreparedStatementCache psCache = null;
+   private CachePolicy psCache = null;
+
+   private PreparedStatementCacheStatistics psCacheStatistics = null;
 
    protected final Object stateLock = new Object();
 
@@ -137,7 +141,10 @@ public abstract class BaseWrapperManagedConnection implements ManagedConnection
       this.props = props;
 
       if (psCacheSize > 0)
-         psCache = new PreparedStatementCache(psCacheSize);
+      {
+         psCache = mcf.createPreparedStatementCache(psCacheSize);
+         psCacheStatistics = mcf.getPreparedStatementCacheStatistics();
+      }
 
       if (transactionIsolation == -1)
          this.transactionIsolation = con.getTransactionIsolation();
@@ -166,6 +173,41 @@ public abstract class BaseWrapperManagedConnection implements ManagedConnection
       underlyingReadOnly = readOnly;
       jdbcReadOnly = readOnly;
       jdbcTransactionIsolation = this.transactionIsolation;
+
+      // Only pay for the warmup when we are not holding up a request
+      if (psCache != null && mcf.getPreparedStatementCacheWarmup() > 0 && PoolFiller.isFillingPool())
+         warmupPreparedStatementCache(Math.min(psCacheSize, mcf.getPreparedStatementCacheWarmup()));
+   }
+
+   /**
+    * Prepare the statements most used by the other connections
+    * 
+    * @param count the maximum number of statements to prepare
+    */
+   void warmupPreparedStatementCache(int count)
+   {
+      List keys = psCacheStatistics.getTop(count);
+      for (Iterator i = keys.iterator(); i.hasNext();)
+      {
+         PreparedStatementCache.Key key = (PreparedStatementCache.Key) i.next();
+         if (psCache.peek(key) != null)
+            continue;
+         try
+         {
+            CachedPreparedStatement cachedps;
+            if (key.getType() == PreparedStatementCache.Key.CALLABLE_STATEMENT)
+               cachedps = wrappedConnectionFactory.createCachedCallableStatement(doPrepareCall(key.getSql(), key.getResultSetType(), key.getResultSetConcurrency()));
+            else
+               cachedps = wrappedConnectionFactory.createCachedPreparedStatement(doPrepareStatement(key.getSql(), key.getResultSetType(), key.getResultSetConcurrency()));
+            psCache.insert(key, cachedps);
+            // Nobody is using it yet
+            cachedps.close();
+         }
+         catch (SQLException e)
+         {
+            mcf.log.debug("Failed to warm up prepared statement cache with " + key, e);
+         }
+      }
    }
 
    public void addConnectionEventListener(ConnectionEventListener cel)
@@ -445,12 +487,19 @@ public abstract class BaseWrapperManagedConnection implements ManagedConnection
          if (cachedps != null)
          {
             if (canUse(cachedps))
+            {
                cachedps.inUse();
+               psCacheStatistics.hit(key);
+            }
             else
+            {
+               psCacheStatistics.miss(key);
                return doPrepareStatement(sql, resultSetType, resultSetConcurrency);
+            }
          }
          else
          {
+            psCacheStatistics.miss(key);
             PreparedStatement ps = doPrepareStatement(sql, resultSetType, resultSetConcurrency);
             cachedps = wrappedConnectionFactory.createCachedPreparedStatement(ps);
             psCache.insert(key, cachedps);
@@ -476,12 +525,19 @@ public abstract class BaseWrapperManagedConnection implements ManagedConnection
          if (cachedps != null)
          {
             if (canUse(cachedps))
+            {
                cachedps.inUse();
+               psCacheStatistics.hit(key);
+            }
             else
+            {
+               psCacheStatistics.miss(key);
                return doPrepareCall(sql, resultSetType, resultSetConcurrency);
+            }
          }
          else
          {
+            psCacheStatistics.miss(key);
             CallableStatement cs = doPrepareCall(sql, resultSetType, resultSetConcurrency);
             cachedps = wrappedConnectionFactory.createCachedCallableStatement(cs);
             psCache.insert(key, cachedps);
@@ -46,6 +46,8 @@ import javax.security.auth.Subject;
 
 import org.jboss.logging.Logger;
 import org.jboss.resource.JBossResourceException;
+import org.jboss.resource.statistic.JBossStatementStatistics;
+import org.jboss.util.CachePolicy;
 
 /**
  * BaseWrapperManagedConnectionFactory
@@ -57,7 +59,7 @@ import org.jboss.resource.JBossResourceException;
  * @version $Revision: 105426 $
  */
 
-public abstract class BaseWrapperManagedConnectionFactory implements ManagedConnectionFactory, ValidatingManagedConnectionFactory, Serializable
+public abstract class BaseWrapperManagedConnectionFactory implements ManagedConnectionFactory, ValidatingManagedConnectionFactory, JBossStatementStatistics, Serializable
 {
    /** @since 4.0.1 */
    static final long serialVersionUID = -84923705377702088L;
@@ -70,6 +72,9 @@ public abstract class BaseWrapperManagedConnectionFactory implements ManagedConn
    public static final String TRACK_STATEMENTS_TRUE = "true";
    public static final String TRACK_STATEMENTS_NOWARN = "nowarn";
 
+   public static final String PREPARED_STATEMENT_CACHE_LRU = "lru";
+   public static final String PREPARED_STATEMENT_CACHE_LFU = "lfu";
+
    protected final Logger log = Logger.getLogger(getClass());
 
    protected String userName;
@@ -84,6 +89,15 @@ public abstract class BaseWrapperManagedConnectionFactory implements ManagedConn
 
    protected int preparedStatementCacheSize = 0;
 
+   /** The prepared statement cache policy, lru, lfu or a class name */
+   protected String preparedStatementCachePolicy = PREPARED_STATEMENT_CACHE_LRU;
+
+   /** The number of top statements prepared on connections created by the pool filler */
+   protected int preparedStatementCacheWarmup = 0;
+
+   /** The prepared statement cache statistics shared by all connections */
+   private transient PreparedStatementCacheStatistics preparedStatementCacheStatistics;
+
    protected boolean doQueryTimeout = false;
 
    /**
@@ -200,6 +214,45 @@ public abstract class BaseWrapperManagedConnectionFactory implements ManagedConn
       preparedStatementCacheSize = size;
    }
 
+   public String getPreparedStatementCachePolicy()
+   {
+      return preparedStatementCachePolicy;
+   }
+
+   public void setPreparedStatementCachePolicy(String policy)
+   {
+      if (policy == null || policy.trim().length() == 0)
+         policy = PREPARED_STATEMENT_CACHE_LRU;
+      preparedStatementCachePolicy = policy.trim();
+   }
+
+   public int getPreparedStatementCacheWarmup()
+   {
+      return preparedStatementCacheWarmup;
+   }
+
+   public void setPreparedStatementCacheWarmup(int warmup)
+   {
+      preparedStatementCacheWarmup = warmup;
+   }
+
+   /**
+    * Get the prepared statement cache statistics of all connections
+    * 
+    * @return the statistics
+    */
+   public synchronized PreparedStatementCacheStatistics getPreparedStatementCacheStatistics()
+   {
+      if (preparedStatementCacheStatistics == null)
+         preparedStatementCacheStatistics = new PreparedStatementCacheStatistics();
+      return preparedStatementCacheStatistics;
+   }
+
+   public Object listTopStatements(int count)
+   {
+      return getPreparedStatementCacheStatistics().listTop(count);
+   }
+
    public boolean getSharePreparedStatements()
    {
       return sharePS;
@@ -587,6 +640,38 @@ public abstract class BaseWrapperManagedConnectionFactory implements ManagedConn
       return null;
    }
 
+   /**
+    * Create the prepared statement cache of a connection
+    * 
+    * @param size the size of the cache
+    * @return the cache
+    */
+   CachePolicy createPreparedStatementCache(int size)
+   {
+      PreparedStatementCacheStatistics statistics = getPreparedStatementCacheStatistics();
+      String policy = preparedStatementCachePolicy;
+      if (policy == null || PREPARED_STATEMENT_CACHE_LRU.equalsIgnoreCase(policy))
+         return new PreparedStatementCache(size, statistics);
+      if (PREPARED_STATEMENT_CACHE_LFU.equalsIgnoreCase(policy))
+         return new LFUPreparedStatementCache(size, statistics);
+
+      try
+      {
+         ClassLoader cl = Thread.currentThread().getContextClassLoader();
+         Class clazz = cl.loadClass(policy);
+         Constructor constructor = clazz.getConstructor(new Class[] { Integer.TYPE, PreparedStatementCacheStatistics.class });
+         CachePolicy cache = (CachePolicy) constructor.newInstance(new Object[] { new Integer(size), statistics });
+         cache.create();
+         return cache;
+      }
+      catch (Exception e)
+      {
+         log.warn("Exception trying to create prepared statement cache " + policy + " (using lru):", e);
+         preparedStatementCachePolicy = PREPARED_STATEMENT_CACHE_LRU;
+         return new PreparedStatementCache(size, statistics);
+      }
+   }
+
    boolean isStaleConnection(SQLException e)
    {
       if (staleConnectionChecker != null)
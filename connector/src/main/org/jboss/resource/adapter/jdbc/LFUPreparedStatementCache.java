@@ -0,0 +1,228 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.resource.adapter.jdbc;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.jboss.logging.Logger;
+import org.jboss.util.CachePolicy;
+
+/**
+ * LFU cache for PreparedStatements. When the cache is full the least
+ * frequently used statement is evicted and closed, ties are broken by
+ * evicting the least recently used one.
+ *
+ * The use counts are halved every <code>max * 8</code> lookups so that
+ * statements that were hot in the past eventually age out.
+ *
+ * The cache belongs to a single managed connection and is not thread safe,
+ * just like {@link PreparedStatementCache}.
+ *
+ * @version $Revision: 73034 $
+ */
+public class LFUPreparedStatementCache implements CachePolicy
+{
+   private final Logger log = Logger.getLogger(getClass());
+
+   private final int max;
+
+   private final PreparedStatementCacheStatistics statistics;
+
+   /** PreparedStatementCache.Key -> Entry */
+   private final Map entries = new HashMap();
+
+   /** The logical clock, incremented on each lookup */
+   private long clock;
+
+   public LFUPreparedStatementCache(int max)
+   {
+      this(max, null);
+   }
+
+   public LFUPreparedStatementCache(int max, PreparedStatementCacheStatistics statistics)
+   {
+      if (max < 1)
+         throw new IllegalArgumentException("Illegal cache capacity: " + max);
+      this.max = max;
+      this.statistics = statistics;
+   }
+
+   public void create()
+   {
+   }
+
+   public void start()
+   {
+   }
+
+   public void stop()
+   {
+   }
+
+   public void destroy()
+   {
+      flush();
+   }
+
+   public Object get(Object key)
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Requesting an object using a null key");
+
+      if (++clock % (max * 8L) == 0)
+         decay();
+
+      Entry entry = (Entry) entries.get(key);
+      if (entry == null)
+         return null;
+      ++entry.count;
+      entry.lastUse = clock;
+      return entry.object;
+   }
+
+   public Object peek(Object key)
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Requesting an object using a null key");
+
+      Entry entry = (Entry) entries.get(key);
+      return entry == null ? null : entry.object;
+   }
+
+   public void insert(Object key, Object object)
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Attempt to put in the cache a null key");
+      if (entries.containsKey(key))
+         throw new IllegalStateException("Attempt to put in the cache an object that is already there");
+
+      if (entries.size() >= max)
+         evict();
+      entries.put(key, new Entry(object, clock));
+   }
+
+   public void remove(Object key)
+   {
+      Entry entry = (Entry) entries.remove(key);
+      if (entry != null)
+         ageOut(entry);
+   }
+
+   public void flush()
+   {
+      for (Iterator i = entries.values().iterator(); i.hasNext();)
+      {
+         Entry entry = (Entry) i.next();
+         i.remove();
+         ageOut(entry);
+      }
+   }
+
+   public int size()
+   {
+      return entries.size();
+   }
+
+   public String toString()
+   {
+      String s = " LFUPreparedStatementCache size: " + entries.size();
+      for (Iterator i = entries.entrySet().iterator(); i.hasNext();)
+      {
+         Map.Entry mapEntry = (Map.Entry) i.next();
+         PreparedStatementCache.Key key = (PreparedStatementCache.Key) mapEntry.getKey();
+         Entry entry = (Entry) mapEntry.getValue();
+         s += "[" + key.getSql() + " uses=" + entry.count + "] ";
+      }
+      return s + "\n";
+   }
+
+   /**
+    * Evict the least frequently used entry
+    */
+   protected void evict()
+   {
+      Object victimKey = null;
+      Entry victim = null;
+      for (Iterator i = entries.entrySet().iterator(); i.hasNext();)
+      {
+         Map.Entry mapEntry = (Map.Entry) i.next();
+         Entry entry = (Entry) mapEntry.getValue();
+         if (victim == null || entry.count < victim.count
+               || (entry.count == victim.count && entry.lastUse < victim.lastUse))
+         {
+            victimKey = mapEntry.getKey();
+            victim = entry;
+         }
+      }
+      if (victim != null)
+      {
+         entries.remove(victimKey);
+         ageOut(victim);
+         if (statistics != null)
+            statistics.eviction();
+      }
+   }
+
+   /**
+    * Close the statement of an entry that left the cache
+    *
+    * @param entry the entry
+    */
+   protected void ageOut(Entry entry)
+   {
+      try
+      {
+         ((CachedPreparedStatement) entry.object).agedOut();
+      }
+      catch (SQLException e)
+      {
+         log.debug("Failed closing cached statement", e);
+      }
+   }
+
+   private void decay()
+   {
+      for (Iterator i = entries.values().iterator(); i.hasNext();)
+      {
+         Entry entry = (Entry) i.next();
+         entry.count >>= 1;
+      }
+   }
+
+   protected static class Entry
+   {
+      final Object object;
+
+      long count;
+
+      long lastUse;
+
+      Entry(Object object, long lastUse)
+      {
+         this.object = object;
+         this.lastUse = lastUse;
+      }
+   }
+}
@@ -39,6 +39,8 @@ public class PreparedStatementCache extends LRUCachePolicy
 {
    private final Logger log = Logger.getLogger(getClass());
 
+   private final PreparedStatementCacheStatistics statistics;
+
    public static class Key
    {
       public static final int PREPARED_STATEMENT = 1;
@@ -53,6 +55,21 @@ public class PreparedStatementCache extends LRUCachePolicy
     	  return sql;
       }
 
+      public int getType()
+      {
+         return type;
+      }
+
+      public int getResultSetType()
+      {
+         return resultSetType;
+      }
+
+      public int getResultSetConcurrency()
+      {
+         return resultSetConcurrency;
+      }
+
       public Key(String sql, int type, int resultSetType, int resultSetConcurrency)
       {
          this.sql = sql;
@@ -135,8 +152,14 @@ public class PreparedStatementCache extends LRUCachePolicy
    }
 
    public PreparedStatementCache(int max)
+   {
+      this(max, null);
+   }
+
+   public PreparedStatementCache(int max, PreparedStatementCacheStatistics statistics)
    {
       super(2, max);
+      this.statistics = statistics;
       create();
    }
 
@@ -146,6 +169,8 @@ public class PreparedStatementCache extends LRUCachePolicy
       {
          CachedPreparedStatement ws = (CachedPreparedStatement) entry.m_object;
          ws.agedOut();
+         if (statistics != null)
+            statistics.eviction();
       }
       catch (SQLException e)
       {
@@ -0,0 +1,234 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.resource.adapter.jdbc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The prepared statement cache statistics of a datasource, shared by the
+ * caches of all its connections.
+ *
+ * Besides the hit, miss and eviction totals it counts the prepares of each
+ * statement, so the hottest statements can be listed and used to warm up
+ * the cache of new connections. At most MAX_TRACKED distinct statements are
+ * counted, when a new statement arrives and the limit is reached the least
+ * prepared quarter of the counted statements is dropped to make room.
+ *
+ * @version $Revision: 73034 $
+ */
+public class PreparedStatementCacheStatistics
+{
+   /** The maximum number of distinct statements counted */
+   public static final int MAX_TRACKED = 1000;
+
+   private final AtomicLong hits = new AtomicLong(0);
+
+   private final AtomicLong misses = new AtomicLong(0);
+
+   private final AtomicLong evictions = new AtomicLong(0);
+
+   /** PreparedStatementCache.Key -> Usage */
+   private final Map usage = new ConcurrentHashMap();
+
+   /** Serializes the pruning of the usage map */
+   private final Object pruneLock = new Object();
+
+   /**
+    * A statement was found in the cache
+    *
+    * @param key the statement
+    */
+   public void hit(PreparedStatementCache.Key key)
+   {
+      hits.incrementAndGet();
+      Usage u = getUsage(key);
+      if (u != null)
+      {
+         u.prepares.incrementAndGet();
+         u.hits.incrementAndGet();
+      }
+   }
+
+   /**
+    * A statement had to be prepared
+    *
+    * @param key the statement
+    */
+   public void miss(PreparedStatementCache.Key key)
+   {
+      misses.incrementAndGet();
+      Usage u = getUsage(key);
+      if (u != null)
+         u.prepares.incrementAndGet();
+   }
+
+   /**
+    * A statement was evicted from a cache
+    */
+   public void eviction()
+   {
+      evictions.incrementAndGet();
+   }
+
+   public long getHits()
+   {
+      return hits.get();
+   }
+
+   public long getMisses()
+   {
+      return misses.get();
+   }
+
+   public long getEvictions()
+   {
+      return evictions.get();
+   }
+
+   /**
+    * Get the most prepared statements
+    *
+    * @param count the maximum number of statements
+    * @return the keys, most prepared first
+    */
+   public List getTop(int count)
+   {
+      List top = getTopUsage(count);
+      for (int i = 0; i < top.size(); ++i)
+         top.set(i, ((Usage) top.get(i)).key);
+      return top;
+   }
+
+   /**
+    * List the most prepared statements
+    *
+    * @param count the maximum number of statements
+    * @return the report
+    */
+   public String listTop(int count)
+   {
+      StringBuffer buffer = new StringBuffer();
+      buffer.append("Prepared Statement Cache Hits:").append(getHits());
+      buffer.append("\nPrepared Statement Cache Misses:").append(getMisses());
+      buffer.append("\nPrepared Statement Cache Evictions:").append(getEvictions());
+      List top = getTopUsage(count);
+      for (int i = 0; i < top.size(); ++i)
+      {
+         Usage u = (Usage) top.get(i);
+         buffer.append("\n").append(i + 1).append(": prepares=").append(u.prepares.get());
+         buffer.append(" hits=").append(u.hits.get());
+         buffer.append(" type=").append(u.key.getType() == PreparedStatementCache.Key.CALLABLE_STATEMENT ? "CS" : "PS");
+         buffer.append(" sql=").append(u.key.getSql());
+      }
+      return buffer.toString();
+   }
+
+   /**
+    * Reset the statistics
+    */
+   public void reset()
+   {
+      hits.set(0);
+      misses.set(0);
+      evictions.set(0);
+      usage.clear();
+   }
+
+   private Usage getUsage(PreparedStatementCache.Key key)
+   {
+      Usage u = (Usage) usage.get(key);
+      if (u == null)
+      {
+         if (usage.size() >= MAX_TRACKED)
+            prune();
+         u = new Usage(key);
+         Usage previous = (Usage) ((ConcurrentHashMap) usage).putIfAbsent(key, u);
+         if (previous != null)
+            u = previous;
+      }
+      return u;
+   }
+
+   /**
+    * Drop the least prepared statements once MAX_TRACKED is reached, a
+    * quarter at a time so the sort is amortized over many new statements
+    */
+   private void prune()
+   {
+      synchronized (pruneLock)
+      {
+         if (usage.size() < MAX_TRACKED)
+            return;
+         List all = getTopUsage(Integer.MAX_VALUE);
+         for (int i = MAX_TRACKED - MAX_TRACKED / 4; i < all.size(); ++i)
+            usage.remove(((Usage) all.get(i)).key);
+      }
+   }
+
+   private List getTopUsage(int count)
+   {
+      if (count < 0)
+         count = 0;
+      // Sort a snapshot of the counts, they keep changing under concurrent prepares
+      List all = new ArrayList(usage.size());
+      for (Iterator i = usage.values().iterator(); i.hasNext();)
+      {
+         Usage u = (Usage) i.next();
+         all.add(new Object[] { u, new Long(u.prepares.get()) });
+      }
+      Collections.sort(all, new Comparator()
+      {
+         public int compare(Object o1, Object o2)
+         {
+            long p1 = ((Long) ((Object[]) o1)[1]).longValue();
+            long p2 = ((Long) ((Object[]) o2)[1]).longValue();
+            return p1 < p2 ? 1 : (p1 == p2 ? 0 : -1);
+         }
+      });
+      if (all.size() > count)
+         all.subList(count, all.size()).clear();
+      for (int i = 0; i < all.size(); ++i)
+         all.set(i, ((Object[]) all.get(i))[0]);
+      return all;
+   }
+
+   private static class Usage
+   {
+      final PreparedStatementCache.Key key;
+
+      final AtomicLong prepares = new AtomicLong(0);
+
+      final AtomicLong hits = new AtomicLong(0);
+
+      Usage(PreparedStatementCache.Key key)
+      {
+         this.key = key;
+      }
+   }
+}
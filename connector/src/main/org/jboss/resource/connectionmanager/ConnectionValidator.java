@@ -21,9 +21,7 @@
  */
 package org.jboss.resource.connectionmanager;
 
-import java.security.AccessController;
-import java.security.PrivilegedAction;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jboss.logging.Logger;
 
@@ -31,6 +29,11 @@ import org.jboss.logging.Logger;
  * A ConnectionValidator that performs background validation of managed connections for an
  * InternalManagedConnectionPool.
  * 
+ * Every pool has its own task on the PoolMaintenanceScheduler running at
+ * half the background validation interval, subject to the validation timeout.
+ * A validation exceeding the timeout is aborted by destroying the connection
+ * being validated, which unblocks a validation stuck reading from the socket.
+ * 
  * @author <a href="weston.price@jboss.com">Weston Price</a>
  * @author <a href="jesper.pedersen@jboss.org">Jesper Pedersen</a>
  * @version $Revision: 85731 $
@@ -40,149 +43,87 @@ public class ConnectionValidator
    /** The log */
    private static final Logger log = Logger.getLogger(ConnectionValidator.class);
    
-   /** The pools */
-   private final CopyOnWriteArrayList<InternalManagedConnectionPool> pools = new CopyOnWriteArrayList<InternalManagedConnectionPool>();
-   
-   /** The interval */
-   private long interval = Long.MAX_VALUE;
-
-   /** The next */
-   private long next = Long.MAX_VALUE;//important initialization!
-
-   /** The validator */
-   private static final ConnectionValidator validator = new ConnectionValidator();
+   /** The tasks by pool */
+   private static final ConcurrentHashMap<InternalManagedConnectionPool, PoolMaintenanceScheduler.Task> tasks = new ConcurrentHashMap<InternalManagedConnectionPool, PoolMaintenanceScheduler.Task>();
 
    private ConnectionValidator()
    {
-      AccessController.doPrivileged(new PrivilegedAction()
-      {
-         public Object run()
-         {
-            Runnable runnable = new ConnectionValidatorRunnable();
-            Thread removerThread = new Thread(runnable, "ConnectionValidator");
-            removerThread.setDaemon(true);
-            removerThread.start();
-            return null;
-         }
-      });
    }
    
-   public static void registerPool(InternalManagedConnectionPool mcp, long interval)
+   public static void registerPool(final InternalManagedConnectionPool mcp, long interval)
    {
-      validator.internalRegisterPool(mcp, interval);
+      if (interval <= 1 || tasks.containsKey(mcp))
+         return;
+      long period = interval / 2;
+      if (log.isDebugEnabled())
+         log.debug("registerPool: registering pool with interval " + period);
+      Runnable work = new ValidationWork(mcp);
+      PoolMaintenanceScheduler.Task task = PoolMaintenanceScheduler.schedule("ConnectionValidator for " + mcp, work, period, true);
+      if (tasks.putIfAbsent(mcp, task) != null)
+         task.cancel();
    }
    
    public static void unRegisterPool(InternalManagedConnectionPool mcp)
    {
-      validator.internalUnregisterPool(mcp);
-   }
-   
-   private void internalRegisterPool(InternalManagedConnectionPool mcp, long interval)
-   {
-      synchronized (pools)
+      PoolMaintenanceScheduler.Task task = tasks.remove(mcp);
+      if (task != null)
       {
-         pools.addIfAbsent(mcp);
-         
-         if (interval > 1 && interval/2 < this.interval) 
-         {
-            this.interval = interval/2;
-            long maybeNext = System.currentTimeMillis() + this.interval;
-            if (next > maybeNext && maybeNext > 0) 
-            {
-               next = maybeNext;
-               if (log.isDebugEnabled())
-                  log.debug("internalRegisterPool: about to notify thread: old next: " + next + ", new next: " + maybeNext);
-               pools.notify();
-            }
-         }
+         task.cancel();
+         task.waitForCompletion();
       }
    }
    
-   private void internalUnregisterPool(InternalManagedConnectionPool mcp)
+   /**
+    * For testing
+    */
+   public static void waitForBackgroundThread()
    {
-      synchronized (pools)
-      {
-         pools.remove(mcp);
-         if (pools.size() == 0) 
-         {
-            if (log.isDebugEnabled())
-               log.debug("internalUnregisterPool: setting interval to Long.MAX_VALUE");
-            interval = Long.MAX_VALUE;
-         }
-      }
+      for (PoolMaintenanceScheduler.Task task : tasks.values())
+         task.waitForCompletion();
    }
-   
-   private void setupContextClassLoader()
+
+   /**
+    * Get the background validation task of a pool
+    *
+    * @param mcp the pool
+    * @return the task or null if the pool is not registered
+    */
+   public static PoolMaintenanceScheduler.Task getTask(InternalManagedConnectionPool mcp)
    {
-      // Could be null if loaded from system classloader
-      final ClassLoader cl = ConnectionValidator.class.getClassLoader();
-      if (cl == null)
-         return;
-      
-      SecurityManager sm = System.getSecurityManager();
-      if (sm == null)
-         Thread.currentThread().setContextClassLoader(cl);
-      
-      AccessController.doPrivileged(new PrivilegedAction()
-      {
-         public Object run()
-         {
-            Thread.currentThread().setContextClassLoader(cl);
-            return null;
-         }
-      });
+      return tasks.get(mcp);
    }
-   
-   public static void waitForBackgroundThread()
+
+   /**
+    * Validates the connections of one pool
+    */
+   private static class ValidationWork implements Runnable, PoolMaintenanceScheduler.Abortable
    {
-      synchronized (validator.pools)
+      private final InternalManagedConnectionPool mcp;
+
+      ValidationWork(InternalManagedConnectionPool mcp)
       {
-         return;
+         this.mcp = mcp;
       }
-   }
 
-   private class ConnectionValidatorRunnable implements Runnable
-   {
       public void run()
       {
-         setupContextClassLoader();
-         
-         synchronized (pools)
+         try
          {
-            while (true)
-            {
-               try
-               {
-                  pools.wait(interval);
-
-                  if (log.isDebugEnabled())
-                     log.debug("run: ConnectionValidator notifying pools, interval: " + interval);
-        
-                  for (InternalManagedConnectionPool mcp : pools)
-                  {
-                     mcp.validateConnections();
-                  }
-
-                  next = System.currentTimeMillis() + interval;
-                  
-                  if (next < 0)
-                     next = Long.MAX_VALUE;
-               }
-               catch (InterruptedException e)
-               {
-                  log.info("run: ConnectionValidator has been interrupted, returning");
-                  return;  
-               }
-               catch (RuntimeException e)
-               {
-                  log.warn("run: ConnectionValidator ignored unexpected runtime exception", e);
-               }
-               catch (Exception e)
-               {
-                  log.warn("run: ConnectionValidator ignored unexpected error", e);
-               }
-            }
+            mcp.validateConnections();
+         }
+         catch (InterruptedException e)
+         {
+            log.warn("Background validation was interrupted for " + mcp);
          }
+         catch (Exception e)
+         {
+            log.warn("Background validation ignored unexpected error for " + mcp, e);
+         }
+      }
+
+      public void abort()
+      {
+         mcp.abortValidation();
       }
    }
 }
@@ -21,15 +21,16 @@
  */
 package org.jboss.resource.connectionmanager;
 
-import java.security.AccessController;
-import java.security.PrivilegedAction;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jboss.logging.Logger;
 
 /**
  * IdleRemover
  *
+ * Removes the idle connections of the registered pools. Every pool has its
+ * own task on the PoolMaintenanceScheduler running at half the idle timeout.
+ *
  * @author <a href="mailto:d_jencks@users.sourceforge.net">David Jencks</a>
  * @author <a href="mailto:adrian@jboss.com">Adrian Brock</a>
  * @author <a href="mailto:weston.price@jboss.com">Weston Price</a>
@@ -40,155 +41,59 @@ public class IdleRemover
 {
    private final static Logger log = Logger.getLogger(IdleRemover.class);
 
-   private final CopyOnWriteArrayList<IdleConnectionRemovalSupport> pools = new CopyOnWriteArrayList<IdleConnectionRemovalSupport>();
-
-   private long interval = Long.MAX_VALUE;
-
-   private long next = Long.MAX_VALUE;//important initialization!
+   /** The tasks by pool */
+   private static final ConcurrentHashMap<IdleConnectionRemovalSupport, PoolMaintenanceScheduler.Task> tasks = new ConcurrentHashMap<IdleConnectionRemovalSupport, PoolMaintenanceScheduler.Task>();
 
-   private static final IdleRemover remover = new IdleRemover();
-
-   private final boolean trace = log.isTraceEnabled();
-
-   public static void registerPool(IdleConnectionRemovalSupport mcp, long interval)
+   private IdleRemover()
    {
-      remover.internalRegisterPool(mcp, interval);
    }
 
-   public static void unregisterPool(IdleConnectionRemovalSupport mcp)
+   public static void registerPool(final IdleConnectionRemovalSupport mcp, long interval)
    {
-      remover.internalUnregisterPool(mcp);
-   }
-   
-   /**
-    * For testing
-    */
-   public static void waitForBackgroundThread()
-   {
-      synchronized (remover.pools)
-      {
+      if (interval <= 1 || tasks.containsKey(mcp))
          return;
-      }
-   }
-   
-   private IdleRemover ()
-   {
-      AccessController.doPrivileged(new PrivilegedAction<Object>()
+      long period = interval / 2;
+      if (log.isTraceEnabled())
+         log.trace("registerPool: registering pool with interval " + period);
+      Runnable work = new Runnable()
       {
-         public Object run()
+         public void run()
          {
-            Runnable runnable = new IdleRemoverRunnable();
-            Thread removerThread = new Thread(runnable, "IdleRemover");
-            removerThread.setDaemon(true);
-            removerThread.start();
-            return null;
+            mcp.removeIdleConnections();
          }
-      });
+      };
+      PoolMaintenanceScheduler.Task task = PoolMaintenanceScheduler.schedule("IdleRemover for " + mcp, work, period, false);
+      if (tasks.putIfAbsent(mcp, task) != null)
+         task.cancel();
    }
-   
-   private void internalRegisterPool(IdleConnectionRemovalSupport mcp, long interval)
-   {
-      if (trace)
-         log.trace("internalRegisterPool: registering pool with interval " + interval + " old interval: " + this.interval);
-      synchronized (pools)
-      {
-         pools.addIfAbsent(mcp);
 
-         if (interval > 1 && interval/2 < this.interval) 
-         {
-            this.interval = interval/2;
-            long maybeNext = System.currentTimeMillis() + this.interval;
-            if (next > maybeNext && maybeNext > 0) 
-            {
-               next = maybeNext;
-               if (trace)
-                  log.trace("internalRegisterPool: about to notify thread: old next: " + next + ", new next: " + maybeNext);
-               pools.notify();
-            }
-         }
-      }
-   }
-
-   private void internalUnregisterPool(IdleConnectionRemovalSupport mcp)
+   public static void unregisterPool(IdleConnectionRemovalSupport mcp)
    {
-      synchronized (pools)
+      PoolMaintenanceScheduler.Task task = tasks.remove(mcp);
+      if (task != null)
       {
-         pools.remove(mcp);
-         if (pools.size() == 0) 
-         {
-            if (trace)
-               log.trace("internalUnregisterPool: setting interval to Long.MAX_VALUE");
-            interval = Long.MAX_VALUE;
-         }
+         task.cancel();
+         task.waitForCompletion();
       }
    }
-
+   
    /**
-    * Change the context classloader to be where the idle remover was loaded from.<p>
-    * 
-    * This avoids holding a reference to the caller's classloader which may be undeployed.
+    * For testing
     */
-   private void setupContextClassLoader()
+   public static void waitForBackgroundThread()
    {
-      // Could be null if loaded from system classloader
-      final ClassLoader cl = IdleRemover.class.getClassLoader();
-      if (cl == null)
-         return;
-      
-      SecurityManager sm = System.getSecurityManager();
-      if (sm == null)
-         Thread.currentThread().setContextClassLoader(cl);
-      
-      AccessController.doPrivileged(new PrivilegedAction<Object>()
-      {
-         public Object run()
-         {
-            Thread.currentThread().setContextClassLoader(cl);
-            return null;
-         }
-      });
+      for (PoolMaintenanceScheduler.Task task : tasks.values())
+         task.waitForCompletion();
    }
 
    /**
-    * Idle Remover background thread
+    * Get the idle removal task of a pool
+    *
+    * @param mcp the pool
+    * @return the task or null if the pool is not registered
     */
-   private class IdleRemoverRunnable implements Runnable
+   public static PoolMaintenanceScheduler.Task getTask(IdleConnectionRemovalSupport mcp)
    {
-      public void run()
-      {
-         setupContextClassLoader();
-         
-         synchronized (pools)
-         {
-            while (true)
-            {
-               try 
-               {
-                  pools.wait(interval);
-                  if (trace)
-                     log.trace("run: IdleRemover notifying pools, interval: " + interval);
-                  for (IdleConnectionRemovalSupport pool : pools ) 
-                     pool.removeIdleConnections();
-                  next = System.currentTimeMillis() + interval;
-                  if (next < 0) 
-                     next = Long.MAX_VALUE;      
-               }
-               catch (InterruptedException ie)
-               {
-                  if (log.isDebugEnabled())
-                     log.debug("run: IdleRemover has been interrupted, ending");
-                  return;  
-               }
-               catch (RuntimeException e)
-               {
-                  log.warn("run: IdleRemover ignored unexpected runtime exception", e);
-               }
-               catch (Error e)
-               {
-                  log.warn("run: IdleRemover ignored unexpected error", e);
-               }
-            }
-         }
-      }
+      return tasks.get(mcp);
    }
 }
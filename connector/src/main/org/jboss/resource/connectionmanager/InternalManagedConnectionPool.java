@@ -26,9 +26,14 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.resource.ResourceException;
 import javax.resource.spi.ConnectionRequestInfo;
@@ -44,6 +49,15 @@ import org.jboss.util.UnreachableStatementException;
 /**
  * The internal pool implementation
  *
+ * The pool does not hold a monitor while handing out or taking back
+ * connections. Every connection listener has an entry whose state moves
+ * between FREE, IN_USE and RESERVED (held by idle removal, validation or
+ * flush) with compare and set. A borrower first tries the entry it last
+ * returned on the same thread and then scans the entries in creation order,
+ * so the load concentrates on the oldest connections and the rest can
+ * become idle. The fair semaphore still bounds the number of checked out
+ * connections.
+ *
  * @author <a href="mailto:d_jencks@users.sourceforge.net">David Jencks</a>
  * @author <a href="mailto:adrian@jboss.org">Adrian Brock</a>
  * @author <a href="mailto:weston.price@jboss.com">Weston Price</a>
@@ -52,6 +66,18 @@ import org.jboss.util.UnreachableStatementException;
  */
 public class InternalManagedConnectionPool implements IdleConnectionRemovalSupport
 {
+   /** The entry is in the pool */
+   private static final int FREE = 0;
+
+   /** The entry is checked out */
+   private static final int IN_USE = 1;
+
+   /** The entry is held by idle removal, validation or flush */
+   private static final int RESERVED = 2;
+
+   /** The entry has been removed from the pool */
+   private static final int REMOVED = 3;
+
    /** The managed connection factory */
    private final ManagedConnectionFactory mcf;
 
@@ -76,8 +102,20 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
     */
    private int maxSize;
 
-   /** The available connection event listeners */
-   private ArrayList cls;
+   /** The entries of all connection listeners in creation order */
+   private final CopyOnWriteArrayList entries = new CopyOnWriteArrayList();
+
+   /** The connection listener to entry mapping */
+   private final ConcurrentHashMap entryMap = new ConcurrentHashMap();
+
+   /** The number of FREE entries */
+   private final AtomicInteger freeCount = new AtomicInteger(0);
+
+   /** The number of IN_USE entries */
+   private final AtomicInteger inUseCount = new AtomicInteger(0);
+
+   /** The entry last returned by the current thread */
+   private final ThreadLocal lastUsed = new ThreadLocal();
 
    /** The permits used to control who can checkout a connection */
    private final Semaphore permits;
@@ -91,9 +129,6 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
    /** Stats */
    private final Counter connectionCounter = new Counter();
 
-   /** The checked out connections */
-   private final HashSet checkedOut = new HashSet();
-
    /** Whether the pool has been started */
    private boolean started = false;
 
@@ -101,7 +136,10 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
    private AtomicBoolean shutdown = new AtomicBoolean(false);
 
    /** the max connections ever checked out **/
-   private volatile int maxUsedConnections = 0;
+   private final AtomicInteger maxUsedConnections = new AtomicInteger(0);
+
+   /** The entry being validated in the background */
+   private final AtomicReference validating = new AtomicReference();
 
    /**
     * Create a new internal pool
@@ -125,7 +163,6 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
       this.jmcp = jmcp;
       this.log = log;
       this.trace = log.isTraceEnabled();
-      this.cls = new ArrayList(this.maxSize);
       this.permits = new Semaphore(this.maxSize, true);
   
       if (poolParams.prefill)
@@ -163,12 +200,12 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
 
    public int getMaxConnectionsInUseCount()
    {
-      return maxUsedConnections;
+      return maxUsedConnections.get();
    }
 
    public int getConnectionInUseCount()
    {
-      return checkedOut.size();
+      return inUseCount.get();
    }
 
    /**
@@ -183,8 +220,6 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
       long startWait = System.currentTimeMillis();
       try
       {
-         connectionCounter.updateBlockTime(System.currentTimeMillis() - startWait);
-         
          if (permits.tryAcquire(poolParams.blockingTimeout, TimeUnit.MILLISECONDS))
          {
             long poolBlockTime =  System.currentTimeMillis() - startWait ;
@@ -192,87 +227,76 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
 
             //We have a permit to get a connection. Is there one in the pool already?
             ConnectionListener cl = null;
-            do
+            while (true)
             {
-               synchronized (cls)
+               if (shutdown.get())
                {
-                  if (shutdown.get())
-                  {
-                     permits.release();
-                     throw new RetryableResourceException("The pool has been shutdown");
-                  }
-
-                  int clsSize = cls.size();
-                  if (clsSize > 0)
-                  {
-                     cl = (ConnectionListener) cls.remove(clsSize - 1);
-                     checkedOut.add(cl);
-                     int size = (int) (maxSize - permits.availablePermits());
-                     if (size > maxUsedConnections)
-                        maxUsedConnections = size;
-                  }
+                  permits.release();
+                  throw new RetryableResourceException("The pool has been shutdown");
                }
-               if (cl != null)
+
+               Entry entry = checkoutFree();
+               if (entry == null)
+                  break;
+               cl = entry.cl;
+               updateMaxUsed();
+
+               // Flushed while it was reserved by the background threads
+               if (cl.getState() == ConnectionListener.DESTROY)
                {
-                  //Yes, we retrieved a ManagedConnection from the pool. Does it match?
-                  try
-                  {
-                     Object matchedMC = mcf.matchManagedConnections(Collections.singleton(cl.getManagedConnection()),
-                           subject, cri);
-                     if (matchedMC != null)
-                     {
-                        if (trace)
-                           log.trace("supplying ManagedConnection from pool: " + cl);
-                        cl.grantPermit(true);
-                        return cl;
-                     }
+                  if (trace)
+                     log.trace("Destroying flushed connection " + cl);
+                  remove(entry);
+                  doDestroy(cl);
+                  cl = null;
+                  continue;
+               }
 
-                     //Match did not succeed but no exception was thrown.
-                     //Either we have the matching strategy wrong or the
-                     //connection died while being checked.  We need to
-                     //distinguish these cases, but for now we always
-                     //destroy the connection.
-                     log.warn("Destroying connection that could not be successfully matched: " + cl);
-                     synchronized (cls)
-                     {
-                        checkedOut.remove(cl);
-                     }
-                     doDestroy(cl);
-                     cl = null;
-                  }
-                  catch (Throwable t)
-                  {
-                     log.warn("Throwable while trying to match ManagedConnection, destroying connection: " + cl, t);
-                     synchronized (cls)
-                     {
-                        checkedOut.remove(cl);
-                     }
-                     doDestroy(cl);
-                     cl = null;
-                  }
-                  //We made it here, something went wrong and we should validate if we should continue attempting to acquire a connection
-                  if(poolParams.useFastFail)
+               //Yes, we retrieved a ManagedConnection from the pool. Does it match?
+               try
+               {
+                  Object matchedMC = mcf.matchManagedConnections(Collections.singleton(cl.getManagedConnection()),
+                        subject, cri);
+                  if (matchedMC != null)
                   {
-                     log.trace("Fast failing for connection attempt. No more attempts will be made to acquire connection from pool and a new connection will be created immeadiately");
-                     break;
+                     if (trace)
+                        log.trace("supplying ManagedConnection from pool: " + cl);
+                     cl.grantPermit(true);
+                     return cl;
                   }
-               
+
+                  //Match did not succeed but no exception was thrown.
+                  //Either we have the matching strategy wrong or the
+                  //connection died while being checked.  We need to
+                  //distinguish these cases, but for now we always
+                  //destroy the connection.
+                  log.warn("Destroying connection that could not be successfully matched: " + cl);
+                  remove(entry);
+                  doDestroy(cl);
+                  cl = null;
+               }
+               catch (Throwable t)
+               {
+                  log.warn("Throwable while trying to match ManagedConnection, destroying connection: " + cl, t);
+                  remove(entry);
+                  doDestroy(cl);
+                  cl = null;
+               }
+               //We made it here, something went wrong and we should validate if we should continue attempting to acquire a connection
+               if(poolParams.useFastFail)
+               {
+                  log.trace("Fast failing for connection attempt. No more attempts will be made to acquire connection from pool and a new connection will be created immeadiately");
+                  break;
                }
             }
-            while (cls.size() > 0);//end of do loop
 
             //OK, we couldnt find a working connection from the pool.  Make a new one.
             try
             {
                //No, the pool was empty, so we have to make a new one.
                cl = createConnectionEventListener(subject, cri);
-               synchronized (cls)
-               {
-                  checkedOut.add(cl);
-                  int size = (int) (maxSize - permits.availablePermits());
-                  if (size > maxUsedConnections)
-                     maxUsedConnections = size;
-               }
+               add(cl, IN_USE);
+               updateMaxUsed();
 
                //lack of synch on "started" probably ok, if 2 reads occur we will just
                //run fillPool twice, no harm done.
@@ -291,10 +315,8 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
             {
                log.warn("Throwable while attempting to get a new connection: " + cl, t);
                //return permit and rethrow
-               synchronized (cls)
-               {
-                  checkedOut.remove(cl);
-               }
+               if (cl != null)
+                  remove((Entry) entryMap.get(cl));
                permits.release();
                JBossResourceException.rethrowAsResourceException("Unexpected throwable while trying to create a connection: " + cl, t);
                throw new UnreachableStatementException();
@@ -318,21 +340,20 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
 
    public void returnConnection(ConnectionListener cl, boolean kill)
    {
-      synchronized (cls)
+      Entry entry = (Entry) entryMap.get(cl);
+      if (cl.getState() == ConnectionListener.DESTROYED)
       {
-         if (cl.getState() == ConnectionListener.DESTROYED)
+         if (trace)
+            log.trace("ManagedConnection is being returned after it was destroyed" + cl);
+         remove(entry);
+         if (cl.hasPermit())
          {
-            if (trace)
-               log.trace("ManagedConnection is being returned after it was destroyed" + cl);
-            if (cl.hasPermit())
-            {
-               // release semaphore
-               cl.grantPermit(false);
-               permits.release();
-            }
-
-            return;
+            // release semaphore
+            cl.grantPermit(false);
+            permits.release();
          }
+
+         return;
       }
 
       if (trace)
@@ -347,46 +368,44 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
          kill = true;
       }
 
-      synchronized (cls)
-      {
-         // We need to destroy this one
-         if (cl.getState() == ConnectionListener.DESTROY || cl.getState() == ConnectionListener.DESTROYED)
-            kill = true;
-         checkedOut.remove(cl);
+      // We need to destroy this one
+      if (cl.getState() == ConnectionListener.DESTROY || cl.getState() == ConnectionListener.DESTROYED)
+         kill = true;
 
-         // This is really an error
-         if (kill == false && cls.size() >= poolParams.maxSize)
-         {
-            log.warn("Destroying returned connection, maximum pool size exceeded " + cl);
-            kill = true;
-         }
+      // This is really an error
+      if (kill == false && freeCount.get() >= poolParams.maxSize)
+      {
+         log.warn("Destroying returned connection, maximum pool size exceeded " + cl);
+         kill = true;
+      }
 
-         // If we are destroying, check the connection is not in the pool
-         if (kill)
-         {
-            // Adrian Brock: A resource adapter can asynchronously notify us that
-            // a connection error occurred.
-            // This could happen while the connection is not checked out.
-            // e.g. JMS can do this via an ExceptionListener on the connection.
-            // I have twice had to reinstate this line of code, PLEASE DO NOT REMOVE IT!
-            cls.remove(cl);
-         }
-         // return to the pool
+      // If we are destroying, check the connection is not in the pool
+      if (kill)
+      {
+         // Adrian Brock: A resource adapter can asynchronously notify us that
+         // a connection error occurred.
+         // This could happen while the connection is not checked out.
+         // e.g. JMS can do this via an ExceptionListener on the connection.
+         // I have twice had to reinstate this line of code, PLEASE DO NOT REMOVE IT!
+         remove(entry);
+      }
+      // return to the pool
+      else
+      {
+         cl.used();
+         if (entry == null)
+            add(cl, FREE);
+         else if (checkin(entry, IN_USE))
+            lastUsed.set(entry);
          else
-         {
-            cl.used();
-            if (cls.contains(cl) == false)
-               cls.add(cl);
-            else
-               log.warn("Attempt to return connection twice (ignored): " + cl, new Throwable("STACKTRACE"));
-         }
+            log.warn("Attempt to return connection twice (ignored): " + cl, new Throwable("STACKTRACE"));
+      }
 
-         if (cl.hasPermit())
-         {
-            // release semaphore
-            cl.grantPermit(false);
-            permits.release();
-         }
+      if (cl.hasPermit())
+      {
+         // release semaphore
+         cl.grantPermit(false);
+         permits.release();
       }
 
       if (kill)
@@ -401,27 +420,29 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
    public void flush()
    {
       ArrayList destroy = null;
-      synchronized (cls)
-      {
-         if (trace)
-            log.trace("Flushing pool checkedOut=" + checkedOut + " inPool=" + cls);
+      if (trace)
+         log.trace("Flushing pool checkedOut=" + inUseCount.get() + " inPool=" + freeCount.get());
 
-         // Mark checked out connections as requiring destruction
-         for (Iterator i = checkedOut.iterator(); i.hasNext();)
+      for (Iterator i = entries.iterator(); i.hasNext();)
+      {
+         Entry entry = (Entry) i.next();
+         if (reserve(entry) == false)
          {
-            ConnectionListener cl = (ConnectionListener) i.next();
+            // Mark checked out connections as requiring destruction
+            if (entry.state.get() == REMOVED)
+               continue;
             if (trace)
-               log.trace("Flush marking checked out connection for destruction " + cl);
-            cl.setState(ConnectionListener.DESTROY);
+               log.trace("Flush marking checked out connection for destruction " + entry.cl);
+            entry.cl.setState(ConnectionListener.DESTROY);
+            // It may have been returned in the meantime
+            if (reserve(entry) == false)
+               continue;
          }
          // Destroy connections in the pool
-         while (cls.size() > 0)
-         {
-            ConnectionListener cl = (ConnectionListener) cls.remove(0);
-            if (destroy == null)
-               destroy = new ArrayList();
-            destroy.add(cl);
-         }
+         remove(entry);
+         if (destroy == null)
+            destroy = new ArrayList();
+         destroy.add(entry.cl);
       }
 
       // We need to destroy some connections
@@ -445,31 +466,29 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
    {
       ArrayList destroy = null;
       long timeout = System.currentTimeMillis() - poolParams.idleTimeout;
-      while (true)
+      for (Iterator i = entries.iterator(); i.hasNext();)
       {
-         synchronized (cls)
+         // Nothing left to destroy
+         if (freeCount.get() == 0)
+            break;
+
+         Entry entry = (Entry) i.next();
+         if (entry.state.get() != FREE || entry.cl.isTimedOut(timeout) == false || shouldRemove() == false)
+            continue;
+         if (reserve(entry))
          {
-            
-            // Nothing left to destroy
-            if (cls.size() == 0)
-               break;
-
-            // Check the first in the list
-            ConnectionListener cl = (ConnectionListener) cls.get(0);
-            if (cl.isTimedOut(timeout) && shouldRemove())
+            // Check again now that we own it, it may have been used in the meantime
+            if (entry.cl.isTimedOut(timeout) == false)
             {
-               connectionCounter.incTimedOut();
-               // We need to destroy this one
-               cls.remove(0);
-               if (destroy == null)
-                  destroy = new ArrayList();
-               destroy.add(cl);
-            }
-            else
-            {
-               //They were inserted chronologically, so if this one isn't timed out, following ones won't be either.
-               break;
+               checkin(entry, RESERVED);
+               continue;
             }
+            connectionCounter.incTimedOut();
+            // We need to destroy this one
+            remove(entry);
+            if (destroy == null)
+               destroy = new ArrayList();
+            destroy.add(entry.cl);
          }
       }
 
@@ -517,7 +536,12 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
       flush();
    }
 
-   public void fillToMin()
+   /**
+    * Fill the pool to its minimum size
+    *
+    * @return false when a connection could not be created
+    */
+   public boolean fillToMin()
    {
       while (true)
       {
@@ -530,27 +554,24 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
                try
                {
                   if (shutdown.get())
-                     return;
+                     return true;
 
                   // We already have enough connections
                   if (getMinSize() - connectionCounter.getGuaranteedCount() <= 0)
-                     return;
+                     return true;
 
                   // Create a connection to fill the pool
                   try
                   {
                      ConnectionListener cl = createConnectionEventListener(defaultSubject, defaultCri);
-                     synchronized (cls)
-                     {
-                        if (trace)
-                           log.trace("Filling pool cl=" + cl);
-                        cls.add(cl);
-                     }
+                     if (trace)
+                        log.trace("Filling pool cl=" + cl);
+                     add(cl, FREE);
                   }
                   catch (ResourceException re)
                   {
                      log.warn("Unable to fill pool ", re);
-                     return;
+                     return false;
                   }
                }
                finally
@@ -600,23 +621,189 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
    {
       return connectionCounter.getDestroyedCount();
    }
+
+   /**
+    * Get the maintenance lag, how late the idle removal and background
+    * validation of this pool currently run on the PoolMaintenanceScheduler
+    *
+    * @return the lag in milliseconds
+    */
+   public long getMaintenanceLag()
+   {
+      long lag = 0;
+      PoolMaintenanceScheduler.Task task = IdleRemover.getTask(this);
+      if (task != null)
+         lag = task.getLag();
+      task = ConnectionValidator.getTask(this);
+      if (task != null)
+         lag = Math.max(lag, task.getLag());
+      return lag;
+   }
+
+   /**
+    * @return the largest maintenance lag seen in milliseconds
+    */
+   public long getMaxMaintenanceLag()
+   {
+      long lag = 0;
+      PoolMaintenanceScheduler.Task task = IdleRemover.getTask(this);
+      if (task != null)
+         lag = task.getMaxLag();
+      task = ConnectionValidator.getTask(this);
+      if (task != null)
+         lag = Math.max(lag, task.getMaxLag());
+      return lag;
+   }
+
+   /**
+    * @return the number of background validations aborted for exceeding the validation timeout
+    */
+   public int getValidationTimeouts()
+   {
+      PoolMaintenanceScheduler.Task task = ConnectionValidator.getTask(this);
+      return task == null ? 0 : task.getTimeouts();
+   }
    
    Set getConnectionListeners()
    {
-      synchronized (cls)
-      {         
-         Set result = new HashSet();
-         result.addAll(cls); 
-         result.addAll(checkedOut); 
-         return result;
+      Set result = new HashSet();
+      for (Iterator i = entries.iterator(); i.hasNext();)
+      {
+         Entry entry = (Entry) i.next();
+         if (entry.state.get() != REMOVED)
+            result.add(entry.cl);
       }
+      return result;
    }
 
    boolean isEmpty()
    {
-      synchronized (cls)
+      return freeCount.get() == 0;
+   }
+
+   /**
+    * Take a FREE entry, preferring the one last returned by this thread
+    *
+    * @return the entry now IN_USE or null if there are no free entries
+    */
+   private Entry checkoutFree()
+   {
+      Entry entry = (Entry) lastUsed.get();
+      if (entry != null)
+      {
+         if (entry.state.compareAndSet(FREE, IN_USE))
+         {
+            freeCount.decrementAndGet();
+            inUseCount.incrementAndGet();
+            return entry;
+         }
+         // Don't keep a destroyed connection reachable from the thread
+         if (entry.state.get() == REMOVED)
+            lastUsed.set(null);
+      }
+      while (freeCount.get() > 0)
       {
-         return cls.size() == 0;
+         boolean found = false;
+         for (Iterator i = entries.iterator(); i.hasNext();)
+         {
+            entry = (Entry) i.next();
+            if (entry.state.get() != FREE)
+               continue;
+            found = true;
+            if (entry.state.compareAndSet(FREE, IN_USE))
+            {
+               freeCount.decrementAndGet();
+               inUseCount.incrementAndGet();
+               return entry;
+            }
+         }
+         if (found == false)
+            break;
+      }
+      return null;
+   }
+
+   /**
+    * Put an IN_USE or RESERVED entry back in the pool
+    *
+    * @param entry the entry
+    * @param expected the state the caller holds the entry in
+    * @return false when the entry is no longer in the expected state,
+    *         e.g. it was removed or already returned
+    */
+   private boolean checkin(Entry entry, int expected)
+   {
+      if (entry.state.compareAndSet(expected, FREE) == false)
+         return false;
+      if (expected == IN_USE)
+         inUseCount.decrementAndGet();
+      freeCount.incrementAndGet();
+      return true;
+   }
+
+   /**
+    * Reserve a FREE entry for the background threads
+    *
+    * @param entry the entry
+    * @return true when the entry is now RESERVED
+    */
+   private boolean reserve(Entry entry)
+   {
+      if (entry.state.compareAndSet(FREE, RESERVED))
+      {
+         freeCount.decrementAndGet();
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * Add a new connection listener to the pool
+    *
+    * @param cl the connection listener
+    * @param state FREE or IN_USE
+    */
+   private void add(ConnectionListener cl, int state)
+   {
+      Entry entry = new Entry(cl, state);
+      if (state == FREE)
+         freeCount.incrementAndGet();
+      else
+         inUseCount.incrementAndGet();
+      entryMap.put(cl, entry);
+      entries.add(entry);
+   }
+
+   /**
+    * Remove an entry from the pool, the caller destroys the connection
+    *
+    * @param entry the entry, can be null
+    */
+   private void remove(Entry entry)
+   {
+      if (entry == null)
+         return;
+      int state = entry.state.getAndSet(REMOVED);
+      if (state == REMOVED)
+         return;
+      if (state == FREE)
+         freeCount.decrementAndGet();
+      else if (state == IN_USE)
+         inUseCount.decrementAndGet();
+      entryMap.remove(entry.cl);
+      entries.remove(entry);
+      if (lastUsed.get() == entry)
+         lastUsed.set(null);
+   }
+
+   private void updateMaxUsed()
+   {
+      int size = (int) (maxSize - permits.availablePermits());
+      while (true)
+      {
+         int max = maxUsedConnections.get();
+         if (size <= max || maxUsedConnections.compareAndSet(max, size))
+            return;
       }
    }
 
@@ -677,7 +864,7 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
       
       if(poolParams.stictMin)
       {
-         remove = cls.size() > poolParams.minSize;
+         remove = freeCount.get() > poolParams.minSize;
          
          log.trace("StrictMin is active. Current connection will be removed is " + remove);
          
@@ -701,30 +888,15 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
          try
          {
 
-            while (true)
+            for (Iterator i = entries.iterator(); i.hasNext();)
             {
+               Entry entry = (Entry) i.next();
+               if (isValidationDue(entry) == false || reserve(entry) == false)
+                  continue;
 
-               ConnectionListener cl = null;
+               ConnectionListener cl = entry.cl;
                boolean destroyed = false;
-
-               synchronized (cls)
-               {
-                  if (cls.size() == 0)
-                  {
-
-                     break;
-
-                  }
-
-                  cl = removeForFrequencyCheck();
-
-               }
-
-               if (cl == null)
-               {
-
-                  break;
-               }
+               boolean aborted = false;
 
                try
                {
@@ -734,13 +906,23 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
                   if (mcf instanceof ValidatingManagedConnectionFactory)
                   {
                      ValidatingManagedConnectionFactory vcf = (ValidatingManagedConnectionFactory) mcf;
-                     candidateSet = vcf.getInvalidConnections(candidateSet);
+                     validating.set(entry);
+                     try
+                     {
+                        candidateSet = vcf.getInvalidConnections(candidateSet);
+                     }
+                     finally
+                     {
+                        // The watchdog took the entry when it aborted the validation
+                        aborted = validating.compareAndSet(entry, null) == false;
+                     }
 
-                     if (candidateSet != null && candidateSet.size() > 0)
+                     if (aborted || candidateSet != null && candidateSet.size() > 0)
                      {
 
                         if (cl.getState() != ConnectionListener.DESTROY)
                         {
+                           remove(entry);
                            doDestroy(cl);
                            destroyed = true;
                            anyDestroyed = true;
@@ -756,13 +938,16 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
                }
                finally
                {
-                  if(!destroyed)
+                  if (aborted && destroyed == false)
                   {
-                     synchronized (cls)
-                     {
-                        returnForFrequencyCheck(cl);
-                     }
-                     
+                     // The connection was destroyed under us, do not return it
+                     remove(entry);
+                     doDestroy(cl);
+                     anyDestroyed = true;
+                  }
+                  else if(!destroyed)
+                  {
+                     returnForFrequencyCheck(entry);
                   }
 
                }
@@ -784,42 +969,45 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
       }
 
    }
-   private ConnectionListener removeForFrequencyCheck()
-   {
-
-      log.debug("Checking for connection within frequency");
-
-      ConnectionListener cl = null;
 
-      for (Iterator iter = cls.iterator(); iter.hasNext();)
+   /**
+    * Abort a background validation that exceeded the validation timeout.<p>
+    *
+    * Interrupting the validating thread does not unblock a read from a dead
+    * socket, so this destroys the managed connection being validated. The
+    * validation then fails and the connection is removed from the pool.
+    */
+   public void abortValidation()
+   {
+      Entry entry = (Entry) validating.getAndSet(null);
+      if (entry == null)
+         return;
+      log.warn("Destroying connection stuck in background validation " + entry.cl);
+      try
       {
-
-         cl = (ConnectionListener) iter.next();
-         long lastCheck = cl.getLastValidatedTime();
-
-         if ((System.currentTimeMillis() - lastCheck) >= poolParams.backgroundInterval)
-         {
-            cls.remove(cl);
-            break;
-
-         }
-         else
-         {
-            cl = null;
-         }
-
+         entry.cl.getManagedConnection().destroy();
       }
+      catch (Throwable t)
+      {
+         log.debug("Exception destroying ManagedConnection " + entry.cl, t);
+      }
+   }
 
-      return cl;
+   private boolean isValidationDue(Entry entry)
+   {
+      if (entry.state.get() != FREE)
+         return false;
+      long lastCheck = entry.cl.getLastValidatedTime();
+      return (System.currentTimeMillis() - lastCheck) >= poolParams.backgroundInterval;
    }
 
-   private void returnForFrequencyCheck(ConnectionListener cl)
+   private void returnForFrequencyCheck(Entry entry)
    {
 
       log.debug("Returning for connection within frequency");
 
-      cl.setLastValidatedTime(System.currentTimeMillis());
-      cls.add(cl);
+      entry.cl.setLastValidatedTime(System.currentTimeMillis());
+      checkin(entry, RESERVED);
 
    }
    /**
@@ -855,79 +1043,100 @@ public class InternalManagedConnectionPool implements IdleConnectionRemovalSuppo
         public boolean useFastFail;
    }
 
+   /**
+    * The pool state of a connection listener
+    */
+   private static class Entry
+   {
+      final ConnectionListener cl;
+
+      final AtomicInteger state;
+
+      Entry(ConnectionListener cl, int state)
+      {
+         this.cl = cl;
+         this.state = new AtomicInteger(state);
+      }
+   }
+
    /**
 	 * Stats
 	 */
    private static class Counter
    {
-      private int created = 0;
+      private final AtomicInteger created = new AtomicInteger(0);
 
-      private int destroyed = 0;
+      private final AtomicInteger destroyed = new AtomicInteger(0);
 
       // Total wait time to get Connection from Pool.
-      private long totalBlockTime;
+      private final AtomicLong totalBlockTime = new AtomicLong(0);
       
       // Idle timed out Connection Count.
-      private int timedOut;
+      private final AtomicInteger timedOut = new AtomicInteger(0);
 
       // The maximum wait time */      
-      private long maxWaitTime;
+      private final AtomicLong maxWaitTime = new AtomicLong(0);
       
-      synchronized int getGuaranteedCount()
+      int getGuaranteedCount()
       {
-         return created - destroyed;
+         return created.get() - destroyed.get();
       }
 
       int getCount()
       {
-         return created - destroyed;
+         return created.get() - destroyed.get();
       }
 
       int getCreatedCount()
       {
-         return created;
+         return created.get();
       }
 
       int getDestroyedCount()
       {
-         return destroyed;
+         return destroyed.get();
       }
 
-      synchronized void inc()
+      void inc()
       {
-         ++created;
+         created.incrementAndGet();
       }
 
-      synchronized void dec()
+      void dec()
       {
-         ++destroyed;
+         destroyed.incrementAndGet();
       }
    
-      synchronized void updateBlockTime(long latest)
+      void updateBlockTime(long latest)
       {
-         totalBlockTime += latest;
-         if (maxWaitTime < latest)
-            maxWaitTime = latest;
+         if (latest > 0)
+            totalBlockTime.addAndGet(latest);
+         while (true)
+         {
+            long max = maxWaitTime.get();
+            if (latest <= max || maxWaitTime.compareAndSet(max, latest))
+               return;
+         }
       }
 
       long getTotalBlockTime()
       {
-         return totalBlockTime;
+         return totalBlockTime.get();
       }
  
       int getTimedOut()
       {
-         return timedOut;
+         return timedOut.get();
       }
       
-      synchronized void incTimedOut()
+      void incTimedOut()
       {
-         ++timedOut;
+         timedOut.incrementAndGet();
       }
 
       long getMaxWaitTime()
       {
-          return maxWaitTime;
+          return maxWaitTime.get();
       }
    }
 }
@@ -53,6 +53,7 @@ import org.jboss.managed.api.annotation.ViewUse;
 import org.jboss.mx.util.JMXExceptionDecoder;
 import org.jboss.resource.JBossResourceException;
 import org.jboss.resource.connectionmanager.InternalManagedConnectionPool.PoolParams;
+import org.jboss.resource.statistic.JBossStatementStatistics;
 import org.jboss.resource.statistic.JBossStatistics;
 import org.jboss.resource.statistic.StatisticsReporter;
 import org.jboss.resource.statistic.formatter.StatisticsFormatter;
@@ -164,6 +165,17 @@ public class JBossManagedConnectionPool extends ServiceMBeanSupport
       return stats;      
    }
    
+   @ManagementOperation(description="Obtain the most used statements of the datasource",
+         impact=Impact.ReadOnly,
+         params={@ManagementParameter(name="count", description="The maximum number of statements")})
+   public Object listTopStatements(int count)
+   {
+      ManagedConnectionFactory mcf = poolingStrategy != null ? poolingStrategy.getManagedConnectionFactory() : null;
+      if (mcf instanceof JBossStatementStatistics)
+         return ((JBossStatementStatistics) mcf).listTopStatements(count);
+      return "Statement statistics are not supported by " + (mcf == null ? null : mcf.getClass().getName());
+   }
+
    public Object listUnderlyingNativeConnectionStatistics()
    {
        return poolingStrategy.listUnderlyingNativeConnectionStatistics();
@@ -196,6 +208,14 @@ public class JBossManagedConnectionPool extends ServiceMBeanSupport
       return (poolingStrategy == null) ? 0 : poolingStrategy.getMaxConnectionsInUseCount();
    }
 
+   @ManagementProperty(use={ViewUse.STATISTIC}, description="how late in ms the idle removal and background validation of the pool run")
+   public long getMaintenanceLag()
+   {
+      if (poolingStrategy instanceof BasePool)
+         return ((BasePool) poolingStrategy).getMaintenanceLag();
+      return 0;
+   }
+
    @ManagementProperty(use={ViewUse.STATISTIC}, description="number of connections currently in use")
    public long getInUseConnectionCount ()
    {
@@ -936,6 +956,22 @@ public class JBossManagedConnectionPool extends ServiceMBeanSupport
          }
          return count;
       }
+
+      /**
+       * Get the largest current maintenance lag of the sub-pools
+       * 
+       * @return the lag in milliseconds
+       */
+      public long getMaintenanceLag()
+      {
+         long lag = 0;
+         for (Iterator i = subPools.values().iterator(); i.hasNext(); )
+         {
+            SubPoolContext subPool = (SubPoolContext) i.next();
+            lag = Math.max(lag, subPool.getSubPool().getMaintenanceLag());
+         }
+         return lag;
+      }
       
       public void shutdown()
       {
@@ -1086,6 +1122,9 @@ public class JBossManagedConnectionPool extends ServiceMBeanSupport
             stat.setAverageBlockTime(internalPool.getAverageBlockTime());
             stat.setMaxWaitTime(internalPool.getMaxWaitTime());
             stat.setTotalTimedOut(internalPool.getTimedOut());
+            stat.setMaintenanceLag(internalPool.getMaintenanceLag());
+            stat.setMaxMaintenanceLag(internalPool.getMaxMaintenanceLag());
+            stat.setValidationTimeouts(internalPool.getValidationTimeouts());
             subPoolStats.addSubPool(stat);
          }
 
@@ -64,6 +64,15 @@ public interface JBossManagedConnectionPoolMBean extends org.jboss.system.Servic
     */
    long getMaxConnectionsInUseCount();
 
+   /**
+    * Get how late the idle removal and background validation of the
+    * sub-pools currently run, a growing value means the maintenance
+    * threads are held up.
+    * 
+    * @return the maintenance lag in milliseconds
+    */
+   long getMaintenanceLag();
+
    /**
     * Get number of connections currently in use
     * @return number of connections currently in use
@@ -191,6 +200,15 @@ public interface JBossManagedConnectionPoolMBean extends org.jboss.system.Servic
     * @return the statistics for all sub pools.
     */
    Object listStatistics();
+
+   /**
+    * Return the most used statements of the managed connection factory,
+    * counted across all connections of the pool.
+    * 
+    * @param count the maximum number of statements
+    * @return the statement statistics.
+    */
+   Object listTopStatements(int count);
    
    /**
     * Return statistics for all sub pools formatted for consumption.
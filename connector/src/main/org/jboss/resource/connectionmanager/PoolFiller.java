@@ -21,87 +21,121 @@
  */
 package org.jboss.resource.connectionmanager;
 
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * PoolFiller
  *
+ * Fills the pools to their minimum size on the PoolMaintenanceScheduler.
+ * Requests for a pool that already has a fill pending are coalesced.
+ * A fill that cannot create a connection is retried after a delay that
+ * doubles with every failure up to a minute, so a pool whose database is
+ * down does not keep a maintenance thread busy.
+ *
  * @author <a href="mailto:d_jencks@users.sourceforge.net">David Jencks</a>
  * @author Scott.Stark@jboss.org
  * @author <a href="mailto:adrian@jboss.com">Adrian Brock</a>
  * @version $Revision: 80838 $
  */
-public class PoolFiller implements Runnable
+public class PoolFiller
 {
-   private final LinkedList pools = new LinkedList();
+   /** The delay before retrying the first failed fill of a pool */
+   public static final long INITIAL_BACKOFF = 1000;
+
+   /** The longest delay between retries */
+   public static final long MAX_BACKOFF = 60000;
+
+   /** The current retry delays of the pools whose last fill failed */
+   private static final ConcurrentHashMap<InternalManagedConnectionPool, Long> backoffs = new ConcurrentHashMap<InternalManagedConnectionPool, Long>();
 
-   private final Thread fillerThread;
+   /** The pools with a pending fill */
+   private static final ConcurrentHashMap<InternalManagedConnectionPool, Boolean> pending = new ConcurrentHashMap<InternalManagedConnectionPool, Boolean>();
 
-   private static final PoolFiller filler = new PoolFiller();
+   /** Whether the current thread is filling a pool */
+   private static final ThreadLocal<Boolean> filling = new ThreadLocal<Boolean>();
+
+   /**
+    * Whether the current thread is filling a pool, connections created
+    * outside a request can afford extra setup work such as warming up
+    * their statement cache.
+    *
+    * @return true when filling a pool
+    */
+   public static boolean isFillingPool()
+   {
+      return filling.get() != null;
+   }
+
+   public static void fillPool(final InternalManagedConnectionPool mcp)
+   {
+      if (pending.putIfAbsent(mcp, Boolean.TRUE) != null)
+         return;
+      PoolMaintenanceScheduler.execute(new Filler(mcp));
+   }
 
-   public static void fillPool(InternalManagedConnectionPool mcp)
+   /**
+    * Get the delay before the next attempt to fill a pool whose last fill failed
+    *
+    * @param mcp the pool
+    * @return the delay in milliseconds, 0 when the last fill succeeded
+    */
+   public static long getBackoff(InternalManagedConnectionPool mcp)
    {
-      filler.internalFillPool(mcp);
+      Long backoff = backoffs.get(mcp);
+      return backoff == null ? 0 : backoff.longValue();
    }
 
-   public PoolFiller ()
+   /**
+    * Retry a failed fill after a delay doubling with every failure
+    */
+   private static void retry(InternalManagedConnectionPool mcp)
    {
-      fillerThread = new Thread(this, "JCA PoolFiller");
-      fillerThread.start();
+      Long last = backoffs.get(mcp);
+      long backoff = last == null ? INITIAL_BACKOFF : Math.min(MAX_BACKOFF, last.longValue() * 2);
+      backoffs.put(mcp, new Long(backoff));
+      // Requests during the backoff are coalesced into the retry
+      if (pending.putIfAbsent(mcp, Boolean.TRUE) != null)
+         return;
+      PoolMaintenanceScheduler.execute(new Filler(mcp), backoff);
    }
 
-   public void run()
+   /**
+    * Fills one pool
+    */
+   private static class Filler implements Runnable
    {
-      final ClassLoader myClassLoader = getClass().getClassLoader();
-      SecurityActions.setTCL(myClassLoader); 
-      //keep going unless interrupted
-      while (true)
+      private final InternalManagedConnectionPool mcp;
+
+      Filler(InternalManagedConnectionPool mcp)
       {
-         try 
-         {
-            InternalManagedConnectionPool mcp = null;
-            //keep iterating through pools till empty, exception escapes.
-            while (true)
-            {
-                     
-               synchronized (pools)
-               {
-                  mcp = (InternalManagedConnectionPool)pools.removeFirst();
-               }
-               if (mcp == null) 
-                  break;
-                        
-               mcp.fillToMin();
-            }
-         }
-         catch (Exception e)
+         this.mcp = mcp;
+      }
+
+      public void run()
+      {
+         // Requests arriving from now on need another run
+         pending.remove(mcp);
+         boolean filled = false;
+         filling.set(Boolean.TRUE);
+         try
          {
+            filled = mcp.fillToMin();
          }
-                        
-         try 
+         catch (Exception ignored)
          {
-            synchronized (pools)
-            {
-               while(pools.isEmpty())
-               {
-                  pools.wait();                        
-                  
-               }
-            }
          }
-         catch (InterruptedException ie)
+         finally
          {
-            return;
+            filling.remove();
          }
+         if (filled)
+            backoffs.remove(mcp);
+         else
+            retry(mcp);
       }
    }
 
-   private void internalFillPool(InternalManagedConnectionPool mcp)
+   private PoolFiller()
    {
-      synchronized (pools)
-      {
-         pools.addLast(mcp);
-         pools.notify();
-      }
    }
 }
@@ -0,0 +1,422 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.resource.connectionmanager;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.logging.Logger;
+
+/**
+ * The shared executor for the pool maintenance work: idle removal,
+ * background validation and filling the pools to their minimum.<p>
+ *
+ * Every pool gets its own tasks, so a pool whose validation hangs on a dead
+ * database only holds one of the maintenance threads instead of delaying
+ * the work of every other pool. Periodic tasks reschedule themselves after
+ * each run with a jittered delay, so they never pile up and pools
+ * registered together do not all fire at the same time. A watchdog with
+ * its own thread aborts the tasks that run longer than their timeout, even
+ * when every maintenance thread is stuck. Interrupting the thread does not
+ * unblock a socket read, so work that can hang on the network implements
+ * {@link Abortable} and closes the resource it is blocked on.<p>
+ *
+ * The number of threads is taken from the
+ * <code>org.jboss.resource.connectionmanager.PoolMaintenanceScheduler.threads</code>
+ * system property and defaults to the number of processors, at least 2 and
+ * at most 8. The validation timeout in milliseconds is taken from
+ * <code>org.jboss.resource.connectionmanager.PoolMaintenanceScheduler.validationTimeout</code>
+ * and defaults to 60 seconds, 0 disables it.
+ *
+ * @version $Revision: 102148 $
+ */
+public class PoolMaintenanceScheduler
+{
+   /** The log */
+   private static final Logger log = Logger.getLogger(PoolMaintenanceScheduler.class);
+
+   /** The system property holding the number of threads */
+   public static final String THREADS_PROPERTY = "org.jboss.resource.connectionmanager.PoolMaintenanceScheduler.threads";
+
+   /** The system property holding the validation timeout */
+   public static final String VALIDATION_TIMEOUT_PROPERTY = "org.jboss.resource.connectionmanager.PoolMaintenanceScheduler.validationTimeout";
+
+   /** How often the watchdog checks for overdue tasks */
+   private static final long WATCHDOG_INTERVAL = 1000;
+
+   /** The executor */
+   private static final ScheduledThreadPoolExecutor executor;
+
+   /** The watchdog executor */
+   private static final ScheduledThreadPoolExecutor watchdog;
+
+   /** The validation timeout */
+   private static final long validationTimeout;
+
+   /** The periodic tasks */
+   private static final ConcurrentHashMap<Task, Boolean> tasks = new ConcurrentHashMap<Task, Boolean>();
+
+   /** The jitter source */
+   private static final Random random = new Random();
+
+   static
+   {
+      int threads = Math.min(8, Math.max(2, Runtime.getRuntime().availableProcessors()));
+      threads = Integer.getInteger(THREADS_PROPERTY, threads).intValue();
+      validationTimeout = Long.getLong(VALIDATION_TIMEOUT_PROPERTY, 60000).longValue();
+      executor = new ScheduledThreadPoolExecutor(threads, new MaintenanceThreadFactory("JCA PoolMaintenance#"));
+      watchdog = new ScheduledThreadPoolExecutor(1, new MaintenanceThreadFactory("JCA PoolMaintenance Watchdog#"));
+      watchdog.scheduleWithFixedDelay(new Watchdog(), WATCHDOG_INTERVAL, WATCHDOG_INTERVAL, TimeUnit.MILLISECONDS);
+   }
+
+   private PoolMaintenanceScheduler()
+   {
+   }
+
+   /**
+    * Schedule a periodic task
+    *
+    * @param name the name used in the log messages
+    * @param work the work to run
+    * @param period the period in milliseconds
+    * @param validation whether the validation timeout applies to this task
+    * @return the task
+    */
+   public static Task schedule(String name, Runnable work, long period, boolean validation)
+   {
+      return schedule(name, work, period, validation ? validationTimeout : 0);
+   }
+
+   /**
+    * Schedule a periodic task with its own timeout
+    *
+    * @param name the name used in the log messages
+    * @param work the work to run
+    * @param period the period in milliseconds
+    * @param timeout the timeout in milliseconds, 0 for none
+    * @return the task
+    */
+   public static Task schedule(String name, Runnable work, long period, long timeout)
+   {
+      Task task = new Task(name, work, period, timeout);
+      tasks.put(task, Boolean.TRUE);
+      task.scheduleNext();
+      return task;
+   }
+
+   /**
+    * Run some one off work
+    *
+    * @param work the work
+    */
+   public static void execute(Runnable work)
+   {
+      executor.execute(work);
+   }
+
+   /**
+    * Run some one off work after a delay
+    *
+    * @param work the work
+    * @param delay the delay in milliseconds
+    */
+   public static void execute(Runnable work, long delay)
+   {
+      executor.schedule(work, delay, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * @return the number of maintenance threads
+    */
+   public static int getThreads()
+   {
+      return executor.getCorePoolSize();
+   }
+
+   /**
+    * @return the validation timeout in milliseconds
+    */
+   public static long getValidationTimeout()
+   {
+      return validationTimeout;
+   }
+
+   /**
+    * Add up to a tenth of the period either way
+    */
+   private static long jitter(long period)
+   {
+      long range = period / 10;
+      if (range <= 0)
+         return period;
+      long offset;
+      synchronized (random)
+      {
+         offset = (long) (random.nextDouble() * 2 * range) - range;
+      }
+      return Math.max(1, period + offset);
+   }
+
+   /**
+    * Work that can be stopped from another thread when it exceeds its timeout
+    */
+   public interface Abortable
+   {
+      /**
+       * Stop the current run, e.g. by closing the connection it is blocked on.
+       * This is invoked from the watchdog thread and must not block.
+       */
+      void abort();
+   }
+
+   /**
+    * A periodic maintenance task of one pool
+    */
+   public static class Task implements Runnable
+   {
+      private final String name;
+
+      private final Runnable work;
+
+      private final long period;
+
+      private final long timeout;
+
+      private volatile boolean cancelled = false;
+
+      private volatile ScheduledFuture future;
+
+      /** When the current run was due */
+      private volatile long due;
+
+      /** When the current run started, 0 when not running */
+      private volatile long started;
+
+      private volatile Thread runner;
+
+      private volatile boolean overdue;
+
+      private volatile long lastLag;
+
+      private volatile long maxLag;
+
+      private volatile long lastDuration;
+
+      private final AtomicInteger runs = new AtomicInteger(0);
+
+      private final AtomicInteger timeouts = new AtomicInteger(0);
+
+      Task(String name, Runnable work, long period, long timeout)
+      {
+         this.name = name;
+         this.work = work;
+         this.period = period;
+         this.timeout = timeout;
+      }
+
+      public void run()
+      {
+         synchronized (this)
+         {
+            if (cancelled)
+               return;
+            long now = System.currentTimeMillis();
+            lastLag = Math.max(0, now - due);
+            if (lastLag > maxLag)
+               maxLag = lastLag;
+            runner = Thread.currentThread();
+            started = now;
+            try
+            {
+               work.run();
+            }
+            catch (Throwable t)
+            {
+               log.warn("Ignored unexpected error from " + name, t);
+            }
+            finally
+            {
+               lastDuration = System.currentTimeMillis() - started;
+               started = 0;
+               runner = null;
+               overdue = false;
+               // Do not leave an interrupt set by the watchdog for the next task
+               Thread.interrupted();
+               runs.incrementAndGet();
+            }
+            scheduleNext();
+         }
+      }
+
+      private void scheduleNext()
+      {
+         if (cancelled)
+            return;
+         long delay = jitter(period);
+         due = System.currentTimeMillis() + delay;
+         future = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+      }
+
+      /**
+       * Stop running the task, a current run completes
+       */
+      public void cancel()
+      {
+         cancelled = true;
+         tasks.remove(this);
+         ScheduledFuture f = future;
+         if (f != null && f.cancel(false))
+            executor.purge();
+      }
+
+      /**
+       * Wait for a current run to complete
+       */
+      public void waitForCompletion()
+      {
+         synchronized (this)
+         {
+            return;
+         }
+      }
+
+      /**
+       * Abort the run if it exceeded the timeout
+       */
+      void checkTimeout(long now)
+      {
+         long start = started;
+         Thread thread = runner;
+         if (timeout <= 0 || start == 0 || thread == null || overdue || now - start < timeout)
+            return;
+         overdue = true;
+         timeouts.incrementAndGet();
+         log.warn(name + " has been running for " + (now - start) + "ms, longer than the timeout of " + timeout + "ms, aborting it in " + thread.getName());
+         if (work instanceof Abortable)
+         {
+            try
+            {
+               ((Abortable) work).abort();
+            }
+            catch (Throwable t)
+            {
+               log.warn("Ignored unexpected error aborting " + name, t);
+            }
+         }
+         // Also wakes up work waiting on a lock or a permit
+         thread.interrupt();
+      }
+
+      /**
+       * Get the lag, the delay between the time a run was due and the time it
+       * started. While a run is overdue, this is how long it has been waiting.
+       *
+       * @return the lag in milliseconds
+       */
+      public long getLag()
+      {
+         long waiting = 0;
+         if (started == 0 && cancelled == false)
+            waiting = Math.max(0, System.currentTimeMillis() - due);
+         return Math.max(lastLag, waiting);
+      }
+
+      public long getMaxLag()
+      {
+         return Math.max(maxLag, getLag());
+      }
+
+      public long getLastDuration()
+      {
+         return lastDuration;
+      }
+
+      public int getRuns()
+      {
+         return runs.get();
+      }
+
+      public int getTimeouts()
+      {
+         return timeouts.get();
+      }
+
+      public String toString()
+      {
+         return name;
+      }
+   }
+
+   /**
+    * Aborts the tasks running for longer than their timeout
+    */
+   private static class Watchdog implements Runnable
+   {
+      public void run()
+      {
+         long now = System.currentTimeMillis();
+         for (Task task : tasks.keySet())
+            task.checkTimeout(now);
+      }
+   }
+
+   /**
+    * Creates daemon threads with the context classloader set to where the
+    * scheduler was loaded from.<p>
+    *
+    * This avoids holding a reference to the caller's classloader which may be undeployed.
+    */
+   private static class MaintenanceThreadFactory implements ThreadFactory
+   {
+      private final String prefix;
+
+      private final AtomicInteger count = new AtomicInteger(0);
+
+      MaintenanceThreadFactory(String prefix)
+      {
+         this.prefix = prefix;
+      }
+
+      public Thread newThread(final Runnable runnable)
+      {
+         return AccessController.doPrivileged(new PrivilegedAction<Thread>()
+         {
+            public Thread run()
+            {
+               Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+               thread.setDaemon(true);
+               ClassLoader cl = PoolMaintenanceScheduler.class.getClassLoader();
+               if (cl != null)
+                  thread.setContextClassLoader(cl);
+               return thread;
+            }
+         });
+      }
+   }
+}
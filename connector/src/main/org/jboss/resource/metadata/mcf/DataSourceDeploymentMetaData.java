@@ -86,6 +86,13 @@ public class DataSourceDeploymentMetaData extends ManagedConnectionFactoryDeploy
    @XmlElement(name="prepared-statement-cache-size")
    private int preparedStatementCacheSize = 0;
    
+   @XmlElement(name="prepared-statement-cache-policy")
+   @XmlJavaTypeAdapter(CollapsedStringAdapter.class)
+   private String preparedStatementCachePolicy;
+   
+   @XmlElement(name="prepared-statement-cache-warmup")
+   private int preparedStatementCacheWarmup = 0;
+   
    @XmlElement(name="share-prepared-statements")
    private boolean sharePreparedStatements;
    
@@ -253,6 +260,32 @@ public class DataSourceDeploymentMetaData extends ManagedConnectionFactoryDeploy
       this.preparedStatementCacheSize = preparedStatementCacheSize;
    }
 
+   @ManagementProperty(name="prepared-statement-cache-policy",
+         description="The DataSource prepared statement cache eviction policy, lru, lfu or a class name",
+         includeInTemplate=true)
+   public String getPreparedStatementCachePolicy()
+   {
+      return preparedStatementCachePolicy;
+   }
+
+   public void setPreparedStatementCachePolicy(String preparedStatementCachePolicy)
+   {
+      this.preparedStatementCachePolicy = preparedStatementCachePolicy;
+   }
+
+   @ManagementProperty(name="prepared-statement-cache-warmup",
+         description="The number of most used statements prepared on connections created to fill the pool",
+         includeInTemplate=true)
+   public int getPreparedStatementCacheWarmup()
+   {
+      return preparedStatementCacheWarmup;
+   }
+
+   public void setPreparedStatementCacheWarmup(int preparedStatementCacheWarmup)
+   {
+      this.preparedStatementCacheWarmup = preparedStatementCacheWarmup;
+   }
+
    @ManagementProperty(name="query-timeout", description="The query timeout",
          includeInTemplate=true)
    public int getQueryTimeout()
@@ -415,6 +448,20 @@ public class DataSourceDeploymentMetaData extends ManagedConnectionFactoryDeploy
       property.setValue(String.valueOf(getPreparedStatementCacheSize()));
       properties.add(property);
       
+      if (getPreparedStatementCachePolicy() != null)
+      {
+         property = new ManagedConnectionFactoryPropertyMetaData();
+         property.setName("PreparedStatementCachePolicy");
+         property.setValue(getPreparedStatementCachePolicy());
+         properties.add(property);
+      }
+      
+      property = new ManagedConnectionFactoryPropertyMetaData();
+      property.setName("PreparedStatementCacheWarmup");
+      property.setType("int");
+      property.setValue(String.valueOf(getPreparedStatementCacheWarmup()));
+      properties.add(property);
+      
       property = new ManagedConnectionFactoryPropertyMetaData();
       property.setName("SharePreparedStatements");
       property.setType("boolean");
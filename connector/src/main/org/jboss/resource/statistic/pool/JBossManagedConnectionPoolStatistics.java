@@ -232,6 +232,9 @@ public class JBossManagedConnectionPoolStatistics implements ManagedConnectionPo
          poolStatBuff.append("\n Average Block Time For Sub Pool:" + statGroup.getAverageBlockTime());
          poolStatBuff.append("\n Maximum Wait Time For Sub Pool:" + statGroup.getMaxWaitTime());
          poolStatBuff.append("\n Total Timed Out Connections:" + statGroup.getTotalTimedOut());
+         poolStatBuff.append("\n Maintenance Lag:" + statGroup.getMaintenanceLag());
+         poolStatBuff.append("\n Max Maintenance Lag:" + statGroup.getMaxMaintenanceLag());
+         poolStatBuff.append("\n Validation Timeouts:" + statGroup.getValidationTimeouts());
          poolStatBuff.append("\n\n ---------------------------------------------------------------");
       }
       return poolStatBuff.toString();
@@ -59,6 +59,15 @@ public class JBossSubPoolStatistics implements JBossStatistics
    /** The maxWaitTime */
    private long maxWaitTime;
 
+   /** The maintenanceLag */
+   private long maintenanceLag;
+
+   /** The maxMaintenanceLag */
+   private long maxMaintenanceLag;
+
+   /** The validationTimeouts */
+   private int validationTimeouts;
+
    /**
     * Get the availableConnections.
     * 
@@ -159,6 +168,9 @@ public class JBossSubPoolStatistics implements JBossStatistics
       statBuff.append("Maximum Wait Time For Sub Pool:" + getMaxWaitTime() + "\n");
       
       statBuff.append("Total Timed Out:" + getTotalTimedOut() + "\n");
+      statBuff.append("Maintenance Lag:" + getMaintenanceLag() + "\n");
+      statBuff.append("Max Maintenance Lag:" + getMaxMaintenanceLag() + "\n");
+      statBuff.append("Validation Timeouts:" + getValidationTimeouts() + "\n");
 
       return statBuff.toString();
    }
@@ -249,4 +261,64 @@ public class JBossSubPoolStatistics implements JBossStatistics
       this.maxWaitTime = maxWaitTime;
    }
    
+
+   /**
+    * Get the maintenanceLag.
+    * 
+    * @return the maintenanceLag.
+    */
+   public long getMaintenanceLag()
+   {
+      return maintenanceLag;
+   }
+
+   /**
+    * Set the maintenanceLag.
+    * 
+    * @param maintenanceLag The maintenanceLag to set.
+    */
+   public void setMaintenanceLag(long maintenanceLag)
+   {
+      this.maintenanceLag = maintenanceLag;
+   }
+
+   /**
+    * Get the maxMaintenanceLag.
+    * 
+    * @return the maxMaintenanceLag.
+    */
+   public long getMaxMaintenanceLag()
+   {
+      return maxMaintenanceLag;
+   }
+
+   /**
+    * Set the maxMaintenanceLag.
+    * 
+    * @param maxMaintenanceLag The maxMaintenanceLag to set.
+    */
+   public void setMaxMaintenanceLag(long maxMaintenanceLag)
+   {
+      this.maxMaintenanceLag = maxMaintenanceLag;
+   }
+
+   /**
+    * Get the validationTimeouts.
+    * 
+    * @return the validationTimeouts.
+    */
+   public int getValidationTimeouts()
+   {
+      return validationTimeouts;
+   }
+
+   /**
+    * Set the validationTimeouts.
+    * 
+    * @param validationTimeouts The validationTimeouts to set.
+    */
+   public void setValidationTimeouts(int validationTimeouts)
+   {
+      this.validationTimeouts = validationTimeouts;
+   }
 }
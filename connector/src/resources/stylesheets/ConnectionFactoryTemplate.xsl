@@ -359,6 +359,12 @@
           <xsl:if test="prepared-statement-cache-size">
             <config-property name="PreparedStatementCacheSize" type="int"><xsl:value-of select="normalize-space(prepared-statement-cache-size)"/></config-property>
           </xsl:if>
+          <xsl:if test="prepared-statement-cache-policy">
+            <config-property name="PreparedStatementCachePolicy" type="java.lang.String"><xsl:value-of select="normalize-space(prepared-statement-cache-policy)"/></config-property>
+          </xsl:if>
+          <xsl:if test="prepared-statement-cache-warmup">
+            <config-property name="PreparedStatementCacheWarmup" type="int"><xsl:value-of select="normalize-space(prepared-statement-cache-warmup)"/></config-property>
+          </xsl:if>
           <xsl:if test="share-prepared-statements">
             <config-property name="SharePreparedStatements" type="boolean"><xsl:value-of select="normalize-space(share-prepared-statements)"/></config-property>
           </xsl:if>
@@ -139,6 +139,8 @@ public class ManagedObjectTestCase extends BaseTestCase
       "exception-sorter-class-name",
       "track-statements",
       "prepared-statement-cache-size",
+      "prepared-statement-cache-policy",
+      "prepared-statement-cache-warmup",
       "share-prepared-statements",
       "set-tx-query-timeout",
       "query-timeout",
@@ -24,6 +24,7 @@ package org.jboss.mx.loading;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -65,6 +66,37 @@ public abstract class RepositoryClassLoader extends URLClassLoader implements Re
    /** The value returned by {@link #getURLs}. */
    private static final URL[] EMPTY_URL_ARRAY = {};
 
+   /** The system property enabling the parallel class loading mode of the
+    * UnifiedLoaderRepository3
+    */
+   public static final String PARALLEL_LOADING = "org.jboss.mx.loading.UnifiedLoaderRepository.parallel";
+
+   /** ClassLoader.registerAsParallelCapable() if parallel loading is enabled
+    * and the VM supports parallel capable class loaders (1.7+), null otherwise.
+    * The VM registers the class that invokes it, so each subclass taking part
+    * in parallel loading must invoke it from its own static initializer.
+    */
+   protected static final Method PARALLEL_REGISTRATION;
+
+   static
+   {
+      Method registration = null;
+      boolean registered = false;
+      if (Boolean.valueOf(ClassToStringAction.getProperty(PARALLEL_LOADING, "false")).booleanValue())
+      {
+         try
+         {
+            registration = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable", null);
+            registered = ((Boolean) registration.invoke(null, null)).booleanValue();
+         }
+         catch (Exception e)
+         {
+            log.warn("Parallel class loading is not supported by this VM, " + e);
+         }
+      }
+      PARALLEL_REGISTRATION = registered ? registration : null;
+   }
+
    // Attributes -----------------------------------------------------
 
    /** Reference to the repository. */
@@ -171,6 +203,18 @@ public abstract class RepositoryClassLoader extends URLClassLoader implements Re
       //Not Implemented yet
    }
 
+   /**
+    * Whether this class loader can be used concurrently without holding
+    * its monitor. Subclasses override this to return true when their
+    * runtime class has been registered as parallel capable with the VM.
+    * 
+    * @return true when the loader is parallel capable
+    */
+   public boolean isParallelCapable()
+   {
+      return false;
+   }
+
    /**
     * Get the order this classloader was added to the repository
     * 
@@ -158,6 +158,32 @@ public class LoadMgr3
    public static boolean beginLoadTask(ClassLoadingTask task,
       UnifiedLoaderRepository3 repository)
       throws ClassNotFoundException
+   {
+      return beginLoadTask(task, repository, false);
+   }
+
+   /** Load the class of a ClassLoadingTask in the calling thread. This is used
+    * by parallel capable class loaders in place of the beginLoadTask/nextTask
+    * cycle. The class loader is selected exactly as by beginLoadTask, but
+    * neither the requesting nor the selected UCL monitor or loadLock is taken,
+    * unless the selected UCL is not parallel capable.
+    * Concurrent loads of the same class are serialized by the per class name
+    * locks of the parallel capable defining class loader. On return the task
+    * is FINISHED with either its loadedClass or loadException set.
+    *
+    * @exception ClassNotFoundException if there is no chance the class can
+    * be loaded from the current repository class loaders.
+    */
+   public static void loadClass(ClassLoadingTask task,
+      UnifiedLoaderRepository3 repository)
+      throws ClassNotFoundException
+   {
+      beginLoadTask(task, repository, true);
+   }
+
+   private static boolean beginLoadTask(ClassLoadingTask task,
+      UnifiedLoaderRepository3 repository, boolean parallel)
+      throws ClassNotFoundException
    {
       boolean trace = log.isTraceEnabled();
       if( trace )
@@ -254,6 +280,11 @@ public class LoadMgr3
          
          // Validate that the ucl has the class as a resource
          String classRsrcName = task.classname.replace('.', '/') + ".class";
+         // Skip a ucl whose indexed jars do not have the class, the parent of
+         // the requesting class loader is still checked if no ucl has it
+         if( task.stopOrder == Integer.MAX_VALUE
+            && repository.isIndexedAbsent(ucl, classRsrcName) )
+            continue;
          URL url = null;
          if( sm != null )
          {
@@ -321,7 +352,16 @@ public class LoadMgr3
          throw new ClassNotFoundException(msg);
       }
 
-      scheduleTask(task, theUCL, order, false, trace);
+      if( parallel )
+      {
+         if( theUCL.isParallelCapable() )
+            runTask(task, theUCL, order, repository, trace);
+         else
+            loadSerially(task, theUCL, trace);
+         return true;
+      }
+
+      scheduleTask(task, theUCL, order, false, trace, repository);
       task.state = ClassLoadingTask.FOUND_CLASS_LOADER;
       if( trace )
          log.trace("End beginLoadTask, task="+task);
@@ -352,6 +392,7 @@ public class LoadMgr3
              */
             if( trace )
                log.trace("Begin nextTask(WAIT_ON_EVENT), task="+task);
+            long start = System.nanoTime();
             try
             {
                task.state = ClassLoadingTask.WAIT_ON_EVENT;
@@ -364,6 +405,10 @@ public class LoadMgr3
                // Abort this task attempt
                throw e;
             }
+            finally
+            {
+               repository.recordLockWait(System.nanoTime() - start);
+            }
             if( trace )
                log.trace("nextTask(WAIT_ON_EVENT), notified, task="+task);
          }
@@ -396,7 +441,7 @@ public class LoadMgr3
             */
             if( trace )
                log.trace("Rescheduling threadTask="+threadTask);
-            scheduleTask(loadTask, ucl3, threadTask.order, true, trace);
+            scheduleTask(loadTask, ucl3, threadTask.order, true, trace, repository);
          }
          else
          {
@@ -422,7 +467,7 @@ public class LoadMgr3
             try
             {
                // Reschedule and update the loadTask.threadTaskCount
-               scheduleTask(loadTask, ucl3, Integer.MAX_VALUE, true, trace);
+               scheduleTask(loadTask, ucl3, Integer.MAX_VALUE, true, trace, repository);
             }
             catch(Throwable ex)
             {
@@ -462,15 +507,7 @@ public class LoadMgr3
       {
          Class loadedClass = threadTask.getLoadedClass();
          if( loadedClass != null )
-         {
-            ClassLoader loader = loadedClass.getClassLoader();
-            ClassLoader wrapper = repository.getWrappingClassLoader(loader);
-            if (wrapper != null)
-               loader=wrapper;
-            // Place the loaded class into the repositry cache
-            repository.cacheLoadedClass(threadTask.getClassname(),
-               loadedClass, loader);
-         }
+            cacheLoadedClass(threadTask.getClassname(), loadedClass, repository);
          /*
          synchronized( loadTask )
          {
@@ -558,10 +595,12 @@ public class LoadMgr3
     * @param reschedule a boolean indicating if this task is being rescheduled
     *    with another UCL3
     * @param trace the Logger trace level flag
+    * @param repository the repository recording the lock waits
     * @throws ClassNotFoundException
     */
    static private void scheduleTask(ClassLoadingTask task, RepositoryClassLoader ucl,
-      int order, boolean reschedule, boolean trace) throws ClassNotFoundException
+      int order, boolean reschedule, boolean trace, UnifiedLoaderRepository3 repository)
+      throws ClassNotFoundException
    {
       Thread t = null;
       boolean releaseInNextTask = false;
@@ -585,6 +624,7 @@ public class LoadMgr3
             {
                if( trace )
                   log.trace("Waiting for owner of UCL: "+ucl);
+               long start = System.nanoTime();
                try
                {
                   registrationLock.wait();
@@ -595,6 +635,10 @@ public class LoadMgr3
                      + " classame: "+task.classname;
                   throw new ClassNotFoundException(msg);
                }
+               finally
+               {
+                  repository.recordLockWait(System.nanoTime() - start);
+               }
 
                t = (Thread) loadClassThreads.get(ucl);
                if( trace )
@@ -634,4 +678,94 @@ public class LoadMgr3
       if( trace )
          log.trace("scheduleTask("+taskList.size()+"), created subtask: "+subtask);
    }
+
+   /** Run the ThreadTask for a parallel load in the calling thread and place
+    * the loaded class into the repository cache. As in nextTask, a
+    * ClassCircularityError or LinkageError from a conflicting load of the
+    * class is retried up to 10 times.
+    */
+   private static void runTask(ClassLoadingTask task, RepositoryClassLoader ucl,
+      int order, UnifiedLoaderRepository3 repository, boolean trace)
+   {
+      ThreadTask threadTask = task.newThreadTask(ucl, task.requestingThread,
+         order, false, false);
+      if( trace )
+         log.trace("Running parallel threadTask="+threadTask);
+      boolean retry = true;
+      while( retry )
+      {
+         retry = false;
+         try
+         {
+            threadTask.run();
+         }
+         catch(ClassNotFoundException e)
+         {
+            task.setLoadError(e);
+         }
+         catch(Throwable e)
+         {
+            log.trace("Parallel class loading task failed with exception", e);
+            retry = e instanceof ClassCircularityError
+               || e.getClass().equals(LinkageError.class);
+            int numCCE = task.incNumCCE();
+            if( retry && numCCE <= 10 )
+            {
+               // Let the conflicting load complete before trying again
+               if( trace )
+                  log.trace("Retrying parallel threadTask="+threadTask);
+               Thread.yield();
+            }
+            else
+            {
+               retry = false;
+               task.setLoadError(e);
+               log.warn("Failed parallel loading task, task="+task, e);
+            }
+         }
+      }
+
+      Class loadedClass = threadTask.getLoadedClass();
+      if( loadedClass != null )
+         cacheLoadedClass(threadTask.getClassname(), loadedClass, repository);
+      task.state = ClassLoadingTask.FINISHED;
+      if( trace )
+         log.trace("End parallel load, task="+task);
+   }
+
+   /** Hand a parallel load over to a class loader that is not parallel
+    * capable, which can be selected when it is added to the repository while
+    * the load is in progress. Its loadClassImpl goes through the
+    * beginLoadTask/nextTask cycle so that it is never used without owning it.
+    */
+   private static void loadSerially(ClassLoadingTask task, RepositoryClassLoader ucl,
+      boolean trace)
+      throws ClassNotFoundException
+   {
+      if( trace )
+         log.trace("Loading serially from ucl="+ucl+", task="+task);
+      try
+      {
+         task.loadedClass = ucl.loadClassImpl(task.classname, false, task.stopOrder);
+      }
+      catch(LinkageError e)
+      {
+         task.loadException = e;
+      }
+      task.state = ClassLoadingTask.FINISHED;
+   }
+
+   /** Place a loaded class into the repository cache under the repository
+    * class loader that wraps its defining loader, if any.
+    */
+   private static void cacheLoadedClass(String classname, Class loadedClass,
+      UnifiedLoaderRepository3 repository)
+   {
+      ClassLoader loader = loadedClass.getClassLoader();
+      ClassLoader wrapper = repository.getWrappingClassLoader(loader);
+      if (wrapper != null)
+         loader=wrapper;
+      // Place the loaded class into the repositry cache
+      repository.cacheLoadedClass(classname, loadedClass, loader);
+   }
 }
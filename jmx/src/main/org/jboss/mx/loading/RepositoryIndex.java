@@ -0,0 +1,618 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.mx.loading;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.jboss.logging.Logger;
+
+/** A persistent index of the packages and entry names of the jars added to
+ * the loader repositories. It is shared by all repositories in the VM and
+ * stored in the file named by the
+ * org.jboss.mx.loading.UnifiedLoaderRepository.indexFile system property.
+ * The index is disabled when the property is not set.
+ *
+ * The index file is read when the index is created and the packages of an
+ * entry are only decoded when the jar is added to a repository. An entry is
+ * validated at that point against the length and last modified time of the
+ * jar. If they differ, a CRC32 of the jar central directory is used to find
+ * an entry with the same content, such as a copy of the jar in the
+ * deployment temporary directory. Jars without an entry
+ * have their central directory scanned and are added to the index, which
+ * is stored once no jar has been added for STORE_DELAY ms. Only the entries
+ * used by the current VM are stored. The file is read into the heap rather
+ * than mapped so that store can replace it on platforms that do not allow
+ * renaming over a mapped file.
+ *
+ * The entry names are not indexed for jars whose manifest has a Class-Path
+ * or that have a META-INF/INDEX.LIST, as the class loader also finds
+ * resources in the jars these refer to.
+ *
+ * @version $Revision: 81022 $
+ */
+class RepositoryIndex
+{
+   // Constants -----------------------------------------------------
+   private static final Logger log = Logger.getLogger(RepositoryIndex.class);
+
+   /** The system property naming the index file */
+   static final String INDEX_FILE = "org.jboss.mx.loading.UnifiedLoaderRepository.indexFile";
+
+   /** The index file header */
+   private static final int MAGIC = 0x554c5249;
+   private static final int VERSION = 2;
+
+   /** The delay in ms after the last index change before the index is stored */
+   private static final long STORE_DELAY = 30000;
+
+   /** The zip end of central directory record signature and minimum length */
+   private static final int END_SIGNATURE = 0x06054b50;
+   private static final int END_LENGTH = 22;
+
+   // Static --------------------------------------------------------
+   private static RepositoryIndex instance;
+   private static boolean initialized;
+
+   /** Get the shared index
+    * @return the index or null if the index is disabled
+    */
+   static synchronized RepositoryIndex getInstance()
+   {
+      if (initialized == false)
+      {
+         initialized = true;
+         String path = ClassToStringAction.getProperty(INDEX_FILE, null);
+         if (path != null && path.length() > 0)
+            instance = new RepositoryIndex(new File(path));
+      }
+      return instance;
+   }
+
+   // Attributes ----------------------------------------------------
+
+   /** The index file */
+   private final File file;
+   /** HashMap<String, Entry> of the entries by jar path */
+   private final HashMap byPath = new HashMap();
+   /** HashMap<String, Entry> of the entries by jar length and checksum */
+   private final HashMap byChecksum = new HashMap();
+   /** HashMap<String, Entry> of the entries used by this VM by jar path */
+   private final HashMap used = new HashMap();
+   /** Whether entries were added since the index was loaded or stored */
+   private boolean dirty;
+   /** The timer storing the index */
+   private Timer timer;
+   /** The pending store task */
+   private TimerTask storeTask;
+
+   /** The number of jars found in the index and scanned */
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+
+   // Constructors --------------------------------------------------
+
+   RepositoryIndex(File file)
+   {
+      this.file = file;
+      if (file.exists())
+      {
+         try
+         {
+            load();
+         }
+         catch (Exception e)
+         {
+            log.warn("Ignoring invalid repository index: " + file + ", " + e);
+            byPath.clear();
+            byChecksum.clear();
+         }
+      }
+   }
+
+   // Public --------------------------------------------------------
+
+   /** Get the index entry for a jar, scanning the jar if it has no valid entry.
+    *
+    * @param url the class loader url
+    * @return the entry, or null if the url is not a jar that can be indexed
+    * @throws IOException for an error reading the jar
+    */
+   Entry getEntry(URL url) throws IOException
+   {
+      File jar = toJarFile(url);
+      if (jar == null)
+         return null;
+      String path = jar.getAbsolutePath();
+      long length = jar.length();
+      long lastModified = jar.lastModified();
+
+      Entry entry = null;
+      synchronized (this)
+      {
+         entry = (Entry) byPath.get(path);
+         if (entry != null && entry.length == length && entry.lastModified == lastModified)
+         {
+            used.put(path, entry);
+            hits.incrementAndGet();
+            return entry;
+         }
+      }
+
+      long checksum = checksum(jar, length);
+      if (checksum == -1)
+         return null;
+      synchronized (this)
+      {
+         entry = (Entry) byChecksum.get(checksumKey(length, checksum));
+         if (entry != null)
+         {
+            entry = new Entry(path, length, lastModified, checksum, entry.getPackages(), entry.getNames());
+            add(entry);
+            hits.incrementAndGet();
+            return entry;
+         }
+      }
+
+      entry = scan(jar, path, length, lastModified, checksum);
+      synchronized (this)
+      {
+         add(entry);
+      }
+      misses.incrementAndGet();
+      return entry;
+   }
+
+   long getHits()
+   {
+      return hits.get();
+   }
+
+   long getMisses()
+   {
+      return misses.get();
+   }
+
+   /** Store the entries used by this VM if the index has changed
+    * @throws IOException for an error writing the index
+    */
+   synchronized void store() throws IOException
+   {
+      if (storeTask != null)
+      {
+         storeTask.cancel();
+         storeTask = null;
+      }
+      if (dirty == false)
+         return;
+
+      File parent = file.getAbsoluteFile().getParentFile();
+      if (parent != null)
+         parent.mkdirs();
+      File tmp = new File(file.getPath() + ".tmp");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try
+      {
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeInt(used.size());
+         for (Iterator i = used.values().iterator(); i.hasNext();)
+         {
+            Entry entry = (Entry) i.next();
+            entry.write(out);
+         }
+      }
+      finally
+      {
+         out.close();
+      }
+      if (tmp.renameTo(file) == false)
+      {
+         file.delete();
+         if (tmp.renameTo(file) == false)
+            throw new IOException("Failed to rename " + tmp + " to " + file);
+      }
+      dirty = false;
+      log.debug("Stored repository index: " + file + ", jars=" + used.size());
+   }
+
+   // Private -------------------------------------------------------
+
+   /** Add an entry and schedule the store of the index
+    */
+   private void add(Entry entry)
+   {
+      byPath.put(entry.path, entry);
+      byChecksum.put(checksumKey(entry.length, entry.checksum), entry);
+      used.put(entry.path, entry);
+      dirty = true;
+
+      if (storeTask != null)
+         storeTask.cancel();
+      if (timer == null)
+         timer = new Timer("RepositoryIndex", true);
+      storeTask = new TimerTask()
+      {
+         public void run()
+         {
+            try
+            {
+               store();
+            }
+            catch (IOException e)
+            {
+               log.warn("Failed to store repository index: " + file, e);
+            }
+         }
+      };
+      timer.schedule(storeTask, STORE_DELAY);
+   }
+
+   /** Read the index file and create the entries, the packages and names
+    * of the entries stay in the file buffer.
+    */
+   private void load() throws IOException
+   {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      byte[] bytes;
+      try
+      {
+         bytes = new byte[(int) raf.length()];
+         raf.readFully(bytes);
+      }
+      finally
+      {
+         raf.close();
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+         throw new IOException("Unknown index format");
+      int count = buffer.getInt();
+      for (int n = 0; n < count; ++n)
+      {
+         Entry entry = new Entry(buffer);
+         byPath.put(entry.path, entry);
+         byChecksum.put(checksumKey(entry.length, entry.checksum), entry);
+      }
+      log.debug("Loaded repository index: " + file + ", jars=" + count);
+   }
+
+   /** Scan the jar central directory for its packages and entry names
+    */
+   private static Entry scan(File jar, String path, long length, long lastModified,
+      long checksum) throws IOException
+   {
+      TreeSet packages = new TreeSet();
+      ZipFile zip = new ZipFile(jar);
+      int[] names = new int[zip.size()];
+      int count = 0;
+      boolean referencesJars = false;
+      try
+      {
+         for (Enumeration e = zip.entries(); e.hasMoreElements();)
+         {
+            ZipEntry zipEntry = (ZipEntry) e.nextElement();
+            String name = zipEntry.getName();
+            if (count == names.length)
+               names = grow(names);
+            names[count++] = name.hashCode();
+            if (zipEntry.isDirectory() == false)
+            {
+               int index = name.lastIndexOf('/');
+               packages.add(index > 0 ? name.substring(0, index).replace('/', '.') : "");
+            }
+            if (name.equals("META-INF/INDEX.LIST"))
+               referencesJars = true;
+            else if (name.equalsIgnoreCase("META-INF/MANIFEST.MF"))
+               referencesJars |= hasClassPath(zip, zipEntry);
+         }
+      }
+      finally
+      {
+         zip.close();
+      }
+
+      String[] pkgNames = new String[packages.size()];
+      packages.toArray(pkgNames);
+      if (referencesJars)
+         return new Entry(path, length, lastModified, checksum, pkgNames, null);
+      int[] sorted = new int[count];
+      System.arraycopy(names, 0, sorted, 0, count);
+      Arrays.sort(sorted);
+      return new Entry(path, length, lastModified, checksum, pkgNames, IntBuffer.wrap(sorted));
+   }
+
+   /** Whether the jar manifest has a Class-Path attribute
+    */
+   private static boolean hasClassPath(ZipFile zip, ZipEntry manifest) throws IOException
+   {
+      InputStream in = zip.getInputStream(manifest);
+      try
+      {
+         String classPath = new Manifest(in).getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+         return classPath != null && classPath.trim().length() > 0;
+      }
+      finally
+      {
+         in.close();
+      }
+   }
+
+   private static int[] grow(int[] names)
+   {
+      int[] result = new int[names.length * 2 + 16];
+      System.arraycopy(names, 0, result, 0, names.length);
+      return result;
+   }
+
+   /** Calculate the CRC32 of the central directory of a jar. This covers
+    * the names, sizes and CRCs of all entries without reading the entries.
+    * @return the checksum, or -1 if the jar is not a plain zip
+    */
+   private static long checksum(File jar, long length) throws IOException
+   {
+      RandomAccessFile raf = new RandomAccessFile(jar, "r");
+      try
+      {
+         // Find the end of central directory record
+         int tailLength = (int) Math.min(length, END_LENGTH + 0xffff);
+         if (tailLength < END_LENGTH)
+            return -1;
+         byte[] tail = new byte[tailLength];
+         raf.seek(length - tailLength);
+         raf.readFully(tail);
+         int end = -1;
+         for (int i = tailLength - END_LENGTH; i >= 0; --i)
+         {
+            if (readInt(tail, i) == END_SIGNATURE)
+            {
+               end = i;
+               break;
+            }
+         }
+         if (end == -1)
+            return -1;
+         long size = readInt(tail, end + 12) & 0xffffffffL;
+         long offset = readInt(tail, end + 16) & 0xffffffffL;
+         // Zip64 archives are not indexed
+         if (size == 0xffffffffL || offset == 0xffffffffL || offset + size > length)
+            return -1;
+
+         CRC32 crc = new CRC32();
+         byte[] buffer = new byte[8192];
+         raf.seek(offset);
+         while (size > 0)
+         {
+            int read = raf.read(buffer, 0, (int) Math.min(buffer.length, size));
+            if (read < 0)
+               return -1;
+            crc.update(buffer, 0, read);
+            size -= read;
+         }
+         return crc.getValue();
+      }
+      finally
+      {
+         raf.close();
+      }
+   }
+
+   /** Read a little endian int
+    */
+   private static int readInt(byte[] bytes, int offset)
+   {
+      return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8
+         | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+   }
+
+   private static String checksumKey(long length, long checksum)
+   {
+      return length + ":" + checksum;
+   }
+
+   /** Get the jar file of a class loader url
+    * @return the file, or null if the url is not a local jar
+    */
+   private static File toJarFile(URL url)
+   {
+      if (url == null || "file".equals(url.getProtocol()) == false)
+         return null;
+      File file = new File(url.getFile());
+      if (file.isFile() == false)
+         return null;
+      return file;
+   }
+
+   private static String readString(ByteBuffer buffer) throws IOException
+   {
+      byte[] bytes = new byte[buffer.getInt()];
+      buffer.get(bytes);
+      return new String(bytes, "UTF-8");
+   }
+
+   private static void writeString(DataOutputStream out, String value) throws IOException
+   {
+      byte[] bytes = value.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /** The index entry of a jar
+    */
+   static class Entry
+   {
+      final String path;
+      final long length;
+      final long lastModified;
+      final long checksum;
+      /** The package names, null until decoded from the index file */
+      private String[] packages;
+      /** The encoded package names */
+      private ByteBuffer encodedPackages;
+      private int packageCount;
+      /** The sorted hash codes of the entry names, null if not indexed */
+      private final IntBuffer names;
+
+      Entry(String path, long length, long lastModified, long checksum,
+         String[] packages, IntBuffer names)
+      {
+         this.path = path;
+         this.length = length;
+         this.lastModified = lastModified;
+         this.checksum = checksum;
+         this.packages = packages;
+         this.names = names;
+      }
+
+      /** Create an entry from the index file, positioned at the entry
+       */
+      Entry(ByteBuffer buffer) throws IOException
+      {
+         path = readString(buffer);
+         length = buffer.getLong();
+         lastModified = buffer.getLong();
+         checksum = buffer.getLong();
+         packageCount = buffer.getInt();
+         int packageBytes = buffer.getInt();
+         encodedPackages = slice(buffer, packageBytes);
+         int nameCount = buffer.getInt();
+         names = nameCount < 0 ? null : slice(buffer, nameCount * 4).asIntBuffer();
+      }
+
+      /** Get the package names of the jar
+       */
+      synchronized String[] getPackages() throws IOException
+      {
+         if (packages == null)
+         {
+            ByteBuffer buffer = encodedPackages.duplicate();
+            String[] result = new String[packageCount];
+            for (int n = 0; n < packageCount; ++n)
+               result[n] = readString(buffer);
+            packages = result;
+            encodedPackages = null;
+         }
+         return packages;
+      }
+
+      IntBuffer getNames()
+      {
+         return names;
+      }
+
+      /** Whether the jar may have an entry. False positives are possible
+       * as only the hash codes of the names are indexed. A name without a
+       * trailing / also matches a directory entry, as it does for ZipFile.
+       */
+      boolean mayContain(String name)
+      {
+         if (names == null)
+            return true;
+         if (contains(name.hashCode()))
+            return true;
+         return name.endsWith("/") == false && contains((name + "/").hashCode());
+      }
+
+      private boolean contains(int hash)
+      {
+         int low = 0;
+         int high = names.limit() - 1;
+         while (low <= high)
+         {
+            int mid = (low + high) >>> 1;
+            int value = names.get(mid);
+            if (value < hash)
+               low = mid + 1;
+            else if (value > hash)
+               high = mid - 1;
+            else
+               return true;
+         }
+         return false;
+      }
+
+      void write(DataOutputStream out) throws IOException
+      {
+         String[] pkgNames = getPackages();
+         writeString(out, path);
+         out.writeLong(length);
+         out.writeLong(lastModified);
+         out.writeLong(checksum);
+         out.writeInt(pkgNames.length);
+         int packageBytes = 0;
+         for (int n = 0; n < pkgNames.length; ++n)
+            packageBytes += 4 + pkgNames[n].getBytes("UTF-8").length;
+         out.writeInt(packageBytes);
+         for (int n = 0; n < pkgNames.length; ++n)
+            writeString(out, pkgNames[n]);
+         if (names == null)
+         {
+            out.writeInt(-1);
+            return;
+         }
+         out.writeInt(names.limit());
+         for (int n = 0; n < names.limit(); ++n)
+            out.writeInt(names.get(n));
+      }
+
+      public String toString()
+      {
+         return path + "{length=" + length + ", lastModified=" + lastModified
+            + ", checksum=" + checksum + "}";
+      }
+
+      /** Slice the next bytes of the buffer and skip them
+       */
+      private static ByteBuffer slice(ByteBuffer buffer, int size)
+      {
+         ByteBuffer slice = buffer.duplicate();
+         slice.limit(slice.position() + size);
+         buffer.position(buffer.position() + size);
+         return slice.slice();
+      }
+   }
+}
@@ -61,8 +61,25 @@ public class UnifiedClassLoader extends RepositoryClassLoader
    // Static --------------------------------------------------------
 
    private static final Logger log = Logger.getLogger(UnifiedClassLoader.class);
+   /** Whether this class was registered as parallel capable */
+   private static final boolean parallelCapable;
    private ThreadLocal<String> delegatedClassName = new ThreadLocal<String>();
 
+   static
+   {
+      boolean registered = false;
+      try
+      {
+         if (PARALLEL_REGISTRATION != null)
+            registered = ((Boolean) PARALLEL_REGISTRATION.invoke(null, null)).booleanValue();
+      }
+      catch (Exception e)
+      {
+         log.debug("Failed to register as parallel capable", e);
+      }
+      parallelCapable = registered;
+   }
+
    // Attributes ----------------------------------------------------
 
    /** One URL per ClassLoader in our case */
@@ -213,8 +230,63 @@ public class UnifiedClassLoader extends RepositoryClassLoader
       return origURL;
    }
    
-   public synchronized Class loadClassImpl(String name, boolean resolve, int stopAt)
+   public boolean isParallelCapable()
+   {
+      return parallelCapable && getClass() == UnifiedClassLoader.class;
+   }
+
+   public Class loadClassImpl(String name, boolean resolve, int stopAt)
+      throws ClassNotFoundException
+   {
+      LoaderRepository repository = this.repository;
+      if( (repository instanceof UnifiedLoaderRepository3) == false )
+         return loadClassSerially(name, resolve, stopAt, null);
+
+      UnifiedLoaderRepository3 ulr3 = (UnifiedLoaderRepository3) repository;
+      long start = System.nanoTime();
+      try
+      {
+         if( ulr3.isParallelLoading() && isParallelCapable() )
+            return loadClassParallel(name, stopAt, ulr3);
+         return loadClassSerially(name, resolve, stopAt, ulr3);
+      }
+      finally
+      {
+         ulr3.recordClassLoad(System.nanoTime() - start);
+      }
+   }
+
+   /** Load a class without holding the UCL monitor or going through the
+    * LoadMgr3 thread handoffs. The VM serializes concurrent loads of a
+    * class name in the defining parallel capable loader.
+    */
+   private Class loadClassParallel(String name, int stopAt, UnifiedLoaderRepository3 ulr3)
       throws ClassNotFoundException
+   {
+      if( log.isTraceEnabled() )
+         log.trace("loadClassParallel, name="+name);
+      ClassLoadingTask task = new ClassLoadingTask(name, this, Thread.currentThread(), stopAt);
+      LoadMgr3.loadClass(task, ulr3);
+      return getLoadedClass(task, name);
+   }
+
+   /** Load a class using the LoadMgr3 thread handoffs while holding the
+    * UCL monitor.
+    */
+   private Class loadClassSerially(String name, boolean resolve, int stopAt,
+      UnifiedLoaderRepository3 stats) throws ClassNotFoundException
+   {
+      long start = System.nanoTime();
+      synchronized( this )
+      {
+         if( stats != null )
+            stats.recordLockWait(System.nanoTime() - start);
+         return loadClassWithTasks(name, resolve, stopAt, stats);
+      }
+   }
+
+   private Class loadClassWithTasks(String name, boolean resolve, int stopAt,
+      UnifiedLoaderRepository3 stats) throws ClassNotFoundException
    {
       loadClassDepth ++;
       boolean trace = log.isTraceEnabled();
@@ -254,7 +326,9 @@ public class UnifiedClassLoader extends RepositoryClassLoader
          which requires this UCL. If there is, we release the UCL monitor
          so that the ClassLoadingTask can use the UCL.
        */
+      long waitStart = System.nanoTime();
       boolean acquired = attempt(1);
+      boolean waited = acquired == false;
       while( acquired == false )
       {
          /* Another thread needs this UCL to load a class so release the
@@ -272,6 +346,8 @@ public class UnifiedClassLoader extends RepositoryClassLoader
          }
          acquired = attempt(1);
       }
+      if( waited && stats != null )
+         stats.recordLockWait(System.nanoTime() - waitStart);
 
       ClassLoadingTask task = null;
       try
@@ -314,6 +390,14 @@ public class UnifiedClassLoader extends RepositoryClassLoader
          loadClassDepth --;
       }
 
+      return getLoadedClass(task, name);
+   }
+
+   /** Get the class loaded by a task or throw its load failure
+    */
+   private Class getLoadedClass(ClassLoadingTask task, String name)
+      throws ClassNotFoundException
+   {
       if( task.loadedClass == null )
       {
          if( task.loadException instanceof ClassNotFoundException )
@@ -23,6 +23,8 @@ package org.jboss.mx.loading;
 
 import java.net.URL;
 
+import org.jboss.logging.Logger;
+
 /** An extension of UnifiedClassLoader that manages a thread based loading
  * strategy to work around the locking problems associated with the VM
  * initiated locking due to the synchronized loadClassInternal method of
@@ -35,6 +37,24 @@ public class UnifiedClassLoader3 extends UnifiedClassLoader
    implements UnifiedClassLoader3MBean
 {
    // Static --------------------------------------------------------
+   private static final Logger log = Logger.getLogger(UnifiedClassLoader3.class);
+   /** Whether this class was registered as parallel capable */
+   private static final boolean parallelCapable;
+
+   static
+   {
+      boolean registered = false;
+      try
+      {
+         if (PARALLEL_REGISTRATION != null)
+            registered = ((Boolean) PARALLEL_REGISTRATION.invoke(null, null)).booleanValue();
+      }
+      catch (Exception e)
+      {
+         log.debug("Failed to register as parallel capable", e);
+      }
+      parallelCapable = registered;
+   }
 
    // Attributes ----------------------------------------------------
 
@@ -95,6 +115,11 @@ public class UnifiedClassLoader3 extends UnifiedClassLoader
 
    // Public --------------------------------------------------------
 
+   public boolean isParallelCapable()
+   {
+      return parallelCapable && getClass() == UnifiedClassLoader3.class;
+   }
+
    /**
    * Retruns a string representaion of this UCL.
    */
@@ -35,6 +35,8 @@ import java.util.Enumeration;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.IOException;
 
 import javax.management.ListenerNotFoundException;
@@ -56,10 +58,18 @@ import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
 import EDU.oswego.cs.dl.util.concurrent.CopyOnWriteArraySet;
 
 /** A repository of class loaders that form a flat namespace of classes
- * and resources. This version uses UnifiedClassLoader3 instances. Class
- * and resource loading is synchronized by the acquiring the monitor to the
- * associated repository structure monitor. See the variable javadoc comments
- * for what monitor is used to access a given structure.
+ * and resources. This version uses UnifiedClassLoader3 instances. The class
+ * and resource caches are concurrent maps read and updated without locks.
+ * Changes to the set of class loaders are synchronized by the acquiring the
+ * monitor to the associated repository structure monitor. See the variable
+ * javadoc comments for what monitor is used to access a given structure.
+ *
+ * When the org.jboss.mx.loading.UnifiedLoaderRepository.parallel system
+ * property is true and the VM supports parallel capable class loaders,
+ * UnifiedClassLoader3s load classes concurrently without the UCL monitors
+ * and the LoadMgr3 thread handoffs. All class loaders go back to the
+ * serial protocol while the repository holds one that is not parallel
+ * capable, such as a UCL subclass or an MLet.
  *
  * @author  <a href="mailto:scott.stark@jboss.org">Scott Stark</a>.
  * @author  <a href="mailto:Adrian.Brock@HappeningTimes.com">Adrian Brock</a>.
@@ -87,6 +97,8 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
    // Don't send any notifications
    private static final int NO_NOTIFICATION_MODE = 2;
    private static int NOTIFICATION_MODE;
+   /** Lock waits at least this long are counted as contended */
+   private static final long CONTENDED_WAIT_NANOS = 10000;
 
    // Attributes ----------------------------------------------------
 
@@ -99,12 +111,12 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
     * class loader set in #getPackageClassLoaders(String).
     */
    private HashSet dynamicClassLoaders = new HashSet();
-   /** A HashMap<ClassLoader, UCL> of foreign (non-UCL) classloaders that
-    * have been added to the repository as the key and the value the UCL
+   /** A ConcurrentHashMap<ClassLoader, UCL> of foreign (non-UCL) classloaders
+    * that have been added to the repository as the key and the value the UCL
     * actually used by the ULR.
-    * Access synchronized via this.classLoaders monitor.
+    * Updates synchronized via this.classLoaders monitor, reads are unsynchronized.
     */
-   private HashMap nonUCLClassLoader = new HashMap();
+   private ConcurrentHashMap nonUCLClassLoader = new ConcurrentHashMap();
 
    /** A HashSet<URL> used to check for duplicate URLs. Previously this was handled
     by the UCL.equals, but this caused problems with Class.forName(String,
@@ -114,27 +126,27 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
    private HashSet classLoaderURLs = new HashSet();
 
    /** The loaded classes cache, HashMap<String, Class>.
-    * Access synchronized via this.classes monitor.
+    * Access is unsynchronized.
     */
    private ConcurrentReaderHashMap classes = new ConcurrentReaderHashMap();
 
-   /** HashMap<UCL, HashSet<String>> class loaders to the set of class names
-    * loaded via the UCL.
-    * Access synchronized via this.classes monitor.
+   /** ConcurrentHashMap<UCL, Set<String>> class loaders to the set of class
+    * names loaded via the UCL.
+    * Access to each set is synchronized via the set monitor.
     */
-   private HashMap loaderToClassesMap = new HashMap();
+   private ConcurrentHashMap loaderToClassesMap = new ConcurrentHashMap();
 
-   /** HashMap<UCL, HashMap<String, URL>> class loaders to the set of
-    * resource names they looked up.
-    * Access synchronized via this.loaderToResourcesMap monitor.
+   /** ConcurrentHashMap<UCL, ConcurrentHashMap<String, URL>> class loaders to
+    * the set of resource names they looked up.
+    * Access is unsynchronized.
     */
-   private HashMap loaderToResourcesMap = new HashMap();
+   private ConcurrentHashMap loaderToResourcesMap = new ConcurrentHashMap();
 
-   /** HashMap<String, ResourceInfo(URL, UCL)> of global resources not unique
-    * to a UCL
-    * Access synchronized via this.loaderToResourcesMap monitor.
+   /** ConcurrentHashMap<String, ResourceInfo(URL, UCL)> of global resources
+    * not unique to a UCL
+    * Access is unsynchronized.
     */
-   private HashMap globalResources = new HashMap();
+   private ConcurrentHashMap globalResources = new ConcurrentHashMap();
 
    /** A HashMap<String, Set<UCL>> of package names to the set of
     * ClassLoaders which have classes in the package.
@@ -148,6 +160,33 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
     */
    private HashMap<RepositoryClassLoader, List<String>> loaderToPackagesMap = new HashMap<RepositoryClassLoader, List<String>>();
 
+   /** Whether UCLs load classes in parallel, see RepositoryClassLoader.PARALLEL_LOADING */
+   private boolean parallelLoading = RepositoryClassLoader.PARALLEL_REGISTRATION != null;
+   /** The number of class loaders in classLoaders that are not parallel
+    * capable. Parallel loading is suspended while there are any, the VM
+    * class name locks held by parallel loads and the UCL ownership of the
+    * serial protocol could otherwise wait on each other.
+    * Updated under the classLoaders monitor.
+    */
+   private volatile int serialClassLoaders;
+
+   /** The number of UCL loadClass calls and the nanoseconds spent in them */
+   private final AtomicLong classLoadCount = new AtomicLong();
+   private final AtomicLong classLoadTime = new AtomicLong();
+   /** The number of contended waits for class loading locks and the
+    * nanoseconds spent waiting for all class loading locks */
+   private final AtomicLong lockWaitCount = new AtomicLong();
+   private final AtomicLong lockWaitTime = new AtomicLong();
+
+   /** The shared persistent package index, null unless the
+    * RepositoryIndex.INDEX_FILE property is set */
+   private final RepositoryIndex index = RepositoryIndex.getInstance();
+   /** A ConcurrentHashMap<RepositoryClassLoader, RepositoryIndex.Entry[]> of
+    * the index entries of the class loaders, NOT_INDEXED if a class loader
+    * url is not an indexed jar */
+   private final ConcurrentHashMap loaderToIndexEntries = new ConcurrentHashMap();
+   private static final RepositoryIndex.Entry[] NOT_INDEXED = new RepositoryIndex.Entry[0];
+
    /**
     * The sequenceNumber used to number notifications.
     */
@@ -214,10 +253,104 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
 
    public void flush()
    {
-      synchronized (classes)
+      classes.clear();
+   }
+
+   public boolean isParallelLoading()
+   {
+      return parallelLoading && serialClassLoaders == 0;
+   }
+
+   public long getClassLoadCount()
+   {
+      return classLoadCount.get();
+   }
+
+   public long getClassLoadTime()
+   {
+      return classLoadTime.get() / 1000;
+   }
+
+   public long getLockWaitCount()
+   {
+      return lockWaitCount.get();
+   }
+
+   public long getLockWaitTime()
+   {
+      return lockWaitTime.get() / 1000;
+   }
+
+   public void resetStatistics()
+   {
+      classLoadCount.set(0);
+      classLoadTime.set(0);
+      lockWaitCount.set(0);
+      lockWaitTime.set(0);
+   }
+
+   /** Record a UCL loadClass call
+    * @param nanos the time spent loading the class
+    */
+   void recordClassLoad(long nanos)
+   {
+      classLoadCount.incrementAndGet();
+      classLoadTime.addAndGet(nanos);
+   }
+
+   /** Record the time a thread spent waiting for a class loading lock
+    * @param nanos the time spent waiting
+    */
+   void recordLockWait(long nanos)
+   {
+      if (nanos >= CONTENDED_WAIT_NANOS)
+         lockWaitCount.incrementAndGet();
+      lockWaitTime.addAndGet(nanos);
+   }
+
+   /** Whether the package index shows that the urls of a class loader do
+    * not contain a resource. The class loader may still find the resource
+    * through its parent.
+    * @param cl the repository class loader
+    * @param name the resource name
+    * @return true if every url of the class loader is an indexed jar
+    *    without the resource
+    */
+   boolean isIndexedAbsent(RepositoryClassLoader cl, String name)
+   {
+      if (index == null)
+         return false;
+      RepositoryIndex.Entry[] entries = (RepositoryIndex.Entry[]) loaderToIndexEntries.get(cl);
+      // Urls added to the class loader outside of the repository are not indexed
+      if (entries == null || entries.length == 0 || entries.length != cl.getClasspath().length)
+         return false;
+      for (int n = 0; n < entries.length; ++n)
       {
-         classes.clear();
+         if (entries[n].mayContain(name))
+            return false;
       }
+      return true;
+   }
+
+   public boolean isIndexEnabled()
+   {
+      return index != null;
+   }
+
+   public long getIndexHits()
+   {
+      return index != null ? index.getHits() : 0;
+   }
+
+   public long getIndexMisses()
+   {
+      return index != null ? index.getMisses() : 0;
+   }
+
+   public void storeIndex() throws IOException
+   {
+      if (index != null)
+         index.store();
    }
 
    public Class getCachedClass(String classname)
@@ -273,12 +406,7 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
     */
    public Class loadClassFromCache(String name)
    {
-      Class cls = null;
-      synchronized (classes)
-      {
-         cls = (Class) classes.get(name);
-      }
-      return cls;
+      return (Class) classes.get(name);
    }
 
    /** Add a Class to the repository cache.
@@ -288,24 +416,28 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
     */
    public void cacheLoadedClass(String name, Class cls, ClassLoader cl)
    {
-      synchronized (classes)
+      // Update the global cache
+      Object prevClass = classes.put(name, cls);
+      if (log.isTraceEnabled())
       {
-         // Update the global cache
-         Object prevClass = classes.put(name, cls);
-         if (log.isTraceEnabled())
-         {
-            log.trace("cacheLoadedClass, classname: " + name + ", class: " + cls
-                    + ", ucl: " + cl + ", prevClass: " + prevClass);
-         }
+         log.trace("cacheLoadedClass, classname: " + name + ", class: " + cls
+                 + ", ucl: " + cl + ", prevClass: " + prevClass);
+      }
 
-         // Update the cache for this classloader
-         // This is used to cycling classloaders
-         HashSet loadedClasses = (HashSet) loaderToClassesMap.get(cl);
+      // Update the cache for this classloader
+      // This is used to cycling classloaders
+      if (cl == null)
+         return;
+      Set loadedClasses = (Set) loaderToClassesMap.get(cl);
+      if (loadedClasses == null)
+      {
+         Set newClasses = new HashSet();
+         loadedClasses = (Set) loaderToClassesMap.putIfAbsent(cl, newClasses);
          if (loadedClasses == null)
-         {
-            loadedClasses = new HashSet();
-            loaderToClassesMap.put(cl, loadedClasses);
-         }
+            loadedClasses = newClasses;
+      }
+      synchronized (loadedClasses)
+      {
          loadedClasses.add(name);
       }
    }
@@ -408,16 +540,12 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
     */
    private URL getResourceFromCache(String name, ClassLoader cl)
    {
-      URL resource = null;
-      synchronized (loaderToResourcesMap)
-      {
-         if (loaderToResourcesMap.containsKey(cl))
-         {
-            HashMap resources = (HashMap) loaderToResourcesMap.get(cl);
-            resource = (URL) resources.get(name);
-         }
-      }
-      return resource;
+      if (cl == null)
+         return null;
+      Map resources = (Map) loaderToResourcesMap.get(cl);
+      if (resources == null)
+         return null;
+      return (URL) resources.get(name);
    }
 
    private URL getResourceFromClassLoader(String name, ClassLoader cl)
@@ -433,17 +561,12 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
    }
 
    /** Check for a resource in the global cache
-    * Synchronizes access to globalResources using the loaderToResourcesMap monitor
     * @param name
     * @return
     */
    protected URL getResourceFromGlobalCache(String name)
    {
-      ResourceInfo ri = null;
-      synchronized (loaderToResourcesMap)
-      {
-         ri = (ResourceInfo) globalResources.get(name);
-      }
+      ResourceInfo ri = (ResourceInfo) globalResources.get(name);
       URL resource = null;
       if (ri != null)
          resource = ri.url;
@@ -477,6 +600,9 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
 
          if (classloader instanceof RepositoryClassLoader)
          {
+            // The calling class loader parent has already been checked
+            if (isIndexedAbsent((RepositoryClassLoader) classloader, name))
+               continue;
             url = ((RepositoryClassLoader) classloader).getResourceLocally(name);
             if (url != null)
             {
@@ -500,18 +626,20 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
     */
    private void cacheLoadedResource(String name, URL url, ClassLoader cl)
    {
+      // A resource that was not found is not cached
+      if (url == null || cl == null)
+         return;
       // Update the cache for this classloader only
       // This is used for cycling classloaders
-      synchronized (loaderToResourcesMap)
+      Map resources = (Map) loaderToResourcesMap.get(cl);
+      if (resources == null)
       {
-         HashMap resources = (HashMap) loaderToResourcesMap.get(cl);
+         Map newResources = new ConcurrentHashMap();
+         resources = (Map) loaderToResourcesMap.putIfAbsent(cl, newResources);
          if (resources == null)
-         {
-            resources = new HashMap();
-            loaderToResourcesMap.put(cl, resources);
-         }
-         resources.put(name, url);
+            resources = newResources;
       }
+      resources.put(name, url);
    }
 
    /** Update cache of resources looked up via one UCL, buf found in another UCL
@@ -521,10 +649,7 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
     */
    private void cacheGlobalResource(String name, URL url, ClassLoader cl)
    {
-      synchronized (loaderToResourcesMap)
-      {
-         globalResources.put(name, new ResourceInfo(url, cl));
-      }
+      globalResources.put(name, new ResourceInfo(url, cl));
    }
 
    /** This is a utility method a listing of the URL for all UnifiedClassLoaders
@@ -689,10 +814,9 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
     */
    public RepositoryClassLoader getWrappingClassLoader(ClassLoader cl)
    {
-      synchronized (classLoaders)
-      {
-         return (RepositoryClassLoader) nonUCLClassLoader.get(cl);
-      }
+      if (cl == null)
+         return null;
+      return (RepositoryClassLoader) nonUCLClassLoader.get(cl);
    }
    
    /** Add a class loader to the repository.
@@ -779,6 +903,8 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
             log.debug("Adding " + cl);
             addedCount++;
             cl.setAddedOrder(addedCount);
+            if (cl.isParallelCapable() == false)
+               serialClassLoaders++;
             updatePackageMap(cl);
          }
          else
@@ -824,7 +950,7 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
       {
          URL url = cl.getURL();
          PackageMapper listener = new PackageMapper(cl);
-         ClassLoaderUtils.updatePackageMap(url, listener);
+         updatePackageMap(cl, url, listener);
       }
       catch (Exception e)
       {
@@ -843,7 +969,7 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
       try
       {
          PackageMapper listener = new PackageMapper(cl);
-         ClassLoaderUtils.updatePackageMap(url, listener);
+         updatePackageMap(cl, url, listener);
       }
       catch (Exception e)
       {
@@ -854,6 +980,44 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
       }
    }
 
+   /** Add the packages of a class loader url from the package index, or
+    * by scanning the url if the index is disabled or the url is not a jar
+    */
+   private void updatePackageMap(RepositoryClassLoader cl, URL url,
+      ClassLoaderUtils.PkgNameListener listener) throws Exception
+   {
+      if (index == null)
+      {
+         ClassLoaderUtils.updatePackageMap(url, listener);
+         return;
+      }
+
+      // The class loader stays NOT_INDEXED if the url fails to be indexed
+      RepositoryIndex.Entry[] entries = (RepositoryIndex.Entry[]) loaderToIndexEntries.put(cl, NOT_INDEXED);
+      RepositoryIndex.Entry entry = index.getEntry(url);
+      if (entry == null)
+      {
+         ClassLoaderUtils.updatePackageMap(url, listener);
+         return;
+      }
+
+      String[] pkgNames = entry.getPackages();
+      for (int n = 0; n < pkgNames.length; ++n)
+         listener.addPackage(pkgNames[n]);
+      if (entries == null)
+      {
+         entries = new RepositoryIndex.Entry[] { entry };
+      }
+      else if (entries != NOT_INDEXED)
+      {
+         RepositoryIndex.Entry[] tmp = new RepositoryIndex.Entry[entries.length + 1];
+         System.arraycopy(entries, 0, tmp, 0, entries.length);
+         tmp[entries.length] = entry;
+         entries = tmp;
+      }
+      loaderToIndexEntries.put(cl, entries);
+   }
+
    /** Remove the class loader from the repository. This synchronizes on the
     * this.classLoaders
     */
@@ -865,7 +1029,7 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
       {
          if ((loader instanceof RepositoryClassLoader) == false)
          {
-            cl = (ClassLoader) nonUCLClassLoader.remove(loader);
+            cl = loader != null ? (ClassLoader) nonUCLClassLoader.remove(loader) : null;
          }
          if (cl instanceof RepositoryClassLoader)
          {
@@ -876,21 +1040,21 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
             for (int u = 0; u < urls.length; u++)
                classLoaderURLs.remove(urls[u]);
          }
+         if (cl != null)
+            loaderToIndexEntries.remove(cl);
          boolean dynamic = dynamicClassLoaders.remove(cl);
          boolean removed = classLoaders.remove(cl);
+         if (removed && ((RepositoryClassLoader) cl).isParallelCapable() == false)
+            serialClassLoaders--;
          log.debug("UnifiedLoaderRepository removed(" + removed + ") " + cl);
 
          // Take care also of the cycling mapping for classes
-         HashSet loadedClasses = null;
-         boolean hasLoadedClasses = false;
-         synchronized (classes)
+         Set loadedClasses = cl != null ? (Set) loaderToClassesMap.remove(cl) : null;
+         if (loadedClasses != null)
          {
-            hasLoadedClasses = loaderToClassesMap.containsKey(cl);
-            if (hasLoadedClasses)
-               loadedClasses = (HashSet) loaderToClassesMap.remove(cl);
-            // This classloader has loaded at least one class
-            if (loadedClasses != null)
+            synchronized (loadedClasses)
             {
+               // This classloader has loaded at least one class
                // Notify that classes are about to be removed
                for (Iterator iter = loadedClasses.iterator(); iter.hasNext();)
                {
@@ -910,23 +1074,17 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
          }
 
          // Take care also of the cycling mapping for resources
-         synchronized (loaderToResourcesMap)
+         Map resources = cl != null ? (Map) loaderToResourcesMap.remove(cl) : null;
+
+         // Remove the resources from the global cache that are from this classloader
+         if (resources != null)
          {
-            if (loaderToResourcesMap.containsKey(cl))
+            for (Iterator i = resources.keySet().iterator(); i.hasNext();)
             {
-               HashMap resources = (HashMap) loaderToResourcesMap.remove(cl);
-
-               // Remove the resources from the global cache that are from this classloader
-               if (resources != null)
-               {
-                  for (Iterator i = resources.keySet().iterator(); i.hasNext();)
-                  {
-                     String name = (String) i.next();
-                     ResourceInfo ri = (ResourceInfo) globalResources.get(name);
-                     if (ri != null && ri.cl == cl)
-                        globalResources.remove(name);
-                  }
-               }
+               String name = (String) i.next();
+               ResourceInfo ri = (ResourceInfo) globalResources.get(name);
+               if (ri != null && ri.cl == cl)
+                  globalResources.remove(name, ri);
             }
          }
 
@@ -1116,6 +1274,15 @@ public class UnifiedLoaderRepository3 extends LoaderRepository
       globalResources.clear();
       packagesMap.clear();
       loaderToPackagesMap.clear();
+      loaderToIndexEntries.clear();
+      try
+      {
+         storeIndex();
+      }
+      catch (IOException e)
+      {
+         log.warn("Failed to store the repository index", e);
+      }
    }
 
    private synchronized long getNextSequenceNumber()
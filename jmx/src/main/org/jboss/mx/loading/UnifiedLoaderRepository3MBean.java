@@ -21,6 +21,7 @@
  */
 package org.jboss.mx.loading;
 
+import java.io.IOException;
 import java.util.Set;
 
 /** The UnifiedLoaderRepository3 (ULR) management interface
@@ -52,4 +53,50 @@ public interface UnifiedLoaderRepository3MBean extends UnifiedLoaderRepositoryMB
    /** Flush the ULR classes cache
     */
    public void flush();
+   /** Whether the UCLs of this ULR load classes in parallel. This is
+    * enabled by the org.jboss.mx.loading.UnifiedLoaderRepository.parallel
+    * system property on VMs supporting parallel capable class loaders, and
+    * is suspended while the repository holds a class loader that is not
+    * parallel capable.
+    * @return true if classes are currently loaded in parallel
+    */
+   public boolean isParallelLoading();
+   /** Get the number of UCL class loads not satisfied by the UCL cache
+    * @return the number of class loads
+    */
+   public long getClassLoadCount();
+   /** Get the time spent in UCL class loads, a load triggered while
+    * loading another class is also included in the time of the outer load
+    * @return the class loading time in microseconds
+    */
+   public long getClassLoadTime();
+   /** Get the number of times a class load waited for a UCL monitor,
+    * UCL loadClass lock or the LoadMgr3 task handoff
+    * @return the number of contended lock waits
+    */
+   public long getLockWaitCount();
+   /** Get the time class loads spent waiting for class loading locks
+    * @return the lock wait time in microseconds
+    */
+   public long getLockWaitTime();
+   /** Reset the class loading statistics
+    */
+   public void resetStatistics();
+   /** Whether the persistent package index is enabled by the
+    * org.jboss.mx.loading.UnifiedLoaderRepository.indexFile system property
+    * @return true if jars are looked up in the index
+    */
+   public boolean isIndexEnabled();
+   /** Get the number of jars whose packages were found in the index
+    * @return the number of index hits
+    */
+   public long getIndexHits();
+   /** Get the number of jars that were scanned and added to the index
+    * @return the number of index misses
+    */
+   public long getIndexMisses();
+   /** Store the index now rather than once no jar has been added for 30s
+    * @throws IOException for an error writing the index file
+    */
+   public void storeIndex() throws IOException;
 }
@@ -1692,25 +1692,71 @@ public class MBeanServerImpl
                               ModelMBeanOperationInfo.INFO,
                               descGetValue);
 
+      // query statistics attributes
+      String[][] queryStatistics = new String[][]
+      {
+         { "QueryCount", "The number of MBean queries" },
+         { "IndexedQueryCount", "The number of MBean queries answered from the key property index" },
+         { "QueryTime", "The total time spent in MBean queries in microseconds" },
+         { "MaxQueryTime", "The longest time spent in an MBean query in microseconds" }
+      };
+      ModelMBeanAttributeInfo[] queryStatisticsInfo = new ModelMBeanAttributeInfo[queryStatistics.length];
+      ModelMBeanOperationInfo[] queryStatisticsGetters = new ModelMBeanOperationInfo[queryStatistics.length];
+      for (int i = 0; i < queryStatistics.length; ++i)
+      {
+         String name = queryStatistics[i][0];
+         String description = queryStatistics[i][1];
+         DescriptorSupport descAttr = new DescriptorSupport();
+         descAttr.setField("name", name);
+         descAttr.setField("descriptorType", "attribute");
+         descAttr.setField("displayName", name);
+         descAttr.setField("getMethod", "get" + name);
+         queryStatisticsInfo[i] = new ModelMBeanAttributeInfo
+                 (name, Long.TYPE.getName(), description,
+                         READABLE, !WRITABLE, !BOOLEAN, descAttr);
+
+         DescriptorSupport descGetter = new DescriptorSupport();
+         descGetter.setField("name", "get" + name);
+         descGetter.setField("descriptorType", "operation");
+         descGetter.setField("role", "getter");
+         queryStatisticsGetters[i] = new ModelMBeanOperationInfo
+                 ("get" + name, description, new MBeanParameterInfo[0],
+                         Long.TYPE.getName(), ModelMBeanOperationInfo.INFO,
+                         descGetter);
+      }
+
+      // resetQueryStatistics operation
+      DescriptorSupport descResetQueryStatistics = new DescriptorSupport();
+      descResetQueryStatistics.setField("name", "resetQueryStatistics");
+      descResetQueryStatistics.setField("descriptorType", "operation");
+      descResetQueryStatistics.setField("role", "operation");
+      ModelMBeanOperationInfo resetQueryStatisticsInfo =
+              new ModelMBeanOperationInfo
+                      ("resetQueryStatistics",
+                              "Resets the MBean query statistics",
+                              new MBeanParameterInfo[0],
+                              Void.TYPE.getName(),
+                              ModelMBeanOperationInfo.ACTION,
+                              descResetQueryStatistics);
+
       // Construct the modelmbean
       DescriptorSupport descMBean = new DescriptorSupport();
       descMBean.setField("name", RequiredModelMBeanInstantiator.getClassName());
       descMBean.setField("descriptorType", "MBean");
       descMBean.setField("displayName", "MBeanServer Registry");
-      ModelMBeanAttributeInfo[] attrInfo = new ModelMBeanAttributeInfo[]
-      {
-         defaultDomainInfo,
-         sizeInfo
-      };
+      ModelMBeanAttributeInfo[] attrInfo = new ModelMBeanAttributeInfo[2 + queryStatisticsInfo.length];
+      attrInfo[0] = defaultDomainInfo;
+      attrInfo[1] = sizeInfo;
+      System.arraycopy(queryStatisticsInfo, 0, attrInfo, 2, queryStatisticsInfo.length);
       ModelMBeanConstructorInfo[] ctorInfo = null;
-      ModelMBeanOperationInfo[] opInfo = new ModelMBeanOperationInfo[]
-      {
-         registerMBeanInfo,
-         unregisterMBeanInfo,
-         getSizeInfo,
-         getValueInfo,
-         getInfo
-      };
+      ModelMBeanOperationInfo[] opInfo = new ModelMBeanOperationInfo[6 + queryStatisticsGetters.length];
+      opInfo[0] = registerMBeanInfo;
+      opInfo[1] = unregisterMBeanInfo;
+      opInfo[2] = getSizeInfo;
+      opInfo[3] = getValueInfo;
+      opInfo[4] = getInfo;
+      opInfo[5] = resetQueryStatisticsInfo;
+      System.arraycopy(queryStatisticsGetters, 0, opInfo, 6, queryStatisticsGetters.length);
       ModelMBeanNotificationInfo[] notifyInfo = null;
       ModelMBeanInfoSupport info = new ModelMBeanInfoSupport
               (RequiredModelMBeanInstantiator.getClassName(),
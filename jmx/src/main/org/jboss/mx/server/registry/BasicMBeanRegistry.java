@@ -22,6 +22,7 @@
 package org.jboss.mx.server.registry;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -106,6 +107,12 @@ public class BasicMBeanRegistry
     */
    private Map domainMap = new ConcurrentReaderHashMap();
 
+   /**
+    * An index of the registry entries by key property used for
+    * pattern queries.
+    */
+   private final ObjectNameIndex keyPropertyIndex = new ObjectNameIndex();
+
    /**
     * The default domain for this registry
     */
@@ -131,6 +138,26 @@ public class BasicMBeanRegistry
     */
    protected final SynchronizedLong unregistrationNotificationSequence = new SynchronizedLong (1);
 
+   /**
+    * The number of findEntries queries.
+    */
+   protected final SynchronizedLong queryCount = new SynchronizedLong (0);
+
+   /**
+    * The number of findEntries queries answered from the key property index.
+    */
+   protected final SynchronizedLong indexedQueryCount = new SynchronizedLong (0);
+
+   /**
+    * The total time spent in findEntries in nanoseconds.
+    */
+   protected final SynchronizedLong queryTime = new SynchronizedLong (0);
+
+   /**
+    * The longest time spent in findEntries in nanoseconds.
+    */
+   protected final SynchronizedLong maxQueryTime = new SynchronizedLong (0);
+
    /**
     * Direct reference to the mandatory MBean server delegate MBean.
     */
@@ -595,6 +622,9 @@ public class BasicMBeanRegistry
 
    public List findEntries(ObjectName pattern)
    {
+      long start = System.nanoTime();
+      boolean indexed = false;
+      Collection candidates;
       ArrayList retval = new ArrayList();
 
       // There are a couple of shortcuts we can employ to make this a
@@ -620,6 +650,20 @@ public class BasicMBeanRegistry
             // we don't care
          }
       }
+      // Next, if the pattern names key properties, only the MBeans with all
+      // of them are candidates.
+      else if ((candidates = keyPropertyIndex.getCandidates(pattern)) != null)
+      {
+         indexed = true;
+         addMatches(pattern, candidates, retval);
+      }
+      // Next, if the domain is not a pattern only its MBeans are candidates.
+      else if (!pattern.isDomainPattern())
+      {
+         Map value = getMBeanMap(pattern.getDomain(), false);
+         if (value != null)
+            addMatches(pattern, value.values(), retval);
+      }
       // Now we have to do a brute force, oh well.
       else
       {
@@ -630,20 +674,65 @@ public class BasicMBeanRegistry
             Map.Entry mapEntry = (Map.Entry) domainIter.next();
             Map value = (Map) mapEntry.getValue();
             if (value != null && value.isEmpty() == false)
-            {
-               for (Iterator mbeanIter = value.values().iterator(); mbeanIter.hasNext();)
-               {
-                  MBeanEntry entry = (MBeanEntry) mbeanIter.next();
-                  if (pattern.apply(entry.getObjectName()))
-                     retval.add(entry);
-               }
-            }
+               addMatches(pattern, value.values(), retval);
          }
       }
 
+      updateQueryStatistics(System.nanoTime() - start, indexed);
       return retval;
    }
 
+   /**
+    * The number of findEntries queries.
+    *
+    * @return the number of queries
+    */
+   public long getQueryCount()
+   {
+      return queryCount.get();
+   }
+
+   /**
+    * The number of findEntries queries answered from the key property index.
+    *
+    * @return the number of indexed queries
+    */
+   public long getIndexedQueryCount()
+   {
+      return indexedQueryCount.get();
+   }
+
+   /**
+    * The total time spent in findEntries.
+    *
+    * @return the time in microseconds
+    */
+   public long getQueryTime()
+   {
+      return queryTime.get() / 1000;
+   }
+
+   /**
+    * The longest time spent in a findEntries query.
+    *
+    * @return the time in microseconds
+    */
+   public long getMaxQueryTime()
+   {
+      return maxQueryTime.get() / 1000;
+   }
+
+   /**
+    * Reset the query statistics.
+    */
+   public void resetQueryStatistics()
+   {
+      queryCount.set(0);
+      indexedQueryCount.set(0);
+      queryTime.set(0);
+      maxQueryTime.set(0);
+   }
+
 
    /**
     * Cleans up the registry before the MBean server is released.
@@ -668,6 +757,7 @@ public class BasicMBeanRegistry
 
        domainMap.clear();
        domainMap = null;
+       keyPropertyIndex.clear();
    }
 
 
@@ -757,6 +847,7 @@ public class BasicMBeanRegistry
 
       // Ok, we are registered
       mbeanMap.put(props, entry);
+      keyPropertyIndex.add(name, entry);
    }
 
    /**
@@ -779,6 +870,7 @@ public class BasicMBeanRegistry
       // Remove the entry, raise an exception when it didn't exist
       if (null == mbeanMap || null == mbeanMap.remove(props))
          throw new InstanceNotFoundException(name + " not registered.");
+      keyPropertyIndex.remove(name);
    }
 
    /**
@@ -941,6 +1033,32 @@ public class BasicMBeanRegistry
       return fMbInfosToStore;
    }
 
+   /**
+    * Add the entries whose object names match the pattern to the result.
+    */
+   private void addMatches(ObjectName pattern, Collection entries, List result)
+   {
+      for (Iterator mbeanIter = entries.iterator(); mbeanIter.hasNext();)
+      {
+         MBeanEntry entry = (MBeanEntry) mbeanIter.next();
+         if (pattern.apply(entry.getObjectName()))
+            result.add(entry);
+      }
+   }
+
+   private void updateQueryStatistics(long time, boolean indexed)
+   {
+      queryCount.increment();
+      if (indexed)
+         indexedQueryCount.increment();
+      queryTime.add(time);
+      for (long max = maxQueryTime.get(); time > max; max = maxQueryTime.get())
+      {
+         if (maxQueryTime.commit(max, time))
+            break;
+      }
+   }
+
    /**
     * The <code>getMBeanMap</code> method provides synchronized access
     * to the mbean map for a domain.  This is actually a solution to a
@@ -201,6 +201,40 @@ public interface MBeanRegistry
     */
    int getSize();
 
+   /**
+    * Retrieve the number of findEntries() queries.<p>
+    *
+    * @return the number of queries
+    */
+   long getQueryCount();
+
+   /**
+    * Retrieve the number of findEntries() queries answered from an
+    * index of the object name key properties.<p>
+    *
+    * @return the number of indexed queries
+    */
+   long getIndexedQueryCount();
+
+   /**
+    * Retrieve the total time spent in findEntries().<p>
+    *
+    * @return the time in microseconds
+    */
+   long getQueryTime();
+
+   /**
+    * Retrieve the longest time spent in a findEntries() query.<p>
+    *
+    * @return the time in microseconds
+    */
+   long getMaxQueryTime();
+
+   /**
+    * Reset the query statistics.
+    */
+   void resetQueryStatistics();
+
    /**
     *  Invoked before the MBean server instance is released. Implementing
     *  this method lets the registry to process any clean up before the
@@ -0,0 +1,146 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.mx.server.registry;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
+
+/**
+ * An inverted index of object names by key property.
+ * <p>
+ * For each key property name and value the index holds the values
+ * registered under object names with that key property, so that the
+ * candidates for a pattern such as <code>jboss.j2ee:j2eeType=EJBModule,*</code>
+ * are found without visiting every registered name. The candidates
+ * must still be matched against the pattern.
+ * <p>
+ * Updates must be serialized by the caller, lookups may run concurrently
+ * with updates.
+ *
+ * @version $Revision: 85294 $
+ */
+public class ObjectNameIndex
+{
+   /**
+    * key property name -> key property value -> canonical name -> value
+    */
+   private final Map index = new ConcurrentReaderHashMap();
+
+   /**
+    * Index a value by the key properties of its object name.
+    *
+    * @param name the fully qualified object name
+    * @param value the value
+    */
+   public void add(ObjectName name, Object value)
+   {
+      String canonicalName = name.getCanonicalName();
+      for (Iterator i = name.getKeyPropertyList().entrySet().iterator(); i.hasNext();)
+      {
+         Map.Entry property = (Map.Entry) i.next();
+         Map values = (Map) index.get(property.getKey());
+         if (values == null)
+         {
+            values = new ConcurrentReaderHashMap();
+            index.put(property.getKey(), values);
+         }
+         Map names = (Map) values.get(property.getValue());
+         if (names == null)
+         {
+            names = new ConcurrentReaderHashMap();
+            values.put(property.getValue(), names);
+         }
+         names.put(canonicalName, value);
+      }
+   }
+
+   /**
+    * Remove an object name from the index.
+    *
+    * @param name the fully qualified object name
+    */
+   public void remove(ObjectName name)
+   {
+      String canonicalName = name.getCanonicalName();
+      for (Iterator i = name.getKeyPropertyList().entrySet().iterator(); i.hasNext();)
+      {
+         Map.Entry property = (Map.Entry) i.next();
+         Map values = (Map) index.get(property.getKey());
+         if (values == null)
+            continue;
+         Map names = (Map) values.get(property.getValue());
+         if (names == null)
+            continue;
+         names.remove(canonicalName);
+         if (names.isEmpty())
+         {
+            values.remove(property.getValue());
+            if (values.isEmpty())
+               index.remove(property.getKey());
+         }
+      }
+   }
+
+   /**
+    * Get the values whose object names have all the key properties that
+    * the pattern specifies without wildcards. The values returned are a
+    * superset of those matching the pattern and must be filtered with
+    * {@link ObjectName#apply(ObjectName)}.
+    *
+    * @param pattern the pattern
+    * @return the candidate values, or null when the pattern has no key
+    *         property that can be looked up in the index
+    */
+   public Collection getCandidates(ObjectName pattern)
+   {
+      Map smallest = null;
+      for (Iterator i = pattern.getKeyPropertyList().entrySet().iterator(); i.hasNext();)
+      {
+         Map.Entry property = (Map.Entry) i.next();
+         String value = (String) property.getValue();
+         // Wildcarded values can not be looked up
+         if (value.indexOf('*') != -1 || value.indexOf('?') != -1)
+            continue;
+         Map values = (Map) index.get(property.getKey());
+         Map names = values != null ? (Map) values.get(value) : null;
+         if (names == null)
+            return Collections.EMPTY_LIST;
+         if (smallest == null || names.size() < smallest.size())
+            smallest = names;
+      }
+      return smallest != null ? smallest.values() : null;
+   }
+
+   /**
+    * Remove all object names from the index.
+    */
+   public void clear()
+   {
+      index.clear();
+   }
+}
@@ -35,6 +35,7 @@ import junit.framework.TestCase;
 
 import org.jboss.mx.loading.LoaderRepository;
 import org.jboss.mx.loading.RepositoryClassLoader;
+import org.jboss.mx.loading.UnifiedLoaderRepository3;
 import org.jboss.mx.server.ServerConstants;
 import org.jboss.mx.util.AgentID;
 
@@ -80,6 +81,37 @@ public class LoaderRepositoryTEST extends TestCase implements ServerConstants
       ucl2.unregister();
    }
 
+   public void testLoadingStatistics() throws Exception
+   {
+      // NOTE:
+      // the urls used here are relative to the location of the build.xml
+      final URL url = new URL("file:./output/etc/test/implementation/loading/MyMBeans.jar");
+      final String className = "test.implementation.loading.support.Trivial";
+
+      UnifiedLoaderRepository3 ulr = new UnifiedLoaderRepository3();
+      RepositoryClassLoader ucl = ulr.newClassLoader(url, true);
+      ulr.resetStatistics();
+      assertEquals(0, ulr.getClassLoadCount());
+
+      Class cls = ucl.loadClass(className);
+      assertEquals(ucl, cls.getClassLoader());
+      assertTrue(ulr.getClassLoadCount() > 0);
+      assertEquals(cls, ulr.getCachedClass(className));
+
+      // Loading again is satisfied by the cache
+      long count = ulr.getClassLoadCount();
+      assertEquals(cls, ucl.loadClass(className));
+      assertEquals(count, ulr.getClassLoadCount());
+
+      // Removing the class loader removes its classes from the cache
+      ulr.removeClassLoader(ucl);
+      assertNull(ulr.getCachedClass(className));
+
+      ulr.resetStatistics();
+      assertEquals(0, ulr.getClassLoadCount());
+      assertEquals(0, ulr.getLockWaitCount());
+   }
+
    public void testClassConflictBetweenMLets() throws Exception
    {
       // NOTE:
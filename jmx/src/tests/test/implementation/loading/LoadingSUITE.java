@@ -37,6 +37,8 @@ public class LoadingSUITE extends TestSuite
 
       suite.addTest(new TestSuite(LoaderRepositoryTEST.class));
       suite.addTest(new TestSuite(MLetVersionTEST.class));
+      suite.addTest(new TestSuite(RepositoryIndexTEST.class));
+      suite.addTest(new TestSuite(ParallelLoadingTEST.class));
 
       return suite;
    }
@@ -0,0 +1,298 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package test.implementation.loading;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import junit.framework.TestCase;
+
+import org.jboss.mx.loading.LoaderRepository;
+import org.jboss.mx.loading.RepositoryClassLoader;
+import org.jboss.mx.loading.UnifiedClassLoader3;
+import org.jboss.mx.loading.UnifiedLoaderRepository3;
+
+/**
+ * Tests concurrent loading of classes through class loaders other than the
+ * defining ones. In parallel mode the superclasses are defined by other class
+ * loaders as well. The parallel mode is only on when this is the first test
+ * of the VM to use the loader repository, or the VM is started with
+ * -Dorg.jboss.mx.loading.UnifiedLoaderRepository.parallel=true
+ */
+public class ParallelLoadingTEST extends TestCase
+{
+   static
+   {
+      // Parallel loading is enabled when RepositoryClassLoader is initialized
+      if (System.getProperty(RepositoryClassLoader.PARALLEL_LOADING) == null)
+         System.setProperty(RepositoryClassLoader.PARALLEL_LOADING, "true");
+   }
+
+   /** The number of class loaders, each defining one package */
+   private static final int LOADERS = 4;
+
+   /** The number of classes per package */
+   private static final int CLASSES = 100;
+
+   private static final int THREADS = 8;
+
+   private File dir;
+
+   public ParallelLoadingTEST(String s)
+   {
+      super(s);
+   }
+
+   protected void setUp() throws Exception
+   {
+      dir = File.createTempFile("ParallelLoadingTEST", "");
+      dir.delete();
+      dir.mkdirs();
+   }
+
+   protected void tearDown() throws Exception
+   {
+      File[] files = dir.listFiles();
+      for (int n = 0; files != null && n < files.length; ++n)
+         files[n].delete();
+      dir.delete();
+   }
+
+   public void testConcurrentCrossLoading() throws Exception
+   {
+      UnifiedLoaderRepository3 ulr = new UnifiedLoaderRepository3();
+      // The serial protocol does not cope with concurrent loads across the loaders
+      boolean acrossLoaders = ulr.isParallelLoading();
+      URL[] jars = createJars(acrossLoaders);
+      RepositoryClassLoader[] loaders = new RepositoryClassLoader[LOADERS];
+      for (int i = 0; i < LOADERS; ++i)
+         loaders[i] = ulr.newClassLoader(jars[i], true);
+      try
+      {
+         assertEquals(loaders[0].isParallelCapable(), ulr.isParallelLoading());
+         loadConcurrently(ulr, loaders, acrossLoaders);
+      }
+      finally
+      {
+         for (int i = 0; i < LOADERS; ++i)
+            ulr.removeClassLoader(loaders[i]);
+      }
+   }
+
+   /**
+    * Every other package is defined by a class loader that is not parallel
+    * capable, and the repository goes back to the serial protocol while
+    * they are registered.
+    */
+   public void testConcurrentMixedLoading() throws Exception
+   {
+      UnifiedLoaderRepository3 ulr = new UnifiedLoaderRepository3();
+      URL[] jars = createJars(false);
+      RepositoryClassLoader[] loaders = new RepositoryClassLoader[LOADERS];
+      for (int i = 0; i < LOADERS; ++i)
+      {
+         if (i % 2 == 0)
+            loaders[i] = ulr.newClassLoader(jars[i], true);
+         else
+         {
+            loaders[i] = new SerialClassLoader(jars[i], ulr);
+            assertFalse(loaders[i].isParallelCapable());
+            ulr.addClassLoader(loaders[i]);
+         }
+      }
+      try
+      {
+         assertFalse(ulr.isParallelLoading());
+         loadConcurrently(ulr, loaders, false);
+      }
+      finally
+      {
+         for (int i = 0; i < LOADERS; ++i)
+            ulr.removeClassLoader(loaders[i]);
+      }
+      assertEquals(loaders[0].isParallelCapable(), ulr.isParallelLoading());
+   }
+
+   /**
+    * Load all the classes from all the threads, each thread in its own order.
+    * Across loaders the threads ask class loaders which do not define the
+    * classes, and the superclasses are in other class loaders.
+    */
+   private void loadConcurrently(UnifiedLoaderRepository3 ulr, final RepositoryClassLoader[] loaders,
+      final boolean acrossLoaders) throws Exception
+   {
+      final List failures = Collections.synchronizedList(new ArrayList());
+      final Class[][][] loaded = new Class[THREADS][LOADERS][CLASSES];
+      Thread[] threads = new Thread[THREADS];
+      for (int t = 0; t < THREADS; ++t)
+      {
+         final int id = t;
+         threads[t] = new Thread("Loader#" + t)
+         {
+            public void run()
+            {
+               List names = new ArrayList();
+               for (int i = 0; i < LOADERS; ++i)
+                  for (int k = 0; k < CLASSES; ++k)
+                     names.add(new int[] { i, k });
+               Collections.shuffle(names, new Random(id));
+               try
+               {
+                  for (int n = 0; n < names.size(); ++n)
+                  {
+                     int[] name = (int[]) names.get(n);
+                     RepositoryClassLoader requesting = loaders[name[0]];
+                     if (acrossLoaders)
+                        requesting = loaders[(name[0] + 1 + id) % LOADERS];
+                     loaded[id][name[0]][name[1]] = requesting.loadClass("p" + name[0] + ".C" + name[1]);
+                  }
+               }
+               catch (Throwable e)
+               {
+                  failures.add(e);
+               }
+            }
+         };
+      }
+      long start = System.currentTimeMillis();
+      for (int t = 0; t < THREADS; ++t)
+         threads[t].start();
+      for (int t = 0; t < THREADS; ++t)
+      {
+         threads[t].join(60000);
+         if (threads[t].isAlive())
+            fail("Class loading did not complete, deadlocked thread " + threads[t].getName());
+      }
+      long time = System.currentTimeMillis() - start;
+      System.out.println(getName() + " parallel=" + ulr.isParallelLoading() + " loaded "
+         + LOADERS * CLASSES + " classes in " + THREADS + " threads in " + time + "ms, lock waits="
+         + ulr.getLockWaitCount());
+
+      if (failures.isEmpty() == false)
+      {
+         Throwable t = (Throwable) failures.get(0);
+         t.printStackTrace();
+         fail(failures.size() + " threads failed, the first with " + t);
+      }
+
+      for (int i = 0; i < LOADERS; ++i)
+      {
+         for (int k = 0; k < CLASSES; ++k)
+         {
+            Class cls = loaded[0][i][k];
+            assertEquals("p" + i + ".C" + k, cls.getName());
+            assertEquals(loaders[i], cls.getClassLoader());
+            if (acrossLoaders && k > 0)
+               assertEquals(loaded[0][(i + 1) % LOADERS][k - 1], cls.getSuperclass());
+            for (int t = 1; t < THREADS; ++t)
+               assertSame(cls, loaded[t][i][k]);
+         }
+      }
+   }
+
+   /**
+    * Create a jar per class loader with the p&lt;i&gt;.C&lt;k&gt; classes. Across
+    * loaders p&lt;i&gt;.C&lt;k&gt; extends p&lt;i+1&gt;.C&lt;k-1&gt;, so that loading a class
+    * walks all the loaders, otherwise the classes extend Object.
+    */
+   private URL[] createJars(boolean acrossLoaders) throws IOException
+   {
+      URL[] jars = new URL[LOADERS];
+      for (int i = 0; i < LOADERS; ++i)
+      {
+         File file = new File(dir, "p" + i + ".jar");
+         JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+         try
+         {
+            for (int k = 0; k < CLASSES; ++k)
+            {
+               String superName = "java/lang/Object";
+               if (acrossLoaders && k > 0)
+                  superName = "p" + ((i + 1) % LOADERS) + "/C" + (k - 1);
+               out.putNextEntry(new JarEntry("p" + i + "/C" + k + ".class"));
+               out.write(createClass("p" + i + "/C" + k, superName));
+               out.closeEntry();
+            }
+         }
+         finally
+         {
+            out.close();
+         }
+         jars[i] = file.toURL();
+      }
+      return jars;
+   }
+
+   /**
+    * A minimal public class with no members
+    */
+   private static byte[] createClass(String name, String superName) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(49);
+      // constant pool
+      out.writeShort(5);
+      out.writeByte(1);
+      out.writeUTF(name);
+      out.writeByte(7);
+      out.writeShort(1);
+      out.writeByte(1);
+      out.writeUTF(superName);
+      out.writeByte(7);
+      out.writeShort(3);
+      // ACC_PUBLIC | ACC_SUPER, this, super
+      out.writeShort(0x21);
+      out.writeShort(2);
+      out.writeShort(4);
+      // interfaces, fields, methods, attributes
+      out.writeShort(0);
+      out.writeShort(0);
+      out.writeShort(0);
+      out.writeShort(0);
+      out.close();
+      return bytes.toByteArray();
+   }
+
+   /**
+    * A UCL3 subclass, which is not registered as parallel capable
+    */
+   public static class SerialClassLoader extends UnifiedClassLoader3
+   {
+      public SerialClassLoader(URL url, LoaderRepository repository)
+      {
+         super(url, null, repository);
+      }
+   }
+}
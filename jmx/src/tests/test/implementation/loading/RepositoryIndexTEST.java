@@ -0,0 +1,143 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package test.implementation.loading;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.jboss.mx.loading.RepositoryClassLoader;
+import org.jboss.mx.loading.UnifiedLoaderRepository3;
+
+/**
+ * Tests resources are found through the repository index.
+ */
+public class RepositoryIndexTEST extends TestCase
+{
+   private static final String INDEX_FILE = "org.jboss.mx.loading.UnifiedLoaderRepository.indexFile";
+
+   static
+   {
+      // The index is enabled by the first repository created in the VM
+      if (System.getProperty(INDEX_FILE) == null)
+         System.setProperty(INDEX_FILE, new File(System.getProperty("java.io.tmpdir"),
+            "RepositoryIndexTEST-" + System.currentTimeMillis() + ".idx").getPath());
+   }
+
+   private File dir;
+
+   public RepositoryIndexTEST(String s)
+   {
+      super(s);
+   }
+
+   protected void setUp() throws Exception
+   {
+      dir = File.createTempFile("RepositoryIndexTEST", "");
+      dir.delete();
+      dir.mkdirs();
+   }
+
+   protected void tearDown() throws Exception
+   {
+      File[] files = dir.listFiles();
+      for (int n = 0; files != null && n < files.length; ++n)
+         files[n].delete();
+      dir.delete();
+   }
+
+   public void testManifestClassPath() throws Exception
+   {
+      Manifest manifest = new Manifest();
+      manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+      manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, "lib.jar");
+      URL main = createJar("main.jar", manifest, new String[] { "main/Main.txt" });
+      createJar("lib.jar", null, new String[] { "lib/Lib.txt" });
+      URL other = createJar("other.jar", null, new String[] { "other/Other.txt" });
+
+      UnifiedLoaderRepository3 ulr = new UnifiedLoaderRepository3();
+      assertTrue(ulr.isIndexEnabled());
+      RepositoryClassLoader mainLoader = ulr.newClassLoader(main, true);
+      RepositoryClassLoader otherLoader = ulr.newClassLoader(other, true);
+      try
+      {
+         assertNotNull(mainLoader.getResourceLocally("lib/Lib.txt"));
+         assertNotNull(ulr.getResource("lib/Lib.txt", otherLoader));
+         assertNull(ulr.getResource("lib/Missing.txt", otherLoader));
+      }
+      finally
+      {
+         ulr.removeClassLoader(mainLoader);
+         ulr.removeClassLoader(otherLoader);
+      }
+   }
+
+   public void testDirectoryEntry() throws Exception
+   {
+      URL dirJar = createJar("dir.jar", null, new String[] { "dir/", "dir/Dir.txt" });
+      URL other = createJar("other.jar", null, new String[] { "other/Other.txt" });
+
+      UnifiedLoaderRepository3 ulr = new UnifiedLoaderRepository3();
+      assertTrue(ulr.isIndexEnabled());
+      RepositoryClassLoader dirLoader = ulr.newClassLoader(dirJar, true);
+      RepositoryClassLoader otherLoader = ulr.newClassLoader(other, true);
+      try
+      {
+         assertNotNull(ulr.getResource("dir/", otherLoader));
+         assertNotNull(ulr.getResource("dir", otherLoader));
+         assertNull(ulr.getResource("missing", otherLoader));
+      }
+      finally
+      {
+         ulr.removeClassLoader(dirLoader);
+         ulr.removeClassLoader(otherLoader);
+      }
+   }
+
+   private URL createJar(String name, Manifest manifest, String[] entries) throws Exception
+   {
+      File file = new File(dir, name);
+      FileOutputStream fos = new FileOutputStream(file);
+      JarOutputStream out = manifest != null ? new JarOutputStream(fos, manifest) : new JarOutputStream(fos);
+      try
+      {
+         for (int n = 0; n < entries.length; ++n)
+         {
+            out.putNextEntry(new JarEntry(entries[n]));
+            if (entries[n].endsWith("/") == false)
+               out.write(entries[n].getBytes());
+            out.closeEntry();
+         }
+      }
+      finally
+      {
+         out.close();
+      }
+      return file.toURL();
+   }
+}
@@ -0,0 +1,192 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package test.implementation.registry;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.Query;
+
+import junit.framework.TestCase;
+
+import org.jboss.mx.server.ServerConstants;
+
+import test.implementation.registry.support.Trivial;
+
+/**
+ * Tests pattern queries answered from the key property index of the registry
+ */
+public class QueryIndexTestCase
+   extends TestCase
+   implements ServerConstants
+{
+   // Attributes ----------------------------------------------------------------
+
+   private static final String[] TYPES =
+   {
+      "J2EEServer", "EJBModule", "StatelessSessionBean", "EntityBean", "Servlet"
+   };
+
+   private static final String[] PATTERNS =
+   {
+      "jboss.j2ee:j2eeType=EJBModule,*",
+      "*:j2eeType=Servlet,J2EEApplication=app3,*",
+      "jboss.j2ee:j2eeType=EntityBean,name=bean7,*",
+      "jboss.j2ee:j2eeType=Unknown,*",
+      "jboss.j2ee:name=bean1*,*",
+      "jboss.j2ee:*",
+      "jboss.*:j2eeType=Servlet,*",
+      "*:*"
+   };
+
+   private MBeanServer server;
+
+   // Constructor ---------------------------------------------------------------
+
+   /**
+    * Construct the test
+    */
+   public QueryIndexTestCase(String s)
+   {
+      super(s);
+   }
+
+   // Tests ---------------------------------------------------------------------
+
+   /**
+    * Test pattern queries against the names registered
+    */
+   public void testQueries()
+      throws Exception
+   {
+      Set names = register(0, 500);
+      assertQueries(names);
+
+      // Unregister every other MBean and query again
+      for (Iterator i = names.iterator(); i.hasNext();)
+      {
+         ObjectName name = (ObjectName) i.next();
+         if (name.getKeyProperty("name").hashCode() % 2 == 0)
+         {
+            server.unregisterMBean(name);
+            i.remove();
+         }
+      }
+      assertQueries(names);
+
+      // Reregister
+      names.addAll(register(0, 500));
+      assertQueries(names);
+   }
+
+   /**
+    * Test a query expression is applied to the indexed candidates
+    */
+   public void testQueryExp()
+      throws Exception
+   {
+      register(0, 100);
+      server.setAttribute(new ObjectName(nameOf(5)), new Attribute("Something", "found"));
+      Set result = server.queryNames(new ObjectName("jboss.j2ee:j2eeType=" + TYPES[5 % TYPES.length] + ",*"),
+         Query.eq(Query.attr("Something"), Query.value("found")));
+      assertEquals(1, result.size());
+      assertTrue(result.contains(new ObjectName(nameOf(5))));
+   }
+
+   /**
+    * Test the query statistics
+    */
+   public void testStatistics()
+      throws Exception
+   {
+      register(0, 10);
+      ObjectName registry = new ObjectName(MBEAN_REGISTRY);
+      server.invoke(registry, "resetQueryStatistics", new Object[0], new String[0]);
+      server.queryNames(new ObjectName("jboss.j2ee:j2eeType=Servlet,*"), null);
+      server.queryNames(new ObjectName("jboss.j2ee:*"), null);
+      assertEquals(new Long(2), server.getAttribute(registry, "QueryCount"));
+      assertEquals(new Long(1), server.getAttribute(registry, "IndexedQueryCount"));
+      long total = ((Long) server.getAttribute(registry, "QueryTime")).longValue();
+      long max = ((Long) server.getAttribute(registry, "MaxQueryTime")).longValue();
+      assertTrue("max " + max + " <= total " + total, max <= total);
+   }
+
+   // Support -------------------------------------------------------------------
+
+   protected void setUp()
+      throws Exception
+   {
+      server = MBeanServerFactory.createMBeanServer();
+   }
+
+   protected void tearDown()
+      throws Exception
+   {
+      MBeanServerFactory.releaseMBeanServer(server);
+   }
+
+   private static String nameOf(int i)
+   {
+      return "jboss.j2ee:j2eeType=" + TYPES[i % TYPES.length] + ",name=bean" + i
+         + ",J2EEServer=Local,J2EEApplication=app" + (i % 50);
+   }
+
+   private Set register(int from, int to)
+      throws Exception
+   {
+      Set names = new HashSet();
+      for (int i = from; i < to; ++i)
+      {
+         ObjectName name = new ObjectName(nameOf(i));
+         if (server.isRegistered(name) == false)
+            server.registerMBean(new Trivial(), name);
+         names.add(name);
+      }
+      return names;
+   }
+
+   private void assertQueries(Set names)
+      throws Exception
+   {
+      Set all = server.queryNames(null, null);
+      for (int i = 0; i < PATTERNS.length; ++i)
+      {
+         ObjectName pattern = new ObjectName(PATTERNS[i]);
+         Set expected = new HashSet();
+         for (Iterator j = all.iterator(); j.hasNext();)
+         {
+            ObjectName name = (ObjectName) j.next();
+            if (pattern.apply(name))
+               expected.add(name);
+         }
+         assertEquals(PATTERNS[i], expected, server.queryNames(pattern, null));
+         assertEquals(PATTERNS[i], expected.size(), server.queryMBeans(pattern, null).size());
+      }
+      Set registered = server.queryNames(new ObjectName("jboss.j2ee:*"), null);
+      assertEquals(names, registered);
+   }
+}
@@ -52,6 +52,7 @@ public class RegistrySUITE
     TestSuite suite = new TestSuite("JBossMX Specific Registry tests");
 
     suite.addTest(new TestSuite(ValuesTestCase.class));
+    suite.addTest(new TestSuite(QueryIndexTestCase.class));
 
     return suite;
   }
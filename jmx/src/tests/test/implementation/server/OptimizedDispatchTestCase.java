@@ -0,0 +1,152 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package test.implementation.server;
+
+import javax.management.Attribute;
+import javax.management.MBeanException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.RuntimeMBeanException;
+
+import junit.framework.TestCase;
+
+import org.jboss.mx.server.ServerConstants;
+
+import test.implementation.server.support.Dispatch;
+
+/**
+ * Checks that invocations through the generated dispatchers behave
+ * the same as reflected invocations.
+ */
+public class OptimizedDispatchTestCase extends TestCase
+   implements ServerConstants
+{
+   private MBeanServer server;
+   private ObjectName name;
+
+   public OptimizedDispatchTestCase(String s)
+   {
+      super(s);
+   }
+
+   protected void setUp() throws Exception
+   {
+      System.setProperty(OPTIMIZE_REFLECTED_DISPATCHER, "true");
+      server = MBeanServerFactory.createMBeanServer();
+      name = new ObjectName("test:test=dispatch");
+      server.registerMBean(new Dispatch(), name);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      System.setProperty(OPTIMIZE_REFLECTED_DISPATCHER, "false");
+      MBeanServerFactory.releaseMBeanServer(server);
+   }
+
+   public void testPrimitiveOperation() throws Exception
+   {
+      Object result = server.invoke(name, "add", new Object[] { new Integer(2), new Long(40) },
+         new String[] { "int", "long" });
+      assertEquals(new Long(42), result);
+   }
+
+   public void testOverloadedOperation() throws Exception
+   {
+      assertEquals("abc", server.invoke(name, "echo", new Object[] { "abc" },
+         new String[] { String.class.getName() }));
+      assertEquals("abcabc", server.invoke(name, "echo", new Object[] { "abc", new Integer(2) },
+         new String[] { String.class.getName(), "int" }));
+   }
+
+   public void testArrayOperation() throws Exception
+   {
+      Object[] result = (Object[]) server.invoke(name, "reverse", new Object[] { new Object[] { "a", "b" } },
+         new String[] { Object[].class.getName() });
+      assertEquals("b", result[0]);
+      assertEquals("a", result[1]);
+   }
+
+   public void testNullArgument() throws Exception
+   {
+      assertNull(server.invoke(name, "echo", new Object[] { null },
+         new String[] { String.class.getName() }));
+   }
+
+   public void testUnknownSignature() throws Exception
+   {
+      try
+      {
+         server.invoke(name, "echo", new Object[] { new Integer(1) }, new String[] { "int" });
+         fail("Expected a ReflectionException");
+      }
+      catch (ReflectionException expected)
+      {
+      }
+      try
+      {
+         server.invoke(name, "echo", null, null);
+         fail("Expected a ReflectionException");
+      }
+      catch (ReflectionException expected)
+      {
+      }
+   }
+
+   public void testCheckedException() throws Exception
+   {
+      try
+      {
+         server.invoke(name, "fail", new Object[] { "checked" }, new String[] { String.class.getName() });
+         fail("Expected an MBeanException");
+      }
+      catch (MBeanException expected)
+      {
+         assertEquals(Exception.class, expected.getTargetException().getClass());
+         assertEquals("checked", expected.getTargetException().getMessage());
+      }
+   }
+
+   public void testRuntimeException() throws Exception
+   {
+      try
+      {
+         server.invoke(name, "failRuntime", new Object[] { "runtime" }, new String[] { String.class.getName() });
+         fail("Expected a RuntimeMBeanException");
+      }
+      catch (RuntimeMBeanException expected)
+      {
+         assertEquals(IllegalStateException.class, expected.getTargetException().getClass());
+      }
+   }
+
+   public void testAttributes() throws Exception
+   {
+      server.setAttribute(name, new Attribute("Count", new Integer(7)));
+      assertEquals(new Integer(7), server.getAttribute(name, "Count"));
+      server.setAttribute(name, new Attribute("Name", "dispatch"));
+      assertEquals("dispatch", server.getAttribute(name, "Name"));
+      server.setAttribute(name, new Attribute("Name", null));
+      assertNull(server.getAttribute(name, "Name"));
+   }
+}
@@ -52,6 +52,7 @@ public class ServerSUITE
     TestSuite suite = new TestSuite("JBossMX Specific Server tests");
 
     suite.addTest(new TestSuite(ObjectInstanceTestCase.class));
+    suite.addTest(new TestSuite(OptimizedDispatchTestCase.class));
 
     return suite;
   }
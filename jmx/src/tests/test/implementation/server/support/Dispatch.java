@@ -0,0 +1,84 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package test.implementation.server.support;
+
+public class Dispatch implements DispatchMBean
+{
+   private int count = 0;
+   private String name = null;
+
+   public int getCount()
+   {
+      return count;
+   }
+
+   public void setCount(int count)
+   {
+      this.count = count;
+   }
+
+   public String getName()
+   {
+      return name;
+   }
+
+   public void setName(String name)
+   {
+      this.name = name;
+   }
+
+   public long add(int a, long b)
+   {
+      return a + b;
+   }
+
+   public String echo(String value)
+   {
+      return value;
+   }
+
+   public String echo(String value, int times)
+   {
+      StringBuffer buffer = new StringBuffer();
+      for (int i = 0; i < times; ++i)
+         buffer.append(value);
+      return buffer.toString();
+   }
+
+   public Object[] reverse(Object[] values)
+   {
+      Object[] result = new Object[values.length];
+      for (int i = 0; i < values.length; ++i)
+         result[i] = values[values.length - 1 - i];
+      return result;
+   }
+
+   public void fail(String message) throws Exception
+   {
+      throw new Exception(message);
+   }
+
+   public void failRuntime(String message)
+   {
+      throw new IllegalStateException(message);
+   }
+}
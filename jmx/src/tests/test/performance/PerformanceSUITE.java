@@ -56,6 +56,7 @@ public class PerformanceSUITE extends TestSuite
       suite.addTest(test.performance.invocationhandler.InvocationHandlerSUITE.suite());
       suite.addTest(test.performance.serialize.SerializeSUITE.suite());
       suite.addTest(test.performance.registration.RegistrationSUITE.suite());
+      suite.addTest(test.performance.query.QuerySUITE.suite());
       suite.addTest(test.performance.timer.TimerSUITE.suite());
       
       return suite;
@@ -24,6 +24,11 @@ package test.performance.modelmbean;
 import junit.framework.Test;
 import junit.framework.TestSuite;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
 /**
  * Suite of performance tests for Model MBeans.
  *
@@ -41,6 +46,20 @@ public class ModelMBeanSUITE extends TestSuite
    {
       TestSuite suite = new TestSuite("Performance tests for Model MBeans");
       
+      try
+      {
+         MBeanServer server = MBeanServerFactory.createMBeanServer();
+      
+         if ("JBossMX".equalsIgnoreCase((String)server.getAttribute(new ObjectName("JMImplementation:type=MBeanServerDelegate"), "ImplementationName")))
+         {
+            suite.addTest(new TestSuite(OptimizedThroughputTEST.class));
+         }
+      }
+      catch (JMException e)
+      {
+         System.err.println("Unable to run optimized tests: " + e.toString());
+      }
+      
       suite.addTest(new TestSuite(ThroughputTEST.class));
       
       return suite;
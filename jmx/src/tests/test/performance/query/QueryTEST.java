@@ -0,0 +1,108 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package test.performance.query;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import test.performance.registration.support.Standard;
+
+/**
+ * Compares queries answered from the key property index of the registry
+ * with domain queries at increasing numbers of MBeans
+ */
+public class QueryTEST
+   extends TestCase
+{
+   // Attributes ----------------------------------------------------------------
+
+   private static final String[] TYPES =
+   {
+      "J2EEServer", "EJBModule", "StatelessSessionBean", "EntityBean", "Servlet"
+   };
+
+   private static final int[] SIZES = { 10000, 50000, 100000 };
+
+   private static final int QUERY_ITERATION_COUNT = 20;
+
+   // Constructor ---------------------------------------------------------------
+
+   /**
+    * Construct the test
+    */
+   public QueryTEST(String s)
+   {
+      super(s);
+   }
+
+   /**
+    * Test indexed and domain queries
+    */
+   public void testQueries()
+      throws Exception
+   {
+      System.out.println("\nIndexed and domain queries, " + QUERY_ITERATION_COUNT + " iterations");
+      System.out.println("(this may take a while...)");
+
+      MBeanServer server = MBeanServerFactory.createMBeanServer();
+      try
+      {
+         ObjectName indexed = new ObjectName("jboss.j2ee:j2eeType=Servlet,J2EEApplication=app3,*");
+         ObjectName scanned = new ObjectName("jboss.j2ee:*");
+         int registered = 0;
+         for (int i = 0; i < SIZES.length; ++i)
+         {
+            for (; registered < SIZES[i]; ++registered)
+               server.registerMBean(new Standard(), new ObjectName(nameOf(registered)));
+            long indexedTime = timeQuery(server, indexed);
+            long scannedTime = timeQuery(server, scanned);
+            System.out.println(registered + " MBeans: indexed query " + indexedTime
+               + "us, domain query " + scannedTime + "us");
+         }
+      }
+      finally
+      {
+         MBeanServerFactory.releaseMBeanServer(server);
+      }
+   }
+
+   // Support -------------------------------------------------------------------
+
+   private static String nameOf(int i)
+   {
+      return "jboss.j2ee:j2eeType=" + TYPES[i % TYPES.length] + ",name=bean" + i
+         + ",J2EEServer=Local,J2EEApplication=app" + (i % 50);
+   }
+
+   private static long timeQuery(MBeanServer server, ObjectName pattern)
+   {
+      // drop the first query
+      server.queryNames(pattern, null);
+      long start = System.nanoTime();
+      for (int i = 0; i < QUERY_ITERATION_COUNT; ++i)
+         server.queryNames(pattern, null);
+      return (System.nanoTime() - start) / QUERY_ITERATION_COUNT / 1000;
+   }
+}
@@ -0,0 +1,44 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.mx.capability;
+
+/**
+ * The base class of the accessors generated by {@link MethodAccessor} for
+ * an MBean class. A generated accessor invokes the public methods of the
+ * class, selected by index, without Java reflection.
+ *
+ * @version $Revision: 81026 $
+ */
+public abstract class GeneratedAccessor
+{
+   /**
+    * Invoke a method.
+    *
+    * @param index the index of the method
+    * @param target the target object, ignored for static methods
+    * @param args the arguments, unboxed for primitive parameters
+    * @return the result, boxed for primitive results and null for void
+    * @throws Throwable any exception thrown by the method or by the
+    *         argument conversion
+    */
+   public abstract Object invoke(int index, Object target, Object[] args) throws Throwable;
+}
@@ -0,0 +1,422 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.mx.capability;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.AALOAD;
+import org.apache.bcel.generic.ACONST_NULL;
+import org.apache.bcel.generic.ALOAD;
+import org.apache.bcel.generic.ARETURN;
+import org.apache.bcel.generic.ATHROW;
+import org.apache.bcel.generic.ArrayType;
+import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.DUP;
+import org.apache.bcel.generic.ILOAD;
+import org.apache.bcel.generic.InstructionFactory;
+import org.apache.bcel.generic.InstructionHandle;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.NOP;
+import org.apache.bcel.generic.ObjectType;
+import org.apache.bcel.generic.PUSH;
+import org.apache.bcel.generic.ReferenceType;
+import org.apache.bcel.generic.TABLESWITCH;
+import org.apache.bcel.generic.Type;
+import org.jboss.logging.Logger;
+
+/**
+ * Invokes a method of an MBean class through a {@link GeneratedAccessor}
+ * instead of Java reflection. <p>
+ *
+ * The accessor for a class is generated the first time one of its methods
+ * is bound, normally at MBean registration, and covers all the public
+ * methods of the class. Invocations that the generated code cannot handle
+ * exactly as {@link Method#invoke(Object, Object[])} would, e.g. arguments
+ * that need a widening conversion, are passed to the reflected method.
+ * Exceptions thrown by the method are wrapped in an
+ * InvocationTargetException as they are by reflection.
+ *
+ * @see org.jboss.mx.capability.DispatchClassLoader
+ *
+ * @version $Revision: 81026 $
+ */
+public final class MethodAccessor
+{
+   // Constants -----------------------------------------------------
+
+   /** The package of the generated classes */
+   private static final String GENERATED_PACKAGE = "org.jboss.mx.capability.generated.";
+
+   /** Classes with more methods than this are not generated */
+   private static final int MAX_METHODS = 1000;
+
+   // Static --------------------------------------------------------
+
+   private static final Logger log = Logger.getLogger(MethodAccessor.class);
+
+   /** Map<Class, WeakReference<ClassAccessor>> of the generated accessors,
+       with Boolean.FALSE for the classes that cannot be generated */
+   private static final Map accessors = new WeakHashMap();
+
+   /** The number of generated classes, used to make the names unique.
+       Guarded by the class lock */
+   private static int generated;
+
+   // Attributes ----------------------------------------------------
+
+   private final Method method;
+   private final GeneratedAccessor accessor;
+   private final int index;
+   private final Class declaringClass;
+   private final boolean isStatic;
+   /** The parameter types, with primitives replaced by their wrappers */
+   private final Class[] argTypes;
+   private final boolean[] primitive;
+   /** The class accessor, referenced so that it is cached while in use */
+   private final ClassAccessor classAccessor;
+
+   // Static --------------------------------------------------------
+
+   /**
+    * Bind a method of a class to the class's generated accessor.
+    *
+    * @param clazz the class whose public methods are generated
+    * @param method the method, as returned by clazz.getMethods()
+    * @return the method accessor or null when the method can only be
+    *         invoked through reflection
+    */
+   public static MethodAccessor create(Class clazz, Method method)
+   {
+      if (clazz == null || method == null)
+         return null;
+      ClassAccessor classAccessor = getClassAccessor(clazz);
+      if (classAccessor == null)
+         return null;
+      Integer index = (Integer) classAccessor.indexes.get(method);
+      if (index == null)
+         return null;
+      return new MethodAccessor(classAccessor, method, index.intValue());
+   }
+
+   private static synchronized ClassAccessor getClassAccessor(Class clazz)
+   {
+      Object value = accessors.get(clazz);
+      if (value == Boolean.FALSE)
+         return null;
+      ClassAccessor classAccessor = value != null ? (ClassAccessor) ((WeakReference) value).get() : null;
+      if (classAccessor == null)
+      {
+         classAccessor = generate(clazz);
+         if (classAccessor == null)
+            accessors.put(clazz, Boolean.FALSE);
+         else
+            accessors.put(clazz, new WeakReference(classAccessor));
+      }
+      return classAccessor;
+   }
+
+   /**
+    * Generate the accessor for the public methods of a class. Called with
+    * the class lock held.
+    */
+   private static ClassAccessor generate(Class clazz)
+   {
+      ClassLoader loader = clazz.getClassLoader();
+      try
+      {
+         // The generated class must see both the MBean class and our base class
+         if (loader == null || loader.loadClass(GeneratedAccessor.class.getName()) != GeneratedAccessor.class)
+            return null;
+
+         Method[] methods = clazz.getMethods();
+         ArrayList accessible = new ArrayList();
+         for (int i = 0; i < methods.length; ++i)
+         {
+            Method m = methods[i];
+            Class declaring = m.getDeclaringClass();
+            if (declaring != Object.class && Modifier.isPublic(declaring.getModifiers()))
+               accessible.add(m);
+         }
+         if (accessible.isEmpty() || accessible.size() > MAX_METHODS)
+            return null;
+         methods = (Method[]) accessible.toArray(new Method[accessible.size()]);
+
+         String className = GENERATED_PACKAGE + clazz.getName().replace('.', '_') + "_Accessor" + (generated++);
+         byte[] bytecode = createClass(className, methods);
+         ClassLoader dcl = new DispatchClassLoader(loader, className, bytecode);
+         GeneratedAccessor accessor = (GeneratedAccessor) dcl.loadClass(className).newInstance();
+
+         Map indexes = new HashMap();
+         for (int i = 0; i < methods.length; ++i)
+            indexes.put(methods[i], new Integer(i));
+         return new ClassAccessor(accessor, indexes);
+      }
+      catch (Throwable t)
+      {
+         log.debug("Unable to generate an accessor for " + clazz + ", using reflection", t);
+         return null;
+      }
+   }
+
+   /**
+    * Creates a subclass of GeneratedAccessor whose invoke method looks like
+    * <pre>
+    * public Object invoke(int index, Object target, Object[] args)
+    * {
+    *    switch (index)
+    *    {
+    *       case 0:
+    *          return ((&lt;declaring class&gt;) target).&lt;method 0&gt;((&lt;type 0&gt;) args[0], ...);
+    *       ...
+    *       default:
+    *          throw new IllegalArgumentException();
+    *    }
+    * }
+    * </pre>
+    * with primitive arguments unwrapped and primitive results wrapped.
+    */
+   private static byte[] createClass(String className, Method[] methods) throws Exception
+   {
+      ClassGen clazz = new ClassGen(className, GeneratedAccessor.class.getName(), "<generated>",
+         Constants.ACC_PUBLIC | Constants.ACC_FINAL | Constants.ACC_SUPER, new String[0]);
+      clazz.addEmptyConstructor(Constants.ACC_PUBLIC);
+      ConstantPoolGen cp = clazz.getConstantPool();
+      InstructionFactory factory = new InstructionFactory(clazz, cp);
+      InstructionList il = new InstructionList();
+
+      int[] match = new int[methods.length];
+      InstructionHandle[] targets = new InstructionHandle[methods.length];
+      for (int i = 0; i < methods.length; ++i)
+      {
+         Method m = methods[i];
+         Class declaring = m.getDeclaringClass();
+         boolean isStatic = Modifier.isStatic(m.getModifiers());
+         match[i] = i;
+         targets[i] = il.append(new NOP());
+
+         if (isStatic == false)
+         {
+            il.append(new ALOAD(2));                                      // Stack:  => ..., target [Object]
+            il.append(factory.createCheckCast(new ObjectType(declaring.getName())));
+         }
+
+         Class[] params = m.getParameterTypes();
+         Type[] paramTypes = new Type[params.length];
+         for (int j = 0; j < params.length; ++j)
+         {
+            paramTypes[j] = Type.getType(params[j]);
+            il.append(new ALOAD(3));                                      // Stack:  => ..., args [Object[]]
+            il.append(new PUSH(cp, j));                                   // Stack:  => ..., args [Object[]], j [int]
+            il.append(new AALOAD());                                      // Stack:  => ..., args[j] [Object]
+            if (params[j].isPrimitive())
+            {
+               String wrapper = getWrapperClass(params[j]).getName();
+               il.append(factory.createCheckCast(new ObjectType(wrapper)));
+               il.append(factory.createInvoke(wrapper, params[j].getName() + "Value",
+                  paramTypes[j], Type.NO_ARGS, Constants.INVOKEVIRTUAL));  // Stack:  => ..., value [primitive]
+            }
+            else if (params[j] != Object.class)
+            {
+               il.append(factory.createCheckCast((ReferenceType) paramTypes[j]));
+            }
+         }
+
+         short kind;
+         if (isStatic)
+            kind = Constants.INVOKESTATIC;
+         else if (declaring.isInterface())
+            kind = Constants.INVOKEINTERFACE;
+         else
+            kind = Constants.INVOKEVIRTUAL;
+         Class returnType = m.getReturnType();
+         il.append(factory.createInvoke(declaring.getName(), m.getName(),
+            Type.getType(returnType), paramTypes, kind));                 // Stack:  => ..., result
+
+         if (returnType == Void.TYPE)
+         {
+            il.append(new ACONST_NULL());                                 // Stack:  => ..., null
+         }
+         else if (returnType.isPrimitive())
+         {
+            String wrapper = getWrapperClass(returnType).getName();
+            il.append(factory.createInvoke(wrapper, "valueOf", new ObjectType(wrapper),
+               new Type[] { Type.getType(returnType) }, Constants.INVOKESTATIC));
+         }
+         il.append(new ARETURN());                                        // Stack:  => <empty>
+      }
+
+      //    default: throw new IllegalArgumentException()
+      InstructionHandle defaultTarget = il.append(factory.createNew("java.lang.IllegalArgumentException"));
+      il.append(new DUP());
+      il.append(factory.createInvoke("java.lang.IllegalArgumentException", "<init>",
+         Type.VOID, Type.NO_ARGS, Constants.INVOKESPECIAL));
+      il.append(new ATHROW());
+
+      //    switch (index)
+      il.insert(new TABLESWITCH(match, targets, defaultTarget));
+      il.insert(new ILOAD(1));
+
+      MethodGen invoke = new MethodGen(Constants.ACC_PUBLIC, Type.OBJECT,
+         new Type[] { Type.INT, Type.OBJECT, new ArrayType(Type.OBJECT, 1) },
+         new String[] { "index", "target", "args" }, "invoke", className, il, cp);
+      invoke.addException("java.lang.Throwable");
+      invoke.setMaxStack();
+      invoke.setMaxLocals();
+      clazz.addMethod(invoke.getMethod());
+      il.dispose();
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(2000);
+      clazz.getJavaClass().dump(baos);
+      return baos.toByteArray();
+   }
+
+   private static Class getWrapperClass(Class type)
+   {
+      if (type == Boolean.TYPE)        return Boolean.class;
+      else if (type == Byte.TYPE)      return Byte.class;
+      else if (type == Character.TYPE) return Character.class;
+      else if (type == Short.TYPE)     return Short.class;
+      else if (type == Integer.TYPE)   return Integer.class;
+      else if (type == Long.TYPE)      return Long.class;
+      else if (type == Float.TYPE)     return Float.class;
+      else if (type == Double.TYPE)    return Double.class;
+      else                             return type;
+   }
+
+   // Constructors --------------------------------------------------
+
+   private MethodAccessor(ClassAccessor classAccessor, Method method, int index)
+   {
+      this.classAccessor = classAccessor;
+      this.accessor = classAccessor.accessor;
+      this.method = method;
+      this.index = index;
+      this.declaringClass = method.getDeclaringClass();
+      this.isStatic = Modifier.isStatic(method.getModifiers());
+      Class[] params = method.getParameterTypes();
+      this.argTypes = new Class[params.length];
+      this.primitive = new boolean[params.length];
+      for (int i = 0; i < params.length; ++i)
+      {
+         argTypes[i] = getWrapperClass(params[i]);
+         primitive[i] = params[i].isPrimitive();
+      }
+   }
+
+   // Public --------------------------------------------------------
+
+   /**
+    * The method invoked by this accessor.
+    *
+    * @return the method
+    */
+   public Method getMethod()
+   {
+      return method;
+   }
+
+   /**
+    * Invoke the method with the semantics of
+    * {@link Method#invoke(Object, Object[])}.
+    *
+    * @param target the target object
+    * @param args the arguments
+    * @return the result
+    * @throws IllegalAccessException see Method.invoke
+    * @throws InvocationTargetException if the method throws an exception
+    */
+   public Object invoke(Object target, Object[] args)
+      throws IllegalAccessException, InvocationTargetException
+   {
+      if (isApplicable(target, args) == false)
+         return method.invoke(target, args);
+      try
+      {
+         return accessor.invoke(index, target, args);
+      }
+      catch (Throwable t)
+      {
+         throw new InvocationTargetException(t);
+      }
+   }
+
+   public String toString()
+   {
+      return "MethodAccessor[" + method + "]";
+   }
+
+   // Private -------------------------------------------------------
+
+   /**
+    * Whether the generated code would invoke the method exactly as
+    * reflection does, without conversions or argument errors.
+    */
+   private boolean isApplicable(Object target, Object[] args)
+   {
+      if (isStatic == false && declaringClass.isInstance(target) == false)
+         return false;
+      int length = args != null ? args.length : 0;
+      if (length != argTypes.length)
+         return false;
+      for (int i = 0; i < length; ++i)
+      {
+         Object arg = args[i];
+         if (arg == null)
+         {
+            if (primitive[i])
+               return false;
+         }
+         else if (argTypes[i].isInstance(arg) == false)
+            return false;
+      }
+      return true;
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * The generated accessor of a class and the indexes of its methods.
+    */
+   private static class ClassAccessor
+   {
+      final GeneratedAccessor accessor;
+      /** Map<Method, Integer> */
+      final Map indexes;
+
+      ClassAccessor(GeneratedAccessor accessor, Map indexes)
+      {
+         this.accessor = accessor;
+         this.indexes = indexes;
+      }
+   }
+}
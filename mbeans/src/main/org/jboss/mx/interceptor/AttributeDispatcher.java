@@ -29,6 +29,7 @@ import javax.management.MBeanException;
 import javax.management.ServiceNotFoundException;
 import javax.management.modelmbean.InvalidTargetObjectTypeException;
 
+import org.jboss.mx.capability.MethodAccessor;
 import org.jboss.mx.modelmbean.ModelMBeanConstants;
 import org.jboss.mx.server.Invocation;
 import org.jboss.mx.server.MBeanInvoker;
@@ -44,6 +45,8 @@ public class AttributeDispatcher
 {
    private Method getter;
    private Method setter;
+   private MethodAccessor getterAccessor;
+   private MethodAccessor setterAccessor;
 
    public AttributeDispatcher(Method getter, Method setter, boolean dynamic)
    {
@@ -52,6 +55,17 @@ public class AttributeDispatcher
       this.getter = getter;
       this.setter = setter;
    }
+
+   /** Create a dispatcher that invokes the getter and setter through
+    * generated accessors where they are not null.
+    */
+   public AttributeDispatcher(Method getter, Method setter,
+      MethodAccessor getterAccessor, MethodAccessor setterAccessor, boolean dynamic)
+   {
+      this(getter, setter, dynamic);
+      this.getterAccessor = getterAccessor;
+      this.setterAccessor = setterAccessor;
+   }
    
    /** Dispatch the attribute set or get. A get is identified by a dispatch
     * with a null args value.
@@ -96,7 +110,10 @@ public class AttributeDispatcher
             throw new MBeanException(new ServiceNotFoundException("No Target"));
          try
          {
-            value = getMethod.invoke(target, args);
+            if (getterAccessor != null && getMethod == getter)
+               value = getterAccessor.invoke(target, args);
+            else
+               value = getMethod.invoke(target, args);
          }
          catch (Throwable t)
          {
@@ -133,7 +150,10 @@ public class AttributeDispatcher
             throw new MBeanException(new ServiceNotFoundException("No Target"));
          try
          {
-            value = setMethod.invoke(target, args);
+            if (setterAccessor != null && setMethod == setter)
+               value = setterAccessor.invoke(target, args);
+            else
+               value = setMethod.invoke(target, args);
          }
          catch (Throwable t)
          {
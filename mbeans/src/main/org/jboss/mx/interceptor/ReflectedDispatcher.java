@@ -32,6 +32,7 @@ import javax.management.RuntimeMBeanException;
 import javax.management.RuntimeOperationsException;
 import javax.management.modelmbean.InvalidTargetObjectTypeException;
 
+import org.jboss.mx.capability.MethodAccessor;
 import org.jboss.mx.modelmbean.ModelMBeanConstants;
 import org.jboss.mx.server.Invocation;
 
@@ -51,6 +52,9 @@ public class ReflectedDispatcher extends AbstractInterceptor
    
    protected Method method = null;
    
+   /** The generated accessor for the method, or null to use reflection */
+   protected MethodAccessor accessor = null;
+   
    protected boolean dynamic;
    
    // Constructors --------------------------------------------------
@@ -71,6 +75,12 @@ public class ReflectedDispatcher extends AbstractInterceptor
       this(dynamic);
       this.method = m;
    }
+   
+   public ReflectedDispatcher(MethodAccessor accessor, boolean dynamic)
+   {
+      this(accessor.getMethod(), dynamic);
+      this.accessor = accessor;
+   }
   
    // Dispatcher implementation -------------------------------------
    
@@ -154,6 +164,8 @@ public class ReflectedDispatcher extends AbstractInterceptor
       try
       {
          Object[] args = invocation.getArgs();
+         if (accessor != null && invokeMethod == method)
+            return accessor.invoke(target, args);
          return invokeMethod.invoke(target, args);
       }
       catch (NullPointerException e)
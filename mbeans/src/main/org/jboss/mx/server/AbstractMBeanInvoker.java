@@ -57,6 +57,7 @@ import javax.management.modelmbean.ModelMBeanInfo;
 import javax.management.modelmbean.ModelMBeanInfoSupport;
 
 import org.jboss.logging.Logger;
+import org.jboss.mx.capability.MethodAccessor;
 import org.jboss.mx.interceptor.AttributeDispatcher;
 import org.jboss.mx.interceptor.Interceptor;
 import org.jboss.mx.interceptor.ReflectedDispatcher;
@@ -64,6 +65,7 @@ import org.jboss.mx.metadata.StandardMetaData;
 import org.jboss.mx.modelmbean.ModelMBeanConstants;
 import org.jboss.mx.server.InvocationContext.NullDispatcher;
 import org.jboss.mx.server.registry.MBeanEntry;
+import org.jboss.mx.util.PropertyAccess;
 import org.jboss.util.Strings;
 
 /**
@@ -104,7 +106,7 @@ public abstract class AbstractMBeanInvoker
    protected MBeanInfo info = null;
 
    protected Map attributeContextMap = new HashMap();
-   protected Map operationContextMap = new HashMap();
+   protected Map operationContextMap = new OperationMap();
    protected Map constructorContextMap = new HashMap();
 
    protected InvocationContext getMBeanInfoCtx = null;
@@ -205,8 +207,11 @@ public abstract class AbstractMBeanInvoker
       }
       
       // get the server side invocation context
-      OperationKey key = new OperationKey(opName, signature);
-      InvocationContext ctx = (InvocationContext) operationContextMap.get(key);
+      InvocationContext ctx = null;
+      if (operationContextMap instanceof OperationMap)
+         ctx = ((OperationMap) operationContextMap).lookup(opName, signature);
+      else
+         ctx = (InvocationContext) operationContextMap.get(new OperationKey(opName, signature));
 
       // if the server does not contain this context, we do not have the operation
       if (ctx == null)
@@ -1075,6 +1080,10 @@ public abstract class AbstractMBeanInvoker
       if (trace)
          log.trace(getObjectName() + " " + clazz + " map=" + mmap);
       
+      // generate bytecode accessors for the resource methods if enabled
+      boolean optimize = clazz != null && Boolean.valueOf(PropertyAccess.getProperty(
+         ServerConstants.OPTIMIZE_REFLECTED_DISPATCHER, "false")).booleanValue();
+      
       MBeanOperationInfo[] operations = info.getOperations();
       
       // Set the dispatchers for the operations
@@ -1113,7 +1122,11 @@ public abstract class AbstractMBeanInvoker
             {
                // operation found on the resource
                target = resource;
-               dispatcher = new ReflectedDispatcher(m, dynamicResource);
+               MethodAccessor accessor = optimize ? MethodAccessor.create(clazz, m) : null;
+               if (accessor != null)
+                  dispatcher = new ReflectedDispatcher(accessor, dynamicResource);
+               else
+                  dispatcher = new ReflectedDispatcher(m, dynamicResource);
             }
             if (trace)
                log.trace(getObjectName() + " will dispatch op=" + opKey + 
@@ -1134,7 +1147,14 @@ public abstract class AbstractMBeanInvoker
 
          Method getter = mmap.lookupGetter(attribute);
          Method setter = mmap.lookupSetter(attribute);
-         ctx.setDispatcher(new AttributeDispatcher(getter, setter, dynamicResource));
+         if (optimize && (getter != null || setter != null))
+         {
+            MethodAccessor getterAccessor = getter != null ? MethodAccessor.create(clazz, getter) : null;
+            MethodAccessor setterAccessor = setter != null ? MethodAccessor.create(clazz, setter) : null;
+            ctx.setDispatcher(new AttributeDispatcher(getter, setter, getterAccessor, setterAccessor, dynamicResource));
+         }
+         else
+            ctx.setDispatcher(new AttributeDispatcher(getter, setter, dynamicResource));
          ctx.setTarget(resource);
       }
    }
@@ -1171,10 +1191,112 @@ public abstract class AbstractMBeanInvoker
 
 
    // Inner classes -------------------------------------------------
+
+   /**
+    * The operation context map. Alongside the usual OperationKey mapping
+    * it keeps an index of contexts by operation name so invocations can be
+    * resolved against the caller's signature without allocating a key.
+    * The index is rebuilt lazily after the map is modified.
+    */
+   protected final class OperationMap extends HashMap
+   {
+      private static final long serialVersionUID = 4719163728453129207L;
+
+      /** The operations by name, rebuilt by the first lookup after a change.
+       * Changes synchronize with the rebuild so it cannot publish a stale index.
+       */
+      private volatile Map index = null;
+
+      public synchronized Object put(Object key, Object value)
+      {
+         index = null;
+         return super.put(key, value);
+      }
+
+      public synchronized void putAll(Map map)
+      {
+         index = null;
+         super.putAll(map);
+      }
+
+      public synchronized Object remove(Object key)
+      {
+         index = null;
+         return super.remove(key);
+      }
+
+      public synchronized void clear()
+      {
+         index = null;
+         super.clear();
+      }
+
+      /**
+       * Find the context for an operation
+       * 
+       * @param name the operation name
+       * @param signature the signature, null is the same as no parameters
+       * @return the context or null if there is no such operation
+       */
+      public InvocationContext lookup(String name, String[] signature)
+      {
+         Map current = index;
+         if (current == null)
+            current = buildIndex();
+         OperationKey[] keys = (OperationKey[]) current.get(name);
+         if (keys == null)
+            return null;
+         int length = signature == null ? 0 : signature.length;
+         for (int i = 0; i < keys.length; ++i)
+         {
+            if (keys[i].matches(signature, length))
+               return keys[i].context;
+         }
+         return null;
+      }
+
+      private synchronized Map buildIndex()
+      {
+         HashMap lists = new HashMap();
+         for (Iterator i = entrySet().iterator(); i.hasNext();)
+         {
+            Map.Entry entry = (Map.Entry) i.next();
+            OperationKey source = (OperationKey) entry.getKey();
+            OperationKey key = new OperationKey(source.keys);
+            key.context = (InvocationContext) entry.getValue();
+            List list = (List) lists.get(key.keys[0]);
+            if (list == null)
+            {
+               list = new ArrayList();
+               lists.put(key.keys[0], list);
+            }
+            list.add(key);
+         }
+         HashMap result = new HashMap();
+         for (Iterator i = lists.entrySet().iterator(); i.hasNext();)
+         {
+            Map.Entry entry = (Map.Entry) i.next();
+            List list = (List) entry.getValue();
+            result.put(entry.getKey(), list.toArray(new OperationKey[list.size()]));
+         }
+         index = result;
+         return result;
+      }
+   }
+
    protected final class OperationKey
    {
       String[] keys = null;
       int hash = 0;
+      
+      /** The context this key maps to, only set on OperationMap index entries */
+      InvocationContext context = null;
+      
+      OperationKey(final String[] keys)
+      {
+         this.keys = keys;
+         this.hash = keys[0].hashCode();
+      }
 
       public OperationKey(final String name, final String type)
       {
@@ -1237,6 +1359,21 @@ public abstract class AbstractMBeanInvoker
          this(info.getName(), info.getSignature());
       }
 
+      /**
+       * Whether the parameter types of this key are the given signature
+       */
+      boolean matches(String[] signature, int length)
+      {
+         if (keys.length != length + 1)
+            return false;
+         for (int i = 0; i < length; ++i)
+         {
+            if (keys[i + 1].equals(signature[i]) == false)
+               return false;
+         }
+         return true;
+      }
+
       public int hashCode()
       {
          return hash;
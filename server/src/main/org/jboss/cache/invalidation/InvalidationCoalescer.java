@@ -0,0 +1,343 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.cache.invalidation;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Coalesces invalidations over a short window before handing them over to a
+ * {@link Sink} in one batch.
+ *
+ * Keys are grouped by InvalidationGroup and deduplicated. An invalidateAll for
+ * a group supersedes the keys of that group pending in the same window. The
+ * window is flushed once it expires or once the number of pending keys
+ * reaches the maximum batch size. With a window of 0 every submission is
+ * handed over immediately.
+ *
+ * @see BatchInvalidation
+ * @version $Revision: 81030 $
+ */
+public class InvalidationCoalescer
+{
+   private static final Logger log = Logger.getLogger(InvalidationCoalescer.class);
+
+   /**
+    * The receiver of the coalesced invalidations.
+    */
+   public static interface Sink
+   {
+      /**
+       * Send a batch of key invalidations, one BatchInvalidation per group.
+       */
+      void sendBatch(BatchInvalidation[] invalidations);
+
+      /**
+       * Send an invalidateAll for a group.
+       */
+      void sendInvalidateAll(String groupName);
+   }
+
+   private final Sink sink;
+   private final String name;
+   private long window;
+   private int maxBatchSize;
+
+   private ScheduledExecutorService timer;
+
+   /** Map<String, Set<Serializable>> of the pending keys by group name */
+   private Map pending = new HashMap();
+   /** The groups with a pending invalidateAll */
+   private Set pendingAll = new HashSet();
+   private int pendingKeys;
+   private boolean flushScheduled;
+
+   private long submissions;
+   private long submittedKeys;
+   private long sentMessages;
+   private long sentKeys;
+
+   /**
+    * Create a coalescer.
+    *
+    * @param sink the receiver of the batches
+    * @param name the name of the flusher thread
+    * @param window the coalescing window in milliseconds
+    * @param maxBatchSize the number of pending keys that triggers a flush
+    */
+   public InvalidationCoalescer(Sink sink, String name, long window, int maxBatchSize)
+   {
+      this.sink = sink;
+      this.name = name;
+      this.window = window;
+      this.maxBatchSize = maxBatchSize;
+   }
+
+   public synchronized void start()
+   {
+      if (timer != null)
+         return;
+      timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+      {
+         public Thread newThread(Runnable r)
+         {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   /**
+    * Flush what is pending and stop the flusher thread.
+    */
+   public void stop()
+   {
+      ScheduledExecutorService oldTimer;
+      synchronized (this)
+      {
+         oldTimer = timer;
+         timer = null;
+      }
+      flush();
+      if (oldTimer != null)
+         oldTimer.shutdownNow();
+   }
+
+   /**
+    * Submit keys to invalidate.
+    */
+   public void invalidate(String groupName, Serializable[] keys)
+   {
+      if (keys == null || keys.length == 0)
+         return;
+
+      boolean flushNow;
+      synchronized (this)
+      {
+         ++submissions;
+         submittedKeys += keys.length;
+         if (pendingAll.contains(groupName) == false)
+         {
+            Set groupKeys = (Set) pending.get(groupName);
+            if (groupKeys == null)
+            {
+               groupKeys = new LinkedHashSet();
+               pending.put(groupName, groupKeys);
+            }
+            for (int i = 0; i < keys.length; ++i)
+            {
+               if (groupKeys.add(keys[i]))
+                  ++pendingKeys;
+            }
+         }
+         flushNow = scheduleFlush(pendingKeys >= maxBatchSize);
+      }
+      if (flushNow)
+         flush();
+   }
+
+   /**
+    * Submit a batch of invalidations.
+    */
+   public void batchInvalidate(BatchInvalidation[] invalidations)
+   {
+      if (invalidations == null)
+         return;
+      for (int i = 0; i < invalidations.length; ++i)
+         invalidate(invalidations[i].getInvalidationGroupName(), invalidations[i].getIds());
+   }
+
+   /**
+    * Submit an invalidateAll for a group.
+    */
+   public void invalidateAll(String groupName)
+   {
+      boolean flushNow;
+      synchronized (this)
+      {
+         ++submissions;
+         Set groupKeys = (Set) pending.remove(groupName);
+         if (groupKeys != null)
+            pendingKeys -= groupKeys.size();
+         pendingAll.add(groupName);
+         flushNow = scheduleFlush(false);
+      }
+      if (flushNow)
+         flush();
+   }
+
+   /**
+    * Hand everything pending over to the sink.
+    */
+   public void flush()
+   {
+      Map keys;
+      Set all;
+      synchronized (this)
+      {
+         flushScheduled = false;
+         if (pending.isEmpty() && pendingAll.isEmpty())
+            return;
+         keys = pending;
+         all = pendingAll;
+         pending = new HashMap();
+         pendingAll = new HashSet();
+         pendingKeys = 0;
+      }
+
+      int messages = 0;
+      int keyCount = 0;
+      try
+      {
+         for (Iterator i = all.iterator(); i.hasNext();)
+         {
+            sink.sendInvalidateAll((String) i.next());
+            ++messages;
+         }
+
+         if (keys.isEmpty() == false)
+         {
+            BatchInvalidation[] batch = new BatchInvalidation[keys.size()];
+            int n = 0;
+            for (Iterator i = keys.entrySet().iterator(); i.hasNext();)
+            {
+               Map.Entry entry = (Map.Entry) i.next();
+               Set groupKeys = (Set) entry.getValue();
+               keyCount += groupKeys.size();
+               batch[n++] = new BatchInvalidation(
+                  (Serializable[]) groupKeys.toArray(new Serializable[groupKeys.size()]),
+                  (String) entry.getKey());
+            }
+            sink.sendBatch(batch);
+            ++messages;
+         }
+      }
+      catch (RuntimeException e)
+      {
+         log.warn("Failed to send coalesced invalidations", e);
+      }
+      finally
+      {
+         synchronized (this)
+         {
+            sentMessages += messages;
+            sentKeys += keyCount;
+         }
+      }
+   }
+
+   public synchronized long getWindow()
+   {
+      return window;
+   }
+
+   public synchronized void setWindow(long window)
+   {
+      this.window = window;
+   }
+
+   public synchronized int getMaxBatchSize()
+   {
+      return maxBatchSize;
+   }
+
+   public synchronized void setMaxBatchSize(int maxBatchSize)
+   {
+      this.maxBatchSize = maxBatchSize;
+   }
+
+   /**
+    * @return the number of invalidate and invalidateAll submissions
+    */
+   public synchronized long getSubmissions()
+   {
+      return submissions;
+   }
+
+   /**
+    * @return the number of keys submitted
+    */
+   public synchronized long getSubmittedKeys()
+   {
+      return submittedKeys;
+   }
+
+   /**
+    * @return the number of batches and invalidateAll handed to the sink
+    */
+   public synchronized long getSentMessages()
+   {
+      return sentMessages;
+   }
+
+   /**
+    * @return the number of keys handed to the sink
+    */
+   public synchronized long getSentKeys()
+   {
+      return sentKeys;
+   }
+
+   public synchronized void resetStatistics()
+   {
+      submissions = 0;
+      submittedKeys = 0;
+      sentMessages = 0;
+      sentKeys = 0;
+   }
+
+   /**
+    * Arrange for the pending invalidations to be flushed.
+    *
+    * @param full whether the maximum batch size was reached
+    * @return true if the caller must flush right away
+    */
+   private boolean scheduleFlush(boolean full)
+   {
+      if (full || window <= 0 || timer == null)
+         return true;
+      if (flushScheduled == false)
+      {
+         flushScheduled = true;
+         timer.schedule(new Runnable()
+         {
+            public void run()
+            {
+               flush();
+            }
+         }, window, TimeUnit.MILLISECONDS);
+      }
+      return false;
+   }
+}
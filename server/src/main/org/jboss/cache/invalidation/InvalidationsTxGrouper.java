@@ -30,8 +30,8 @@ import java.util.HashMap;
 import javax.transaction.Synchronization;
 
 import java.io.Serializable;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -76,19 +76,23 @@ public class InvalidationsTxGrouper
    public static void registerInvalidationSynchronization(Transaction tx, InvalidationGroup group, Serializable key)
       throws Exception
    {
+      // If there is no tx there is nothing to group with, send right away
+      if( tx == null )
+      {
+         InvalidatorSynchronization synch = new InvalidatorSynchronization(null);
+         synch.addInvalidation(group, key);
+         synch.afterCompletion(javax.transaction.Status.STATUS_NO_TRANSACTION);
+         return;
+      }
+
       InvalidatorSynchronization synch = (InvalidatorSynchronization) synchLocal.get(tx);
       if(synch == null)
       {
          synch = new InvalidatorSynchronization(tx);
          synchLocal.set(tx, synch);
-         // If there is no tx don't try to use it
-         if( tx != null )
          tx.registerSynchronization(synch);
       }
       synch.addInvalidation(group, key);
-      // If there is no tx call afterCompletion
-      if( tx == null )
-         synch.afterCompletion(javax.transaction.Status.STATUS_NO_TRANSACTION);
    }
 }
 
@@ -134,10 +138,10 @@ class InvalidatorSynchronization
       Set relatedInvalidations;
       synchronized(relatedInvalidationMgr)
       {
-         relatedInvalidations = (HashSet) relatedInvalidationMgr.get(group);
+         relatedInvalidations = (Set) relatedInvalidationMgr.get(group);
          if(relatedInvalidations == null)
          {
-            relatedInvalidations = new HashSet();
+            relatedInvalidations = new LinkedHashSet();
             relatedInvalidationMgr.put(group, relatedInvalidations);
          }
       }
@@ -154,6 +158,16 @@ class InvalidatorSynchronization
 
    public void afterCompletion(int status)
    {
+      // Nothing was changed if the transaction rolled back, so the other
+      // caches are still valid
+      if(status == javax.transaction.Status.STATUS_ROLLEDBACK)
+      {
+         if(InvalidationsTxGrouper.log.isTraceEnabled())
+            InvalidationsTxGrouper.log.trace("Discarding invalidations of rolled back tx=" + tx);
+         this.ids = null;
+         return;
+      }
+
       // This is an independent point of entry. We need to make sure the
       // thread is associated with the right context class loader
       //
@@ -202,7 +216,7 @@ class InvalidatorSynchronization
          while(groupsIter.hasNext())
          {
             InvalidationGroup group = (InvalidationGroup) groupsIter.next();
-            HashSet sourceIds = (HashSet) relatedInvalidationMgr.get(group);
+            Set sourceIds = (Set) relatedInvalidationMgr.get(group);
             String groupName = group.getGroupName();
             if(trace)
             {
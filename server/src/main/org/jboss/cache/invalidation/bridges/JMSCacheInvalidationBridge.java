@@ -39,6 +39,7 @@ import javax.naming.NamingException;
 
 import org.jboss.cache.invalidation.BatchInvalidation;
 import org.jboss.cache.invalidation.InvalidationBridgeListener;
+import org.jboss.cache.invalidation.InvalidationCoalescer;
 import org.jboss.cache.invalidation.InvalidationManager;
 import org.jboss.system.ServiceMBeanSupport;
 
@@ -65,6 +66,7 @@ public class JMSCacheInvalidationBridge
    extends ServiceMBeanSupport
    implements JMSCacheInvalidationBridgeMBean, 
               InvalidationBridgeListener,
+              InvalidationCoalescer.Sink,
               MessageListener
 {   
    // Constants -----------------------------------------------------
@@ -96,6 +98,14 @@ public class JMSCacheInvalidationBridge
 
    protected String providerUrl = null;
 
+   protected long batchWindow = 0;
+   protected int maxBatchSize = 1000;
+   protected int compressionThreshold = 0;
+
+   /** Coalesces the outgoing invalidations into batch messages */
+   protected InvalidationCoalescer coalescer = null;
+   protected long compressedMessages = 0;
+
    // Static --------------------------------------------------------
    
    // Constructors --------------------------------------------------
@@ -170,6 +180,96 @@ public class JMSCacheInvalidationBridge
       }
    }
    
+   public long getBatchWindow ()
+   {
+      return this.batchWindow;
+   }
+   public void setBatchWindow (long window)
+   {
+      this.batchWindow = window;
+      InvalidationCoalescer c = this.coalescer;
+      if (c != null)
+         c.setWindow(window);
+   }
+
+   public int getMaxBatchSize ()
+   {
+      return this.maxBatchSize;
+   }
+   public void setMaxBatchSize (int size)
+   {
+      this.maxBatchSize = size;
+      InvalidationCoalescer c = this.coalescer;
+      if (c != null)
+         c.setMaxBatchSize(size);
+   }
+
+   public int getCompressionThreshold ()
+   {
+      return this.compressionThreshold;
+   }
+   public void setCompressionThreshold (int threshold)
+   {
+      this.compressionThreshold = threshold;
+   }
+
+   public long getInvalidationsSubmitted ()
+   {
+      InvalidationCoalescer c = this.coalescer;
+      return c == null ? 0 : c.getSubmissions();
+   }
+
+   public long getKeysSubmitted ()
+   {
+      InvalidationCoalescer c = this.coalescer;
+      return c == null ? 0 : c.getSubmittedKeys();
+   }
+
+   public long getMessagesPublished ()
+   {
+      InvalidationCoalescer c = this.coalescer;
+      return c == null ? 0 : c.getSentMessages();
+   }
+
+   public long getKeysPublished ()
+   {
+      InvalidationCoalescer c = this.coalescer;
+      return c == null ? 0 : c.getSentKeys();
+   }
+
+   public long getMessagesSaved ()
+   {
+      return getInvalidationsSubmitted() - getMessagesPublished();
+   }
+
+   public long getKeysSaved ()
+   {
+      return getKeysSubmitted() - getKeysPublished();
+   }
+
+   public synchronized long getCompressedMessages ()
+   {
+      return this.compressedMessages;
+   }
+
+   public void resetStatistics ()
+   {
+      InvalidationCoalescer c = this.coalescer;
+      if (c != null)
+         c.resetStatistics();
+      synchronized (this)
+      {
+         this.compressedMessages = 0;
+      }
+   }
+
+   public void flush ()
+   {
+      InvalidationCoalescer c = this.coalescer;
+      if (c != null)
+         c.flush();
+   }
+
    public int getPropagationMode ()
    {
       return this.propagationMode;
@@ -227,8 +327,7 @@ public class JMSCacheInvalidationBridge
             this.propagationMode == JMSCacheInvalidationBridgeMBean.OUT_ONLY_BRIDGE_PROPAGATION)
             && this.publishingAuthorized)
       {         
-         JMSCacheInvalidationMessage msg = new JMSCacheInvalidationMessage (this.serviceId, invalidations);
-         this.sendJMSInvalidationEvent (msg);
+         this.coalescer.batchInvalidate (invalidations);
       }
    }
 
@@ -238,11 +337,7 @@ public class JMSCacheInvalidationBridge
             this.propagationMode == JMSCacheInvalidationBridgeMBean.OUT_ONLY_BRIDGE_PROPAGATION)
             && this.publishingAuthorized)
       {         
-         JMSCacheInvalidationMessage msg = new JMSCacheInvalidationMessage (
-                  this.serviceId, 
-                  invalidationGroupName, 
-                  keys);
-         this.sendJMSInvalidationEvent (msg);
+         this.coalescer.invalidate (invalidationGroupName, keys);
       }
    }
 
@@ -252,11 +347,7 @@ public class JMSCacheInvalidationBridge
             this.propagationMode == JMSCacheInvalidationBridgeMBean.OUT_ONLY_BRIDGE_PROPAGATION)
             && this.publishingAuthorized)
       {         
-         JMSCacheInvalidationMessage msg = new JMSCacheInvalidationMessage (
-                  this.serviceId, 
-                  invalidationGroupName, 
-                  new Serializable[] {key} );
-         this.sendJMSInvalidationEvent (msg);
+         this.coalescer.invalidate (invalidationGroupName, new Serializable[] {key});
       }
    }
 
@@ -266,14 +357,32 @@ public class JMSCacheInvalidationBridge
             this.propagationMode == JMSCacheInvalidationBridgeMBean.OUT_ONLY_BRIDGE_PROPAGATION)
             && this.publishingAuthorized)
       {
-         JMSCacheInvalidationMessage msg = new JMSCacheInvalidationMessage(
-                  this.serviceId,
-                  groupName
-         );
-         this.sendJMSInvalidationEvent (msg);
+         this.coalescer.invalidateAll (groupName);
       }
    }
    
+   // InvalidationCoalescer.Sink implementation ----------------------------------------------
+
+   public void sendBatch (BatchInvalidation[] invalidations)
+   {
+      JMSCacheInvalidationMessage msg = new JMSCacheInvalidationMessage (this.serviceId, invalidations);
+      msg.setCompressionThreshold (this.compressionThreshold);
+      if (msg.isCompressed ())
+      {
+         synchronized (this)
+         {
+            ++this.compressedMessages;
+         }
+      }
+      this.sendJMSInvalidationEvent (msg);
+   }
+
+   public void sendInvalidateAll (String groupName)
+   {
+      JMSCacheInvalidationMessage msg = new JMSCacheInvalidationMessage (this.serviceId, groupName);
+      this.sendJMSInvalidationEvent (msg);
+   }
+
    public void newGroupCreated (String groupInvalidationName)
    {
       // we don't manage groups dynamically, so we don't really care...
@@ -326,6 +435,9 @@ public class JMSCacheInvalidationBridge
             this.propagationMode == JMSCacheInvalidationBridgeMBean.OUT_ONLY_BRIDGE_PROPAGATION)
       {
          this.pub = session.createPublisher(topic);
+         this.coalescer = new InvalidationCoalescer (this, "JMSCacheInvalidationBridge flusher " + getServiceName (),
+                                                     this.batchWindow, this.maxBatchSize);
+         this.coalescer.start ();
          this.publishingAuthorized = true;
       }
    }
@@ -345,6 +457,8 @@ public class JMSCacheInvalidationBridge
                this.propagationMode == JMSCacheInvalidationBridgeMBean.OUT_ONLY_BRIDGE_PROPAGATION)
          {
             this.publishingAuthorized = false;
+            // publish what is still pending before closing the publisher
+            this.coalescer.stop ();
             pub.close();
          }
 
@@ -99,5 +99,72 @@ public interface JMSCacheInvalidationBridgeMBean
     */   
    public int getPropagationMode ();
    public void setPropagationMode (int propagationMode);
+
+   /**
+    * Milliseconds during which outgoing invalidations are coalesced into one
+    * message. Keys are deduplicated per group within the window. 0, the
+    * default, publishes the invalidations of each call right away.
+    */
+   public long getBatchWindow ();
+   public void setBatchWindow (long window);
+
+   /**
+    * Number of pending keys that triggers publishing before the window expires
+    */
+   public int getMaxBatchSize ();
+   public void setMaxBatchSize (int size);
+
+   /**
+    * Number of keys from which a message is deflated, 0 (the default) to
+    * never deflate. Nodes without compression support cannot read deflated
+    * messages.
+    */
+   public int getCompressionThreshold ();
+   public void setCompressionThreshold (int threshold);
+
+   /**
+    * Number of invalidation calls received from the InvalidationManager
+    */
+   public long getInvalidationsSubmitted ();
+
+   /**
+    * Number of keys received from the InvalidationManager
+    */
+   public long getKeysSubmitted ();
+
+   /**
+    * Number of messages published on the topic
+    */
+   public long getMessagesPublished ();
+
+   /**
+    * Number of keys published on the topic
+    */
+   public long getKeysPublished ();
+
+   /**
+    * Number of messages saved by coalescing
+    */
+   public long getMessagesSaved ();
+
+   /**
+    * Number of duplicate keys not published
+    */
+   public long getKeysSaved ();
+
+   /**
+    * Number of messages that were deflated
+    */
+   public long getCompressedMessages ();
+
+   /**
+    * Reset the message and key counters
+    */
+   public void resetStatistics ();
+
+   /**
+    * Publish the pending invalidations now
+    */
+   public void flush ();
         
 }
@@ -21,7 +21,18 @@
  */
 package org.jboss.cache.invalidation.bridges;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OptionalDataException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
 import org.jboss.cache.invalidation.BatchInvalidation;
+import org.jboss.invocation.MarshalledValueInputStream;
+import org.jboss.invocation.MarshalledValueOutputStream;
 
 /**
  * <description>
@@ -44,13 +55,20 @@ public class JMSCacheInvalidationMessage
 {
    
    // Constants -----------------------------------------------------
-   
+
+   /** The default serialVersionUID of the fields only version, kept so
+    * that nodes of both versions read each other's messages */
+   private static final long serialVersionUID = -8427738967782529274L;
+
    // Attributes ----------------------------------------------------
    
    protected BatchInvalidation[] bis = null;
    protected java.rmi.dgc.VMID emitter = null;
    protected String invalidateAllGroupName;
 
+   /** The number of keys from which the invalidations are deflated, 0 to never deflate */
+   protected transient int compressionThreshold;
+
    // Static --------------------------------------------------------
    
    // Constructors --------------------------------------------------
@@ -88,6 +106,40 @@ public class JMSCacheInvalidationMessage
       
       return this.bis;
    }
+
+   /**
+    * Set the number of keys from which the invalidations are deflated when
+    * the message is serialized.
+    */
+   public void setCompressionThreshold(int threshold)
+   {
+      this.compressionThreshold = threshold;
+   }
+
+   /**
+    * @return whether the invalidations will be deflated when the message is serialized
+    */
+   public boolean isCompressed()
+   {
+      return compressionThreshold > 0 && getKeyCount() >= compressionThreshold;
+   }
+
+   /**
+    * @return the total number of keys of the invalidations
+    */
+   public int getKeyCount()
+   {
+      int count = 0;
+      if (bis != null)
+      {
+         for (int i = 0; i < bis.length; ++i)
+         {
+            if (bis[i] != null && bis[i].getIds() != null)
+               count += bis[i].getIds().length;
+         }
+      }
+      return count;
+   }
    
    // Z implementation ----------------------------------------------
    
@@ -98,7 +150,59 @@ public class JMSCacheInvalidationMessage
    // Protected -----------------------------------------------------
    
    // Private -------------------------------------------------------
-   
+
+   /**
+    * Writes the default fields. When compressed, bis is written as null and
+    * the deflated invalidations follow as optional data, which only nodes
+    * with this version can read, so compression is off unless configured.
+    */
+   private void writeObject(ObjectOutputStream out) throws IOException
+   {
+      boolean deflate = isCompressed();
+      ObjectOutputStream.PutField fields = out.putFields();
+      fields.put("bis", deflate ? null : bis);
+      fields.put("emitter", emitter);
+      fields.put("invalidateAllGroupName", invalidateAllGroupName);
+      out.writeFields();
+      if (deflate)
+      {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DeflaterOutputStream zip = new DeflaterOutputStream(bytes);
+         ObjectOutputStream oos = new MarshalledValueOutputStream(zip);
+         oos.writeObject(bis);
+         oos.close();
+         out.writeObject(bytes.toByteArray());
+      }
+   }
+
+   private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+   {
+      in.defaultReadObject();
+      // Only a compressed message has neither invalidations nor a group
+      if (bis == null && invalidateAllGroupName == null)
+      {
+         byte[] bytes;
+         try
+         {
+            bytes = (byte[]) in.readObject();
+         }
+         catch (OptionalDataException e)
+         {
+            return;
+         }
+         ObjectInputStream ois = new MarshalledValueInputStream(
+            new InflaterInputStream(new ByteArrayInputStream(bytes)));
+         try
+         {
+            bis = (BatchInvalidation[]) ois.readObject();
+         }
+         finally
+         {
+            ois.close();
+         }
+      }
+   }
+
    // Inner classes -------------------------------------------------
    
 }
@@ -30,11 +30,13 @@ import java.security.Policy;
 import java.security.Principal;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.ejb.EJBException;
 import javax.ejb.EJBObject;
@@ -209,8 +211,11 @@ public abstract class Container extends ServiceMBeanSupport implements Container
    /** ??? */
    protected LocalProxyFactory localProxyFactory = new BaseLocalProxyFactory();
 
-   /** This is a cache for method permissions */
-   private HashMap<Method, Set<Principal>> methodPermissionsCache = new HashMap<Method, Set<Principal>>();
+   /** This is a cache for method permissions not found in the method table */
+   private ConcurrentHashMap<Method, Set<Principal>> methodPermissionsCache = new ConcurrentHashMap<Method, Set<Principal>>();
+
+   /** The per method metadata, built at start */
+   private volatile ContainerMethodTable methodTable = ContainerMethodTable.EMPTY;
 
    /** Maps for MarshalledInvocation mapping */
    protected Map marshalledInvocationMapping = new HashMap();
@@ -239,6 +244,9 @@ public abstract class Container extends ServiceMBeanSupport implements Container
    /** Time statistics for the invoke(Invocation) methods */
    protected InvocationStatistics invokeStats = new InvocationStatistics();
 
+   /** The snapshot taken by the last exportInvocationStatistics(true) */
+   private InvocationStatistics.Snapshot lastExportedStats;
+
    /** The JACC context id for the container */
    protected String jaccContextID;
 
@@ -573,6 +581,30 @@ public abstract class Container extends ServiceMBeanSupport implements Container
       return invokeStats.toDetypedMap();
    }
 
+   /**
+    * Export the invocation statistics as XML including the p50, p99 and p999
+    * latencies (in microseconds) of every method.
+    *
+    * @jmx.managed-operation
+    * @param interval whether to export only the invocations since the previous
+    *    interval export instead of those since the last reset
+    * @return the XML representation of the statistics
+    */
+   public String exportInvocationStatistics(boolean interval)
+   {
+      InvocationStatistics.Snapshot snapshot = invokeStats.snapshot();
+      if (interval == false)
+         return snapshot.toString();
+
+      InvocationStatistics.Snapshot previous;
+      synchronized (this)
+      {
+         previous = lastExportedStats;
+         lastExportedStats = snapshot;
+      }
+      return snapshot.since(previous).toString();
+   }
+
    /**
     * Return the current instance pool associate with this container if
     * supported by the underlying container implementation.
@@ -718,36 +750,131 @@ public abstract class Container extends ServiceMBeanSupport implements Container
     */
    public Set<Principal> getMethodPermissions(Method m, InvocationType iface)
    {
-      Set<Principal> permissions;
+      ContainerMethodTable.Entry entry = methodTable.getEntry(m, iface);
+      if (entry != null)
+         return entry.getPermissions();
+
+      Set<Principal> permissions = methodPermissionsCache.get(m);
+      if (permissions == null)
+      {
+         permissions = Collections.unmodifiableSet(resolveMethodPermissions(m, iface));
+         methodPermissionsCache.put(m, permissions);
+      }
+      return permissions;
+   }
+
+   /**
+    * Returns the permissions for the method of an invocation. (a set of roles)
+    *
+    * @param mi the invocation
+    * @return the set of principals allowed to invoke the method
+    */
+   public Set<Principal> getMethodPermissions(Invocation mi)
+   {
+      ContainerMethodTable.Entry entry = methodTable.getEntry(mi);
+      if (entry != null)
+         return entry.getPermissions();
+      return getMethodPermissions(mi.getMethod(), mi.getType());
+   }
+
+   /**
+    * Returns the transaction attribute for the method of an invocation.
+    *
+    * @param mi the invocation
+    * @return one of the MetaData.TX_XXX constants
+    */
+   public byte getTransactionMethod(Invocation mi)
+   {
+      ContainerMethodTable.Entry entry = methodTable.getEntry(mi);
+      if (entry != null && entry.getTransactionType() != ContainerMethodTable.TX_UNRESOLVED)
+         return entry.getTransactionType();
+      return getBeanMetaData().getTransactionMethod(mi.getMethod(), mi.getType());
+   }
 
-      if (methodPermissionsCache.containsKey(m))
+   /**
+    * Resolve the method of a marshalled invocation from its hash through the
+    * method table, which also caches the entry index in the invocation.
+    * Methods outside the table are resolved through the
+    * marshalledInvocationMapping.
+    *
+    * @param mi the invocation
+    * @param type the invocation type
+    */
+   protected void resolveMarshalledMethod(MarshalledInvocation mi, InvocationType type)
+   {
+      mi.setMethodMap(marshalledInvocationMapping);
+      long hash = mi.getMethodHash();
+      if (hash == 0)
+         return;
+      ContainerMethodTable.Entry entry = methodTable.getEntry(hash, type);
+      if (entry != null)
       {
-         permissions = (Set)methodPermissionsCache.get(m);
+         mi.setMethod(entry.getMethod());
+         mi.setMethodIndex(entry.getId());
       }
-      else if (m.equals(EJB_TIMEOUT))
+   }
+
+   /**
+    * Returns the table of per method metadata built when the container started.
+    *
+    * @return the method table
+    */
+   public ContainerMethodTable getMethodTable()
+   {
+      return methodTable;
+   }
+
+   private Set<Principal> resolveMethodPermissions(Method m, InvocationType iface)
+   {
+      Set<Principal> permissions = new HashSet<Principal>();
+      if (m.equals(EJB_TIMEOUT))
       {
          // No role is required to access the ejbTimeout as this is
-         permissions = new HashSet<Principal>();
          permissions.add(AnybodyPrincipal.ANYBODY_PRINCIPAL);
-         methodPermissionsCache.put(m, permissions);
       }
       else
       {
          String name = m.getName();
          Class[] sig = m.getParameterTypes();
          Set<String> roles = getBeanMetaData().getMethodPermissions(name, sig, iface);
-         permissions = new HashSet<Principal>();
          if (roles != null)
          {
             for (String role : roles)
                permissions.add(new SimplePrincipal(role));
          }
-         methodPermissionsCache.put(m, permissions);
       }
-
       return permissions;
    }
 
+   /**
+    * Build the method table from the home and component interfaces.
+    */
+   protected ContainerMethodTable createMethodTable()
+   {
+      ContainerMethodTable.Builder builder = new ContainerMethodTable.Builder();
+      addMethods(builder, remoteInterface, InvocationType.REMOTE);
+      addMethods(builder, localInterface, InvocationType.LOCAL);
+      addMethods(builder, homeInterface, InvocationType.HOME);
+      addMethods(builder, localHomeInterface, InvocationType.LOCALHOME);
+      return builder.build();
+   }
+
+   private void addMethods(ContainerMethodTable.Builder builder, Class iface, InvocationType type)
+   {
+      if (iface == null)
+         return;
+      boolean cmt = getBeanMetaData().isContainerManagedTx();
+      Method[] methods = iface.getMethods();
+      for (int i = 0; i < methods.length; ++i)
+      {
+         Method m = methods[i];
+         byte txType = ContainerMethodTable.TX_UNRESOLVED;
+         if (cmt)
+            txType = getBeanMetaData().getTransactionMethod(m, type);
+         builder.add(m, type, resolveMethodPermissions(m, type), txType, MarshalledInvocation.calculateHash(m));
+      }
+   }
+
    /**
     * Returns the bean class instance of this container.
     *
@@ -963,6 +1090,10 @@ public abstract class Container extends ServiceMBeanSupport implements Container
       // Setup "java:comp/env" namespace
       setupEnvironment();
 
+      methodTable = createMethodTable();
+      if (log.isDebugEnabled())
+         log.debug("Created method table with " + methodTable.size() + " entries");
+
       localProxyFactory.start();
    }
 
@@ -995,12 +1126,14 @@ public abstract class Container extends ServiceMBeanSupport implements Container
       localHomeInterface = null;
       localInterface = null;
       methodPermissionsCache.clear();
+      methodTable = ContainerMethodTable.EMPTY;
       // InvocationStatistics holds refs to Methods from
       // application classes, so to avoid a classloader
       // leak, lets not just resetStats() but also replace
       // the object
       invokeStats.resetStats(); // in case someone else has a ref
       invokeStats = new InvocationStatistics();
+      lastExportedStats = null;
       marshalledInvocationMapping.clear();
    }
 
@@ -1038,7 +1171,7 @@ public abstract class Container extends ServiceMBeanSupport implements Container
    public Object invoke(Invocation mi) throws Exception
    {
       ClassLoader callerClassLoader = SecurityActions.getContextClassLoader();
-      long start = System.currentTimeMillis();
+      long start = System.nanoTime();
       Method m = null;
 
       Object type = null;
@@ -1079,7 +1212,7 @@ public abstract class Container extends ServiceMBeanSupport implements Container
          {
             if (mi instanceof MarshalledInvocation)
             {
-               ((MarshalledInvocation)mi).setMethodMap(marshalledInvocationMapping);
+               resolveMarshalledMethod((MarshalledInvocation) mi, mi.getType());
 
                if (log.isTraceEnabled())
                {
@@ -1097,7 +1230,7 @@ public abstract class Container extends ServiceMBeanSupport implements Container
             if (mi instanceof MarshalledInvocation)
             {
 
-               ((MarshalledInvocation)mi).setMethodMap(marshalledInvocationMapping);
+               resolveMarshalledMethod((MarshalledInvocation) mi, mi.getType());
 
                if (log.isTraceEnabled())
                {
@@ -1139,9 +1272,8 @@ public abstract class Container extends ServiceMBeanSupport implements Container
       {
          if (m != null)
          {
-            long end = System.currentTimeMillis();
-            long elapsed = end - start;
-            this.invokeStats.updateStats(m, elapsed);
+            long elapsed = System.nanoTime() - start;
+            this.invokeStats.updateStatsNanos(m, elapsed);
          }
 
          // stat gathering: concurrent calls
@@ -71,6 +71,15 @@ public interface ContainerMBean extends org.jboss.system.ServiceMBean {
    */
   Map<String, Map<String, Long>> getDetypedInvocationStatistics();
 
+  /**
+   * Exports the invocation stats as XML including the p50, p99 and p999
+   * latencies of every method
+   *
+   * @param interval whether to export only the invocations since the previous
+   *    interval export instead of those since the last reset
+   */
+  String exportInvocationStatistics(boolean interval);
+
   /**
    * Get current pool size of the pool associated with this container,
    * also known as the method ready count
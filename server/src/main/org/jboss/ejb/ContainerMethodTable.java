@@ -0,0 +1,278 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb;
+
+import java.lang.reflect.Method;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.invocation.Invocation;
+import org.jboss.invocation.InvocationType;
+
+/**
+ * An immutable table of the per method metadata the interceptors consult on
+ * every invocation (method permissions, transaction attribute and the
+ * marshalled method hash). Marshalled invocations are resolved from their
+ * method hash through the table.
+ *
+ * The table is built once when the container starts. Every entry gets a
+ * dense index that is cached in the {@link Invocation} on its first lookup
+ * so the security and transaction interceptors resolve the entry with a
+ * single array access.
+ *
+ * @version $Revision: 81030 $
+ */
+public final class ContainerMethodTable
+{
+   /** The transaction attribute of an entry that was not resolved at build time */
+   public static final byte TX_UNRESOLVED = -1;
+
+   /** An empty table */
+   public static final ContainerMethodTable EMPTY = new ContainerMethodTable(new Entry[0], new Map[5], new Map[5]);
+
+   /** The entries indexed by their id */
+   private final Entry[] entries;
+
+   /** Method to entry maps indexed by invocation type */
+   private final Map[] byType;
+
+   /** Marshalled method hash to entry maps indexed by invocation type */
+   private final Map[] byHash;
+
+   private ContainerMethodTable(Entry[] entries, Map[] byType, Map[] byHash)
+   {
+      this.entries = entries;
+      this.byType = byType;
+      this.byHash = byHash;
+   }
+
+   /**
+    * @return the number of entries
+    */
+   public int size()
+   {
+      return entries.length;
+   }
+
+   /**
+    * Get an entry by its id.
+    *
+    * @param id the entry id
+    * @return the entry or null if the id is out of range
+    */
+   public Entry getEntry(int id)
+   {
+      if (id < 0 || id >= entries.length)
+         return null;
+      return entries[id];
+   }
+
+   /**
+    * Find the entry of a method invoked through an interface type.
+    *
+    * @param m the method
+    * @param type the invocation type
+    * @return the entry or null if the method is not in the table
+    */
+   public Entry getEntry(Method m, InvocationType type)
+   {
+      Map map = byType[typeIndex(type)];
+      if (map == null || m == null)
+         return null;
+      return (Entry) map.get(m);
+   }
+
+   /**
+    * Find the entry of a marshalled invocation from its method hash.
+    *
+    * @param hash the marshalled method hash
+    * @param type the invocation type
+    * @return the entry or null if no method of the type has the hash
+    */
+   public Entry getEntry(long hash, InvocationType type)
+   {
+      Map map = byHash[typeIndex(type)];
+      if (map == null)
+         return null;
+      return (Entry) map.get(new Long(hash));
+   }
+
+   /**
+    * Find the entry of an invocation. The id of the entry is remembered in
+    * the invocation so that subsequent lookups are an array access.
+    *
+    * @param mi the invocation
+    * @return the entry or null if the invoked method is not in the table
+    */
+   public Entry getEntry(Invocation mi)
+   {
+      Method m = mi.getMethod();
+      InvocationType type = mi.getType();
+      int id = mi.getMethodIndex();
+      if (id >= 0 && id < entries.length)
+      {
+         Entry entry = entries[id];
+         // the index may have been assigned by another container, the
+         // invocation method is usually a different instance of the method
+         if (entry.type == type && (entry.method == m || entry.method.equals(m)))
+            return entry;
+      }
+      Entry entry = getEntry(m, type);
+      if (entry != null)
+         mi.setMethodIndex(entry.id);
+      return entry;
+   }
+
+   private static int typeIndex(InvocationType type)
+   {
+      if (type == InvocationType.REMOTE)
+         return 0;
+      if (type == InvocationType.LOCAL)
+         return 1;
+      if (type == InvocationType.HOME)
+         return 2;
+      if (type == InvocationType.LOCALHOME)
+         return 3;
+      return 4;
+   }
+
+   /**
+    * The metadata of a single method.
+    */
+   public static final class Entry
+   {
+      private final int id;
+      private final Method method;
+      private final InvocationType type;
+      private final Set<Principal> permissions;
+      private final byte transactionType;
+      private final long hash;
+
+      Entry(int id, Method method, InvocationType type, Set<Principal> permissions, byte transactionType, long hash)
+      {
+         this.id = id;
+         this.method = method;
+         this.type = type;
+         this.permissions = permissions;
+         this.transactionType = transactionType;
+         this.hash = hash;
+      }
+
+      public int getId()
+      {
+         return id;
+      }
+
+      public Method getMethod()
+      {
+         return method;
+      }
+
+      public InvocationType getType()
+      {
+         return type;
+      }
+
+      /**
+       * @return the unmodifiable set of principals allowed to invoke the method
+       */
+      public Set<Principal> getPermissions()
+      {
+         return permissions;
+      }
+
+      /**
+       * @return the transaction attribute or {@link ContainerMethodTable#TX_UNRESOLVED}
+       */
+      public byte getTransactionType()
+      {
+         return transactionType;
+      }
+
+      /**
+       * @return the marshalled invocation hash of the method
+       */
+      public long getHash()
+      {
+         return hash;
+      }
+
+      public String toString()
+      {
+         return "Entry[" + id + ", " + type + ", " + method + "]";
+      }
+   }
+
+   /**
+    * Collects the entries of a table.
+    */
+   public static class Builder
+   {
+      private final List entries = new ArrayList();
+      private final Map[] byType = new Map[5];
+      private final Map[] byHash = new Map[5];
+
+      /**
+       * Add a method unless it is already present for the type.
+       *
+       * @return the entry for the method
+       */
+      public Entry add(Method m, InvocationType type, Set<Principal> permissions, byte transactionType, long hash)
+      {
+         int index = typeIndex(type);
+         Map map = byType[index];
+         if (map == null)
+         {
+            map = new HashMap();
+            byType[index] = map;
+         }
+         Entry entry = (Entry) map.get(m);
+         if (entry == null)
+         {
+            entry = new Entry(entries.size(), m, type, Collections.unmodifiableSet(permissions), transactionType, hash);
+            entries.add(entry);
+            map.put(m, entry);
+            Map hashes = byHash[index];
+            if (hashes == null)
+            {
+               hashes = new HashMap();
+               byHash[index] = hashes;
+            }
+            Long key = new Long(hash);
+            if (hashes.containsKey(key) == false)
+               hashes.put(key, entry);
+         }
+         return entry;
+      }
+
+      public ContainerMethodTable build()
+      {
+         Entry[] array = (Entry[]) entries.toArray(new Entry[entries.size()]);
+         return new ContainerMethodTable(array, (Map[]) byType.clone(), (Map[]) byHash.clone());
+      }
+   }
+}
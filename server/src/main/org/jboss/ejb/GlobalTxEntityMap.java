@@ -97,6 +97,27 @@ public class GlobalTxEntityMap
          throws Exception;
    }
 
+   /**
+    * Work a persistence manager defers while the instances of the transaction
+    * are being synchronized, e.g. a JDBC batch of updates. Deferred work is
+    * flushed once all the instances have been synchronized and before
+    * the synchronization returns to the caller.
+    */
+   public static interface TxFlush
+   {
+      /**
+       * Executes the deferred work.
+       * @throws Exception  thrown if the work failed, the transaction is marked for rollback
+       */
+      void flush() throws Exception;
+
+      /**
+       * Discards the deferred work, called at the end of every synchronization
+       * so that work left over by a failed synchronization is not kept.
+       */
+      void reset();
+   }
+
    public static final TxAssociation NONE = new TxAssociation()
    {
       public void scheduleSync(Transaction tx, EntityEnterpriseContext instance)
@@ -290,6 +311,7 @@ public class GlobalTxEntityMap
       private boolean synchronizing;
 
       private List<Synchronization> otherSync = Collections.emptyList();
+      private List<TxFlush> flushes = Collections.emptyList();
       private Map<Object, Object> txLocals = Collections.emptyMap();
 
       public GlobalTxSynchronization(Transaction tx)
@@ -309,6 +331,32 @@ public class GlobalTxEntityMap
          }
       }
       
+      /**
+       * Registers work to be flushed at the end of the current synchronization.
+       * Must only be called while the instances are being synchronized.
+       */
+      public void addFlush(TxFlush flush)
+      {
+         if(!synchronizing)
+         {
+            throw new IllegalStateException("Flushes can only be added during synchronization.");
+         }
+
+         if(flushes.isEmpty())
+            flushes = Collections.singletonList(flush);
+         else
+         {
+            if(flushes.size() == 1)
+               flushes = new ArrayList<TxFlush>(flushes);
+            flushes.add(flush);
+         }
+      }
+
+      public boolean isSynchronizing()
+      {
+         return synchronizing;
+      }
+
       public void putTxLocal(Object key, Object value)
       {
          if(txLocals.isEmpty())
@@ -374,6 +422,17 @@ public class GlobalTxEntityMap
                instance = (EntityEnterpriseContext) instances.get(i);
                instance.getTxAssociation().synchronize(currentThread, tx, instance);
             }
+
+            // the stores deferred by the persistence managers
+            instance = null;
+            for(int i = 0; i < flushes.size(); i++)
+            {
+               if(tx.getStatus() == Status.STATUS_MARKED_ROLLBACK)
+               {
+                  return;
+               }
+               flushes.get(i).flush();
+            }
          }
          catch(Exception causeByException)
          {
@@ -407,6 +466,13 @@ public class GlobalTxEntityMap
          finally
          {
             SecurityActions.setContextClassLoader(oldCl);
+            // nothing is left queued if the synchronization failed or returned
+            // early, so the next synchronization registers its flushes again
+            for(int i = 0; i < flushes.size(); i++)
+            {
+               flushes.get(i).reset();
+            }
+            flushes = Collections.emptyList();
             synchronizing = false;
          }
       }
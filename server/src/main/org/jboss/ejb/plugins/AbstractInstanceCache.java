@@ -71,6 +71,8 @@ public abstract class AbstractInstanceCache
    private CachePolicy m_cache;
    /* The mutex object for the cache */
    private final Object m_cacheLock = new Object();
+   /* Whether the policy can be read without holding the cache lock */
+   private boolean m_concurrentCache;
 
    // Static --------------------------------------------------------
 
@@ -110,6 +112,14 @@ public abstract class AbstractInstanceCache
 
       EnterpriseContext ctx;
 
+      // Lock free hit for the policies that support it
+      if (m_concurrentCache)
+      {
+         ctx = (EnterpriseContext)getCache().get(id);
+         if (ctx != null)
+            return ctx;
+      }
+
       synchronized (getCacheLock())
       {
          CachePolicy cache = getCache();
@@ -277,6 +287,8 @@ public abstract class AbstractInstanceCache
    public boolean isActive(Object id)
    {
       // Check whether an object with the given id is available in the cache
+      if (m_concurrentCache)
+         return getCache().peek(id) != null;
       synchronized (getCacheLock())
       {
          return getCache().peek(id) != null;
@@ -330,6 +342,7 @@ public abstract class AbstractInstanceCache
          Class cls = SecurityActions.getContextClassLoader().loadClass(p);
          Constructor ctor = cls.getConstructor(new Class[] {AbstractInstanceCache.class});
          m_cache = (CachePolicy)ctor.newInstance(new Object[] {this});
+         m_concurrentCache = m_cache instanceof ConcurrentCachePolicy;
       }
       catch (Exception x)
       {
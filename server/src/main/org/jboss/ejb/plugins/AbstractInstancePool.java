@@ -67,7 +67,7 @@ public abstract class AbstractInstancePool
    private FIFOSemaphore strictMaxSize;
    /** The time in milliseconds to wait for the strictMaxSize semaphore.
     */
-   private long strictTimeout = Long.MAX_VALUE;
+   protected long strictTimeout = Long.MAX_VALUE;
    /** The Container the instance pool is associated with */
    protected Container container;
    /** The pool data structure */
@@ -0,0 +1,423 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb.plugins;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ejb.CreateException;
+import javax.ejb.EJBException;
+
+import org.jboss.deployment.DeploymentException;
+import org.jboss.ejb.EnterpriseContext;
+import org.jboss.metadata.MetaData;
+import org.w3c.dom.Element;
+
+/**
+ * An instance pool that spreads the free instances over a number of
+ * lock-free stripes instead of a single synchronized list.
+ *
+ * A thread first looks into the stripe selected by its thread id and only
+ * steals from the other stripes when its own is empty, so under load
+ * concurrent get()/free() calls rarely touch the same queue. The overall
+ * MaximumSize is enforced with an atomic counter and strictMaximumSize is
+ * enforced with a fair java.util.concurrent semaphore.
+ *
+ * In addition to the AbstractInstancePool settings the container-pool-conf
+ * accepts an optional &lt;Stripes&gt; element, which defaults to the number of
+ * available processors rounded up to a power of two.
+ *
+ * @version $Revision: 81030 $
+ */
+public abstract class AbstractStripedInstancePool
+   extends AbstractInstancePool
+   implements AbstractStripedInstancePoolMBean
+{
+   // Attributes ----------------------------------------------------
+   /** The free instances, one queue per stripe */
+   private ConcurrentLinkedQueue[] stripes;
+   /** stripes.length - 1, the stripe count is always a power of two */
+   private int stripeMask;
+   /** The requested number of stripes, 0 means derive from the cpu count */
+   private int stripeCount = 0;
+   /** The number of instances currently held in all stripes */
+   private final AtomicInteger pooled = new AtomicInteger();
+   /** The semaphore used when strictMaximumSize is in effect */
+   private Semaphore strictMaxSize;
+
+   /** Instances taken from a stripe other than the caller's own */
+   private final AtomicLong stolenCount = new AtomicLong();
+   /** Instances created because all the stripes were empty */
+   private final AtomicLong createdCount = new AtomicLong();
+   /** Instances discarded because the pool was already full */
+   private final AtomicLong overflowCount = new AtomicLong();
+   /** get() calls that had to wait for the strict max semaphore */
+   private final AtomicLong strictWaitCount = new AtomicLong();
+   /** Total time spent waiting for the strict max semaphore */
+   private final AtomicLong strictWaitTime = new AtomicLong();
+   /** get() calls that timed out on the strict max semaphore */
+   private final AtomicLong strictTimeoutCount = new AtomicLong();
+
+   // Public --------------------------------------------------------
+
+   /**
+    * @jmx:managed-attribute
+    * @return the current pool size
+    */
+   public int getCurrentSize()
+   {
+      return pooled.get();
+   }
+
+   /**
+    * @jmx:managed-attribute
+    * @return the current available count from the strict max view
+    */
+   public long getAvailableCount()
+   {
+      Semaphore semaphore = strictMaxSize;
+      if (semaphore == null)
+         return Long.MAX_VALUE;
+      return semaphore.availablePermits();
+   }
+
+   /**
+    * @jmx:managed-attribute
+    * @return the number of stripes
+    */
+   public int getStripes()
+   {
+      return stripes == null ? stripeCount : stripes.length;
+   }
+
+   /**
+    * @jmx:managed-attribute
+    * @return the number of instances taken from another thread's stripe
+    */
+   public long getStolenCount()
+   {
+      return stolenCount.get();
+   }
+
+   /**
+    * @jmx:managed-attribute
+    * @return the number of instances created because the pool was empty
+    */
+   public long getCreatedCount()
+   {
+      return createdCount.get();
+   }
+
+   /**
+    * @jmx:managed-attribute
+    * @return the number of freed instances discarded because the pool was full
+    */
+   public long getOverflowCount()
+   {
+      return overflowCount.get();
+   }
+
+   /**
+    * @jmx:managed-attribute
+    * @return the number of get() calls that blocked on the strict max semaphore
+    */
+   public long getStrictWaitCount()
+   {
+      return strictWaitCount.get();
+   }
+
+   /**
+    * @jmx:managed-attribute
+    * @return the total time in milliseconds spent blocked on the strict max semaphore
+    */
+   public long getStrictWaitTime()
+   {
+      return strictWaitTime.get();
+   }
+
+   /**
+    * @jmx:managed-attribute
+    * @return the number of get() calls that timed out on the strict max semaphore
+    */
+   public long getStrictTimeoutCount()
+   {
+      return strictTimeoutCount.get();
+   }
+
+   /**
+    * @jmx:managed-operation
+    */
+   public void resetStatistics()
+   {
+      stolenCount.set(0);
+      createdCount.set(0);
+      overflowCount.set(0);
+      strictWaitCount.set(0);
+      strictWaitTime.set(0);
+      strictTimeoutCount.set(0);
+   }
+
+   public EnterpriseContext get()
+      throws Exception
+   {
+      boolean trace = log.isTraceEnabled();
+      if( trace )
+         log.trace("Get instance "+this+"#"+pooled.get()+"#"+getContainer().getBeanClass());
+
+      Semaphore semaphore = strictMaxSize;
+      if( semaphore != null )
+         acquireStrict(semaphore, trace);
+
+      EnterpriseContext ctx = poll();
+      if (ctx != null)
+         return ctx;
+
+      // All the stripes are empty, create an instance
+      try
+      {
+         Object instance = container.createBeanClassInstance();
+         ctx = create(instance);
+         createdCount.incrementAndGet();
+         return ctx;
+      }
+      catch (Throwable e)
+      {
+         // Release the strict max size permit if it exists
+         if( semaphore != null )
+            semaphore.release();
+         // Don't wrap CreateExceptions
+         if( e instanceof CreateException )
+            throw (CreateException) e;
+
+         // Wrap e in an Exception if needed
+         Exception ex = null;
+         if(e instanceof Exception)
+         {
+            ex = (Exception)e;
+         } else
+         {
+            ex = new UndeclaredThrowableException(e);
+         }
+         throw new EJBException("Could not instantiate bean", ex);
+      }
+   }
+
+   public void free(EnterpriseContext ctx)
+   {
+      if( log.isTraceEnabled() )
+      {
+         String msg = pooled.get() + "/" + maxSize+" Free instance:"+this
+            +"#"+ctx.getId()
+            +"#"+ctx.getTransaction()
+            +"#"+reclaim
+            +"#"+getContainer().getBeanClass();
+         log.trace(msg);
+      }
+
+      ctx.clear();
+
+      try
+      {
+         // Reserve a slot first so that concurrent frees can never
+         // push the pool above maxSize
+         if (pooled.incrementAndGet() <= maxSize)
+         {
+            stripes[stripeIndex()].offer(ctx);
+            Semaphore semaphore = strictMaxSize;
+            if( semaphore != null )
+               semaphore.release();
+         }
+         else
+         {
+            pooled.decrementAndGet();
+            overflowCount.incrementAndGet();
+            discard(ctx);
+         }
+      }
+      catch (Exception ignored)
+      {
+      }
+   }
+
+   public void discard(EnterpriseContext ctx)
+   {
+      if( log.isTraceEnabled() )
+      {
+         String msg = "Discard instance:"+this+"#"+ctx
+            +"#"+ctx.getTransaction()
+            +"#"+reclaim
+            +"#"+getContainer().getBeanClass();
+         log.trace(msg);
+      }
+
+      Semaphore semaphore = strictMaxSize;
+      if( semaphore != null )
+         semaphore.release();
+
+      // Throw away, unsetContext()
+      try
+      {
+         ctx.discard();
+      }
+      catch (RemoteException e)
+      {
+         if( log.isTraceEnabled() )
+            log.trace("Ctx.discard error", e);
+      }
+   }
+
+   public void clear()
+   {
+      drainAll();
+   }
+
+   /**
+    * XmlLoadable implementation
+    */
+   public void importXml(Element element) throws DeploymentException
+   {
+      super.importXml(element);
+
+      String stripesValue = MetaData.getElementContent(MetaData.getOptionalChild(element, "Stripes"));
+      try
+      {
+         if( stripesValue != null )
+            this.stripeCount = Integer.parseInt(stripesValue.trim());
+      }
+      catch (NumberFormatException e)
+      {
+         throw new DeploymentException("Invalid Stripes value for instance pool configuration");
+      }
+      if( this.stripeCount < 0 )
+         throw new DeploymentException("Invalid Stripes value for instance pool configuration");
+   }
+
+   // Protected -----------------------------------------------------
+
+   protected void createService() throws Exception
+   {
+      // Do not call super.createService(), we use our own semaphore
+      int count = stripeCount > 0 ? stripeCount : Runtime.getRuntime().availableProcessors();
+      int size = 1;
+      while (size < count)
+         size <<= 1;
+      ConcurrentLinkedQueue[] queues = new ConcurrentLinkedQueue[size];
+      for (int i = 0; i < size; ++i)
+         queues[i] = new ConcurrentLinkedQueue();
+      this.stripes = queues;
+      this.stripeMask = size - 1;
+
+      if( this.isStrict == Boolean.TRUE )
+         this.strictMaxSize = new Semaphore(this.maxSize, true);
+   }
+
+   protected void destroyService() throws Exception
+   {
+      drainAll();
+      this.strictMaxSize = null;
+   }
+
+   // Private -------------------------------------------------------
+
+   private int stripeIndex()
+   {
+      long id = Thread.currentThread().getId();
+      return (int) (id ^ (id >>> 16)) & stripeMask;
+   }
+
+   /**
+    * Take a free instance, trying the caller's own stripe first.
+    *
+    * @return the instance or null when every stripe is empty
+    */
+   private EnterpriseContext poll()
+   {
+      ConcurrentLinkedQueue[] queues = stripes;
+      int home = stripeIndex();
+      for (int i = 0; i < queues.length; ++i)
+      {
+         EnterpriseContext ctx = (EnterpriseContext) queues[(home + i) & stripeMask].poll();
+         if (ctx != null)
+         {
+            pooled.decrementAndGet();
+            if (i != 0)
+               stolenCount.incrementAndGet();
+            return ctx;
+         }
+      }
+      return null;
+   }
+
+   private void acquireStrict(Semaphore semaphore, boolean trace) throws InterruptedException
+   {
+      if (semaphore.tryAcquire())
+         return;
+
+      // Block until an instance is available
+      strictWaitCount.incrementAndGet();
+      long start = System.currentTimeMillis();
+      boolean acquired = semaphore.tryAcquire(strictTimeout, TimeUnit.MILLISECONDS);
+      strictWaitTime.addAndGet(System.currentTimeMillis() - start);
+      if( trace )
+         log.trace("Acquired("+acquired+") strictMaxSize semaphore, remaining="+semaphore.availablePermits());
+      if( acquired == false )
+      {
+         strictTimeoutCount.incrementAndGet();
+         throw new EJBException("Failed to acquire the pool semaphore, strictTimeout="+strictTimeout);
+      }
+   }
+
+   /**
+    * At undeployment we want to free completely the pool.
+    */
+   private void drainAll()
+   {
+      ConcurrentLinkedQueue[] queues = stripes;
+      if (queues == null)
+         return;
+      for (int i = 0; i < queues.length; ++i)
+      {
+         EnterpriseContext ec;
+         while ((ec = (EnterpriseContext) queues[i].poll()) != null)
+         {
+            pooled.decrementAndGet();
+            // Clear TX so that still TX entity pools get killed as well,
+            // pooled instances hold no strict max permit so don't release one
+            ec.clear();
+            try
+            {
+               ec.discard();
+            }
+            catch (RemoteException e)
+            {
+               if( log.isTraceEnabled() )
+                  log.trace("Ctx.discard error", e);
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,573 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb.plugins;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.deployment.DeploymentException;
+import org.jboss.ejb.EnterpriseContext;
+import org.jboss.logging.Logger;
+import org.jboss.metadata.MetaData;
+import org.jboss.metadata.XmlLoadable;
+import org.jboss.monitor.Monitorable;
+import org.jboss.monitor.client.BeanCacheSnapshot;
+import org.w3c.dom.Element;
+
+/**
+ * Segmented CLOCK (second chance) cache policy for EnterpriseContexts.
+ *
+ * Lookups go to a ConcurrentHashMap and only set the entry's reference bit,
+ * so, being a {@link ConcurrentCachePolicy}, cache hits never take the
+ * instance cache lock. Entries are also threaded on one clock ring per
+ * segment; when a segment grows past its share of the capacity the clock
+ * hand sweeps that segment only, giving a second chance to the referenced
+ * entries and passivating the others. The result approximates LRU without
+ * reordering a shared list on every hit.
+ *
+ * The configuration is read from cache-policy-conf, all elements optional:
+ * <ul>
+ * <li>max-capacity - the number of instances kept before passivation, default 1000</li>
+ * <li>segments - the number of clock segments, default 16</li>
+ * <li>overager-period - seconds between runs of the age based passivation</li>
+ * <li>max-bean-age - seconds after which an unused bean is passivated</li>
+ * </ul>
+ * The overager runs on the shared {@link InstanceCacheScheduler}.
+ *
+ * @see AbstractInstanceCache
+ * @version $Revision: 81030 $
+ */
+public class ClockEnterpriseContextCachePolicy
+   implements ConcurrentCachePolicy, XmlLoadable, Monitorable
+{
+   // Constants -----------------------------------------------------
+
+   // Attributes ----------------------------------------------------
+   protected static Logger log = Logger.getLogger(ClockEnterpriseContextCachePolicy.class);
+
+   /** The AbstractInstanceCache that uses this cache policy */
+   private AbstractInstanceCache m_cache;
+
+   /** The maximum number of cached instances */
+   private int m_maxCapacity = 1000;
+
+   /** The requested number of segments */
+   private int m_segmentCount = 16;
+
+   /** The period of the overager's runs */
+   private long m_overagerPeriod;
+
+   /** The age after which a bean is automatically passivated */
+   private long m_maxBeanAge;
+
+   /** The key to entry map */
+   private ConcurrentHashMap m_map;
+
+   /** The clock segments */
+   private Segment[] m_segments;
+
+   /** The number of cached entries */
+   private final AtomicInteger m_size = new AtomicInteger();
+
+   /** The number of cache misses */
+   private final AtomicLong m_misses = new AtomicLong();
+
+   /** The number of entries chosen for passivation by the clock */
+   private final AtomicLong m_evictions = new AtomicLong();
+
+   /** The scheduled overager */
+   private ScheduledFuture m_overager;
+
+   // Constructors --------------------------------------------------
+
+   /**
+    * Creates a CLOCK cache policy object given the instance cache that use
+    * this policy object.
+    */
+   public ClockEnterpriseContextCachePolicy(AbstractInstanceCache eic)
+   {
+      if (eic == null)
+         throw new IllegalArgumentException
+            ("Instance cache argument cannot be null");
+
+      m_cache = eic;
+   }
+
+   // Public --------------------------------------------------------
+
+   /**
+    * @return the number of cache misses
+    */
+   public long getMissCount()
+   {
+      return m_misses.get();
+   }
+
+   /**
+    * @return the number of entries the clock selected for passivation
+    */
+   public long getEvictionCount()
+   {
+      return m_evictions.get();
+   }
+
+   public String toString()
+   {
+      return "ClockEnterpriseContextCachePolicy[size=" + m_size.get() +
+         ", maxCapacity=" + m_maxCapacity +
+         ", segments=" + (m_segments == null ? m_segmentCount : m_segments.length) +
+         ", misses=" + m_misses.get() +
+         ", evictions=" + m_evictions.get() + "]";
+   }
+
+   // Monitorable implementation ------------------------------------
+
+   public void sample(Object s)
+   {
+      BeanCacheSnapshot snapshot = (BeanCacheSnapshot)s;
+      snapshot.m_cacheMinCapacity = m_maxCapacity;
+      snapshot.m_cacheMaxCapacity = m_maxCapacity;
+      snapshot.m_cacheCapacity = m_maxCapacity;
+      snapshot.m_cacheSize = m_size.get();
+   }
+
+   // CachePolicy implementation ------------------------------------
+
+   public void create()
+   {
+      int count = 1;
+      while (count < m_segmentCount)
+         count <<= 1;
+      int capacity = (m_maxCapacity + count - 1) / count;
+      if (capacity < 1)
+         capacity = 1;
+
+      Segment[] segments = new Segment[count];
+      for (int i = 0; i < count; ++i)
+         segments[i] = new Segment(capacity);
+      m_segments = segments;
+      m_map = new ConcurrentHashMap(m_maxCapacity, 0.75f, count);
+   }
+
+   public void start()
+   {
+      if (m_overagerPeriod > 0 && m_maxBeanAge > 0)
+         m_overager = InstanceCacheScheduler.schedule(new OveragerTask(), m_overagerPeriod);
+   }
+
+   public void stop()
+   {
+      InstanceCacheScheduler.cancel(m_overager);
+      m_overager = null;
+      flush();
+   }
+
+   public void destroy()
+   {
+      if (m_map != null)
+         m_map.clear();
+      m_size.set(0);
+   }
+
+   public Object get(Object key)
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Requesting an object using a null key");
+
+      Entry entry = (Entry) m_map.get(key);
+      if (entry == null)
+      {
+         m_misses.incrementAndGet();
+         return null;
+      }
+      entry.m_referenced = true;
+      if (m_maxBeanAge > 0)
+         entry.m_time = System.currentTimeMillis();
+      return entry.m_object;
+   }
+
+   public Object peek(Object key)
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Requesting an object using a null key");
+
+      Entry entry = (Entry) m_map.get(key);
+      return entry == null ? null : entry.m_object;
+   }
+
+   public void insert(Object key, Object object)
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Attempt to put in the cache an object with a null key");
+      if (object == null)
+         throw new IllegalArgumentException("Cannot insert a null object in the cache");
+
+      Entry entry = new Entry(key, object);
+      if (m_map.putIfAbsent(key, entry) != null)
+         throw new IllegalStateException("Attempt to put in the cache an object that is already there");
+      m_size.incrementAndGet();
+
+      Segment segment = segmentFor(key);
+      ArrayList victims;
+      synchronized (segment)
+      {
+         segment.link(entry);
+         victims = segment.sweep();
+      }
+
+      // Passivate outside of the segment lock, release() calls back remove()
+      if (victims != null)
+      {
+         for (int i = 0; i < victims.size(); ++i)
+         {
+            Entry victim = (Entry) victims.get(i);
+            m_evictions.incrementAndGet();
+            try
+            {
+               ageOut(victim);
+            }
+            finally
+            {
+               // A victim still cached is in use, it goes back on the clock
+               synchronized (segment)
+               {
+                  segment.restore(victim);
+               }
+            }
+         }
+      }
+   }
+
+   public void remove(Object key)
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Removing an object using a null key");
+
+      Entry entry = (Entry) m_map.remove(key);
+      if (entry != null)
+      {
+         m_size.decrementAndGet();
+         Segment segment = segmentFor(key);
+         synchronized (segment)
+         {
+            segment.unlink(entry);
+         }
+      }
+   }
+
+   /**
+    * Flush tries to age-out every instance in the cache, the instances
+    * in use are left in the cache and will be passivated later.
+    */
+   public void flush()
+   {
+      if (m_map == null)
+         return;
+      ArrayList entries = new ArrayList(m_map.values());
+      for (int i = 0; i < entries.size(); ++i)
+         ageOut((Entry) entries.get(i));
+   }
+
+   public int size()
+   {
+      return m_size.get();
+   }
+
+   // XmlLoadable implementation ------------------------------------
+
+   /**
+    * Reads the optional parameters for this cache policy.
+    */
+   public void importXml(Element element) throws DeploymentException
+   {
+      String max = MetaData.getElementContent(MetaData.getOptionalChild(element, "max-capacity"));
+      String seg = MetaData.getElementContent(MetaData.getOptionalChild(element, "segments"));
+      String op = MetaData.getElementContent(MetaData.getOptionalChild(element, "overager-period"));
+      String ma = MetaData.getElementContent(MetaData.getOptionalChild(element, "max-bean-age"));
+      try
+      {
+         if (max != null)
+         {
+            int s = Integer.parseInt(max);
+            if (s <= 0) {throw new DeploymentException("Max cache capacity can't be <= 0");}
+            m_maxCapacity = s;
+         }
+         if (seg != null)
+         {
+            int s = Integer.parseInt(seg);
+            if (s <= 0) {throw new DeploymentException("Segments can't be <= 0");}
+            m_segmentCount = s;
+         }
+         if (op != null)
+         {
+            int p = Integer.parseInt(op);
+            if (p <= 0) {throw new DeploymentException("Overager period can't be <= 0");}
+            m_overagerPeriod = p * 1000;
+         }
+         if (ma != null)
+         {
+            int a = Integer.parseInt(ma);
+            if (a <= 0) {throw new DeploymentException("Max bean age can't be <= 0");}
+            m_maxBeanAge = a * 1000;
+         }
+      }
+      catch (NumberFormatException x)
+      {
+         throw new DeploymentException("Can't parse policy configuration", x);
+      }
+   }
+
+   // Protected -----------------------------------------------------
+
+   protected void ageOut(Entry entry)
+   {
+      if( log.isTraceEnabled() )
+      {
+         log.trace("Aging out from cache bean " +
+            m_cache.getContainer().getBeanMetaData().getEjbName() +
+            " with id = " + entry.m_key + "; cache size = " + m_size.get());
+      }
+
+      // This will schedule the passivation
+      m_cache.release((EnterpriseContext) entry.m_object);
+   }
+
+   // Private -------------------------------------------------------
+
+   private Segment segmentFor(Object key)
+   {
+      int h = key.hashCode();
+      h ^= (h >>> 20) ^ (h >>> 12);
+      h ^= (h >>> 7) ^ (h >>> 4);
+      return m_segments[h & (m_segments.length - 1)];
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * A cached context, threaded on its segment's clock ring.
+    */
+   protected static class Entry
+   {
+      final Object m_key;
+      final Object m_object;
+      /** Set on every hit, cleared when the clock hand passes by */
+      volatile boolean m_referenced;
+      /** The last access time, only maintained when max-bean-age is set */
+      volatile long m_time;
+      /** The ring links, guarded by the segment */
+      Entry m_prev;
+      Entry m_next;
+      /** Whether a sweep chose this entry for passivation, guarded by the segment */
+      boolean m_evicting;
+
+      Entry(Object key, Object object)
+      {
+         m_key = key;
+         m_object = object;
+         m_time = System.currentTimeMillis();
+      }
+
+      /**
+       * @return the key of the cached context
+       */
+      public Object getKey()
+      {
+         return m_key;
+      }
+
+      public String toString()
+      {
+         return "Entry[key=" + m_key + "]";
+      }
+   }
+
+   /**
+    * A clock ring, all the methods must be called holding the segment's monitor.
+    */
+   private static class Segment
+   {
+      /** The clock hand, null when the ring is empty */
+      Entry m_hand;
+      /** The number of entries in the ring */
+      int m_count;
+      /** The number of entries chosen by a sweep and not yet passivated */
+      int m_evicting;
+      /** The number of entries this segment holds before sweeping */
+      final int m_capacity;
+
+      Segment(int capacity)
+      {
+         m_capacity = capacity;
+      }
+
+      void link(Entry entry)
+      {
+         if (m_hand == null)
+         {
+            entry.m_next = entry;
+            entry.m_prev = entry;
+            m_hand = entry;
+         }
+         else
+         {
+            // Insert just behind the hand, the last position it will visit
+            entry.m_next = m_hand;
+            entry.m_prev = m_hand.m_prev;
+            m_hand.m_prev.m_next = entry;
+            m_hand.m_prev = entry;
+         }
+         ++m_count;
+      }
+
+      void unlink(Entry entry)
+      {
+         if (entry.m_next == null)
+            return;
+         if (entry.m_next == entry)
+         {
+            m_hand = null;
+         }
+         else
+         {
+            entry.m_prev.m_next = entry.m_next;
+            entry.m_next.m_prev = entry.m_prev;
+            if (m_hand == entry)
+               m_hand = entry.m_next;
+         }
+         entry.m_next = null;
+         entry.m_prev = null;
+         --m_count;
+         restore(entry);
+      }
+
+      /**
+       * Make an entry chosen by a sweep eligible again, once it has been
+       * passivated or when it could not be passivated
+       */
+      void restore(Entry entry)
+      {
+         if (entry.m_evicting)
+         {
+            entry.m_evicting = false;
+            --m_evicting;
+         }
+      }
+
+      /**
+       * Advance the hand until enough unreferenced entries are found to
+       * bring the segment back within its capacity. The victims are flagged
+       * until they are passivated or restored, so concurrent sweeps and the
+       * second turn of the hand never choose the same entry twice.
+       *
+       * @return the distinct entries to passivate or null
+       */
+      ArrayList sweep()
+      {
+         int excess = m_count - m_evicting - m_capacity;
+         if (excess <= 0)
+            return null;
+
+         ArrayList victims = null;
+         // Two full turns are enough: the first clears the reference bits
+         for (int steps = 2 * m_count; excess > 0 && steps > 0; --steps)
+         {
+            Entry entry = m_hand;
+            m_hand = entry.m_next;
+            if (entry.m_evicting)
+            {
+               continue;
+            }
+            else if (entry.m_referenced)
+            {
+               entry.m_referenced = false;
+            }
+            else
+            {
+               if (victims == null)
+                  victims = new ArrayList(excess);
+               entry.m_evicting = true;
+               ++m_evicting;
+               victims.add(entry);
+               --excess;
+            }
+         }
+         return victims;
+      }
+   }
+
+   /**
+    * Passivates cached beans that have not been called for a while.
+    */
+   protected class OveragerTask implements Runnable
+   {
+      public void run()
+      {
+         long now = System.currentTimeMillis();
+         ArrayList passivateEntries = null;
+         Segment[] segments = m_segments;
+         for (int i = 0; i < segments.length; ++i)
+         {
+            Segment segment = segments[i];
+            synchronized (segment)
+            {
+               Entry hand = segment.m_hand;
+               if (hand == null)
+                  continue;
+               Entry entry = hand;
+               do
+               {
+                  if (now - entry.m_time >= m_maxBeanAge)
+                  {
+                     if (passivateEntries == null) passivateEntries = new ArrayList();
+                     passivateEntries.add(entry);
+                  }
+                  entry = entry.m_next;
+               }
+               while (entry != hand);
+            }
+         }
+
+         // We need to do this outside of the segment locks, tryToPassivate
+         // acquires the bean lock and the cache lock
+         if (passivateEntries != null)
+         {
+            for (Iterator i = passivateEntries.iterator(); i.hasNext();)
+            {
+               Entry entry = (Entry) i.next();
+               try
+               {
+                  m_cache.tryToPassivate((EnterpriseContext) entry.m_object);
+               }
+               catch (Throwable t)
+               {
+                  log.debug("Ignored error while trying to passivate ctx", t);
+               }
+            }
+         }
+      }
+   }
+}
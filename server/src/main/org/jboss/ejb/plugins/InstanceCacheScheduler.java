@@ -0,0 +1,149 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb.plugins;
+
+import java.security.AccessController;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.logging.Logger;
+import org.jboss.util.loading.ContextClassLoaderSwitcher;
+
+/**
+ * The scheduler shared by the instance cache policies of all deployed
+ * containers for their periodic resizer, overager and remover work.
+ *
+ * Unlike the single java.util.Timer thread it replaces, the work is spread
+ * over a bounded number of daemon threads, so a slow passivation in one
+ * container does not delay the maintenance of every other container, and a
+ * task that throws only cancels itself instead of the whole timer.
+ *
+ * The number of threads defaults to the number of available processors and
+ * can be set with the <tt>org.jboss.ejb.plugins.InstanceCacheScheduler.threads</tt>
+ * system property.
+ *
+ * @version $Revision: 81030 $
+ */
+public class InstanceCacheScheduler
+{
+   // Constants -----------------------------------------------------
+   public static final String THREADS_PROPERTY = InstanceCacheScheduler.class.getName() + ".threads";
+
+   // Attributes ----------------------------------------------------
+   private static final Logger log = Logger.getLogger(InstanceCacheScheduler.class);
+
+   private static final ScheduledThreadPoolExecutor executor;
+   static
+   {
+      int threads = Runtime.getRuntime().availableProcessors();
+      String value = System.getProperty(THREADS_PROPERTY);
+      if (value != null)
+      {
+         try
+         {
+            threads = Integer.parseInt(value.trim());
+         }
+         catch (NumberFormatException e)
+         {
+            log.warn("Ignoring invalid " + THREADS_PROPERTY + "=" + value);
+         }
+      }
+      if (threads < 1)
+         threads = 1;
+      executor = new ScheduledThreadPoolExecutor(threads, new MaintenanceThreadFactory());
+      log.debug("Instance cache scheduler started, threads=" + threads);
+   }
+
+   // Constructors --------------------------------------------------
+
+   private InstanceCacheScheduler()
+   {
+   }
+
+   // Public --------------------------------------------------------
+
+   /**
+    * Run a task periodically, with a random initial delay so that the tasks
+    * of containers deployed together do not all fire at the same instant.
+    *
+    * @param task the task
+    * @param period the period in milliseconds
+    * @return the future used to cancel the task
+    */
+   public static ScheduledFuture schedule(Runnable task, long period)
+   {
+      long delay = (long) (Math.random() * period);
+      return executor.scheduleAtFixedRate(task, delay, period, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Cancel a task returned by {@link #schedule(Runnable, long)} and
+    * release its slot in the scheduler queue.
+    *
+    * @param future the future, may be null
+    */
+   public static void cancel(ScheduledFuture future)
+   {
+      if (future != null)
+      {
+         future.cancel(false);
+         executor.remove((Runnable) future);
+      }
+   }
+
+   /**
+    * @return the number of tasks currently scheduled
+    */
+   public static int getScheduledTaskCount()
+   {
+      return executor.getQueue().size();
+   }
+
+   // Inner classes -------------------------------------------------
+
+   private static class MaintenanceThreadFactory implements ThreadFactory
+   {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r)
+      {
+         // Don't leak the TCCL to the maintenance threads
+         ContextClassLoaderSwitcher clSwitcher = (ContextClassLoaderSwitcher) AccessController.doPrivileged(ContextClassLoaderSwitcher.INSTANTIATOR);
+         ContextClassLoaderSwitcher.SwitchContext clSwitchContext = null;
+         try
+         {
+            clSwitchContext = clSwitcher.getSwitchContext(InstanceCacheScheduler.class.getClassLoader());
+            Thread t = new Thread(r, "InstanceCacheScheduler-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         }
+         finally
+         {
+            if (clSwitchContext != null)
+               clSwitchContext.reset();
+         }
+      }
+   }
+}
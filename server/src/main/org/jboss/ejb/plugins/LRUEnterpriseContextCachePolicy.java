@@ -25,6 +25,7 @@ import java.security.AccessController;
 import java.util.ArrayList;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
 
 import org.jboss.deployment.DeploymentException;
 import org.jboss.ejb.EnterpriseContext;
@@ -52,6 +53,10 @@ public class LRUEnterpriseContextCachePolicy extends LRUCachePolicy
 
    // Attributes ----------------------------------------------------
    protected static Logger log = Logger.getLogger(LRUEnterpriseContextCachePolicy.class);
+   /**
+    * The legacy single threaded timer, the cache policy tasks now run on the
+    * {@link InstanceCacheScheduler}
+    */
    protected static Timer tasksTimer;
    static
    {
@@ -110,6 +115,12 @@ public class LRUEnterpriseContextCachePolicy extends LRUCachePolicy
    /** The resizer timer task */
    private TimerTask m_resizer;
 
+   /** The scheduled overager */
+   private ScheduledFuture m_overagerFuture;
+
+   /** The scheduled resizer */
+   private ScheduledFuture m_resizerFuture;
+
    /** Useful for log messages */
    private StringBuffer m_buffer = new StringBuffer();
 
@@ -158,15 +169,13 @@ public class LRUEnterpriseContextCachePolicy extends LRUCachePolicy
       if (m_resizerPeriod > 0)
       {
          m_resizer = new ResizerTask(m_resizerPeriod);
-         long delay = (long) (Math.random() * m_resizerPeriod);
-         tasksTimer.schedule(m_resizer, delay, m_resizerPeriod);
+         m_resizerFuture = InstanceCacheScheduler.schedule(m_resizer, m_resizerPeriod);
       }
 
       if (m_overagerPeriod > 0)
       {
          m_overager = new OveragerTask(m_overagerPeriod);
-         long delay = (long) (Math.random() * m_overagerPeriod);
-         tasksTimer.schedule(m_overager, delay, m_overagerPeriod);
+         m_overagerFuture = InstanceCacheScheduler.schedule(m_overager, m_overagerPeriod);
       }
    }
 
@@ -174,6 +183,10 @@ public class LRUEnterpriseContextCachePolicy extends LRUCachePolicy
    {
       if (m_resizer != null) {m_resizer.cancel();}
       if (m_overager != null) {m_overager.cancel();}
+      InstanceCacheScheduler.cancel(m_resizerFuture);
+      InstanceCacheScheduler.cancel(m_overagerFuture);
+      m_resizerFuture = null;
+      m_overagerFuture = null;
       super.stop();
    }
 
@@ -364,7 +377,7 @@ public class LRUEnterpriseContextCachePolicy extends LRUCachePolicy
          // For now implemented as a Cache Miss Frequency algorithm
          if( m_cache == null )
          {
-            cancel();
+            InstanceCacheScheduler.cancel(m_resizerFuture);
             return;
          }
 
@@ -427,11 +440,20 @@ public class LRUEnterpriseContextCachePolicy extends LRUCachePolicy
          m_buffer = new StringBuffer();
       }
 
+      /**
+       * Stop the periodic runs, cancelling the TimerTask has no effect on
+       * the InstanceCacheScheduler
+       */
+      protected void cancelTask()
+      {
+         InstanceCacheScheduler.cancel(m_overagerFuture);
+      }
+
       public void run()
       {
          if( m_cache == null )
          {
-            cancel();
+            cancelTask();
             return;
          }
 
@@ -22,6 +22,7 @@
 package org.jboss.ejb.plugins;
 
 import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
 
 import org.jboss.deployment.DeploymentException;
 import org.jboss.metadata.MetaData;
@@ -42,6 +43,8 @@ public class LRUStatefulContextCachePolicy extends LRUEnterpriseContextCachePoli
    private long m_maxBeanLife;
    /* The remover timer task */
    private TimerTask m_remover;
+   /* The scheduled remover */
+   private ScheduledFuture m_removerFuture;
    /* The period of the remover's runs */
    private long m_removerPeriod;
    /**
@@ -73,8 +76,7 @@ public class LRUStatefulContextCachePolicy extends LRUEnterpriseContextCachePoli
       if (m_maxBeanLife > 0)
       {
          m_remover = new RemoverTask(m_removerPeriod);
-         long delay = (long) (Math.random() * m_removerPeriod);
-         tasksTimer.schedule(m_remover, delay, m_removerPeriod);
+         m_removerFuture = InstanceCacheScheduler.schedule(m_remover, m_removerPeriod);
       }
    }
 
@@ -84,6 +86,8 @@ public class LRUStatefulContextCachePolicy extends LRUEnterpriseContextCachePoli
       {
          m_remover.cancel();
       }
+      InstanceCacheScheduler.cancel(m_removerFuture);
+      m_removerFuture = null;
       super.stop();
    }
 
@@ -158,11 +162,16 @@ public class LRUStatefulContextCachePolicy extends LRUEnterpriseContextCachePoli
          return m_maxBeanLife;
       }
 
+      protected void cancelTask()
+      {
+         InstanceCacheScheduler.cancel(m_removerFuture);
+      }
+
       public void run()
       {
          if (ssiCache == null)
          {
-            cancel();
+            cancelTask();
             return;
          }
 
@@ -22,9 +22,8 @@
 package org.jboss.ejb.plugins;
 
 import java.lang.reflect.Method;
-import java.security.Principal;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
 
 import javax.jms.DeliveryMode;
 import javax.jms.JMSException;
@@ -38,15 +37,17 @@ import javax.jms.TopicSession;
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
-import javax.transaction.Transaction;
 
 import org.jboss.ejb.Container;
-import org.jboss.invocation.Invocation;
+import org.jboss.invocation.InvocationStatistics;
 import org.jboss.monitor.MetricsConstants;
 
 /**
- * MetricsInterceptor collects data from the bean invocation call and publishes
- * them on a JMS topic (bound to <tt>topic/metrics</tt> in the name service).
+ * MetricsInterceptor publishes the invocation statistics the container
+ * collects for every call on a JMS topic (bound to <tt>topic/metrics</tt> in
+ * the name service). Every publishing interval one message per invoked method
+ * carries the invocation count, total time and latency percentiles of the
+ * interval, so the interceptor adds no work to the invocation path.
  *
  * @author <a href="mailto:jplindfo@helsinki.fi">Juha Lindfors</a>
  * @author <a href="mailto:dimitris@jboss.org">Dimitris Anreadis</a>
@@ -70,14 +71,6 @@ public class MetricsInterceptor extends AbstractInterceptor
    /** Publisher thread */
    private Thread publisher = null;
 
-   /**
-    * Message queue for the outgoing JMS messages. This list is accessed
-    * by the interceptor when adding new messages, and by the publisher
-    * thread when copying and clearing the contents of the queue. The list
-    * must be locked for access and locks should be kept down to minimum
-    * as they degrade the interceptor stack performance.
-    */
-   private List msgQueue = new ArrayList(2000);
 
 
    // Public --------------------------------------------------------
@@ -98,42 +91,6 @@ public class MetricsInterceptor extends AbstractInterceptor
    }
 
    // Interceptor implementation ------------------------------------
-   
-   public Object invokeHome(Invocation mi) throws Exception
-   {
-
-      long begin = System.currentTimeMillis();
-
-      try
-      {
-         return super.invokeHome(mi);
-      }
-      finally
-      {
-         if (mi.getMethod() != null && publisher.isAlive())
-         {
-            addEntry(mi, begin, System.currentTimeMillis());
-         }
-      }
-   }
-
-   public Object invoke(Invocation mi) throws Exception
-   {
-
-      long begin = System.currentTimeMillis();
-
-      try
-      {
-         return super.invoke(mi);
-      }
-      finally
-      {
-         if (mi.getMethod() != null && publisher.isAlive())
-         {
-            addEntry(mi, begin, System.currentTimeMillis());
-         }
-      }
-   }
 
    /**
     * Starts the JMS publisher thread.
@@ -165,38 +122,8 @@ public class MetricsInterceptor extends AbstractInterceptor
 
    // Private --------------------------------------------------------
 
-   /**
-    * Store the required information from this invocation: principal,
-    * transaction, method, time.
-    *
-    * @param   begin   invocation begin time in ms
-    * @param   end     invocation end time in ms
-    */
-   private final void addEntry(Invocation mi, long begin, long end)
-   {
-
-      /* this gets called by the interceptor */
-
-      Transaction tx = mi.getTransaction();
-      Principal princ = mi.getPrincipal();
-      Method method = mi.getMethod();
-      Entry start = new Entry(princ, method, tx, begin, "START");
-      Entry stop = new Entry(princ, method, tx, end, "STOP");
-
-      // add both entries, order is guaranteed, synchronized to prevent
-      // publisher from touching the queue while working on it
-      synchronized (msgQueue)
-      {
-
-         // Two entries for now, one should suffice but requires changes in
-         // the client.
-         msgQueue.add(start);
-         msgQueue.add(stop);
-      }
-   }
-
-   private Message createMessage(Session session, String principal, int txID,
-         String method, String checkpoint, long time)
+   private Message createMessage(Session session, Method method,
+         InvocationStatistics.MethodSnapshot stats, long time)
    {
 
       try
@@ -204,22 +131,22 @@ public class MetricsInterceptor extends AbstractInterceptor
          Message msg = session.createMessage();
 
          msg.setJMSType(INVOCATION_METRICS);
-         msg.setStringProperty(CHECKPOINT, checkpoint);
+         msg.setStringProperty(CHECKPOINT, INTERVAL);
          msg.setStringProperty(BEAN, beanName);
-         msg.setObjectProperty(METHOD, method);
+         msg.setObjectProperty(METHOD, method.getName());
          msg.setLongProperty(TIME, time);
-
-         if (txID != -1)
-            msg.setStringProperty("ID", String.valueOf(txID));
-
-         if (principal != null)
-            msg.setStringProperty("PRINCIPAL", principal);
+         msg.setLongProperty(COUNT, stats.getCount());
+         msg.setLongProperty(TOTAL_TIME, stats.getTotalTimeNanos() / 1000000);
+         msg.setLongProperty(P50, stats.getPercentile(50));
+         msg.setLongProperty(P99, stats.getPercentile(99));
+         msg.setLongProperty(P999, stats.getPercentile(99.9));
+         msg.setLongProperty(MAX_TIME, stats.getMaxTime());
 
          return msg;
       }
       catch (Exception e)
       {
-         // catch JMSExceptions, tx.SystemExceptions, and NPE's
+         // catch JMSExceptions and NPE's
          // don't want to bother the container even if the metrics fail.
          return null;
       }
@@ -245,12 +172,12 @@ public class MetricsInterceptor extends AbstractInterceptor
        * service, and attempts to create a publisher to <tt>topic/metrics</tt>
        * topic. <p>
        *
-       * While alive, locks the <tt>msgQueue</tt> every two seconds to make a
-       * copy of the contents and then clear it. <p>
+       * While alive, takes a snapshot of the container invocation statistics
+       * every two seconds and publishes the activity since the previous one. <p>
        *
        * Interrupting this thread will kill it.
        *
-       * @see #msgQueue
+       * @see InvocationStatistics#snapshot()
        * @see java.lang.Thread#interrupt()
        */
       public void run()
@@ -278,11 +205,13 @@ public class MetricsInterceptor extends AbstractInterceptor
             // start the JMS connection
             connection.start();
 
-            // copy the message queue every x seconds, and publish the messages
+            // the activity before the publisher started is not published
+            InvocationStatistics.Snapshot last = container.getInvokeStats().snapshot();
+
+            // snapshot the statistics every x seconds, and publish the interval
             while (running)
             {
 
-               Object[] array;
                long sleepTime = delay;
 
                try
@@ -293,26 +222,20 @@ public class MetricsInterceptor extends AbstractInterceptor
                   // with congestion
                   long begin = System.currentTimeMillis();
 
-                  // synchronized during the copy... the interceptor will
-                  // have to wait til done
-                  synchronized (msgQueue)
-                  {
-                     array = msgQueue.toArray();
-                     msgQueue.clear();
-                  }
+                  InvocationStatistics.Snapshot snapshot = container.getInvokeStats().snapshot();
+                  InvocationStatistics.Snapshot interval = snapshot.since(last);
+                  last = snapshot;
 
-                  // publish the messages
-                  for (int i = 0; i < array.length; ++i)
+                  // publish one message per method invoked in the interval
+                  Iterator iter = interval.getMethods().entrySet().iterator();
+                  while (iter.hasNext())
                   {
-                     Message msg = createMessage(session,
-                           ((Entry) array[i]).principal,
-                           ((Entry) array[i]).id,
-                           ((Entry) array[i]).method,
-                           ((Entry) array[i]).checkpoint,
-                           ((Entry) array[i]).time
-                     );
-
-                     pub.publish(msg);
+                     Map.Entry entry = (Map.Entry) iter.next();
+                     Message msg = createMessage(session, (Method) entry.getKey(),
+                           (InvocationStatistics.MethodSnapshot) entry.getValue(),
+                           snapshot.getTime());
+                     if (msg != null)
+                        pub.publish(msg);
                   }
 
                   // try to deal with congestion a little better, alot of
@@ -350,11 +273,6 @@ public class MetricsInterceptor extends AbstractInterceptor
          finally
          {
             // thread cleanup
-            synchronized (msgQueue)
-            {
-               msgQueue.clear();
-            }
-            
             try
             {
                if (connection != null)
@@ -367,30 +285,4 @@ public class MetricsInterceptor extends AbstractInterceptor
          }
       }
    }
-
-   /**
-    * Wrapper class for message queue entries.
-    *
-    * @see #msgQueue
-    */
-   private final class Entry
-   {
-      int id = -1;
-      long time;
-      String principal = null;
-      String checkpoint;
-      String method;
-
-      Entry(Principal principal, Method method, Transaction tx, long time, String checkpoint)
-      {
-         this.time = time;
-         this.checkpoint = checkpoint;
-         this.method = method.getName();
-
-         if (tx != null)
-            this.id = tx.hashCode();
-         if (principal != null)
-            this.principal = principal.getName();
-      }
-   }
 }
@@ -349,7 +349,7 @@ public class SecurityInterceptor extends AbstractInterceptor
       SecurityRolesAssociation.setSecurityRoles(this.deploymentRoles);
 
       boolean isAuthorized = false;
-      Set<Principal> methodRoles = container.getMethodPermissions(ejbMethod, mi.getType());
+      Set<Principal> methodRoles = container.getMethodPermissions(mi);
 
       SecurityContext currentSC = SecurityActions.getSecurityContext();
       if (SecurityActions.getSecurityManagement(currentSC) == null)
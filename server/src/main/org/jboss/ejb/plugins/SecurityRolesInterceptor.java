@@ -109,7 +109,7 @@ public class SecurityRolesInterceptor extends AbstractInterceptor
 
       // Get the method permissions
       InvocationType iface = mi.getType();
-      Set methodRoles = container.getMethodPermissions(mi.getMethod(), iface);
+      Set methodRoles = container.getMethodPermissions(mi);
       if (methodRoles == null)
       {
          String method = mi.getMethod().getName();
@@ -0,0 +1,1132 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ejb.EJBException;
+import javax.ejb.RemoveException;
+import javax.ejb.SessionBean;
+
+import org.jboss.ejb.AllowedOperationsAssociation;
+import org.jboss.ejb.Container;
+import org.jboss.ejb.StatefulSessionContainer;
+import org.jboss.ejb.StatefulSessionEnterpriseContext;
+import org.jboss.ejb.StatefulSessionPersistenceManager;
+import org.jboss.system.ServiceMBeanSupport;
+import org.jboss.system.server.ServerConfigLocator;
+import org.jboss.util.id.UID;
+
+/**
+ * A stateful session bean persistence manager that appends the passivated
+ * state of all the sessions of a container to a log of memory-mapped
+ * segment files instead of writing one file per session.
+ * <p>
+ * The bean state is serialized on the passivating thread, since the instance
+ * is released right after, but the write to the log is done in batches by a
+ * background writer thread. Until it has been written the state stays
+ * activatable from memory. An in-memory index maps each session id to its
+ * segment, offset and length, and activation deserializes straight out of the
+ * mapped segment without copying it to the heap first.
+ * <p>
+ * Removed and activated sessions leave dead space behind; when the live part
+ * of a full segment drops under the compaction threshold the writer copies
+ * the remaining entries to the current segment and deletes the old file.
+ * Activations pin the segment they read from, a deleted segment is unmapped
+ * as soon as the last activation reading it is done rather than whenever the
+ * garbage collector gets to its buffer.
+ * <p>
+ * Passivated state does not survive a restart, like with the
+ * {@link StatefulSessionFilePersistenceManager} the segments are stored under:
+ * <tt><em>jboss-server-temp-dir</em>/<em>storeDirectoryName</em>/<em>ejb-name</em>-<em>unique-id</em></tt>.
+ *
+ * @version <tt>$Revision: 81030 $</tt>
+ */
+public class StatefulSessionLogPersistenceManager extends ServiceMBeanSupport
+   implements StatefulSessionPersistenceManager, StatefulSessionLogPersistenceManagerMBean
+{
+   /** The default store directory name ("<tt>sessions</tt>"). */
+   public static final String DEFAULT_STORE_DIRECTORY_NAME = "sessions";
+
+   /** The default segment size, 64MB */
+   public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+   /** Thread local serialization buffers larger than this are not kept */
+   private static final int MAX_CACHED_BUFFER = 1024 * 1024;
+
+   /** The per thread serialization buffer */
+   private static final ThreadLocal serializationBuffer = new ThreadLocal();
+
+   /** Our container. */
+   private StatefulSessionContainer con;
+
+   /** The sub-directory name under the server temp directory */
+   private String storeDirName = DEFAULT_STORE_DIRECTORY_NAME;
+
+   /** The directory holding the segments of our container. */
+   private File storeDir;
+
+   /** The size of a segment file */
+   private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+   /** The maximum number of sessions written in one batch */
+   private int batchSize = 256;
+
+   /** The maximum number of passivations waiting for the writer */
+   private int maxPendingWrites = 10000;
+
+   /** Full segments with less than this ratio of live bytes are compacted */
+   private double compactionThreshold = 0.5;
+
+   /** session id to PendingWrite or Location */
+   private final ConcurrentHashMap index = new ConcurrentHashMap();
+
+   /** The segments, in creation order, the last one is being appended to */
+   private final CopyOnWriteArrayList segments = new CopyOnWriteArrayList();
+
+   /** Used to name the segment files */
+   private final AtomicInteger segmentCounter = new AtomicInteger();
+
+   /** The passivations waiting to be written */
+   private LinkedBlockingQueue pendingWrites;
+
+   /** The background writer */
+   private Thread writerThread;
+
+   /** Cleared to stop the writer */
+   private volatile boolean running;
+
+   /** Cleared when the writer did not stop, it may still use the mappings */
+   private volatile boolean unmapSegments = true;
+
+   // Statistics
+   private final AtomicLong passivationCount = new AtomicLong();
+   private final AtomicLong passivationTime = new AtomicLong();
+   private final AtomicLong maxPassivationTime = new AtomicLong();
+   private final AtomicLong activationCount = new AtomicLong();
+   private final AtomicLong activationTime = new AtomicLong();
+   private final AtomicLong maxActivationTime = new AtomicLong();
+   private final AtomicLong bytesWritten = new AtomicLong();
+   private final AtomicLong batchCount = new AtomicLong();
+   private final AtomicLong compactionCount = new AtomicLong();
+   private final AtomicLong writeFailureCount = new AtomicLong();
+   private final AtomicLong mappedBytes = new AtomicLong();
+
+   /**
+    * Saves a reference to the {@link StatefulSessionContainer} for
+    * its bean type.
+    *
+    * @throws ClassCastException  Container is not a StatefulSessionContainer.
+    */
+   public void setContainer(final Container con)
+   {
+      this.con = (StatefulSessionContainer) con;
+   }
+
+   // Attributes ------------------------------------------------------
+
+   /**
+    * Set the sub-directory name under the server temp directory
+    * where session data will be stored. Only used at create time.
+    *
+    * @jmx:managed-attribute
+    */
+   public void setStoreDirectoryName(final String dirName)
+   {
+      this.storeDirName = dirName;
+   }
+
+   /**
+    * @jmx:managed-attribute
+    */
+   public String getStoreDirectoryName()
+   {
+      return storeDirName;
+   }
+
+   /**
+    * @jmx:managed-attribute
+    * @return the directory holding the segment files
+    */
+   public File getStoreDirectory()
+   {
+      return storeDir;
+   }
+
+   /**
+    * Set the size of a segment file in bytes. Only used for new segments.
+    *
+    * @jmx:managed-attribute
+    */
+   public void setSegmentSize(final int segmentSize)
+   {
+      if (segmentSize <= 0)
+         throw new IllegalArgumentException("Segment size must be > 0: " + segmentSize);
+      this.segmentSize = segmentSize;
+   }
+
+   /**
+    * @jmx:managed-attribute
+    */
+   public int getSegmentSize()
+   {
+      return segmentSize;
+   }
+
+   /**
+    * Set the maximum number of sessions the writer appends in one batch.
+    *
+    * @jmx:managed-attribute
+    */
+   public void setBatchSize(final int batchSize)
+   {
+      if (batchSize <= 0)
+         throw new IllegalArgumentException("Batch size must be > 0: " + batchSize);
+      this.batchSize = batchSize;
+   }
+
+   /**
+    * @jmx:managed-attribute
+    */
+   public int getBatchSize()
+   {
+      return batchSize;
+   }
+
+   /**
+    * Set the maximum number of passivations waiting for the writer,
+    * passivation blocks when it is reached. Only used at create time.
+    *
+    * @jmx:managed-attribute
+    */
+   public void setMaxPendingWrites(final int maxPendingWrites)
+   {
+      if (maxPendingWrites <= 0)
+         throw new IllegalArgumentException("Max pending writes must be > 0: " + maxPendingWrites);
+      this.maxPendingWrites = maxPendingWrites;
+   }
+
+   /**
+    * @jmx:managed-attribute
+    */
+   public int getMaxPendingWrites()
+   {
+      return maxPendingWrites;
+   }
+
+   /**
+    * Set the ratio of live bytes under which a full segment is compacted.
+    *
+    * @jmx:managed-attribute
+    */
+   public void setCompactionThreshold(final double compactionThreshold)
+   {
+      if (compactionThreshold < 0 || compactionThreshold > 1)
+         throw new IllegalArgumentException("Compaction threshold must be in [0, 1]: " + compactionThreshold);
+      this.compactionThreshold = compactionThreshold;
+   }
+
+   /**
+    * @jmx:managed-attribute
+    */
+   public double getCompactionThreshold()
+   {
+      return compactionThreshold;
+   }
+
+   // Statistics ------------------------------------------------------
+
+   /**
+    * @jmx:managed-attribute
+    * @return the number of passivated sessions currently stored
+    */
+   public int getPassivatedSessionCount()
+   {
+      return index.size();
+   }
+
+   /**
+    * @jmx:managed-attribute
+    * @return the number of passivations waiting for the writer
+    */
+   public int getPendingWriteCount()
+   {
+      LinkedBlockingQueue queue = pendingWrites;
+      return queue == null ? 0 : queue.size();
+   }
+
+   /**
+    * @jmx:managed-attribute
+    */
+   public int getSegmentCount()
+   {
+      return segments.size();
+   }
+
+   /**
+    * @jmx:managed-attribute
+    * @return the size of the segments still mapped, including the deleted
+    *    segments an activation is still reading from
+    */
+   public long getMappedBytes()
+   {
+      return mappedBytes.get();
+   }
+
+   /**
+    * @jmx:managed-attribute
+    */
+   public long getPassivationCount()
+   {
+      return passivationCount.get();
+   }
+
+   /**
+    * @jmx:managed-attribute
+    * @return the average time spent on the passivating thread in microseconds
+    */
+   public long getAveragePassivationTime()
+   {
+      long count = passivationCount.get();
+      return count == 0 ? 0 : passivationTime.get() / count / 1000;
+   }
+
+   /**
+    * @jmx:managed-attribute
+    * @return the longest time spent on the passivating thread in microseconds
+    */
+   public long getMaxPassivationTime()
+   {
+      return maxPassivationTime.get() / 1000;
+   }
+
+   /**
+    * @jmx:managed-attribute
+    */
+   public long getActivationCount()
+   {
+      return activationCount.get();
+   }
+
+   /**
+    * @jmx:managed-attribute
+    * @return the average activation time in microseconds
+    */
+   public long getAverageActivationTime()
+   {
+      long count = activationCount.get();
+      return count == 0 ? 0 : activationTime.get() / count / 1000;
+   }
+
+   /**
+    * @jmx:managed-attribute
+    * @return the longest activation time in microseconds
+    */
+   public long getMaxActivationTime()
+   {
+      return maxActivationTime.get() / 1000;
+   }
+
+   /**
+    * @jmx:managed-attribute
+    * @return the number of bytes appended to the log, compaction included
+    */
+   public long getBytesWritten()
+   {
+      return bytesWritten.get();
+   }
+
+   /**
+    * @jmx:managed-attribute
+    */
+   public long getBatchCount()
+   {
+      return batchCount.get();
+   }
+
+   /**
+    * @jmx:managed-attribute
+    */
+   public long getCompactionCount()
+   {
+      return compactionCount.get();
+   }
+
+   /**
+    * @jmx:managed-attribute
+    * @return the number of sessions that could not be written and are kept in memory
+    */
+   public long getWriteFailureCount()
+   {
+      return writeFailureCount.get();
+   }
+
+   /**
+    * @jmx:managed-operation
+    */
+   public void resetStatistics()
+   {
+      passivationCount.set(0);
+      passivationTime.set(0);
+      maxPassivationTime.set(0);
+      activationCount.set(0);
+      activationTime.set(0);
+      maxActivationTime.set(0);
+      bytesWritten.set(0);
+      batchCount.set(0);
+      compactionCount.set(0);
+      writeFailureCount.set(0);
+   }
+
+   // Lifecycle -------------------------------------------------------
+
+   /**
+    * Setup the session data storage directory and start the writer.
+    */
+   protected void createService() throws Exception
+   {
+      String ejbName = con.getBeanMetaData().getEjbName();
+
+      File dir = ServerConfigLocator.locate().getServerTempDir();
+      dir = new File(dir, storeDirName);
+      // ejbName is not unique across all deployments, so use a unique token
+      dir = new File(dir, ejbName + "-" + new UID().toString());
+      storeDir = dir;
+
+      log.debug("Storing sessions for '" + ejbName + "' in: " + storeDir);
+
+      if( !storeDir.exists() )
+      {
+         if( StatefulSessionFilePersistenceManager.MkdirsFileAction.mkdirs(storeDir) == false )
+         {
+            throw new IOException("Failed to create directory: " + storeDir);
+         }
+      }
+      if( !storeDir.isDirectory() )
+      {
+         throw new IOException("File exists where directory expected: " + storeDir);
+      }
+      if( !storeDir.canWrite() || !storeDir.canRead() )
+      {
+         throw new IOException("Directory must be readable and writable: " + storeDir);
+      }
+
+      pendingWrites = new LinkedBlockingQueue(maxPendingWrites);
+      unmapSegments = true;
+      running = true;
+      writerThread = new Thread(new Writer(), "SessionLogWriter-" + ejbName);
+      writerThread.setDaemon(true);
+      writerThread.start();
+   }
+
+   /**
+    * Stop the writer and delete the segments and the store directory.
+    */
+   protected void destroyService() throws Exception
+   {
+      running = false;
+      if (writerThread != null)
+      {
+         writerThread.interrupt();
+         writerThread.join(10000);
+         if (writerThread.isAlive())
+         {
+            // Unmapping a buffer the writer still uses would crash the VM
+            log.warn("Session log writer did not stop, leaving the segments to the garbage collector");
+            unmapSegments = false;
+         }
+         writerThread = null;
+      }
+
+      index.clear();
+      for (Iterator i = segments.iterator(); i.hasNext();)
+      {
+         Segment segment = (Segment) i.next();
+         segment.delete();
+      }
+      segments.clear();
+
+      if( !storeDir.delete() )
+      {
+         log.warn("Failed to delete session state storage directory: " + storeDir);
+      }
+
+      log.debug("Session log statistics: passivations=" + passivationCount +
+         ", activations=" + activationCount + ", bytesWritten=" + bytesWritten +
+         ", batches=" + batchCount + ", compactions=" + compactionCount);
+   }
+
+   // StatefulSessionPersistenceManager -------------------------------
+
+   /**
+    * @return  A {@link UID}.
+    */
+   public Object createId(StatefulSessionEnterpriseContext ctx)
+      throws Exception
+   {
+      return new UID();
+   }
+
+   /**
+    * Non-operation.
+    */
+   public void createdSession(StatefulSessionEnterpriseContext ctx)
+      throws Exception
+   {
+      // nothing
+   }
+
+   /**
+    * Restores session state from the log & invokes
+    * {@link SessionBean#ejbActivate} on the target bean.
+    */
+   public void activateSession(final StatefulSessionEnterpriseContext ctx)
+      throws RemoteException
+   {
+      boolean trace = log.isTraceEnabled();
+      if (trace)
+      {
+         log.trace("Attempting to activate; ctx=" + ctx);
+      }
+
+      long start = System.nanoTime();
+      Object id = ctx.getId();
+      try
+      {
+         Object entry;
+         Segment pinned = null;
+         while (true)
+         {
+            entry = index.get(id);
+            if (entry == null)
+               throw new IOException("No passivated state for id=" + id);
+            if (entry instanceof PendingWrite)
+               break;
+            // Keep the segment mapped while reading, if it was already
+            // deleted the entry has been moved by compaction
+            pinned = ((Location) entry).segment;
+            if (pinned.pin())
+               break;
+         }
+
+         try
+         {
+            InputStream is;
+            if (entry instanceof PendingWrite)
+               is = new ByteArrayInputStream(((PendingWrite) entry).state);
+            else
+               is = ((Location) entry).open();
+
+            SessionObjectInputStream in = new SessionObjectInputStream(ctx, is);
+            try
+            {
+               Object obj = in.readObject();
+               if (trace)
+               {
+                  log.trace("Session state: " + obj);
+               }
+               ctx.setInstance(obj);
+            }
+            finally
+            {
+               in.close();
+            }
+         }
+         finally
+         {
+            if (entry instanceof Location)
+               pinned.unpin();
+         }
+      }
+      catch(Exception e)
+      {
+         throw new EJBException("Could not activate; failed to " +
+            "restore state", e);
+      }
+
+      removePassivated(id);
+
+      try
+      {
+         // Instruct the bean to perform activation logic
+         AllowedOperationsAssociation.pushInMethodFlag(IN_EJB_ACTIVATE);
+         SessionBean bean = (SessionBean) ctx.getInstance();
+         bean.ejbActivate();
+      }
+      finally
+      {
+         AllowedOperationsAssociation.popInMethodFlag();
+      }
+
+      record(activationCount, activationTime, maxActivationTime, System.nanoTime() - start);
+      if (trace)
+      {
+         log.trace("Activation complete; ctx=" + ctx);
+      }
+   }
+
+   /**
+    * Invokes {@link SessionBean#ejbPassivate} on the target bean, serializes
+    * its state and queues it for the writer.
+    */
+   public void passivateSession(final StatefulSessionEnterpriseContext ctx)
+      throws RemoteException
+   {
+      boolean trace = log.isTraceEnabled();
+      if (trace)
+      {
+         log.trace("Attempting to passivate; ctx=" + ctx);
+      }
+
+      long start = System.nanoTime();
+      try
+      {
+         // Instruct the bean to perform passivation logic
+         AllowedOperationsAssociation.pushInMethodFlag(IN_EJB_PASSIVATE);
+         SessionBean bean = (SessionBean) ctx.getInstance();
+         bean.ejbPassivate();
+      }
+      finally
+      {
+         AllowedOperationsAssociation.popInMethodFlag();
+      }
+
+      Object id = ctx.getId();
+      PendingWrite write;
+      try
+      {
+         Object obj = ctx.getInstance();
+         if (trace)
+         {
+            log.trace("Writing session state: " + obj);
+         }
+         write = new PendingWrite(id, serialize(obj));
+      }
+      catch(Exception e)
+      {
+         throw new EJBException("Could not passivate; failed to save state", e);
+      }
+
+      // The state is activatable from the index as soon as it is put there
+      index.put(id, write);
+      LinkedBlockingQueue queue = pendingWrites;
+      if (queue != null && running)
+      {
+         try
+         {
+            queue.put(write);
+         }
+         catch (InterruptedException e)
+         {
+            // Keep the state in memory, it is still activatable
+            Thread.currentThread().interrupt();
+            writeFailureCount.incrementAndGet();
+         }
+      }
+
+      record(passivationCount, passivationTime, maxPassivationTime, System.nanoTime() - start);
+      if (trace)
+      {
+         log.trace("Passivation queued; ctx=" + ctx + ", bytes=" + write.state.length);
+      }
+   }
+
+   /**
+    * Invokes {@link SessionBean#ejbRemove} on the target bean.
+    */
+   public void removeSession(final StatefulSessionEnterpriseContext ctx)
+      throws RemoteException, RemoveException
+   {
+      boolean trace = log.isTraceEnabled();
+      if (trace)
+      {
+         log.trace("Attempting to remove; ctx=" + ctx);
+      }
+
+      // Instruct the bean to perform removal logic
+      SessionBean bean = (SessionBean) ctx.getInstance();
+      bean.ejbRemove();
+
+      if (trace)
+      {
+         log.trace("Removal complete; ctx=" + ctx);
+      }
+   }
+
+   /**
+    * Drops the index entry for the given session id, the space it
+    * occupies in the log is reclaimed by compaction.
+    */
+   public void removePassivated(final Object id)
+   {
+      Object entry = index.remove(id);
+      if (entry instanceof Location)
+      {
+         Location location = (Location) entry;
+         location.segment.release(location.length);
+      }
+      if (entry != null && log.isTraceEnabled())
+      {
+         log.trace("Removed passivated state: " + id);
+      }
+   }
+
+   // Private ---------------------------------------------------------
+
+   private byte[] serialize(Object obj) throws IOException
+   {
+      ExposedByteArrayOutputStream baos = (ExposedByteArrayOutputStream) serializationBuffer.get();
+      if (baos == null)
+      {
+         baos = new ExposedByteArrayOutputStream();
+         serializationBuffer.set(baos);
+      }
+      baos.reset();
+      try
+      {
+         SessionObjectOutputStream out = new SessionObjectOutputStream(baos);
+         out.writeObject(obj);
+         out.close();
+         return baos.toByteArray();
+      }
+      finally
+      {
+         // Don't pin huge buffers to the passivating threads
+         if (baos.capacity() > MAX_CACHED_BUFFER)
+            serializationBuffer.set(null);
+      }
+   }
+
+   private static void record(AtomicLong count, AtomicLong total, AtomicLong max, long elapsed)
+   {
+      count.incrementAndGet();
+      total.addAndGet(elapsed);
+      long current = max.get();
+      while (elapsed > current && max.compareAndSet(current, elapsed) == false)
+         current = max.get();
+   }
+
+   /**
+    * @return the segment to append length bytes to, rolling over if needed
+    */
+   private Segment currentSegment(int length) throws IOException
+   {
+      Segment current = segments.isEmpty() ? null : (Segment) segments.get(segments.size() - 1);
+      if (current != null && current.fits(length))
+         return current;
+
+      if (current != null)
+         current.sealed = true;
+      int size = Math.max(segmentSize, length);
+      File file = new File(storeDir, "segment-" + segmentCounter.incrementAndGet() + ".log");
+      Segment segment = new Segment(file, size);
+      segments.add(segment);
+      if (log.isTraceEnabled())
+         log.trace("Created session log segment: " + file + ", size=" + size);
+      return segment;
+   }
+
+   /**
+    * Append a batch, called by the writer thread only.
+    */
+   private void writeBatch(List batch)
+   {
+      for (int i = 0; i < batch.size(); ++i)
+      {
+         PendingWrite write = (PendingWrite) batch.get(i);
+         // Skip the sessions activated or removed while waiting
+         if (index.get(write.id) != write)
+            continue;
+
+         try
+         {
+            int length = write.state.length;
+            Segment segment = currentSegment(length);
+            int offset = segment.append(write.state);
+            bytesWritten.addAndGet(length);
+            Location location = new Location(segment, offset, length);
+            if (index.replace(write.id, write, location) == false)
+               segment.release(length);
+         }
+         catch (IOException e)
+         {
+            // Keep the state in memory, it is still activatable
+            writeFailureCount.incrementAndGet();
+            log.warn("Failed to write session state, keeping it in memory: " + write.id, e);
+         }
+      }
+      batchCount.incrementAndGet();
+   }
+
+   /**
+    * Delete the empty sealed segments and compact the first sparse one,
+    * called by the writer thread only.
+    */
+   private void compact()
+   {
+      for (int i = 0; i < segments.size(); ++i)
+      {
+         Segment segment = (Segment) segments.get(i);
+         if (segment.sealed == false)
+            continue;
+
+         if (segment.live.get() == 0)
+         {
+            segments.remove(segment);
+            segment.delete();
+            return;
+         }
+
+         if (segment.live.get() < segment.position * compactionThreshold)
+         {
+            compact(segment);
+            return;
+         }
+      }
+   }
+
+   private void compact(Segment segment)
+   {
+      boolean trace = log.isTraceEnabled();
+      if (trace)
+         log.trace("Compacting session log segment: " + segment.file + ", live=" + segment.live + "/" + segment.position);
+
+      for (Iterator i = index.entrySet().iterator(); i.hasNext();)
+      {
+         Map.Entry entry = (Map.Entry) i.next();
+         Object value = entry.getValue();
+         if (value instanceof Location == false || ((Location) value).segment != segment)
+            continue;
+
+         Location old = (Location) value;
+         try
+         {
+            byte[] state = old.read();
+            Segment target = currentSegment(state.length);
+            int offset = target.append(state);
+            bytesWritten.addAndGet(state.length);
+            Location location = new Location(target, offset, state.length);
+            if (index.replace(entry.getKey(), old, location))
+               segment.release(old.length);
+            else
+               target.release(state.length);
+         }
+         catch (IOException e)
+         {
+            log.warn("Failed to compact session log segment: " + segment.file, e);
+            return;
+         }
+      }
+      compactionCount.incrementAndGet();
+      // The segment is deleted on the next pass once its live count drops to 0
+   }
+
+   // Inner classes ---------------------------------------------------
+
+   /**
+    * A serialized session waiting for the writer.
+    */
+   private static class PendingWrite
+   {
+      final Object id;
+      final byte[] state;
+
+      PendingWrite(Object id, byte[] state)
+      {
+         this.id = id;
+         this.state = state;
+      }
+   }
+
+   /**
+    * Where a serialized session lives in the log.
+    */
+   private static class Location
+   {
+      final Segment segment;
+      final int offset;
+      final int length;
+
+      Location(Segment segment, int offset, int length)
+      {
+         this.segment = segment;
+         this.offset = offset;
+         this.length = length;
+      }
+
+      InputStream open()
+      {
+         return new ByteBufferInputStream(segment.slice(offset, length));
+      }
+
+      byte[] read()
+      {
+         byte[] bytes = new byte[length];
+         segment.slice(offset, length).get(bytes);
+         return bytes;
+      }
+   }
+
+   /**
+    * A memory-mapped segment file. Appends are done by the writer thread
+    * only; reads use independent views of the mapping so they can proceed
+    * concurrently. Activations pin the segment, it is unmapped and its file
+    * deleted once it was deleted from the log and the last pin is dropped.
+    */
+   private class Segment
+   {
+      final File file;
+      final MappedByteBuffer buffer;
+      /** The append position, written by the writer thread only */
+      volatile int position;
+      /** The number of bytes still referenced by the index */
+      final AtomicInteger live = new AtomicInteger();
+      /** No more appends once set */
+      volatile boolean sealed;
+      /** The log's reference plus one per activation reading the segment */
+      final AtomicInteger pins = new AtomicInteger(1);
+
+      Segment(File file, int size) throws IOException
+      {
+         this.file = file;
+         RandomAccessFile raf = new RandomAccessFile(file, "rw");
+         try
+         {
+            FileChannel channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+         }
+         finally
+         {
+            // The mapping stays valid after the channel is closed
+            raf.close();
+         }
+         mappedBytes.addAndGet(size);
+      }
+
+      boolean fits(int length)
+      {
+         return sealed == false && buffer.capacity() - position >= length;
+      }
+
+      int append(byte[] bytes)
+      {
+         int offset = position;
+         ByteBuffer view = buffer.duplicate();
+         view.position(offset);
+         view.put(bytes);
+         live.addAndGet(bytes.length);
+         position = offset + bytes.length;
+         return offset;
+      }
+
+      ByteBuffer slice(int offset, int length)
+      {
+         ByteBuffer view = buffer.duplicate();
+         view.limit(offset + length);
+         view.position(offset);
+         return view.slice();
+      }
+
+      void release(int length)
+      {
+         live.addAndGet(-length);
+      }
+
+      /**
+       * @return false when the segment was already released
+       */
+      boolean pin()
+      {
+         while (true)
+         {
+            int current = pins.get();
+            if (current == 0)
+               return false;
+            if (pins.compareAndSet(current, current + 1))
+               return true;
+         }
+      }
+
+      void unpin()
+      {
+         if (pins.decrementAndGet() == 0)
+            release();
+      }
+
+      /**
+       * Drop the log's reference, the segment is released right away
+       * unless an activation is still reading it.
+       */
+      void delete()
+      {
+         unpin();
+      }
+
+      private void release()
+      {
+         if (unmapSegments)
+            unmap();
+         mappedBytes.addAndGet(-buffer.capacity());
+
+         // Unmapped first, some platforms refuse to delete a mapped file
+         if( StatefulSessionFilePersistenceManager.DeleteFileAction.delete(file) == false )
+         {
+            log.warn("Failed to delete session log segment: " + file);
+         }
+         else if (log.isTraceEnabled())
+         {
+            log.trace("Deleted session log segment: " + file);
+         }
+      }
+
+      /**
+       * Release the mapping through the buffer's cleaner, when the VM does
+       * not expose it the mapping goes away with the buffer.
+       */
+      private void unmap()
+      {
+         try
+         {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner", null);
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer, null);
+            if (cleaner != null)
+            {
+               Method cleanMethod = cleaner.getClass().getMethod("clean", null);
+               cleanMethod.setAccessible(true);
+               cleanMethod.invoke(cleaner, null);
+            }
+         }
+         catch (Throwable t)
+         {
+            if (log.isTraceEnabled())
+               log.trace("Unable to unmap session log segment: " + file, t);
+         }
+      }
+   }
+
+   /**
+    * Reads a serialized session straight out of a segment mapping.
+    */
+   private static class ByteBufferInputStream extends InputStream
+   {
+      private final ByteBuffer buffer;
+
+      ByteBufferInputStream(ByteBuffer buffer)
+      {
+         this.buffer = buffer;
+      }
+
+      public int read()
+      {
+         return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+      }
+
+      public int read(byte[] b, int off, int len)
+      {
+         if (len == 0)
+            return 0;
+         int remaining = buffer.remaining();
+         if (remaining == 0)
+            return -1;
+         int n = Math.min(len, remaining);
+         buffer.get(b, off, n);
+         return n;
+      }
+
+      public int available()
+      {
+         return buffer.remaining();
+      }
+   }
+
+   /**
+    * A ByteArrayOutputStream that can report its capacity so large
+    * buffers are not kept by the passivating threads.
+    */
+   private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream
+   {
+      ExposedByteArrayOutputStream()
+      {
+         super(4096);
+      }
+
+      int capacity()
+      {
+         return buf.length;
+      }
+   }
+
+   /**
+    * Drains the pending writes in batches and compacts when idle.
+    */
+   private class Writer implements Runnable
+   {
+      public void run()
+      {
+         ArrayList batch = new ArrayList(batchSize);
+         while (running)
+         {
+            try
+            {
+               Object first = pendingWrites.poll(1, TimeUnit.SECONDS);
+               if (first != null)
+               {
+                  batch.clear();
+                  batch.add(first);
+                  pendingWrites.drainTo(batch, batchSize - 1);
+                  writeBatch(batch);
+               }
+               compact();
+            }
+            catch (InterruptedException e)
+            {
+               // Check running
+            }
+            catch (Throwable t)
+            {
+               log.warn("Unexpected error in the session log writer", t);
+            }
+         }
+      }
+   }
+}
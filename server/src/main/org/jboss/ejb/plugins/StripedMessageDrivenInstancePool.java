@@ -0,0 +1,49 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb.plugins;
+
+import org.jboss.ejb.EnterpriseContext;
+import org.jboss.ejb.MessageDrivenEnterpriseContext;
+
+/**
+ * A message driven bean instance pool that hands out instances without a pool-wide lock.
+ *
+ * @see AbstractStripedInstancePool
+ * @version <tt>$Revision: 81030 $</tt>
+ */
+public class StripedMessageDrivenInstancePool
+   extends AbstractStripedInstancePool
+{
+   protected void createService() throws Exception
+   {
+      super.createService();
+
+      // for MDB, we *do* pool
+      this.reclaim = true;
+   }
+
+   protected EnterpriseContext create(Object instance)
+      throws Exception
+   {
+      return new MessageDrivenEnterpriseContext(instance, getContainer());
+   }
+}
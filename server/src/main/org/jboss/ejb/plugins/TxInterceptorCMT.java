@@ -290,7 +290,7 @@ public class TxInterceptorCMT extends AbstractTxInterceptor implements XmlLoadab
          log.trace("Current transaction in MI is " + oldTransaction);
 
       InvocationType type = invocation.getType();
-      byte transType = container.getBeanMetaData().getTransactionMethod(invocation.getMethod(), type);
+      byte transType = container.getTransactionMethod(invocation);
 
       if ( trace )
          printMethod(invocation.getMethod(), transType);
@@ -33,7 +33,6 @@ import java.util.StringTokenizer;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.AbstractCollection;
-import java.util.NoSuchElementException;
 import java.util.Set;
 import javax.ejb.FinderException;
 import javax.ejb.EJBException;
@@ -231,6 +230,12 @@ public abstract class JDBCAbstractQueryCommand implements JDBCQueryCommand
          {
             ps.setFetchSize(entityBridge.getFetchSize());
          }
+         else if(queryMetaData.isLazyResultSetLoading() && queryMetaData.getReadAhead().getPageSize() > 0)
+         {
+            // a lazy result set is read a page at a time,
+            // hint the driver not to fetch all the rows at once
+            ps.setFetchSize(queryMetaData.getReadAhead().getPageSize());
+         }
 
          // set the parameters
          for(int i = 0; i < parameters.size(); i++)
@@ -853,6 +858,13 @@ public abstract class JDBCAbstractQueryCommand implements JDBCQueryCommand
             factory);
       }
 
+      /**
+       * The results of a query read from the open ResultSet as they are
+       * iterated. The rows are read a page (read-ahead page-size) at a time
+       * and the primary keys of a page are handed to the read ahead cache
+       * before the first entity of the page is returned. The returned results
+       * are not kept, so the collection can only be iterated once.
+       */
       private class LazyCollection extends AbstractCollection
       {
          private final Connection con;
@@ -868,18 +880,19 @@ public abstract class JDBCAbstractQueryCommand implements JDBCQueryCommand
          private final GenericEntityObjectFactory factory;
 
          private Object prevPk;
-         private Object curPk;
-         private Object currentResult;
 
          Object[] ref = new Object[1];
 
          boolean loadOnFindCmr;
 
-         private List results = null;
          private Iterator firstIterator;
+         private boolean exhausted;
          private int size;
          private boolean resourcesClosed;
 
+         /** whether the ResultSet is positioned on a row not read yet */
+         private boolean rowPending;
+
          public LazyCollection(final Connection con,
                                final PreparedStatement ps,
                                final ResultSet rs,
@@ -905,33 +918,82 @@ public abstract class JDBCAbstractQueryCommand implements JDBCQueryCommand
             this.factory = factory;
             loadOnFindCmr = !onFindCMRList.isEmpty();
 
-            firstIterator = getFirstIterator();
-            if(firstIterator.hasNext())
+            try
             {
-               try
+               rowPending = nextRow();
+               if(rowPending)
                {
                   size = rs.getInt(1);
                }
-               catch(SQLException e)
-               {
-                  throw new EJBException("Failed to read ResultSet.", e);
-               }
+            }
+            catch(SQLException e)
+            {
+               closeResources();
+               throw new EJBException("Failed to read ResultSet.", e);
+            }
 
-               if(limit > 0 && size > limit)
-               {
-                  size = limit;
-               }
+            if(limit > 0 && size > limit)
+            {
+               size = limit;
             }
 
             if(size < 1)
             {
-               firstIterator = null;
-               results = new ArrayList(0);
+               size = 0;
+               exhausted = true;
                closeResources();
             }
             else
             {
-               results = new ArrayList(size);
+               firstIterator = new PagedResultIterator(Math.max(queryMetaData.getReadAhead().getPageSize(), 1))
+               {
+                  protected boolean nextRow()
+                  {
+                     try
+                     {
+                        return LazyCollection.this.nextRow();
+                     }
+                     catch(Exception e)
+                     {
+                        log.error("Failed to read ResultSet.", e);
+                        throw new EJBException("Failed to read ResultSet: " + e.getMessage());
+                     }
+                  }
+
+                  protected void readRow(List rows)
+                  {
+                     LazyCollection.this.readRow(rows);
+                  }
+
+                  protected void pageRead(List rows)
+                  {
+                     if(selectEntity != null)
+                     {
+                        selectManager.getReadAheadCache().addFinderResults(rows, queryMetaData.getReadAhead());
+                     }
+                  }
+
+                  protected Object getResult(Object row)
+                  {
+                     return selectEntity != null ? factory.getEntityEJBObject(row) : row;
+                  }
+
+                  protected void finished()
+                  {
+                     if(log.isTraceEnabled())
+                     {
+                        log.trace("first iterator exhausted!");
+                     }
+                     exhausted = true;
+                     closeResources();
+                  }
+
+                  public void remove()
+                  {
+                     --size;
+                  }
+               };
+
                try
                {
                   selectManager.getContainer().getTransactionManager().getTransaction().registerSynchronization(new Synchronization()
@@ -949,6 +1011,7 @@ public abstract class JDBCAbstractQueryCommand implements JDBCQueryCommand
                }
                catch(Exception e)
                {
+                  closeResources();
                   throw new EJBException("Failed to obtain current transaction", e);
                }
             }
@@ -967,56 +1030,43 @@ public abstract class JDBCAbstractQueryCommand implements JDBCQueryCommand
 
          public Iterator iterator()
          {
-            return firstIterator != null ? firstIterator : results.iterator();
+            if(firstIterator == null)
+            {
+               return Collections.EMPTY_LIST.iterator();
+            }
+            if(exhausted)
+            {
+               throw new IllegalStateException("Lazily loaded results can only be iterated once.");
+            }
+            return firstIterator;
          }
 
          public int size()
          {
-            return firstIterator != null ? size : results.size();
+            return size;
          }
 
          public boolean add(Object o)
          {
-            if(firstIterator == null)
-            {
-               return results.add(o);
-            }
-            throw new IllegalStateException("Can't modify collection while the first iterator is not exhausted.");
+            throw new UnsupportedOperationException("Lazily loaded results can't be modified.");
          }
 
          public boolean remove(Object o)
          {
-            if(firstIterator == null)
-            {
-               return results.remove(o);
-            }
-            throw new IllegalStateException("Can't modify collection while the first iterator is not exhausted.");
+            throw new UnsupportedOperationException("Lazily loaded results can't be modified.");
          }
 
-         private boolean hasNextResult()
+         private boolean nextRow() throws SQLException
          {
-            try
-            {
-               boolean has = (limit == 0 || count-- > 0) && rs.next();
-               if(!has)
-               {
-                  if(log.isTraceEnabled())
-                  {
-                     log.trace("first iterator exhausted!");
-                  }
-                  firstIterator = null;
-                  closeResources();
-               }
-               return has;
-            }
-            catch(Exception e)
+            if(rowPending)
             {
-               log.error("Failed to read ResultSet.", e);
-               throw new EJBException("Failed to read ResultSet: " + e.getMessage());
+               rowPending = false;
+               return true;
             }
+            return (limit == 0 || count-- > 0) && rs.next();
          }
 
-         private Object readNext()
+         private void readRow(List rows)
          {
             try
             {
@@ -1028,14 +1078,15 @@ public abstract class JDBCAbstractQueryCommand implements JDBCQueryCommand
                   int index = 2;
 
                   // get the pk
+                  ref[0] = null;
                   index = selectEntity.loadPrimaryKeyResults(rs, index, ref);
-                  curPk = ref[0];
+                  Object curPk = ref[0];
 
                   boolean addPk = (loadOnFindCmr ? !curPk.equals(prevPk) : true);
                   if(addPk)
                   {
                      prevPk = curPk;
-                     currentResult = factory.getEntityEJBObject(curPk);
+                     rows.add(curPk);
                   }
 
                   // read the preload fields
@@ -1068,20 +1119,19 @@ public abstract class JDBCAbstractQueryCommand implements JDBCQueryCommand
                else if(selectField != null)
                {
                   // load the field
+                  ref[0] = null;
                   selectField.loadArgumentResults(rs, 2, ref);
-                  currentResult = ref[0];
+                  rows.add(ref[0]);
                }
                else
                {
-                  currentResult = selectFunction.readResult(rs);
+                  rows.add(selectFunction.readResult(rs));
                }
 
                if(log.isTraceEnabled() && limit != 0 && count == 0)
                {
                   log.trace("Query result was limited to " + limit + " row(s)");
                }
-
-               return currentResult;
             }
             catch(Exception e)
             {
@@ -1089,40 +1139,6 @@ public abstract class JDBCAbstractQueryCommand implements JDBCQueryCommand
                throw new EJBException("Failed to read ResultSet: " + e.getMessage());
             }
          }
-
-         private Iterator getFirstIterator()
-         {
-            return new Iterator()
-            {
-               private boolean hasNext;
-               private Object cursor;
-
-               public boolean hasNext()
-               {
-                  return hasNext ? hasNext : (hasNext = hasNextResult());
-               }
-
-               public Object next()
-               {
-                  if(!hasNext())
-                  {
-                     throw new NoSuchElementException();
-                  }
-                  hasNext = false;
-
-                  cursor = readNext();
-                  results.add(cursor);
-
-                  return cursor;
-               }
-
-               public void remove()
-               {
-                  --size;
-                  results.remove(cursor);
-               }
-            };
-         }
       }
    }
 }
@@ -0,0 +1,205 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb.plugins.cmp.jdbc;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of the results of compiling dynamic queries of an entity.
+ * The results are keyed by the query metadata, the query text and
+ * the types of the parameters.
+ *
+ * @version $Revision: 81030 $
+ */
+public final class JDBCCompiledQueryCache
+{
+   public static final int DEFAULT_MAX_SIZE = 100;
+
+   private final int maxSize;
+   private final Map cache;
+
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   private final AtomicLong evictions = new AtomicLong();
+
+   public JDBCCompiledQueryCache()
+   {
+      this(DEFAULT_MAX_SIZE);
+   }
+
+   public JDBCCompiledQueryCache(int maxSize)
+   {
+      if(maxSize <= 0)
+      {
+         throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+      }
+      this.maxSize = maxSize;
+      cache = new LinkedHashMap(16, 0.75f, true)
+      {
+         protected boolean removeEldestEntry(Map.Entry eldest)
+         {
+            if(size() > JDBCCompiledQueryCache.this.maxSize)
+            {
+               evictions.incrementAndGet();
+               return true;
+            }
+            return false;
+         }
+      };
+   }
+
+   /**
+    * @param key  the key created with {@link #createKey}
+    * @return the cached compiled query or null if it is not in the cache
+    */
+   public Object get(Object key)
+   {
+      Object value;
+      synchronized(cache)
+      {
+         value = cache.get(key);
+      }
+
+      if(value == null)
+      {
+         misses.incrementAndGet();
+      }
+      else
+      {
+         hits.incrementAndGet();
+      }
+      return value;
+   }
+
+   public void put(Object key, Object value)
+   {
+      synchronized(cache)
+      {
+         cache.put(key, value);
+      }
+   }
+
+   public void clear()
+   {
+      synchronized(cache)
+      {
+         cache.clear();
+      }
+   }
+
+   public int size()
+   {
+      synchronized(cache)
+      {
+         return cache.size();
+      }
+   }
+
+   public int getMaxSize()
+   {
+      return maxSize;
+   }
+
+   public long getHits()
+   {
+      return hits.get();
+   }
+
+   public long getMisses()
+   {
+      return misses.get();
+   }
+
+   public long getEvictions()
+   {
+      return evictions.get();
+   }
+
+   /**
+    * @return the ratio of the lookups that found the compiled query in the cache
+    */
+   public double getHitRate()
+   {
+      long h = hits.get();
+      long total = h + misses.get();
+      return total == 0 ? 0 : (double)h / total;
+   }
+
+   public void resetStatistics()
+   {
+      hits.set(0);
+      misses.set(0);
+      evictions.set(0);
+   }
+
+   public static Object createKey(Object query, String ql, Class[] parameterTypes)
+   {
+      return new Key(query, ql, parameterTypes);
+   }
+
+   // Inner
+
+   private static final class Key
+   {
+      private final Object query;
+      private final String ql;
+      private final Class[] parameterTypes;
+      private final int hashCode;
+
+      Key(Object query, String ql, Class[] parameterTypes)
+      {
+         this.query = query;
+         this.ql = ql;
+         this.parameterTypes = parameterTypes;
+
+         int result = System.identityHashCode(query);
+         result = 31 * result + ql.hashCode();
+         result = 31 * result + Arrays.hashCode(parameterTypes);
+         hashCode = result;
+      }
+
+      public boolean equals(Object o)
+      {
+         if(this == o)
+         {
+            return true;
+         }
+         if(!(o instanceof Key))
+         {
+            return false;
+         }
+         Key other = (Key) o;
+         return hashCode == other.hashCode &&
+            query == other.query &&
+            ql.equals(other.ql) &&
+            Arrays.equals(parameterTypes, other.parameterTypes);
+      }
+
+      public int hashCode()
+      {
+         return hashCode;
+      }
+   }
+}
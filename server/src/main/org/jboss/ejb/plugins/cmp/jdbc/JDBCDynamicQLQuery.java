@@ -42,6 +42,8 @@ import org.jboss.ejb.plugins.cmp.jdbc.metadata.JDBCReadAheadMetaData;
 
 /**
  * This class generates a query from JBoss-QL.
+ * The compiled queries are cached per entity in the store manager's
+ * {@link JDBCCompiledQueryCache}.
  *
  * @author <a href="mailto:dain@daingroup.com">Dain Sundstrom</a>
  * @author <a href="mailto:alex@jboss.org">Alex Loubyansky</a>
@@ -51,6 +53,7 @@ public final class JDBCDynamicQLQuery extends JDBCAbstractQueryCommand
 {
    private final Catalog catalog;
    private final JDBCDynamicQLQueryMetaData metadata;
+   private final JDBCCompiledQueryCache compiledQueries;
 
    public JDBCDynamicQLQuery(JDBCStoreManager manager, JDBCQueryMetaData q)
       throws DeploymentException
@@ -58,6 +61,7 @@ public final class JDBCDynamicQLQuery extends JDBCAbstractQueryCommand
       super(manager, q);
       catalog = manager.getCatalog();
       metadata = (JDBCDynamicQLQueryMetaData)q;
+      compiledQueries = manager.getCompiledQueryCache();
    }
 
    public Collection execute(Method finderMethod, Object[] args, EntityEnterpriseContext ctx, GenericEntityObjectFactory factory)
@@ -69,16 +73,6 @@ public final class JDBCDynamicQLQuery extends JDBCAbstractQueryCommand
          getLog().debug("DYNAMIC-QL: " + dynamicQL);
       }
 
-      QLCompiler compiler = null;
-      try
-      {
-         compiler = JDBCQueryManager.getInstance(metadata.getQLCompilerClass(), catalog);
-      }
-      catch(DeploymentException e)
-      {
-         throw new FinderException(e.getMessage());
-      }
-
       // get the parameters
       Object[] parameters = (Object[])args[1];
       // parameter types
@@ -101,12 +95,67 @@ public final class JDBCDynamicQLQuery extends JDBCAbstractQueryCommand
          }
       }
 
+      if(dynamicQL == null)
+      {
+         throw new FinderException("Dynamic-ql is null");
+      }
+
+      Object key = JDBCCompiledQueryCache.createKey(metadata, dynamicQL, parameterTypes);
+      CompiledQuery compiled = (CompiledQuery)compiledQueries.get(key);
+      if(compiled == null)
+      {
+         compiled = compile(dynamicQL, finderMethod.getReturnType(), parameterTypes);
+         compiledQueries.put(key, compiled);
+      }
+      else if(getLog().isTraceEnabled())
+      {
+         getLog().trace("Reusing compiled DYNAMIC-QL: " + dynamicQL);
+      }
+
+      int offset = toInt(parameters, compiled.offsetParam, compiled.offsetValue);
+      int limit = toInt(parameters, compiled.limitParam, compiled.limitValue);
+
+      EntityContainer con = compiled.selectManager.getContainer();
+      factory = metadata.isResultTypeMappingLocal() && con.getLocalHomeClass() != null ?
+         con.getLocalProxyFactory() : con.getProxyFactory();
+      
+      return execute(
+         compiled.sql,
+         parameters,
+         offset,
+         limit,
+         compiled.selectEntity,
+         compiled.selectField,
+         compiled.selectFunction,
+         compiled.selectManager,
+         compiled.mask,
+         compiled.inputParameters,
+         compiled.leftJoinCMRList,
+         metadata,
+         factory,
+         log
+      );
+   }
+
+   private CompiledQuery compile(String dynamicQL, Class returnType, Class[] parameterTypes)
+      throws FinderException
+   {
+      QLCompiler compiler = null;
+      try
+      {
+         compiler = JDBCQueryManager.getInstance(metadata.getQLCompilerClass(), catalog);
+      }
+      catch(DeploymentException e)
+      {
+         throw new FinderException(e.getMessage());
+      }
+
       // compile the dynamic-ql
       try
       {
          compiler.compileJBossQL(
             dynamicQL,
-            finderMethod.getReturnType(),
+            returnType,
             parameterTypes,
             metadata);
       }
@@ -116,25 +165,26 @@ public final class JDBCDynamicQLQuery extends JDBCAbstractQueryCommand
          throw new FinderException("Error compiling ejbql: " + t);
       }
 
-      int offset = toInt(parameters, compiler.getOffsetParam(), compiler.getOffsetValue());
-      int limit = toInt(parameters, compiler.getLimitParam(), compiler.getLimitValue());
+      CompiledQuery compiled = new CompiledQuery();
+      compiled.offsetParam = compiler.getOffsetParam();
+      compiled.offsetValue = compiler.getOffsetValue();
+      compiled.limitParam = compiler.getLimitParam();
+      compiled.limitValue = compiler.getLimitValue();
 
-      JDBCEntityBridge selectEntity = null;
-      JDBCCMPFieldBridge selectField = null;
-      SelectFunction selectFunction = null;
       if(compiler.isSelectEntity())
       {
-         selectEntity = (JDBCEntityBridge) compiler.getSelectEntity();
+         compiled.selectEntity = (JDBCEntityBridge) compiler.getSelectEntity();
       }
       else if(compiler.isSelectField())
       {
-         selectField = (JDBCCMPFieldBridge) compiler.getSelectField();
+         compiled.selectField = (JDBCCMPFieldBridge) compiler.getSelectField();
       }
       else
       {
-         selectFunction = compiler.getSelectFunction();
+         compiled.selectFunction = compiler.getSelectFunction();
       }
 
+      JDBCEntityBridge selectEntity = compiled.selectEntity;
       boolean[] mask;
       List leftJoinCMRList;
       JDBCReadAheadMetaData readahead = metadata.getReadAhead();
@@ -169,29 +219,35 @@ public final class JDBCDynamicQLQuery extends JDBCAbstractQueryCommand
          mask = null;
          leftJoinCMRList = Collections.EMPTY_LIST;
       }
+      compiled.mask = mask;
+      compiled.leftJoinCMRList = leftJoinCMRList;
 
       // get the parameter order
       setParameterList(compiler.getInputParameters());
+      compiled.inputParameters = compiler.getInputParameters();
+      compiled.sql = compiler.getSQL();
+      compiled.selectManager = (JDBCStoreManager) compiler.getStoreManager();
+      return compiled;
+   }
 
-      EntityContainer con = ((JDBCStoreManager)compiler.getStoreManager()).getContainer();
-      factory = metadata.isResultTypeMappingLocal() && con.getLocalHomeClass() != null ?
-         con.getLocalProxyFactory() : con.getProxyFactory();
-      
-      return execute(
-         compiler.getSQL(),
-         parameters,
-         offset,
-         limit,
-         selectEntity,
-         selectField,
-         selectFunction,
-         (JDBCStoreManager) compiler.getStoreManager(),
-         mask,
-         compiler.getInputParameters(),
-         leftJoinCMRList,
-         metadata,
-         factory,
-         log
-      );
+   // Inner
+
+   /**
+    * The result of compiling a dynamic query, immutable once cached.
+    */
+   private static final class CompiledQuery
+   {
+      String sql;
+      int offsetParam;
+      int offsetValue;
+      int limitParam;
+      int limitValue;
+      JDBCEntityBridge selectEntity;
+      JDBCCMPFieldBridge selectField;
+      SelectFunction selectFunction;
+      JDBCStoreManager selectManager;
+      boolean[] mask;
+      List inputParameters;
+      List leftJoinCMRList;
    }
 }
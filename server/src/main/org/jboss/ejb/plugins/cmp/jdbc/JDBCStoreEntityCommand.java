@@ -23,9 +23,20 @@ package org.jboss.ejb.plugins.cmp.jdbc;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.ejb.EJBException;
+import javax.transaction.Transaction;
 
+import org.jboss.ejb.EntityContainer;
 import org.jboss.ejb.EntityEnterpriseContext;
+import org.jboss.ejb.GlobalTxEntityMap;
 import org.jboss.ejb.plugins.cmp.jdbc.bridge.JDBCEntityBridge;
 import org.jboss.ejb.plugins.cmp.jdbc.bridge.JDBCCMPFieldBridge;
 import org.jboss.ejb.plugins.cmp.jdbc.bridge.JDBCFieldBridge;
@@ -35,6 +46,12 @@ import org.jboss.logging.Logger;
  * JDBCStoreEntityCommand updates the row with the new state.
  * In the event that no field is dirty the command just returns.
  * Note: read-only fields are never considered dirty.
+ * <p/>
+ * If batch-store is enabled for the entity, the updates issued while the
+ * transaction is synchronized are not executed one by one but queued and
+ * flushed at the end of the synchronization as JDBC batches, one batch per
+ * set of dirty fields. Instances with optimistically locked fields are
+ * always updated immediately.
  *
  * @author <a href="mailto:dain@daingroup.com">Dain Sundstrom</a>
  * @author <a href="mailto:rickard.oberg@telkel.com">Rickard Oberg</a>
@@ -50,11 +67,20 @@ public final class JDBCStoreEntityCommand
    private final JDBCEntityBridge entity;
    private final JDBCFieldBridge[] primaryKeyFields;
    private final Logger log;
+   private final boolean batchStore;
+
+   /** the key of the tx local batch */
+   private final Object batchKey = new Object();
+
+   private final AtomicLong flushCount = new AtomicLong();
+   private final AtomicLong batchCount = new AtomicLong();
+   private final AtomicLong batchedRowCount = new AtomicLong();
 
    public JDBCStoreEntityCommand(JDBCStoreManager manager)
    {
       entity = (JDBCEntityBridge) manager.getEntityBridge();
       primaryKeyFields = entity.getPrimaryKeyFields();
+      batchStore = manager.getMetaData().isBatchStore();
 
       // Create the Log
       log = Logger.getLogger(
@@ -88,6 +114,16 @@ public final class JDBCStoreEntityCommand
       SQLUtil.getWhereClause(primaryKeyFields, sql);
 
       boolean hasLockedFields = entity.hasLockedFields(ctx);
+      if(batchStore && !hasLockedFields)
+      {
+         StoreBatch batch = getStoreBatch();
+         if(batch != null)
+         {
+            batch.add(sql.toString(), ctx, dirtyIterator);
+            return;
+         }
+      }
+
       JDBCEntityBridge.FieldIterator lockedIterator = null;
       if(hasLockedFields)
       {
@@ -177,4 +213,222 @@ public final class JDBCStoreEntityCommand
          dirtyIterator.next().setClean(ctx);
       }
    }
+
+   /**
+    * @return the number of times the queued updates were flushed
+    */
+   public long getFlushCount()
+   {
+      return flushCount.get();
+   }
+
+   /**
+    * @return the number of JDBC batches executed
+    */
+   public long getBatchCount()
+   {
+      return batchCount.get();
+   }
+
+   /**
+    * @return the number of rows updated in JDBC batches
+    */
+   public long getBatchedRowCount()
+   {
+      return batchedRowCount.get();
+   }
+
+   /**
+    * Returns the batch of the current transaction or null if the updates
+    * can't be deferred, i.e. there is no transaction or its instances are not
+    * being synchronized.
+    */
+   private StoreBatch getStoreBatch()
+   {
+      GlobalTxEntityMap txEntityMap = EntityContainer.getGlobalTxEntityMap();
+      Transaction tx = txEntityMap.getTransaction();
+      if(tx == null)
+      {
+         return null;
+      }
+
+      GlobalTxEntityMap.GlobalTxSynchronization globalSync;
+      try
+      {
+         globalSync = txEntityMap.getGlobalSynchronization(tx);
+      }
+      catch(Exception e)
+      {
+         throw new EJBException("Failed to obtain the global synchronization of transaction " + tx, e);
+      }
+
+      if(!globalSync.isSynchronizing())
+      {
+         return null;
+      }
+
+      StoreBatch batch = (StoreBatch) globalSync.getTxLocal(batchKey);
+      if(batch == null)
+      {
+         batch = new StoreBatch();
+         globalSync.putTxLocal(batchKey, batch);
+      }
+      if(batch.isEmpty())
+      {
+         globalSync.addFlush(batch);
+      }
+      return batch;
+   }
+
+   // Inner
+
+   /**
+    * The updates queued during one synchronization grouped by the SQL,
+    * i.e. by the set of dirty fields.
+    */
+   private class StoreBatch implements GlobalTxEntityMap.TxFlush
+   {
+      private final Map updates = new LinkedHashMap();
+      private final Map queued = new IdentityHashMap();
+
+      public boolean isEmpty()
+      {
+         return queued.isEmpty();
+      }
+
+      public void add(String sql, EntityEnterpriseContext ctx, JDBCEntityBridge.FieldIterator dirtyIterator)
+      {
+         if(queued.containsKey(ctx))
+         {
+            // the instance was stored again before the flush
+            // preserve the order of the updates
+            try
+            {
+               flush();
+            }
+            catch(EJBException e)
+            {
+               throw e;
+            }
+            catch(Exception e)
+            {
+               throw new EJBException("Store failed", e);
+            }
+         }
+
+         // the dirty fields are copied as the iterator is backed by the state of the instance
+         List fields = new ArrayList();
+         dirtyIterator.reset();
+         while(dirtyIterator.hasNext())
+         {
+            fields.add(dirtyIterator.next());
+         }
+
+         List group = (List) updates.get(sql);
+         if(group == null)
+         {
+            group = new ArrayList();
+            updates.put(sql, group);
+         }
+         group.add(new Object[]{ctx, fields.toArray(new JDBCCMPFieldBridge[fields.size()])});
+         queued.put(ctx, ctx);
+      }
+
+      public void flush() throws Exception
+      {
+         if(queued.isEmpty())
+         {
+            return;
+         }
+
+         try
+         {
+            for(Iterator i = updates.entrySet().iterator(); i.hasNext();)
+            {
+               Map.Entry entry = (Map.Entry) i.next();
+               executeBatch((String) entry.getKey(), (List) entry.getValue());
+            }
+         }
+         finally
+         {
+            reset();
+         }
+         flushCount.incrementAndGet();
+      }
+
+      public void reset()
+      {
+         updates.clear();
+         queued.clear();
+      }
+
+      private void executeBatch(String sql, List group) throws Exception
+      {
+         if(log.isDebugEnabled())
+         {
+            log.debug("Executing SQL in batch of " + group.size() + ": " + sql);
+         }
+
+         Connection con = null;
+         PreparedStatement ps = null;
+         int[] rowsAffected;
+         try
+         {
+            con = entity.getDataSource().getConnection();
+            ps = con.prepareStatement(sql);
+            for(int i = 0; i < group.size(); ++i)
+            {
+               Object[] update = (Object[]) group.get(i);
+               EntityEnterpriseContext ctx = (EntityEnterpriseContext) update[0];
+               JDBCCMPFieldBridge[] fields = (JDBCCMPFieldBridge[]) update[1];
+
+               // SET: set the dirty fields parameters
+               int index = 1;
+               for(int j = 0; j < fields.length; ++j)
+               {
+                  index = fields[j].setInstanceParameters(ps, index, ctx);
+               }
+
+               // WHERE: set primary key fields
+               entity.setPrimaryKeyParameters(ps, index, ctx.getId());
+               ps.addBatch();
+            }
+
+            rowsAffected = ps.executeBatch();
+         }
+         finally
+         {
+            JDBCUtil.safeClose(ps);
+            JDBCUtil.safeClose(con);
+         }
+
+         // check results
+         if(rowsAffected.length != group.size())
+         {
+            throw new EJBException("Batch update failed. Expected " + group.size() +
+               " update counts but got " + rowsAffected.length + ": " + sql);
+         }
+
+         for(int i = 0; i < group.size(); ++i)
+         {
+            Object[] update = (Object[]) group.get(i);
+            EntityEnterpriseContext ctx = (EntityEnterpriseContext) update[0];
+            if(rowsAffected[i] != 1 && rowsAffected[i] != Statement.SUCCESS_NO_INFO)
+            {
+               throw new EJBException("Update failed. Expected one affected row: rowsAffected=" +
+                  rowsAffected[i] + ", id=" + ctx.getId());
+            }
+
+            // Mark the updated fields as clean.
+            JDBCCMPFieldBridge[] fields = (JDBCCMPFieldBridge[]) update[1];
+            for(int j = 0; j < fields.length; ++j)
+            {
+               fields[j].setClean(ctx);
+            }
+         }
+
+         batchCount.incrementAndGet();
+         batchedRowCount.addAndGet(group.size());
+      }
+   }
 }
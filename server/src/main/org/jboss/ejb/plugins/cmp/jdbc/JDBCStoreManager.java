@@ -100,6 +100,9 @@ public final class JDBCStoreManager implements JDBCEntityPersistenceStore
 
    private ReadAheadCache readAheadCache;
 
+   /** compiled dynamic-ql queries of this entity */
+   private final JDBCCompiledQueryCache compiledQueryCache = new JDBCCompiledQueryCache();
+
    // Manager life cycle commands
    private JDBCInitCommand initCommand;
    private JDBCStartCommand startCommand;
@@ -203,6 +206,37 @@ public final class JDBCStoreManager implements JDBCEntityPersistenceStore
    //
    // Genertic data containers
    //
+   public JDBCCompiledQueryCache getCompiledQueryCache()
+   {
+      return compiledQueryCache;
+   }
+
+   /**
+    * @return the number of dynamic queries that were found already compiled
+    */
+   public long getCompiledQueryCacheHits()
+   {
+      return compiledQueryCache.getHits();
+   }
+
+   /**
+    * @return the number of dynamic queries that had to be compiled
+    */
+   public long getCompiledQueryCacheMisses()
+   {
+      return compiledQueryCache.getMisses();
+   }
+
+   public double getCompiledQueryCacheHitRate()
+   {
+      return compiledQueryCache.getHitRate();
+   }
+
+   public int getCompiledQueryCacheSize()
+   {
+      return compiledQueryCache.size();
+   }
+
    public Map getApplicationDataMap()
    {
       return ejbModule.getModuleDataMap();
@@ -533,6 +567,7 @@ public final class JDBCStoreManager implements JDBCEntityPersistenceStore
          }
       }
       readAheadCache.stop();
+      compiledQueryCache.clear();
    }
 
    public void destroy()
@@ -687,6 +722,30 @@ public final class JDBCStoreManager implements JDBCEntityPersistenceStore
       }
    }
 
+   /**
+    * @return the number of times the batched updates of this entity were flushed
+    */
+   public long getStoreFlushCount()
+   {
+      return storeEntityCommand == null ? 0 : storeEntityCommand.getFlushCount();
+   }
+
+   /**
+    * @return the number of JDBC batches executed to store the instances of this entity
+    */
+   public long getStoreBatchCount()
+   {
+      return storeEntityCommand == null ? 0 : storeEntityCommand.getBatchCount();
+   }
+
+   /**
+    * @return the number of instances of this entity stored in JDBC batches
+    */
+   public long getBatchedStoreCount()
+   {
+      return storeEntityCommand == null ? 0 : storeEntityCommand.getBatchedRowCount();
+   }
+
    public void passivateEntity(EntityEnterpriseContext ctx)
    {
       passivateEntityCommand.execute(ctx);
@@ -0,0 +1,139 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb.plugins.cmp.jdbc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates the rows of a query result a page at a time. A page of rows is
+ * read, and passed to pageRead, before its first result is returned. Only
+ * the rows of the current page are referenced by the iterator.
+ *
+ * @version $Revision: 81030 $
+ */
+public abstract class PagedResultIterator implements Iterator
+{
+   private final int pageSize;
+   private List page = Collections.EMPTY_LIST;
+   private int index;
+   private boolean more = true;
+
+   public PagedResultIterator(int pageSize)
+   {
+      if(pageSize <= 0)
+      {
+         throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+      }
+      this.pageSize = pageSize;
+   }
+
+   public boolean hasNext()
+   {
+      if(index == page.size() && more)
+      {
+         readPage();
+      }
+      return index < page.size();
+   }
+
+   public Object next()
+   {
+      if(!hasNext())
+      {
+         throw new NoSuchElementException();
+      }
+      return getResult(page.get(index++));
+   }
+
+   public void remove()
+   {
+      throw new UnsupportedOperationException();
+   }
+
+   private void readPage()
+   {
+      List rows = new ArrayList(pageSize);
+      while(rows.size() < pageSize)
+      {
+         if(!nextRow())
+         {
+            more = false;
+            break;
+         }
+         readRow(rows);
+      }
+
+      page = rows;
+      index = 0;
+      if(!rows.isEmpty())
+      {
+         pageRead(rows);
+      }
+      if(!more)
+      {
+         finished();
+      }
+   }
+
+   /**
+    * Moves to the next row.
+    *
+    * @return false if there are no more rows
+    */
+   protected abstract boolean nextRow();
+
+   /**
+    * Reads the current row and adds it to the page, a row that does not
+    * produce a result is not added.
+    *
+    * @param rows the rows of the page being read
+    */
+   protected abstract void readRow(List rows);
+
+   /**
+    * Called when a page has been read, before its first result is returned.
+    *
+    * @param rows the rows of the page, not modified by the iterator
+    */
+   protected void pageRead(List rows)
+   {
+   }
+
+   /**
+    * Converts a row of the page into the result returned by next().
+    */
+   protected Object getResult(Object row)
+   {
+      return row;
+   }
+
+   /**
+    * Called once the last row has been read.
+    */
+   protected void finished()
+   {
+   }
+}
@@ -216,6 +216,13 @@ public final class JDBCEntityMetaData
     */
    private final boolean cleanReadAheadOnLoad;
 
+   /**
+    * batch-store
+    * Should the updates of the dirty instances be sent to the database
+    * in JDBC batches when the transaction is synchronized.
+    */
+   private final boolean batchStore;
+
    /**
     * The maximum number of read ahead lists that can be tracked for this
     * entity.
@@ -446,6 +453,7 @@ public final class JDBCEntityMetaData
 
       readAhead = JDBCReadAheadMetaData.DEFAULT;
       cleanReadAheadOnLoad = false;
+      batchStore = false;
       entityCommand = null;
       optimisticLocking = null;
       audit = null;
@@ -871,6 +879,25 @@ public final class JDBCEntityMetaData
             ": allowed values for clean-read-ahead-on-load are true and false but got " + value);
       }
 
+      value = MetaData.getOptionalChildContent(element, "batch-store");
+      if("true".equalsIgnoreCase(value))
+      {
+         batchStore = true;
+      }
+      else if("false".equalsIgnoreCase(value))
+      {
+         batchStore = false;
+      }
+      else if(value == null)
+      {
+         batchStore = defaultValues.batchStore;
+      }
+      else
+      {
+         throw new DeploymentException("Failed to deploy " + entityName +
+            ": allowed values for batch-store are true and false but got " + value);
+      }
+
       // optimistic locking group
       Element optimisticLockingEl = MetaData.getOptionalChild(element, "optimistic-locking");
       if(optimisticLockingEl != null)
@@ -1512,6 +1539,11 @@ public final class JDBCEntityMetaData
       return cleanReadAheadOnLoad;
    }
 
+   public boolean isBatchStore()
+   {
+      return batchStore;
+   }
+
    public static JDBCTypeMappingMetaData obtainTypeMappingFromLibrary(String dataSourceName)
       throws DeploymentException
    {
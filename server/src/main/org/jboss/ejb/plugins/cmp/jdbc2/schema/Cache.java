@@ -64,6 +64,16 @@ public interface Cache
 
    Object[] getRelations(Object pk);
 
+   /**
+    * Returns copies of the fields and the relations of a cached row read
+    * consistently without holding the lock.
+    *
+    * @param pk  the primary key of the row
+    * @return  {fields, relations} where relations may be null or null if the row
+    * is not cached or is locked for update
+    */
+   Object[][] getRow(Object pk);
+
    void put(Transaction tx, Object pk, Object[] fields, Object[] relations);
 
    void remove(Transaction tx, Object pk) throws RemoveException;
@@ -104,6 +114,11 @@ public interface Cache
          return null;
       }
 
+      public Object[][] getRow(Object pk)
+      {
+         return null;
+      }
+
       public void put(Transaction tx, Object pk, Object[] fields, Object[] relations)
       {
       }
@@ -898,26 +898,21 @@ public class EntityTable
 
          if(row == null)
          {
-            Object[] fields;
+            Object[] fields = null;
             Object[] relations = null;
-            try
+            Object[][] cached = cache.getRow(pk);
+            if(cached != null)
             {
-               cache.lock(pk);
-
-               fields = cache.getFields(pk);
-               if(fields != null && relationsTotal > 0)
+               fields = cached[0];
+               if(relationsTotal > 0)
                {
-                  relations = cache.getRelations(pk);
+                  relations = cached[1];
                   if(relations == null)
                   {
                      relations = new Object[relationsTotal];
                   }
                }
             }
-            finally
-            {
-               cache.unlock(pk);
-            }
 
             if(fields != null)
             {
@@ -77,6 +77,10 @@ public class PartitionedTableCache
       final long periodMs = period * 1000;
       final long maxAgeMs = maxAge * 1000;
       overager = new Overager(maxAgeMs, periodMs);
+      for(int i = 0; i < partitions.length; ++i)
+      {
+         partitions[i].setTrackAge(true);
+      }
       new Thread(overager, threadName).start();
    }
 
@@ -163,6 +167,56 @@ public class PartitionedTableCache
       return maxPartitionCapacity;
    }
 
+   /**
+    * @jmx.managed-attribute
+    */
+   public long getHitCount()
+   {
+      long count = 0;
+      for(int i = 0; i < partitions.length; ++i)
+      {
+         count += partitions[i].getHitCount();
+      }
+      return count;
+   }
+
+   /**
+    * @jmx.managed-attribute
+    */
+   public long getMissCount()
+   {
+      long count = 0;
+      for(int i = 0; i < partitions.length; ++i)
+      {
+         count += partitions[i].getMissCount();
+      }
+      return count;
+   }
+
+   /**
+    * @jmx.managed-attribute
+    */
+   public long getEvictionCount()
+   {
+      long count = 0;
+      for(int i = 0; i < partitions.length; ++i)
+      {
+         count += partitions[i].getEvictionCount();
+      }
+      return count;
+   }
+
+   /**
+    * @jmx.managed-operation
+    */
+   public void resetStatistics()
+   {
+      for(int i = 0; i < partitions.length; ++i)
+      {
+         partitions[i].resetStatistics();
+      }
+   }
+
    public void lock()
    {
    }
@@ -195,6 +249,12 @@ public class PartitionedTableCache
       return partitions[i].getRelations(pk);
    }
 
+   public Object[][] getRow(Object pk)
+   {
+      final int i = getPartitionIndex(pk);
+      return partitions[i].getRow(pk);
+   }
+
    public void put(Transaction tx, Object pk, Object[] fields, Object[] relations)
    {
       final int i = getPartitionIndex(pk);
@@ -247,12 +307,10 @@ public class PartitionedTableCache
    private int getPartitionIndex(Object key)
    {
       int hash = key.hashCode();
+      // spread the high bits, the hash codes of numeric keys differ in the low bits only
+      hash ^= (hash >>> 16);
       // make it positive
-      if(hash < 0)
-      {
-         hash = hash == Integer.MIN_VALUE ? Integer.MAX_VALUE : -hash;
-      }
-      return hash % partitions.length;
+      return (hash & Integer.MAX_VALUE) % partitions.length;
    }
 
    // Inner
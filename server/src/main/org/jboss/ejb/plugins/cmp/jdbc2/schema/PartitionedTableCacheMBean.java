@@ -42,5 +42,13 @@ public interface PartitionedTableCacheMBean extends org.jboss.system.ServiceMBea
 
   int getMaxPartitionCapacity() ;
 
+  long getHitCount() ;
+
+  long getMissCount() ;
+
+  long getEvictionCount() ;
+
+  void resetStatistics() ;
+
   void flush();
 }
@@ -27,12 +27,22 @@ import org.jboss.deployment.DeploymentException;
 import org.w3c.dom.Element;
 
 import javax.transaction.Transaction;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
- * Simple LRU cache. Items are evicted when maxCapacity is exceeded.
+ * Segmented LRU cache. Items are evicted when maxCapacity is exceeded.
+ * <p/>
+ * Reads don't take the lock: a cached row holds an immutable snapshot of its
+ * fields and relations that is replaced on each update, so readers always see
+ * a consistent state. A hit only marks the row as referenced.
+ * <p/>
+ * New rows are admitted to the probation segment. A row that is referenced
+ * by the time it reaches the tail of the probation segment is moved to the
+ * protected segment, the others are evicted. This way the rows loaded by
+ * a scan are evicted before the hot rows.
  *
  * @author <a href="mailto:alex@jboss.org">Alexey Loubyansky</a>
  * @version <tt>$Revision: 81030 $</tt>
@@ -42,22 +52,32 @@ public class TableCache
    extends ServiceMBeanSupport
    implements Cache, TableCacheMBean
 {
-   private Cache.Listener listener = Cache.Listener.NOOP;
-   private final Map rowsById;
-   private CachedRow head;
-   private CachedRow tail;
-   private int maxCapacity;
+   /** the share of maxCapacity in percent the protected segment can take */
+   private static final int PROTECTED_PERCENT = 80;
+
+   private volatile Cache.Listener listener = Cache.Listener.NOOP;
+   private final ConcurrentHashMap rowsById;
+   private final RowList probation = new RowList();
+   private final RowList protectedRows = new RowList();
+   private volatile int maxCapacity;
    private final int minCapacity;
 
-   private boolean locked;
+   private final ReentrantLock lock = new ReentrantLock();
 
    private final int partitionIndex;
 
+   /** whether the rows should be stamped with the time of the last update for ageOut */
+   private volatile boolean trackAge;
+
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   private final AtomicLong evictions = new AtomicLong();
+
    public TableCache(int partitionIndex, int initialCapacity, int maxCapacity)
    {
       this.maxCapacity = maxCapacity;
       this.minCapacity = initialCapacity;
-      rowsById = new HashMap(initialCapacity);
+      rowsById = new ConcurrentHashMap(initialCapacity);
       this.partitionIndex = partitionIndex;
    }
 
@@ -65,7 +85,7 @@ public class TableCache
    {
       String str = MetaData.getOptionalChildContent(conf, "min-capacity");
       minCapacity = (str == null ? 1000 : Integer.parseInt(str));
-      rowsById = new HashMap(minCapacity);
+      rowsById = new ConcurrentHashMap(minCapacity);
 
       str = MetaData.getOptionalChildContent(conf, "max-capacity");
       maxCapacity = (str == null ? 10000 : Integer.parseInt(str));
@@ -90,15 +110,7 @@ public class TableCache
     */
    public int size()
    {
-      lock();
-      try
-      {
-         return rowsById.size();
-      }
-      finally
-      {
-         unlock();
-      }
+      return rowsById.size();
    }
 
    /**
@@ -125,25 +137,53 @@ public class TableCache
       return minCapacity;
    }
 
-   public synchronized void lock()
+   /**
+    * @jmx.managed-attribute
+    */
+   public long getHitCount()
    {
-      if(locked)
+      return hits.get();
+   }
+
+   /**
+    * @jmx.managed-attribute
+    */
+   public long getMissCount()
+   {
+      return misses.get();
+   }
+
+   /**
+    * @jmx.managed-attribute
+    */
+   public long getEvictionCount()
+   {
+      return evictions.get();
+   }
+
+   /**
+    * @jmx.managed-operation
+    */
+   public void resetStatistics()
+   {
+      hits.set(0);
+      misses.set(0);
+      evictions.set(0);
+   }
+
+   void setTrackAge(boolean trackAge)
+   {
+      this.trackAge = trackAge;
+   }
+
+   public void lock()
+   {
+      if(!lock.tryLock())
       {
          long start = System.currentTimeMillis();
-         while(locked)
-         {
-            try
-            {
-               wait();
-            }
-            catch(InterruptedException e)
-            {
-            }
-         }
-
+         lock.lock();
          listener.contention(partitionIndex, System.currentTimeMillis() - start);
       }
-      locked = true;
    }
 
    public void lock(Object key)
@@ -151,14 +191,13 @@ public class TableCache
       lock();
    }
 
-   public synchronized void unlock()
+   public void unlock()
    {
-      if(!locked)
+      if(!lock.isHeldByCurrentThread())
       {
          throw new IllegalStateException("The instance is not locked!");
       }
-      locked = false;
-      notify();
+      lock.unlock();
    }
 
    public void unlock(Object key)
@@ -172,15 +211,16 @@ public class TableCache
       CachedRow row = (CachedRow) rowsById.get(pk);
       if(row != null && row.locker == null)
       {
-         promoteRow(row);
-         fields = new Object[row.fields.length];
-         System.arraycopy(row.fields, 0, fields, 0, fields.length);
-         listener.hit(partitionIndex);
+         Object[] state = row.state;
+         reference(row);
+         fields = new Object[row.fieldsTotal];
+         System.arraycopy(state, 0, fields, 0, fields.length);
+         hit();
       }
       else
       {
          fields = null;
-         listener.miss(partitionIndex);
+         miss();
       }
       return fields;
    }
@@ -189,11 +229,12 @@ public class TableCache
    {
       Object[] relations;
       CachedRow row = (CachedRow) rowsById.get(pk);
-      if(row != null && row.relations != null && row.locker == null)
+      Object[] state;
+      if(row != null && row.locker == null && (state = row.state).length > row.fieldsTotal)
       {
-         promoteRow(row);
-         relations = new Object[row.relations.length];
-         System.arraycopy(row.relations, 0, relations, 0, relations.length);
+         reference(row);
+         relations = new Object[state.length - row.fieldsTotal];
+         System.arraycopy(state, row.fieldsTotal, relations, 0, relations.length);
       }
       else
       {
@@ -202,87 +243,83 @@ public class TableCache
       return relations;
    }
 
-   public void put(Transaction tx, Object pk, Object[] fields, Object[] relations)
+   public Object[][] getRow(Object pk)
    {
+      Object[][] result;
       CachedRow row = (CachedRow) rowsById.get(pk);
-      if(row == null) // the row is not cached
+      if(row != null && row.locker == null)
       {
-         Object[] fieldsCopy = new Object[fields.length];
-         System.arraycopy(fields, 0, fieldsCopy, 0, fields.length);
-         row = new CachedRow(pk, fieldsCopy);
-
-         if(relations != null)
+         // fields and relations are copied from the same snapshot
+         Object[] state = row.state;
+         reference(row);
+         Object[] fields = new Object[row.fieldsTotal];
+         System.arraycopy(state, 0, fields, 0, fields.length);
+         Object[] relations = null;
+         if(state.length > fields.length)
          {
-            Object[] relationsCopy = new Object[relations.length];
-            System.arraycopy(relations, 0, relationsCopy, 0, relations.length);
-            row.relations = relationsCopy;
+            relations = new Object[state.length - fields.length];
+            System.arraycopy(state, fields.length, relations, 0, relations.length);
          }
+         result = new Object[][]{fields, relations};
+         hit();
+      }
+      else
+      {
+         result = null;
+         miss();
+      }
+      return result;
+   }
 
-         rowsById.put(pk, row);
-
-         if(head == null)
-         {
-            head = row;
-            tail = row;
-         }
-         else
+   public void put(Transaction tx, Object pk, Object[] fields, Object[] relations)
+   {
+      CachedRow row = (CachedRow) rowsById.get(pk);
+      if(row == null) // the row is not cached
+      {
+         row = new CachedRow(pk, fields.length, createState(fields, relations, null));
+         if(trackAge)
          {
-            head.prev = row;
-            row.next = head;
-            head = row;
+            row.lastUpdated = System.currentTimeMillis();
          }
+         rowsById.put(pk, row);
+         probation.addFirst(row);
       }
       else if(row.locker == null || row.locker.equals(tx)) // the row is cached
       {
-         promoteRow(row);
-         System.arraycopy(fields, 0, row.fields, 0, fields.length);
-
-         if(relations != null)
+         row.state = createState(fields, relations, row);
+         reference(row);
+         if(trackAge)
          {
-            if(row.relations == null)
-            {
-               row.relations = new Object[relations.length];
-            }
-            System.arraycopy(relations, 0, row.relations, 0, relations.length);
+            row.lastUpdated = System.currentTimeMillis();
          }
-
-         row.lastUpdated = System.currentTimeMillis();
          row.locker = null;
       }
 
-      CachedRow victim = tail;
-      while(rowsById.size() > maxCapacity && victim != null)
-      {
-         CachedRow nextVictim = victim.prev;
-         if(victim.locker == null)
-         {
-            dereference(victim);
-            rowsById.remove(victim.pk);
-            listener.eviction(partitionIndex, row.pk, rowsById.size());
-         }
-         victim = nextVictim;
-      }
+      evict();
    }
 
    public void ageOut(long lastUpdated)
    {
-      CachedRow victim = tail;
-      while(victim != null && victim.lastUpdated < lastUpdated)
+      lock();
+      try
       {
-         CachedRow nextVictim = victim.prev;
-         if(victim.locker == null)
-         {
-            dereference(victim);
-            rowsById.remove(victim.pk);
-            listener.eviction(partitionIndex, victim.pk, rowsById.size());
-         }
-         victim = nextVictim;
+         ageOut(probation, lastUpdated);
+         ageOut(protectedRows, lastUpdated);
+      }
+      finally
+      {
+         unlock();
       }
    }
 
    public void remove(Transaction tx, Object pk)
    {
       CachedRow row = (CachedRow) rowsById.remove(pk);
+      if(row != null)
+      {
+         row.list.remove(row);
+      }
+
       if(row == null || row.locker != null && !tx.equals(row.locker))
       {
          String msg = "removal of " +
@@ -294,14 +331,18 @@ public class TableCache
          throw new RemoveException(msg);
       }
 
-      dereference(row);
       row.locker = null;
    }
 
    public boolean contains(Transaction tx, Object pk)
    {
       CachedRow row = (CachedRow) rowsById.get(pk);
-      return row != null && (row.locker == null || tx.equals(row.locker));
+      if(row == null)
+      {
+         return false;
+      }
+      Transaction locker = row.locker;
+      return locker == null || tx.equals(locker);
    }
 
    public void lockForUpdate(Transaction tx, Object pk) throws Exception
@@ -339,8 +380,8 @@ public class TableCache
    public void flush()
    {
       this.rowsById.clear();
-      this.head = null;
-      this.tail = null;
+      probation.clear();
+      protectedRows.clear();
    }
    
    public String toString()
@@ -352,27 +393,8 @@ public class TableCache
       {
          lock();
 
-         CachedRow cursor = head;
-         while(cursor != null)
-         {
-            buf.append('(')
-               .append(cursor.pk)
-               .append('|');
-
-            for(int i = 0; i < cursor.fields.length; ++i)
-            {
-               if(i > 0)
-               {
-                  buf.append(',');
-               }
-
-               buf.append(cursor.fields[i]);
-            }
-
-            buf.append(')');
-
-            cursor = cursor.next;
-         }
+         append(protectedRows, buf);
+         append(probation, buf);
       }
       finally
       {
@@ -385,64 +407,222 @@ public class TableCache
 
    // Private
 
-   private void dereference(CachedRow row)
+   private void hit()
    {
-      CachedRow next = row.next;
-      CachedRow prev = row.prev;
+      hits.incrementAndGet();
+      listener.hit(partitionIndex);
+   }
 
-      if(row == head)
+   private void miss()
+   {
+      misses.incrementAndGet();
+      listener.miss(partitionIndex);
+   }
+
+   private static void reference(CachedRow row)
+   {
+      // avoid writing to the row if it is already referenced
+      if(!row.referenced)
       {
-         head = next;
+         row.referenced = true;
       }
+   }
 
-      if(row == tail)
+   /**
+    * Creates the state of a row: the fields followed by the relations.
+    * If relations is null the cached relations of the row, if any, are kept.
+    */
+   private static Object[] createState(Object[] fields, Object[] relations, CachedRow row)
+   {
+      Object[] oldState = row == null ? null : row.state;
+      int relationsTotal;
+      if(relations != null)
       {
-         tail = prev;
+         relationsTotal = relations.length;
+      }
+      else if(oldState != null)
+      {
+         relationsTotal = oldState.length - row.fieldsTotal;
+      }
+      else
+      {
+         relationsTotal = 0;
       }
 
-      if(next != null)
+      Object[] state = new Object[fields.length + relationsTotal];
+      System.arraycopy(fields, 0, state, 0, fields.length);
+      if(relations != null)
+      {
+         System.arraycopy(relations, 0, state, fields.length, relations.length);
+      }
+      else if(relationsTotal > 0)
       {
-         next.prev = prev;
+         System.arraycopy(oldState, row.fieldsTotal, state, fields.length, relationsTotal);
       }
+      return state;
+   }
 
-      if(prev != null)
+   /**
+    * Evicts the rows until the size of the cache is within maxCapacity.
+    * Must be called with the lock held.
+    */
+   private void evict()
+   {
+      final int max = maxCapacity;
+      final int protectedMax = (int) ((long) max * PROTECTED_PERCENT / 100);
+      // rows locked for update can't be evicted, the attempts bound the loop
+      int attempts = 2 * rowsById.size();
+      while(rowsById.size() > max && attempts-- > 0)
       {
-         prev.next = next;
+         CachedRow victim = probation.tail;
+         if(victim == null)
+         {
+            victim = protectedRows.tail;
+            if(victim == null)
+            {
+               break;
+            }
+            demote(victim);
+         }
+         else if(victim.locker != null)
+         {
+            probation.remove(victim);
+            probation.addFirst(victim);
+         }
+         else if(victim.referenced)
+         {
+            victim.referenced = false;
+            probation.remove(victim);
+            protectedRows.addFirst(victim);
+
+            int scanned = 0;
+            while(protectedRows.size > protectedMax && scanned++ < protectedRows.size)
+            {
+               CachedRow tail = protectedRows.tail;
+               if(tail.referenced)
+               {
+                  // second chance
+                  tail.referenced = false;
+                  protectedRows.remove(tail);
+                  protectedRows.addFirst(tail);
+               }
+               else
+               {
+                  demote(tail);
+               }
+            }
+            if(protectedRows.size > protectedMax)
+            {
+               demote(protectedRows.tail);
+            }
+         }
+         else
+         {
+            probation.remove(victim);
+            rowsById.remove(victim.pk);
+            evictions.incrementAndGet();
+            listener.eviction(partitionIndex, victim.pk, rowsById.size());
+         }
       }
+   }
 
-      row.next = null;
-      row.prev = null;
+   private void demote(CachedRow row)
+   {
+      row.referenced = false;
+      protectedRows.remove(row);
+      probation.addFirst(row);
    }
 
-   private void promoteRow(CachedRow row)
+   private void ageOut(RowList list, long lastUpdated)
    {
-      if(head == null) // this is the first row in the cache
+      CachedRow victim = list.tail;
+      while(victim != null)
       {
-         head = row;
-         tail = row;
+         CachedRow nextVictim = victim.prev;
+         if(victim.lastUpdated < lastUpdated && victim.locker == null)
+         {
+            list.remove(victim);
+            rowsById.remove(victim.pk);
+            evictions.incrementAndGet();
+            listener.eviction(partitionIndex, victim.pk, rowsById.size());
+         }
+         victim = nextVictim;
       }
-      else if(row == head) // this is the head
+   }
+
+   private static void append(RowList list, StringBuffer buf)
+   {
+      CachedRow cursor = list.head;
+      while(cursor != null)
       {
+         buf.append('(')
+            .append(cursor.pk)
+            .append('|');
+
+         Object[] state = cursor.state;
+         for(int i = 0; i < cursor.fieldsTotal; ++i)
+         {
+            if(i > 0)
+            {
+               buf.append(',');
+            }
+
+            buf.append(state[i]);
+         }
+
+         buf.append(')');
+
+         cursor = cursor.next;
       }
-      else if(row == tail) // this is the tail
-      {
-         tail = row.prev;
-         tail.next = null;
+   }
 
+   // Inner
+
+   /**
+    * A segment of the cache, the most recently admitted rows are at the head.
+    * Guarded by the lock.
+    */
+   private static class RowList
+   {
+      private CachedRow head;
+      private CachedRow tail;
+      private int size;
+
+      public void addFirst(CachedRow row)
+      {
+         row.list = this;
          row.prev = null;
          row.next = head;
-
-         head.prev = row;
+         if(head == null)
+         {
+            tail = row;
+         }
+         else
+         {
+            head.prev = row;
+         }
          head = row;
+         ++size;
       }
-      else // somewhere in the middle
+
+      public void remove(CachedRow row)
       {
+         if(row.list != this)
+         {
+            return;
+         }
+
          CachedRow next = row.next;
          CachedRow prev = row.prev;
 
-         if(prev != null)
+         if(row == head)
          {
-            prev.next = next;
+            head = next;
+         }
+
+         if(row == tail)
+         {
+            tail = prev;
          }
 
          if(next != null)
@@ -450,29 +630,56 @@ public class TableCache
             next.prev = prev;
          }
 
-         head.prev = row;
-         row.next = head;
+         if(prev != null)
+         {
+            prev.next = next;
+         }
+
+         row.next = null;
          row.prev = null;
-         head = row;
+         row.list = null;
+         --size;
+      }
+
+      public void clear()
+      {
+         CachedRow cursor = head;
+         while(cursor != null)
+         {
+            CachedRow next = cursor.next;
+            cursor.next = null;
+            cursor.prev = null;
+            cursor.list = null;
+            cursor = next;
+         }
+         head = null;
+         tail = null;
+         size = 0;
       }
    }
 
-   private class CachedRow
+   private static class CachedRow
    {
       public final Object pk;
-      public final Object[] fields;
-      public Object[] relations;
-      private Transaction locker;
+      public final int fieldsTotal;
+      /** the fields followed by the relations, never modified once published */
+      public volatile Object[] state;
+      private volatile Transaction locker;
+
+      /** set by the readers without the lock, cleared by the eviction */
+      private boolean referenced;
 
+      private RowList list;
       private CachedRow next;
       private CachedRow prev;
 
-      public long lastUpdated = System.currentTimeMillis();
+      public long lastUpdated;
 
-      public CachedRow(Object pk, Object[] fields)
+      public CachedRow(Object pk, int fieldsTotal, Object[] state)
       {
          this.pk = pk;
-         this.fields = fields;
+         this.fieldsTotal = fieldsTotal;
+         this.state = state;
       }
    }
 }
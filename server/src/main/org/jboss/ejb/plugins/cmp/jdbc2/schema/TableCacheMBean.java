@@ -36,5 +36,13 @@ public interface TableCacheMBean extends org.jboss.system.ServiceMBean {
 
   int getMinCapacity() ;
 
+  long getHitCount() ;
+
+  long getMissCount() ;
+
+  long getEvictionCount() ;
+
+  void resetStatistics() ;
+
   void flush();
 }
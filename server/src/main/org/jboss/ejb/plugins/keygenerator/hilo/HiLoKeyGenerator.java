@@ -32,7 +32,23 @@ import java.sql.PreparedStatement;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.ResultSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 /**
+ * Hands out the ids of a block reserved in the sequence table. Within a block
+ * the ids are generated with an atomic counter, the lock is only taken to
+ * switch to the next block. If a prefetch executor is provided, the next block
+ * is reserved in the background, in its own transaction, when three quarters
+ * of the current one have been handed out.
+ * <p/>
+ * The blocks are reserved with an optimistic update of the row of the
+ * sequence, so any number of generators, also on other nodes, can share
+ * a sequence.
+ *
  * @author <a href="mailto:alex@jboss.org">Alexey Loubyansky</a>
  * @version <tt>$Revision: 81030 $</tt>
  */
@@ -41,11 +57,17 @@ public class HiLoKeyGenerator
 {
    private static long highestHi = 0;
 
+   /**
+    * @deprecated the current hi is read from the sequence table for each block
+    */
    public static synchronized long getHighestHi()
    {
       return highestHi;
    }
 
+   /**
+    * @deprecated the current hi is read from the sequence table for each block
+    */
    public static synchronized void setHighestHi(long highestHi)
    {
       HiLoKeyGenerator.highestHi = highestHi;
@@ -55,12 +77,14 @@ public class HiLoKeyGenerator
    private final DataSource ds;
    private final long blockSize;
 
-   private long hi;
-   private long lo;
+   private final TransactionManager tm;
+   private final String updateHiSql;
+   private final String selectHiSql;
+   private final Executor prefetcher;
 
-   private TransactionManager tm;
-   private String updateHiSql;
-   private String selectHiSql;
+   private volatile Block block = new Block(0, 0, -1);
+   /** the next block being reserved by the prefetcher, guarded by this */
+   private FutureTask nextBlock;
 
    public HiLoKeyGenerator(
       DataSource ds,
@@ -73,9 +97,30 @@ public class HiLoKeyGenerator
       TransactionManager tm
       )
    {
+      this(ds, tableName, sequenceColumn, sequenceName, idColumnName, selectHiSql, blockSize, tm, null);
+   }
+
+   public HiLoKeyGenerator(
+      DataSource ds,
+      String tableName,
+      String sequenceColumn,
+      String sequenceName,
+      String idColumnName,
+      String selectHiSql,
+      long blockSize,
+      TransactionManager tm,
+      Executor prefetcher
+      )
+   {
+      if(blockSize < 1)
+      {
+         throw new IllegalArgumentException("BlockSize must be positive: " + blockSize);
+      }
+
       this.ds = ds;
       this.blockSize = blockSize;
       this.tm = tm;
+      this.prefetcher = prefetcher;
       this.log = Logger.getLogger(getClass().getName() + "#" + tableName + "_" + sequenceName);
 
       updateHiSql = "update " +
@@ -86,27 +131,117 @@ public class HiLoKeyGenerator
          " where " + sequenceColumn + "='" + sequenceName + "' and " +
          idColumnName + "=?";
 
+      if(selectHiSql == null)
+      {
+         selectHiSql = "select " +
+            idColumnName +
+            " from " + tableName +
+            " where " + sequenceColumn + "='" + sequenceName + "'";
+      }
       this.selectHiSql = selectHiSql;
    }
 
-   public synchronized Object generateKey()
+   public Object generateKey()
    {
-      if(lo < hi)
+      while(true)
       {
-         ++lo;
+         Block current = block;
+         long id = current.lo.incrementAndGet();
+         if(id <= current.hi)
+         {
+            if(id == current.prefetchAt)
+            {
+               prefetch();
+            }
+            return new Long(id);
+         }
+         nextBlock(current);
       }
-      else
+   }
+
+   // Private
+
+   private synchronized void prefetch()
+   {
+      if(nextBlock == null)
+      {
+         FutureTask task = new FutureTask(new Callable()
+         {
+            public Object call() throws Exception
+            {
+               return reserveBlock();
+            }
+         });
+         try
+         {
+            prefetcher.execute(task);
+         }
+         catch(RejectedExecutionException e)
+         {
+            // the factory was stopped, nextBlock() reserves the block itself
+            log.debug("Prefetch rejected, the next block will be reserved synchronously.");
+            return;
+         }
+         nextBlock = task;
+      }
+   }
+
+   /**
+    * Switches to the next block unless another thread already did.
+    */
+   private synchronized void nextBlock(Block exhausted)
+   {
+      if(block != exhausted)
+      {
+         return;
+      }
+
+      Block next = null;
+      if(nextBlock != null)
       {
-         Transaction curTx = null;
          try
          {
-            curTx = tm.suspend();
+            next = (Block) nextBlock.get();
          }
-         catch(SystemException e)
+         catch(ExecutionException e)
          {
-            throw new IllegalStateException("Failed to suspend current transaction.");
+            log.warn("Failed to prefetch the next block, reserving it now: " + e.getCause().getMessage());
          }
+         catch(InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the next block.");
+         }
+         finally
+         {
+            nextBlock = null;
+         }
+      }
 
+      if(next == null)
+      {
+         next = reserveBlock();
+      }
+      block = next;
+   }
+
+   /**
+    * Reserves the next block in a new transaction.
+    */
+   private Block reserveBlock()
+   {
+      Transaction curTx = null;
+      try
+      {
+         curTx = tm.suspend();
+      }
+      catch(SystemException e)
+      {
+         throw new IllegalStateException("Failed to suspend current transaction.");
+      }
+
+      try
+      {
          try
          {
             tm.begin();
@@ -118,71 +253,68 @@ public class HiLoKeyGenerator
 
          try
          {
-            doGenerate();
+            Block reserved = doGenerate();
             tm.commit();
+            return reserved;
          }
          catch(SQLException e)
          {
             log.error("Failed to update table: " + e.getMessage(), e);
-
-            try
-            {
-               tm.rollback();
-            }
-            catch(SystemException e1)
-            {
-               log.error("Failed to rollback.", e1);
-            }
-
+            rollback();
             throw new IllegalStateException(e.getMessage());
          }
+         catch(RuntimeException e)
+         {
+            rollback();
+            throw e;
+         }
          catch(Exception e)
          {
             log.error("Failed to commit.", e);
+            throw new IllegalStateException("Failed to commit the reserved block: " + e.getMessage());
          }
-         finally
+      }
+      finally
+      {
+         if(curTx != null)
          {
-            if(curTx != null)
+            try
+            {
+               tm.resume(curTx);
+            }
+            catch(Exception e)
             {
-               try
-               {
-                  tm.resume(curTx);
-               }
-               catch(Exception e)
-               {
-                  throw new IllegalStateException("Failed to resume transaction: " + e.getMessage());
-               }
+               throw new IllegalStateException("Failed to resume transaction: " + e.getMessage());
             }
          }
       }
-
-      return new Long(lo);
    }
 
-   private void doGenerate() throws SQLException
+   private void rollback()
    {
-      long curHi;
-      do
+      try
       {
-         curHi = getCurrentHi();
-         lo = curHi + 1;
-         hi = curHi + blockSize;
+         tm.rollback();
+      }
+      catch(Exception e)
+      {
+         log.error("Failed to rollback.", e);
       }
-      while(!updateHi(curHi, hi));
-   }
-
-   private long getCurrentHi() throws SQLException
-   {
-      return selectHiSql != null ? selectHi() : getHighestHi();
    }
 
-   private boolean updateHi(long curHi, long newHi) throws SQLException
+   private Block doGenerate() throws SQLException
    {
-      if(selectHiSql == null)
+      long curHi;
+      long newHi;
+      do
       {
-         setHighestHi(newHi);
+         curHi = selectHi();
+         newHi = curHi + blockSize;
       }
-      return updateTable(curHi, newHi);
+      while(!updateTable(curHi, newHi));
+
+      long prefetchAt = prefetcher == null || blockSize < 4 ? -1 : newHi - blockSize / 4;
+      return new Block(curHi, newHi, prefetchAt);
    }
 
    private long selectHi() throws SQLException
@@ -239,4 +371,24 @@ public class HiLoKeyGenerator
          JDBCUtil.safeClose(con);
       }
    }
-}
\ No newline at end of file
+
+   // Inner
+
+   /**
+    * A reserved block of ids: lo + 1 to hi.
+    */
+   private static final class Block
+   {
+      final AtomicLong lo;
+      final long hi;
+      /** the id that triggers the prefetch of the next block, -1 for none */
+      final long prefetchAt;
+
+      Block(long lo, long hi, long prefetchAt)
+      {
+         this.lo = new AtomicLong(lo);
+         this.hi = hi;
+         this.prefetchAt = prefetchAt;
+      }
+   }
+}
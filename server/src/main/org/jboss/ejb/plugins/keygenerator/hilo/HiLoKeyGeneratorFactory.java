@@ -43,8 +43,17 @@ import java.sql.SQLException;
 import java.sql.Connection;
 import java.sql.Statement;
 import java.sql.ResultSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
+ * Creates HiLoKeyGenerators that reserve blocks of ids in a sequence table.
+ * Besides the configured sequence, generators for other sequences in
+ * the same table can be obtained with {@link #getKeyGenerator(String)}.
+ *
  * @author <a href="mailto:alex@jboss.org">Alexey Loubyansky</a>
  * @version <tt>$Revision: 81030 $</tt>
  * @jmx.mbean name="jboss.system:service=KeyGeneratorFactory,type=HiLo"
@@ -69,6 +78,12 @@ public class HiLoKeyGeneratorFactory
 
    private boolean createTable = true;
    private boolean dropTable;
+   private boolean prefetchBlocks = true;
+
+   /** reserves the next blocks of the generators in the background */
+   private transient ExecutorService prefetcher;
+   /** the sequences whose rows are known to exist */
+   private transient Map initializedSequences = new ConcurrentHashMap();
 
    /**
     * @jmx.managed-attribute
@@ -255,11 +270,47 @@ public class HiLoKeyGeneratorFactory
       this.dropTable = dropTable;
    }
 
+   /**
+    * @jmx.managed-attribute
+    */
+   public boolean isPrefetchBlocks()
+   {
+      return prefetchBlocks;
+   }
+
+   /**
+    * @jmx.managed-attribute
+    */
+   public void setPrefetchBlocks(boolean prefetchBlocks)
+   {
+      this.prefetchBlocks = prefetchBlocks;
+   }
+
+   /**
+    * Returns a generator for another sequence in the same table.
+    * The row of the sequence is inserted if it doesn't exist yet.
+    * SelectHiSql only applies to the configured SequenceName.
+    *
+    * @jmx.managed-operation
+    */
+   public KeyGenerator getKeyGenerator(String sequenceName) throws Exception
+   {
+      if(!initializedSequences.containsKey(sequenceName))
+      {
+         initSequenceRow(tableName, sequenceColumn, sequenceName, idColumnName);
+         initializedSequences.put(sequenceName, Boolean.TRUE);
+      }
+
+      String selectSql = sequenceName.equals(this.sequenceName) ? selectHiSql : null;
+      return new HiLoKeyGenerator(ds, tableName, sequenceColumn, sequenceName, idColumnName, selectSql, blockSize, tm,
+         prefetcher);
+   }
+
    // KeyGeneratorFactory implementation
 
    public KeyGenerator getKeyGenerator() throws Exception
    {
-      return new HiLoKeyGenerator(ds, tableName, sequenceColumn, sequenceName, idColumnName, selectHiSql, blockSize, tm);
+      return getKeyGenerator(sequenceName);
    }
 
    // ServiceMBeanSupport overrides
@@ -276,6 +327,20 @@ public class HiLoKeyGeneratorFactory
 
       ds = lookupDataSource(dataSource);
       initSequence(tableName, sequenceColumn, sequenceName, idColumnName);
+
+      if(prefetchBlocks)
+      {
+         final String threadName = "HiLoKeyGenerator-" + tableName;
+         prefetcher = Executors.newCachedThreadPool(new ThreadFactory()
+         {
+            public Thread newThread(Runnable r)
+            {
+               Thread t = new Thread(r, threadName);
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
    }
 
    public void stopService()
@@ -286,6 +351,13 @@ public class HiLoKeyGeneratorFactory
          dropTableIfExists(tableName);
       }
 
+      if(prefetcher != null)
+      {
+         prefetcher.shutdown();
+         prefetcher = null;
+      }
+      initializedSequences.clear();
+
       ds = null;
       tm = null;
 
@@ -304,6 +376,14 @@ public class HiLoKeyGeneratorFactory
          createTableIfNotExists(tableName);
       }
 
+      initializedSequences.clear();
+      initSequenceRow(tableName, sequenceColumn, sequenceName, idColumnName);
+      initializedSequences.put(sequenceName, Boolean.TRUE);
+   }
+
+   private void initSequenceRow(String tableName, String sequenceColumn, String sequenceName, String idColumnName)
+      throws SQLException
+   {
       Connection con = null;
       Statement st = null;
       ResultSet rs = null;
@@ -340,10 +420,6 @@ public class HiLoKeyGeneratorFactory
                JDBCUtil.safeClose(insertSt);
             }
          }
-         else
-         {
-            HiLoKeyGenerator.setHighestHi(rs.getLong(1));
-         }
       }
       finally
       {
@@ -419,6 +495,7 @@ public class HiLoKeyGeneratorFactory
    {
       server = MBeanServerLocator.locateJBoss();
       tm = TransactionManagerLocator.getInstance().locate();
+      initializedSequences = new ConcurrentHashMap();
       try
       {
          ds = lookupDataSource(dataSource);
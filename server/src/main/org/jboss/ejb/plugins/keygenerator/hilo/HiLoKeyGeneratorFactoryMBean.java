@@ -72,4 +72,10 @@ public interface HiLoKeyGeneratorFactoryMBean extends org.jboss.system.ServiceMB
    boolean isDropTable();
 
    void setDropTable(boolean dropTable);
+
+   boolean isPrefetchBlocks();
+
+   void setPrefetchBlocks(boolean prefetchBlocks);
+
+   org.jboss.ejb.plugins.keygenerator.KeyGenerator getKeyGenerator(String sequenceName) throws java.lang.Exception;
 }
@@ -0,0 +1,384 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb.plugins.lock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+
+import org.jboss.ejb.Container;
+import org.jboss.ejb.EntityEnterpriseContext;
+import org.jboss.invocation.Invocation;
+import org.jboss.monitor.LockMonitor;
+import org.jboss.util.deadlock.DeadlockDetector;
+
+/**
+ * A pessimistic transactional lock with the same scheduling policy as
+ * {@link QueuedPessimisticEJBLock}, built on java.util.concurrent.locks.
+ *
+ * Waiting transactions are kept in a FIFO queue; when the owning transaction
+ * ends the next one is handed the lock and only the threads of that
+ * transaction are woken up. Non-transactional callers each get their own
+ * queue slot.
+ *
+ * The sync mutex is a ReentrantLock and each queued transaction waits on its
+ * own Condition of that lock, so releasing the mutex and starting the wait
+ * is atomic and no wakeup can be lost in between. A call that finds the lock
+ * free or owned by its own transaction allocates nothing. Wait times are
+ * reported to the container's {@link LockMonitor}, which keeps a histogram
+ * per entity bean.
+ *
+ * @version $Revision: 81030 $
+ */
+public class ConcurrentPessimisticEJBLock extends BeanLockSupport
+{
+   /** The sync mutex */
+   private final ReentrantLock syncLock = new ReentrantLock();
+
+   /** Transaction to waiter, guarded by syncLock */
+   private final HashMap txWaiters = new HashMap();
+
+   /** The waiters in arrival order, guarded by syncLock */
+   private final LinkedList txWaitQueue = new LinkedList();
+
+   protected LockMonitor lockMonitor = null;
+   /** A flag that disables the deadlock detection check */
+   protected boolean deadlockDetection = true;
+
+   public void setContainer(Container container)
+   {
+      this.container = container;
+      lockMonitor = container.getLockManager().getLockMonitor();
+   }
+
+   public boolean getDeadlockDetection()
+   {
+      return deadlockDetection;
+   }
+   public void setDeadlockDetection(boolean flag)
+   {
+      this.deadlockDetection = flag;
+   }
+
+   // Sync mutex ----------------------------------------------------
+
+   public boolean attemptSync()
+   {
+      return syncLock.tryLock();
+   }
+
+   public void sync()
+   {
+      syncLock.lock();
+   }
+
+   public void releaseSync()
+   {
+      syncLock.unlock();
+   }
+
+   // Scheduling ----------------------------------------------------
+
+   public void schedule(Invocation mi) throws Exception
+   {
+      Transaction miTx = mi.getTransaction();
+      boolean trace = log.isTraceEnabled();
+      boolean wasThreadScheduled = false;
+      syncLock.lock();
+      try
+      {
+         if (trace) log.trace("Begin schedule, key=" + mi.getId());
+
+         if (isTxExpired(miTx))
+         {
+            log.error("Saw rolled back tx=" + miTx);
+            throw new RuntimeException("Transaction marked for rollback, possibly a timeout");
+         }
+
+         // Uncontended, the lock is free or already ours
+         Transaction current = getTransaction();
+         if (current == null || current.equals(miTx))
+         {
+            setTransaction(miTx);
+            return;
+         }
+
+         if (lockMonitor != null) lockMonitor.contending();
+         long startWait = System.currentTimeMillis();
+         try
+         {
+            waitForTx(miTx, trace);
+            wasThreadScheduled = true;
+         }
+         catch (Exception e)
+         {
+            if (lockMonitor != null && isTxExpired(miTx))
+               lockMonitor.increaseTimeouts();
+            throw e;
+         }
+         finally
+         {
+            if (lockMonitor != null)
+               lockMonitor.finishedContending(System.currentTimeMillis() - startWait);
+         }
+      }
+      finally
+      {
+         // A non-transactional thread scheduled through the queue must
+         // hand the lock on, otherwise the waiters behind it never wake up
+         if (miTx == null && wasThreadScheduled)
+            nextTransaction();
+         syncLock.unlock();
+      }
+   }
+
+   /**
+    * Wait until no other transaction is running with this lock,
+    * called holding the sync mutex.
+    */
+   protected void waitForTx(Transaction miTx, boolean trace) throws Exception
+   {
+      TxWaiter waiter = null;
+      Object deadlocker = miTx;
+      if (deadlocker == null) deadlocker = Thread.currentThread();
+
+      while (getTransaction() != null && getTransaction().equals(miTx) == false)
+      {
+         // Check for a deadlock on every cycle
+         try
+         {
+            if( deadlockDetection == true )
+               DeadlockDetector.singleton.deadlockDetection(deadlocker, this);
+         }
+         catch (Exception e)
+         {
+            dequeue(waiter);
+            throw e;
+         }
+
+         if (trace) log.trace("Transactional contention on context" + id);
+
+         if (waiter == null)
+            waiter = enqueue(miTx, deadlocker, false);
+         else if (waiter.queued == false)
+            // We were handed the lock but somebody got in first, keep our turn
+            waiter = enqueue(miTx, deadlocker, true);
+
+         if (trace) log.trace("Begin wait on Tx=" + getTransaction());
+         try
+         {
+            if (txTimeout > 0)
+               waiter.condition.await(txTimeout, TimeUnit.MILLISECONDS);
+            else
+               waiter.condition.await();
+         }
+         catch (InterruptedException ignored)
+         {
+         }
+         if (trace) log.trace("End wait on Tx=" + getTransaction());
+
+         if (isTxExpired(miTx))
+         {
+            log.error(Thread.currentThread() + "Saw rolled back tx=" + miTx + " waiting for txLock");
+            if (waiter.queued)
+            {
+               // The other threads of the transaction will timeout too
+               dequeue(waiter);
+            }
+            else if (getTransaction() != null && getTransaction().equals(miTx))
+            {
+               nextTransaction();
+            }
+            if (miTx != null)
+            {
+               if( deadlockDetection == true )
+                  DeadlockDetector.singleton.removeWaiting(deadlocker);
+            }
+            throw new RuntimeException("Transaction marked for rollback, possibly a timeout");
+         }
+      }
+   }
+
+   /**
+    * Hand the lock to the next waiting transaction, called holding the
+    * sync mutex.
+    */
+   protected void nextTransaction()
+   {
+      if (syncLock.isHeldByCurrentThread() == false)
+      {
+         throw new IllegalStateException("do not call nextTransaction while not synched!");
+      }
+
+      setTransaction(null);
+      if (txWaitQueue.isEmpty() == false)
+      {
+         TxWaiter next = (TxWaiter) txWaitQueue.removeFirst();
+         if (next.tx != null)
+            txWaiters.remove(next.tx);
+         next.queued = false;
+         // The new transaction is set up now to avoid a race with incoming calls
+         setTransaction(next.tx);
+         if( deadlockDetection == true )
+            DeadlockDetector.singleton.removeWaiting(next.deadlocker);
+         next.condition.signalAll();
+      }
+   }
+
+   public void endTransaction(Transaction transaction)
+   {
+      nextTransaction();
+   }
+
+   public void wontSynchronize(Transaction trasaction)
+   {
+      nextTransaction();
+   }
+
+   public void endInvocation(Invocation mi)
+   {
+      // Do we own the lock?
+      Transaction tx = mi.getTransaction();
+      if (tx != null && tx.equals(getTransaction()))
+      {
+         // If there is no context or synchronization, release the lock
+         EntityEnterpriseContext ctx = (EntityEnterpriseContext) mi.getEnterpriseContext();
+         if (ctx == null || ctx.hasTxSynchronization() == false)
+            endTransaction(tx);
+      }
+   }
+
+   public void removeRef()
+   {
+      refs--;
+      if (refs == 0 && txWaitQueue.size() > 0)
+      {
+         log.error("removing bean lock and it has tx's in QUEUE! " + toString());
+         throw new IllegalStateException("removing bean lock and it has tx's in QUEUE!");
+      }
+      else if (refs == 0 && getTransaction() != null)
+      {
+         log.error("removing bean lock and it has tx set! " + toString());
+         throw new IllegalStateException("removing bean lock and it has tx set!");
+      }
+      else if (refs < 0)
+      {
+         log.error("negative lock reference count should never happen !");
+         throw new IllegalStateException("negative lock reference count !");
+      }
+   }
+
+   public String toString()
+   {
+      StringBuffer buffer = new StringBuffer(100);
+      buffer.append(super.toString());
+      buffer.append(", bean=").append(container.getBeanMetaData().getEjbName());
+      buffer.append(", id=").append(id);
+      buffer.append(", refs=").append(refs);
+      buffer.append(", tx=").append(getTransaction());
+      buffer.append(", synched=").append(syncLock);
+      buffer.append(", timeout=").append(txTimeout);
+      buffer.append(", queue=").append(new ArrayList(txWaitQueue));
+      return buffer.toString();
+   }
+
+   // Protected -----------------------------------------------------
+
+   protected boolean isTxExpired(Transaction miTx) throws Exception
+   {
+      return miTx != null && miTx.getStatus() == Status.STATUS_MARKED_ROLLBACK;
+   }
+
+   // Private -------------------------------------------------------
+
+   /**
+    * Get the queue slot of the transaction, adding it if needed.
+    * A non-transactional caller always gets a new slot.
+    */
+   private TxWaiter enqueue(Transaction miTx, Object deadlocker, boolean first)
+   {
+      TxWaiter waiter = null;
+      if (miTx != null)
+         waiter = (TxWaiter) txWaiters.get(miTx);
+      if (waiter == null)
+      {
+         waiter = new TxWaiter(miTx, deadlocker, syncLock.newCondition());
+         if (miTx != null)
+            txWaiters.put(miTx, waiter);
+         if (first)
+            txWaitQueue.addFirst(waiter);
+         else
+            txWaitQueue.addLast(waiter);
+      }
+      return waiter;
+   }
+
+   private void dequeue(TxWaiter waiter)
+   {
+      if (waiter != null && waiter.queued)
+      {
+         if (waiter.tx != null)
+            txWaiters.remove(waiter.tx);
+         txWaitQueue.remove(waiter);
+         waiter.queued = false;
+      }
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * The queue slot of a waiting transaction, or of a single
+    * non-transactional thread.
+    */
+   private static class TxWaiter
+   {
+      final Transaction tx;
+      /** Used by the DeadlockDetector, the thread if tx is null */
+      final Object deadlocker;
+      final Condition condition;
+      final String threadName;
+      boolean queued = true;
+
+      TxWaiter(Transaction tx, Object deadlocker, Condition condition)
+      {
+         this.tx = tx;
+         this.deadlocker = deadlocker;
+         this.condition = condition;
+         this.threadName = Thread.currentThread().toString();
+      }
+
+      public String toString()
+      {
+         StringBuffer buffer = new StringBuffer(100);
+         buffer.append("TXWAITER waitingTx=").append(tx);
+         buffer.append(" thread=").append(threadName);
+         buffer.append(" queued=").append(queued);
+         return buffer.toString();
+      }
+   }
+}
@@ -0,0 +1,56 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb.txtimer;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * An extension of DatabasePersistencePluginExt that writes timers
+ * using JDBC batches, used by the DatabasePersistencePolicy when
+ * write behind is enabled.
+ *
+ * @version $Revision: 85945 $
+ */
+public interface DatabasePersistencePluginBatch extends DatabasePersistencePluginExt
+{
+   /**
+    * Insert a batch of timers
+    *
+    * @param handles List<TimerHandleImpl> the timers to insert
+    */
+   void insertTimers(List handles) throws SQLException;
+
+   /**
+    * Delete a batch of timers
+    *
+    * @param handles List<TimerHandleImpl> the timers to delete
+    */
+   void deleteTimers(List handles) throws SQLException;
+
+   /**
+    * Set the number of rows fetched at a time when selecting timers
+    *
+    * @param fetchSize the fetch size, 0 uses the driver default
+    */
+   void setFetchSize(int fetchSize);
+}
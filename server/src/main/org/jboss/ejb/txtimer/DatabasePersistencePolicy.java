@@ -27,20 +27,39 @@ import java.io.Serializable;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ejb.TimerService;
 import javax.management.ObjectName;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
 
 import org.jboss.ejb.ContainerMBean;
 import org.jboss.logging.Logger;
 import org.jboss.mx.util.MBeanProxyExt;
 import org.jboss.system.ServiceMBeanSupport;
+import org.jboss.tm.TransactionManagerFactory;
+import org.jboss.tm.TransactionManagerLocator;
 
 /**
  * This service implements a PersistencePolicy that persistes the timer to a
  * database.
  *
+ * When the BatchSize is positive and the plugin supports batching, inserts
+ * and deletes are written behind: they are queued when the calling
+ * transaction commits (or immediately when there is none) and written by a
+ * background thread in JDBC batches of up to BatchSize timers. An insert
+ * followed by a delete of the same timer in the queue is never written.
+ * Queued timers are lost if the server crashes before they are written.
+ *
  * @author Thomas.Diesler@jboss.org
  * @author Scott.Stark@jboss.org
  * @author Dimitris.Andreadis@jboss.org
@@ -66,6 +85,33 @@ public class DatabasePersistencePolicy extends ServiceMBeanSupport
    /** The persisted timers seen on startup */
    private List timersToRestore;
 
+   /** The maximum number of timers written in a batch, 0 writes synchronously */
+   private int batchSize = 0;
+   /** The number of rows fetched at a time when selecting timers */
+   private int fetchSize = 0;
+
+   /** The batching plugin, null when writing synchronously */
+   private DatabasePersistencePluginBatch batchPlugin;
+   /** The TransactionManagerFactory */
+   private TransactionManagerFactory transactionManagerFactory;
+   /** The transaction manager */
+   private TransactionManager tm;
+   /** The operations of the active transactions, Transaction -> TxOperations */
+   private Map txOperations = new ConcurrentHashMap();
+   /** The queued operations, guarded by itself */
+   private final LinkedList pending = new LinkedList();
+   /** Serializes the writers so the queue order is kept */
+   private final Object writeLock = new Object();
+   /** The background writer */
+   private Thread writer;
+   /** Whether the background writer should run */
+   private volatile boolean writing;
+
+   /** The number of batches written */
+   private final AtomicLong batchCount = new AtomicLong(0);
+   /** The number of timer operations written in batches */
+   private final AtomicLong batchedOperationCount = new AtomicLong(0);
+
    /**
     * Initializes this service.
     */
@@ -102,6 +148,57 @@ public class DatabasePersistencePolicy extends ServiceMBeanSupport
       
       // create the table if needed
       dbpPlugin.createTableIfNotExists();
+
+      if (dbpPlugin instanceof DatabasePersistencePluginBatch)
+         ((DatabasePersistencePluginBatch)dbpPlugin).setFetchSize(fetchSize);
+
+      // start the write behind
+      if (batchSize > 0)
+      {
+         if (dbpPlugin instanceof DatabasePersistencePluginBatch)
+         {
+            batchPlugin = (DatabasePersistencePluginBatch)dbpPlugin;
+            // Get the TransactionManager from the factory, fall-back to the locator
+            if (transactionManagerFactory != null)
+               tm = transactionManagerFactory.getTransactionManager();
+            else
+               tm = TransactionManagerLocator.getInstance().locate();
+            writing = true;
+            writer = new Thread(new Runnable()
+            {
+               public void run()
+               {
+                  writeBehind();
+               }
+            }, "EJB-Timer-Persistence");
+            writer.setDaemon(true);
+            writer.start();
+         }
+         else
+         {
+            log.warn("Database persistence plugin '" + dbpPluginClassName +
+                  "' does not support batching, writing timers synchronously");
+         }
+      }
+   }
+
+   /**
+    * Stops this service, writing the queued timers.
+    */
+   public void stopService() throws Exception
+   {
+      if (writer != null)
+      {
+         writing = false;
+         synchronized (pending)
+         {
+            pending.notifyAll();
+         }
+         writer.join();
+         writer = null;
+         flush();
+         batchPlugin = null;
+      }
    }
 
    /**
@@ -115,6 +212,11 @@ public class DatabasePersistencePolicy extends ServiceMBeanSupport
     */
    public void insertTimer(String timerId, TimedObjectId timedObjectId, Date firstEvent, long intervalDuration, Serializable info)
    {
+      if (batchPlugin != null)
+      {
+         enqueue(new Operation(true, new TimerHandleImpl(timerId, timedObjectId, firstEvent, intervalDuration, info)));
+         return;
+      }
       try
       {
          dbpPlugin.insertTimer(timerId, timedObjectId, firstEvent, intervalDuration, info);
@@ -134,6 +236,11 @@ public class DatabasePersistencePolicy extends ServiceMBeanSupport
     */
    public void deleteTimer(String timerId, TimedObjectId timedObjectId)
    {
+      if (batchPlugin != null)
+      {
+         enqueue(new Operation(false, new TimerHandleImpl(timerId, timedObjectId, null, 0, null)));
+         return;
+      }
       try
       {
          dbpPlugin.deleteTimer(timerId, timedObjectId);
@@ -154,6 +261,7 @@ public class DatabasePersistencePolicy extends ServiceMBeanSupport
    public List listTimerHandles(ObjectName containerId, ClassLoader loader)
    {
       List list = new ArrayList();
+      flush();
 
       ClassLoader oldCl = Thread.currentThread().getContextClassLoader();
       try
@@ -182,6 +290,7 @@ public class DatabasePersistencePolicy extends ServiceMBeanSupport
    public List listTimerHandles()
    {
       List list = new ArrayList();
+      flush();
       try
       {
          list.addAll(dbpPlugin.selectTimers(null));
@@ -229,6 +338,7 @@ public class DatabasePersistencePolicy extends ServiceMBeanSupport
     */
    public void clearTimers()
    {
+      flush();
       try
       {
          dbpPlugin.clearTimers();
@@ -246,6 +356,7 @@ public class DatabasePersistencePolicy extends ServiceMBeanSupport
     */ 
    public void resetAndRestoreTimers() throws SQLException
    {
+      flush();
       timersToRestore = dbpPlugin.selectTimers(null);
       log.debug("Found " + timersToRestore.size() + " timer(s)");
       if (timersToRestore.size() > 0)
@@ -290,6 +401,73 @@ public class DatabasePersistencePolicy extends ServiceMBeanSupport
       this.dbpPluginClassName = dbpPluginClass;
    }
    
+   /**
+    * @jmx.managed-attribute
+    */
+   public int getBatchSize()
+   {
+      return batchSize;
+   }
+
+   /**
+    * @jmx.managed-attribute
+    */
+   public void setBatchSize(int batchSize)
+   {
+      this.batchSize = batchSize;
+   }
+
+   /**
+    * @jmx.managed-attribute
+    */
+   public int getFetchSize()
+   {
+      return fetchSize;
+   }
+
+   /**
+    * @jmx.managed-attribute
+    */
+   public void setFetchSize(int fetchSize)
+   {
+      this.fetchSize = fetchSize;
+   }
+
+   /**
+    * Set the TransactionManagerFactory
+    */
+   public void setTransactionManagerFactory(TransactionManagerFactory factory)
+   {
+      this.transactionManagerFactory = factory;
+   }
+
+   /**
+    * @jmx.managed-attribute
+    */
+   public int getPendingCount()
+   {
+      synchronized (pending)
+      {
+         return pending.size();
+      }
+   }
+
+   /**
+    * @jmx.managed-attribute
+    */
+   public long getBatchCount()
+   {
+      return batchCount.get();
+   }
+
+   /**
+    * @jmx.managed-attribute
+    */
+   public long getBatchedOperationCount()
+   {
+      return batchedOperationCount.get();
+   }
+
    /**
     * @jmx.managed-attribute
     */
@@ -305,4 +483,220 @@ public class DatabasePersistencePolicy extends ServiceMBeanSupport
    {
       this.timersTable = timersTable;
    }   
+
+   // Write behind *****************************************************************************************************
+
+   /**
+    * Queue an operation when the current transaction commits,
+    * or right away when there is none.
+    */
+   private void enqueue(Operation op)
+   {
+      Transaction tx = null;
+      try
+      {
+         tx = tm.getTransaction();
+         if (tx != null && tx.getStatus() == Status.STATUS_ACTIVE)
+         {
+            TxOperations ops = (TxOperations)txOperations.get(tx);
+            if (ops == null)
+            {
+               ops = new TxOperations(tx);
+               tx.registerSynchronization(ops);
+               txOperations.put(tx, ops);
+            }
+            ops.operations.add(op);
+            return;
+         }
+      }
+      catch (Exception e)
+      {
+         log.debug("Cannot register timer operation with Tx: " + tx, e);
+      }
+
+      List ops = new ArrayList(1);
+      ops.add(op);
+      enqueue(ops);
+   }
+
+   private void enqueue(List ops)
+   {
+      synchronized (pending)
+      {
+         pending.addAll(ops);
+         pending.notifyAll();
+      }
+   }
+
+   /**
+    * The background writer loop
+    */
+   private void writeBehind()
+   {
+      while (writing)
+      {
+         try
+         {
+            synchronized (pending)
+            {
+               while (writing && pending.isEmpty())
+                  pending.wait();
+            }
+            flush();
+         }
+         catch (InterruptedException e)
+         {
+            break;
+         }
+         catch (Throwable t)
+         {
+            log.warn("Unable to write timers", t);
+         }
+      }
+   }
+
+   /**
+    * Write all the queued operations, in queue order
+    */
+   private void flush()
+   {
+      synchronized (writeLock)
+      {
+         while (true)
+         {
+            List batch = new ArrayList();
+            synchronized (pending)
+            {
+               while (pending.isEmpty() == false && batch.size() < batchSize)
+                  batch.add(pending.removeFirst());
+            }
+            if (batch.isEmpty())
+               return;
+            write(batch);
+         }
+      }
+   }
+
+   /**
+    * Write a batch of operations, each run of inserts or
+    * deletes is written with a single JDBC batch
+    */
+   private void write(List batch)
+   {
+      // drop inserts that are deleted in the same batch
+      Map inserts = new HashMap();
+      for (int i = 0; i < batch.size(); i++)
+      {
+         Operation op = (Operation)batch.get(i);
+         String key = op.getKey();
+         if (op.insert)
+         {
+            inserts.put(key, new Integer(i));
+         }
+         else
+         {
+            Integer index = (Integer)inserts.remove(key);
+            if (index != null)
+            {
+               batch.set(index.intValue(), null);
+               batch.set(i, null);
+            }
+         }
+      }
+
+      List run = new ArrayList();
+      boolean runInsert = false;
+      for (Iterator i = batch.iterator(); i.hasNext();)
+      {
+         Operation op = (Operation)i.next();
+         if (op == null)
+            continue;
+         if (run.isEmpty() == false && op.insert != runInsert)
+         {
+            writeRun(run, runInsert);
+            run.clear();
+         }
+         runInsert = op.insert;
+         run.add(op.handle);
+      }
+      if (run.isEmpty() == false)
+         writeRun(run, runInsert);
+   }
+
+   private void writeRun(List handles, boolean insert)
+   {
+      try
+      {
+         if (insert)
+            batchPlugin.insertTimers(handles);
+         else
+            batchPlugin.deleteTimers(handles);
+         batchCount.incrementAndGet();
+         batchedOperationCount.addAndGet(handles.size());
+      }
+      catch (SQLException e)
+      {
+         log.debug("Unable to write timer batch, writing timers one by one", e);
+         for (Iterator i = handles.iterator(); i.hasNext();)
+         {
+            TimerHandleImpl handle = (TimerHandleImpl)i.next();
+            try
+            {
+               if (insert)
+                  batchPlugin.insertTimer(handle.getTimerId(), handle.getTimedObjectId(), handle.getFirstTime(), handle.getPeriode(), handle.getInfo());
+               else
+                  batchPlugin.deleteTimer(handle.getTimerId(), handle.getTimedObjectId());
+            }
+            catch (SQLException ex)
+            {
+               log.warn("Unable to " + (insert ? "persist" : "delete") + " timer: " + handle.getTimerId(), ex);
+            }
+         }
+      }
+   }
+
+   /**
+    * A queued insert or delete
+    */
+   private static class Operation
+   {
+      final boolean insert;
+      final TimerHandleImpl handle;
+
+      Operation(boolean insert, TimerHandleImpl handle)
+      {
+         this.insert = insert;
+         this.handle = handle;
+      }
+
+      String getKey()
+      {
+         return handle.getTimerId() + handle.getTimedObjectId();
+      }
+   }
+
+   /**
+    * The operations of a transaction, queued on commit
+    */
+   private class TxOperations implements Synchronization
+   {
+      final Transaction tx;
+      final List operations = new ArrayList();
+
+      TxOperations(Transaction tx)
+      {
+         this.tx = tx;
+      }
+
+      public void beforeCompletion()
+      {
+      }
+
+      public void afterCompletion(int status)
+      {
+         txOperations.remove(tx);
+         if (status == Status.STATUS_COMMITTED)
+            enqueue(operations);
+      }
+   }
 }
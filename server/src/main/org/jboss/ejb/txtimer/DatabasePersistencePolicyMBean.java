@@ -27,6 +27,7 @@ import javax.management.ObjectName;
 
 import org.jboss.mx.util.ObjectNameFactory;
 import org.jboss.system.ServiceMBean;
+import org.jboss.tm.TransactionManagerFactory;
 
 /**
  * MBean interface.
@@ -54,6 +55,26 @@ public interface DatabasePersistencePolicyMBean extends ServiceMBean, Persistenc
    /** The timers table name */
    void setTimersTable(String tableName);
    String getTimersTable();
+
+   /** The maximum number of timers written in a batch, 0 writes synchronously */
+   void setBatchSize(int batchSize);
+   int getBatchSize();
+
+   /** The number of rows fetched at a time when selecting timers */
+   void setFetchSize(int fetchSize);
+   int getFetchSize();
+
+   /** The TransactionManagerFactory */
+   void setTransactionManagerFactory(TransactionManagerFactory factory);
+
+   /** The number of timer operations waiting to be written */
+   int getPendingCount();
+
+   /** The number of batches written */
+   long getBatchCount();
+
+   /** The number of timer operations written in batches */
+   long getBatchedOperationCount();
    
    // Operations ----------------------------------------------------
    
@@ -26,11 +26,11 @@ package org.jboss.ejb.txtimer;
 import java.lang.reflect.Constructor;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.Serializable;
 
 import javax.ejb.TimerService;
@@ -111,6 +111,10 @@ public class EJBTimerServiceImpl extends ServiceMBeanSupport
    private String timedObjectInvokerClassName;
    // The TransactionManagerFactory
    private TransactionManagerFactory transactionManagerFactory;
+   // The resolution of the timing wheel in milliseconds
+   private long tickMillis = 10;
+   // The number of threads delivering the timeouts
+   private int dispatchThreads = 20;
    
    // Plug-ins
 
@@ -122,9 +126,14 @@ public class EJBTimerServiceImpl extends ServiceMBeanSupport
    private PersistencePolicy persistencePolicy;
    // The timerId generator plug-in
    private TimerIdGenerator timerIdGenerator;   
+   // The wheel the timers are scheduled on
+   private TimingWheel timingWheel;
    
    // Maps the timedObjectId to TimerServiceImpl objects
-   private Map<TimedObjectId, TimerServiceImpl> timerServiceMap = Collections.synchronizedMap(new HashMap<TimedObjectId, TimerServiceImpl>());
+   private ConcurrentHashMap<TimedObjectId, TimerServiceImpl> timerServiceMap = new ConcurrentHashMap<TimedObjectId, TimerServiceImpl>();
+
+   // The expiration statistics of all timers
+   private TimerFireStatistics fireStatistics = new TimerFireStatistics();
 
    // Attributes ----------------------------------------------------
    
@@ -208,6 +217,98 @@ public class EJBTimerServiceImpl extends ServiceMBeanSupport
       this.timedObjectInvokerClassName = timedObjectInvokerClassName;
    }
 
+   /**
+    * Get the resolution of the timing wheel in milliseconds.
+    *
+    * @jmx.managed-attribute
+    */
+   public long getTickMillis()
+   {
+      return tickMillis;
+   }
+
+   /**
+    * Set the resolution of the timing wheel in milliseconds.
+    *
+    * @jmx.managed-attribute
+    */
+   public void setTickMillis(long tickMillis)
+   {
+      this.tickMillis = tickMillis;
+   }
+
+   /**
+    * Get the maximum number of timeouts delivered concurrently.
+    *
+    * @jmx.managed-attribute
+    */
+   public int getDispatchThreads()
+   {
+      return dispatchThreads;
+   }
+
+   /**
+    * Set the maximum number of timeouts delivered concurrently.
+    *
+    * @jmx.managed-attribute
+    */
+   public void setDispatchThreads(int dispatchThreads)
+   {
+      this.dispatchThreads = dispatchThreads;
+   }
+
+   /**
+    * Get the number of scheduled timer expirations.
+    *
+    * @jmx.managed-attribute
+    */
+   public int getScheduledTimeoutCount()
+   {
+      TimingWheel wheel = timingWheel;
+      return wheel != null ? wheel.size() : 0;
+   }
+
+   /**
+    * Get the number of expired timers waiting for a dispatch thread.
+    *
+    * @jmx.managed-attribute
+    */
+   public int getDispatchBacklog()
+   {
+      TimingWheel wheel = timingWheel;
+      return wheel != null ? wheel.getDispatchBacklog() : 0;
+   }
+
+   /**
+    * Get the number of timer expirations.
+    *
+    * @jmx.managed-attribute
+    */
+   public long getTimerFireCount()
+   {
+      return fireStatistics.getFireCount();
+   }
+
+   /**
+    * Get the average delay between the scheduled and actual timer expirations in milliseconds.
+    *
+    * @jmx.managed-attribute
+    */
+   public long getAverageTimerFireLag()
+   {
+      return fireStatistics.getAverageLag();
+   }
+
+   /**
+    * Get the maximum delay between the scheduled and actual timer expirations in milliseconds.
+    *
+    * @jmx.managed-attribute
+    */
+   public long getMaxTimerFireLag()
+   {
+      return fireStatistics.getMaxLag();
+   }
+
    /**
     * Set the TransactionManagerFactory
     */
@@ -260,11 +361,35 @@ public class EJBTimerServiceImpl extends ServiceMBeanSupport
          log.warn("Cannot obtain the implementation of a TimerIdGenerator, using BigIntegerTimerIdGenerator: " + e.toString());
          timerIdGenerator = new BigIntegerTimerIdGenerator();
       }
+
+      timingWheel = new TimingWheel("EJB-Timer", tickMillis, dispatchThreads);
+      timingWheel.start();
+
+      // Timer services created while the service was not started use the shared wheel
+      for (TimerServiceImpl timerService : timerServiceMap.values())
+         timerService.setTimingWheel(timingWheel);
    }
    
    protected void stopService()
    {
+      // The timeouts of the remaining timers are dropped with the wheel,
+      // kill the timers but keep their persistent state so they can be
+      // restored when their containers are started again
+      Iterator<TimerServiceImpl> it = timerServiceMap.values().iterator();
+      while (it.hasNext())
+      {
+         TimerServiceImpl timerService = it.next();
+         log.debug("removeTimerService: " + timerService);
+         timerService.shutdown(true);
+         it.remove();
+      }
+
       // Cleanup plugins
+      if (timingWheel != null)
+      {
+         timingWheel.stop();
+         timingWheel = null;
+      }
       transactionManager = null;
       retryPolicy = null;
       persistencePolicy = null;
@@ -317,8 +442,12 @@ public class EJBTimerServiceImpl extends ServiceMBeanSupport
       {
          timerService = new TimerServiceImpl(timedObjectId, invoker,
                transactionManager, persistencePolicy, retryPolicy, timerIdGenerator);
+         timerService.setFireStatistics(fireStatistics);
+         timerService.setTimingWheel(timingWheel);
+         TimerServiceImpl existing = timerServiceMap.putIfAbsent(timedObjectId, timerService);
+         if (existing != null)
+            return existing;
          log.debug("createTimerService: " + timerService);
-         timerServiceMap.put(timedObjectId, timerService);
       }
       return timerService;
    }
@@ -383,20 +512,17 @@ public class EJBTimerServiceImpl extends ServiceMBeanSupport
    public void removeTimerService(ObjectName containerId, boolean keepState) throws IllegalStateException
    {
       // remove all timers with the given containerId
-      synchronized(timerServiceMap)
+      Iterator<Map.Entry<TimedObjectId, TimerServiceImpl>> it = timerServiceMap.entrySet().iterator();
+      while (it.hasNext())
       {
-         Iterator<Map.Entry<TimedObjectId, TimerServiceImpl>> it = timerServiceMap.entrySet().iterator();
-         while (it.hasNext())
+         Map.Entry<TimedObjectId, TimerServiceImpl> entry = it.next();
+         TimedObjectId key = entry.getKey();
+         TimerServiceImpl timerService = entry.getValue();
+         if (containerId.equals(key.getContainerId()))
          {
-            Map.Entry<TimedObjectId, TimerServiceImpl> entry = it.next();
-            TimedObjectId key = entry.getKey();
-            TimerServiceImpl timerService = entry.getValue();
-            if (containerId.equals(key.getContainerId()))
-            {
-               log.debug("removeTimerService: " + timerService);
-               timerService.shutdown(keepState);
-               it.remove();
-            }
+            log.debug("removeTimerService: " + timerService);
+            timerService.shutdown(keepState);
+            it.remove();
          }
       }
    }
@@ -425,20 +551,17 @@ public class EJBTimerServiceImpl extends ServiceMBeanSupport
       // remove all timers with the given containerId
       else
       {
-         synchronized(timerServiceMap)
+         Iterator<Map.Entry<TimedObjectId, TimerServiceImpl>> it = timerServiceMap.entrySet().iterator();
+         while (it.hasNext())
          {
-            Iterator<Map.Entry<TimedObjectId, TimerServiceImpl>> it = timerServiceMap.entrySet().iterator();
-            while (it.hasNext())
+            Map.Entry<TimedObjectId, TimerServiceImpl> entry = it.next();
+            TimedObjectId key = (TimedObjectId) entry.getKey();
+            TimerServiceImpl timerService = (TimerServiceImpl) entry.getValue();
+            if (containerId.equals(key.getContainerId()))
             {
-               Map.Entry<TimedObjectId, TimerServiceImpl> entry = it.next();
-               TimedObjectId key = (TimedObjectId) entry.getKey();
-               TimerServiceImpl timerService = (TimerServiceImpl) entry.getValue();
-               if (containerId.equals(key.getContainerId()))
-               {
-                  log.debug("removeTimerService: " + timerService);
-                  timerService.shutdown(keepState);
-                  it.remove();
-               }
+               log.debug("removeTimerService: " + timerService);
+               timerService.shutdown(keepState);
+               it.remove();
             }
          }
       }      
@@ -500,6 +623,16 @@ public class EJBTimerServiceImpl extends ServiceMBeanSupport
 
    // EJBTimerServiceImplMbean operations ---------------------------
    
+   /**
+    * Reset the timer expiration statistics
+    *
+    * @jmx.managed-operation
+    */
+   public void resetTimerFireStatistics()
+   {
+      fireStatistics.reset();
+   }
+
    /**
     * List the timers registered with all TimerService objects
     *
@@ -508,24 +641,21 @@ public class EJBTimerServiceImpl extends ServiceMBeanSupport
    public String listTimers()
    {
       StringBuffer retBuffer = new StringBuffer();
-      synchronized(timerServiceMap)
+      Iterator<Map.Entry<TimedObjectId, TimerServiceImpl>> it = timerServiceMap.entrySet().iterator();
+      while (it.hasNext())
       {
-         Iterator<Map.Entry<TimedObjectId, TimerServiceImpl>> it = timerServiceMap.entrySet().iterator();
-         while (it.hasNext())
-         {
-            Map.Entry<TimedObjectId, TimerServiceImpl> entry = it.next();
-            TimedObjectId timedObjectId = (TimedObjectId) entry.getKey();
-            retBuffer.append(timedObjectId + "\n");
+         Map.Entry<TimedObjectId, TimerServiceImpl> entry = it.next();
+         TimedObjectId timedObjectId = (TimedObjectId) entry.getKey();
+         retBuffer.append(timedObjectId + "\n");
 
-            TimerServiceImpl timerService = (TimerServiceImpl) entry.getValue();
-            Collection col = timerService.getAllTimers();
-            for (Iterator iterator = col.iterator(); iterator.hasNext();)
-            {
-               TimerImpl timer = (TimerImpl) iterator.next();
-               TimerHandleImpl handle = new TimerHandleImpl(timer);
-               retBuffer.append("   handle: " + handle + "\n");
-               retBuffer.append("      " + timer + "\n");
-            }
+         TimerServiceImpl timerService = (TimerServiceImpl) entry.getValue();
+         Collection col = timerService.getAllTimers();
+         for (Iterator iterator = col.iterator(); iterator.hasNext();)
+         {
+            TimerImpl timer = (TimerImpl) iterator.next();
+            TimerHandleImpl handle = new TimerHandleImpl(timer);
+            retBuffer.append("   handle: " + handle + "\n");
+            retBuffer.append("      " + timer + "\n");
          }
       }
       return retBuffer.toString();
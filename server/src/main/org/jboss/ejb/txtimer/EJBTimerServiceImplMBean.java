@@ -61,6 +61,29 @@ public interface EJBTimerServiceImplMBean extends ServiceMBean, EJBTimerService
    /** The TransactionManagerFactory */
    void setTransactionManagerFactory(TransactionManagerFactory factory);
 
+   /** The resolution of the timing wheel in milliseconds */
+   void setTickMillis(long tickMillis);
+   long getTickMillis();
+
+   /** The maximum number of timeouts delivered concurrently */
+   void setDispatchThreads(int dispatchThreads);
+   int getDispatchThreads();
+
+   /** The number of scheduled timer expirations */
+   int getScheduledTimeoutCount();
+
+   /** The number of expired timers waiting for a dispatch thread */
+   int getDispatchBacklog();
+
+   /** The number of timer expirations */
+   long getTimerFireCount();
+
+   /** The average delay between the scheduled and actual timer expirations in milliseconds */
+   long getAverageTimerFireLag();
+
+   /** The maximum delay between the scheduled and actual timer expirations in milliseconds */
+   long getMaxTimerFireLag();
+
    // Operations ----------------------------------------------------
    
    /**
@@ -68,4 +91,9 @@ public interface EJBTimerServiceImplMBean extends ServiceMBean, EJBTimerService
     */
    String listTimers();
 
+   /**
+    * Reset the timer expiration statistics
+    */
+   void resetTimerFireStatistics();
+
 }
@@ -38,6 +38,7 @@ import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 
 import javax.management.MBeanServer;
@@ -63,7 +64,7 @@ import org.jboss.mx.util.ObjectNameFactory;
  * @version $Revision: 81500 $
  * @since 23-Sep-2004
  */
-public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersistencePluginExt
+public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersistencePluginBatch
 {
    /** logging support */
    private static Logger log = Logger.getLogger(GeneralPurposeDatabasePersistencePlugin.class);
@@ -86,6 +87,9 @@ public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersiste
    // default JDBC type code for binary data
    private int binarySqlType;
 
+   /** The number of rows fetched at a time when selecting timers */
+   protected int fetchSize;
+
    /**
     * Initialize the plugin and set also the timers tablename
     */
@@ -200,39 +204,43 @@ public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersiste
       {
          con = ds.getConnection();
 
-         String sql = "insert into " + getTableName() + " " +
-                 "(" + getColumnTimerID() + "," + getColumnTargetID() + "," + getColumnInitialDate() + "," + getColumnTimerInterval() + "," + getColumnInstancePK() + "," + getColumnInfo() + ") " +
-                 "values (?,?,?,?,?,?)";
-         st = con.prepareStatement(sql);
+         st = con.prepareStatement(getInsertSQL());
+         setInsertParameters(st, timerId, timedObjectId, initialExpiration, intervalDuration, info);
 
-         st.setString(1, timerId);
-         st.setString(2, timedObjectId.toString());
-         st.setTimestamp(3, new Timestamp(initialExpiration.getTime()));
-         st.setLong(4, intervalDuration);
+         int rows = st.executeUpdate();
+         if (rows != 1)
+            log.error("Unable to insert timer for: " + timedObjectId);
+      }
+      finally
+      {
+         JDBCUtil.safeClose(st);
+         JDBCUtil.safeClose(con);
+      }
+   }
 
-         byte[] bytes = serialize(timedObjectId.getInstancePk());
-         if(bytes == null)
-         {
-            st.setNull(5, binarySqlType);
-         }
-         else
-         {
-            st.setBytes(5, bytes);
-         }
+   /** Insert a batch of timers */
+   public void insertTimers(List handles) throws SQLException
+   {
+      Connection con = null;
+      PreparedStatement st = null;
+      try
+      {
+         con = ds.getConnection();
 
-         bytes = serialize(info);
-         if(bytes == null)
+         st = con.prepareStatement(getInsertSQL());
+         for (Iterator i = handles.iterator(); i.hasNext();)
          {
-            st.setNull(6, binarySqlType);
+            TimerHandleImpl handle = (TimerHandleImpl)i.next();
+            setInsertParameters(st, handle.getTimerId(), handle.getTimedObjectId(), handle.getFirstTime(), handle.getPeriode(), handle.getInfo());
+            st.addBatch();
          }
-         else
+
+         int[] rows = st.executeBatch();
+         for (int i = 0; i < rows.length; i++)
          {
-            st.setBytes(6, bytes);
+            if (rows[i] != 1 && rows[i] != Statement.SUCCESS_NO_INFO)
+               log.error("Unable to insert timer: " + handles.get(i));
          }
-
-         int rows = st.executeUpdate();
-         if (rows != 1)
-            log.error("Unable to insert timer for: " + timedObjectId);
       }
       finally
       {
@@ -241,6 +249,44 @@ public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersiste
       }
    }
 
+   /** The insert statement */
+   protected String getInsertSQL()
+   {
+      return "insert into " + getTableName() + " " +
+              "(" + getColumnTimerID() + "," + getColumnTargetID() + "," + getColumnInitialDate() + "," + getColumnTimerInterval() + "," + getColumnInstancePK() + "," + getColumnInfo() + ") " +
+              "values (?,?,?,?,?,?)";
+   }
+
+   /** Set the parameters of the insert statement */
+   protected void setInsertParameters(PreparedStatement st, String timerId, TimedObjectId timedObjectId, Date initialExpiration, long intervalDuration, Serializable info)
+           throws SQLException
+   {
+      st.setString(1, timerId);
+      st.setString(2, timedObjectId.toString());
+      st.setTimestamp(3, new Timestamp(initialExpiration.getTime()));
+      st.setLong(4, intervalDuration);
+
+      byte[] bytes = serialize(timedObjectId.getInstancePk());
+      if(bytes == null)
+      {
+         st.setNull(5, binarySqlType);
+      }
+      else
+      {
+         st.setBytes(5, bytes);
+      }
+
+      bytes = serialize(info);
+      if(bytes == null)
+      {
+         st.setNull(6, binarySqlType);
+      }
+      else
+      {
+         st.setBytes(6, bytes);
+      }
+   }
+
    /** Select a list of currently persisted timer handles
     * @return List<TimerHandleImpl>
     */
@@ -255,7 +301,9 @@ public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersiste
 
          List list = new ArrayList();
 
-         st = con.createStatement();
+         st = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+         if (fetchSize > 0)
+            st.setFetchSize(fetchSize);
          rs = st.executeQuery("select * from " + getTableName());
          while (rs.next())
          {
@@ -335,6 +383,33 @@ public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersiste
       }
    }
 
+   /** Delete a batch of timers */
+   public void deleteTimers(List handles) throws SQLException
+   {
+      Connection con = null;
+      PreparedStatement st = null;
+      try
+      {
+         con = ds.getConnection();
+
+         String sql = "delete from " + getTableName() + " where " + getColumnTimerID() + "=? and " + getColumnTargetID() + "=?";
+         st = con.prepareStatement(sql);
+         for (Iterator i = handles.iterator(); i.hasNext();)
+         {
+            TimerHandleImpl handle = (TimerHandleImpl)i.next();
+            st.setString(1, handle.getTimerId());
+            st.setString(2, handle.getTimedObjectId().toString());
+            st.addBatch();
+         }
+         st.executeBatch();
+      }
+      finally
+      {
+         JDBCUtil.safeClose(st);
+         JDBCUtil.safeClose(con);
+      }
+   }
+
    /** Clear all persisted timers */
    public void clearTimers()
            throws SQLException
@@ -356,6 +431,12 @@ public class GeneralPurposeDatabasePersistencePlugin implements DatabasePersiste
       }
    }
 
+   /** Set the number of rows fetched at a time when selecting timers */
+   public void setFetchSize(int fetchSize)
+   {
+      this.fetchSize = fetchSize;
+   }
+
    /** Get the timer table name */
    public String getTableName()
    {
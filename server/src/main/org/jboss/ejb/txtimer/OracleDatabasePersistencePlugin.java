@@ -56,9 +56,10 @@ public class OracleDatabasePersistencePlugin extends GeneralPurposeDatabasePersi
    private static Logger log = Logger.getLogger(OracleDatabasePersistencePlugin.class);
 
    /**
-    * Insert a timer object
+    * Set the parameters of the insert statement
     */
-   public void insertTimer(
+   protected void setInsertParameters(
+         PreparedStatement st,
          String timerId,
          TimedObjectId timedObjectId,
          Date initialExpiration,
@@ -66,54 +67,31 @@ public class OracleDatabasePersistencePlugin extends GeneralPurposeDatabasePersi
          Serializable info)
       throws SQLException
    {
-      Connection con = null;
-      PreparedStatement st = null;
-      try
-      {
-         con = ds.getConnection();
-
-         String sql = "insert into " + getTableName() + " " +
-                 "(" + getColumnTimerID() + "," + getColumnTargetID() +
-                 "," + getColumnInitialDate() + "," + getColumnTimerInterval() +
-                 "," + getColumnInstancePK() + "," + getColumnInfo() + ") " +
-                 "values (?,?,?,?,?,?)";
-         st = con.prepareStatement(sql);
-
-         st.setString(1, timerId);
-         st.setString(2, timedObjectId.toString());
-         st.setTimestamp(3, new Timestamp(initialExpiration.getTime()));
-         st.setLong(4, intervalDuration);
+      st.setString(1, timerId);
+      st.setString(2, timedObjectId.toString());
+      st.setTimestamp(3, new Timestamp(initialExpiration.getTime()));
+      st.setLong(4, intervalDuration);
 
-         byte[] pkArr = serialize(timedObjectId.getInstancePk());
-         if (pkArr != null)
-         {
-            InputStream is = new ByteArrayInputStream(pkArr);
-            st.setBinaryStream(5, is, pkArr.length);
-         }
-         else
-         {
-            st.setBytes(5, null);
-         }
-
-         byte[] infoArr = serialize(info);
-         if (infoArr != null)
-         {
-            InputStream is = new ByteArrayInputStream(infoArr);
-            st.setBinaryStream(6, is, infoArr.length);
-         }
-         else
-         {
-            st.setBytes(6, null);
-         }
+      byte[] pkArr = serialize(timedObjectId.getInstancePk());
+      if (pkArr != null)
+      {
+         InputStream is = new ByteArrayInputStream(pkArr);
+         st.setBinaryStream(5, is, pkArr.length);
+      }
+      else
+      {
+         st.setBytes(5, null);
+      }
 
-         int rows = st.executeUpdate();
-         if (rows != 1)
-            log.error("Unable to insert timer for: " + timedObjectId);
+      byte[] infoArr = serialize(info);
+      if (infoArr != null)
+      {
+         InputStream is = new ByteArrayInputStream(infoArr);
+         st.setBinaryStream(6, is, infoArr.length);
       }
-      finally
+      else
       {
-         JDBCUtil.safeClose(st);
-         JDBCUtil.safeClose(con);
+         st.setBytes(6, null);
       }
    }
 
@@ -133,7 +111,9 @@ public class OracleDatabasePersistencePlugin extends GeneralPurposeDatabasePersi
 
          List list = new ArrayList();
 
-         st = con.createStatement();
+         st = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+         if (fetchSize > 0)
+            st.setFetchSize(fetchSize);
          rs = st.executeQuery("select * from " + getTableName());
          while (rs.next())
          {
@@ -0,0 +1,79 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb.txtimer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics about the delay between the scheduled and the actual
+ * expiration of the timers of an EJBTimerService.
+ *
+ * @version $Revision: 81030 $
+ */
+public class TimerFireStatistics
+{
+   private final AtomicLong fireCount = new AtomicLong(0);
+   private final AtomicLong totalLag = new AtomicLong(0);
+   private final AtomicLong maxLag = new AtomicLong(0);
+
+   /**
+    * Record a timer expiration
+    *
+    * @param lag the milliseconds between the scheduled and actual expiration
+    */
+   public void fired(long lag)
+   {
+      if (lag < 0)
+         lag = 0;
+      fireCount.incrementAndGet();
+      totalLag.addAndGet(lag);
+      long max = maxLag.get();
+      while (lag > max && maxLag.compareAndSet(max, lag) == false)
+         max = maxLag.get();
+   }
+
+   /** The number of timer expirations */
+   public long getFireCount()
+   {
+      return fireCount.get();
+   }
+
+   /** The average delay of the timer expirations in milliseconds */
+   public long getAverageLag()
+   {
+      long count = fireCount.get();
+      return count == 0 ? 0 : totalLag.get() / count;
+   }
+
+   /** The maximum delay of a timer expiration in milliseconds */
+   public long getMaxLag()
+   {
+      return maxLag.get();
+   }
+
+   public void reset()
+   {
+      fireCount.set(0);
+      totalLag.set(0);
+      maxLag.set(0);
+   }
+}
@@ -25,8 +25,6 @@ package org.jboss.ejb.txtimer;
 
 import java.io.Serializable;
 import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import javax.ejb.EJBException;
 import javax.ejb.NoSuchObjectLocalException;
@@ -41,8 +39,8 @@ import org.jboss.logging.Logger;
 /**
  * An implementation of an EJB Timer.
  * 
- * Internally it uses a java.util.Timer and maintains its state in
- * a Tx manner.
+ * Internally it schedules its expirations on the TimingWheel of its
+ * TimerService and maintains its state in a Tx manner.
  *
  * @author Thomas.Diesler@jboss.org
  * @author Dimitris.Andreadis@jboss.org
@@ -96,7 +94,7 @@ public class TimerImpl implements javax.ejb.Timer, Synchronization
 
    private long nextExpire;
    private int timerState;
-   private Timer utilTimer;
+   private volatile TimingWheel.Timeout timeout;
    private int hashCode;
 
    /**
@@ -201,7 +199,7 @@ public class TimerImpl implements javax.ejb.Timer, Synchronization
       if (timerState != EXPIRED)
          setTimerState(CANCELED);
       timerService.removeTimer(this);
-      utilTimer.cancel();
+      cancelTimeout();
    }
 
    /**
@@ -211,7 +209,7 @@ public class TimerImpl implements javax.ejb.Timer, Synchronization
    {
       if (timerState != EXPIRED)
          setTimerState(CANCELED);
-      utilTimer.cancel();
+      cancelTimeout();
    }
 
    /**
@@ -222,7 +220,7 @@ public class TimerImpl implements javax.ejb.Timer, Synchronization
       log.debug("stopTimer: " + this);
       if (timerState != EXPIRED)
          setTimerState(CANCELED);
-      utilTimer.cancel();      
+      cancelTimeout();
    }
    
    /**
@@ -360,9 +358,6 @@ public class TimerImpl implements javax.ejb.Timer, Synchronization
 
    private void startInTx()
    {
-      // JBAS-4330, provide a meaningful name to the timer thread, needs jdk5+
-      utilTimer = new Timer("EJB-Timer-" + timerId + timedObjectId);
-      
       if (timerService.getTransaction() != null)
       {
          // don't schedule the timeout yet
@@ -383,12 +378,20 @@ public class TimerImpl implements javax.ejb.Timer, Synchronization
          killTimer();
    }
 
+   /**
+    * Schedule the next expiration, interval timers are rescheduled
+    * after each expiration relative to the first one
+    */
    private void scheduleTimeout()
    {
-      if (periode > 0)
-         utilTimer.schedule(new TimerTaskImpl(this), new Date(nextExpire), periode);
-      else
-         utilTimer.schedule(new TimerTaskImpl(this), new Date(nextExpire));      
+      timeout = timerService.getTimingWheel().schedule(new TimerTaskImpl(this, nextExpire), nextExpire);
+   }
+
+   private void cancelTimeout()
+   {
+      TimingWheel.Timeout current = timeout;
+      if (current != null)
+         current.cancel();
    }
    
    /**
@@ -519,23 +522,40 @@ public class TimerImpl implements javax.ejb.Timer, Synchronization
    // TimerTask ********************************************************************************************************
 
    /**
-    * The TimerTask's run method is invoked by the java.util.Timer
+    * The TimerTask's run method is invoked by a dispatch thread of the TimingWheel
     */
-   private class TimerTaskImpl extends TimerTask
+   private class TimerTaskImpl implements Runnable
    {
       private TimerImpl timer;
+      private long scheduledTime;
 
-      public TimerTaskImpl(TimerImpl timer)
+      public TimerTaskImpl(TimerImpl timer, long scheduledTime)
       {
          this.timer = timer;
+         this.scheduledTime = scheduledTime;
       }
 
       /**
        * The action to be performed by this txtimer task.
        */
       public void run()
+      {
+         try
+         {
+            runTimeout();
+         }
+         finally
+         {
+            // catch up with missed expirations in close succession
+            if (periode > 0 && isActive())
+               scheduleTimeout();
+         }
+      }
+
+      private void runTimeout()
       {
          log.debug("run: " + timer);
+         timerService.timerFired(System.currentTimeMillis() - scheduledTime);
 
          // Set next scheduled execution attempt. This is used only
          // for reporting (getTimeRemaining()/getNextTimeout())
@@ -75,6 +75,11 @@ public class TimerServiceImpl implements PersistentIdTimerService
    // Map<TimerHandleImpl,TimerImpl>
    private Map timers = new HashMap();
 
+   // The timer expiration statistics, may be null
+   private TimerFireStatistics fireStatistics;
+   // The wheel the timers are scheduled on, may be null
+   private TimingWheel timingWheel;
+
    // Constructors --------------------------------------------------
    
    /**
@@ -363,6 +368,43 @@ public class TimerServiceImpl implements PersistentIdTimerService
       }
    }
    
+   /**
+    * Set the wheel the timers are scheduled on
+    */
+   void setTimingWheel(TimingWheel timingWheel)
+   {
+      this.timingWheel = timingWheel;
+   }
+
+   /**
+    * Get the wheel the timers are scheduled on, the shared one if none was set
+    */
+   TimingWheel getTimingWheel()
+   {
+      if (timingWheel == null)
+         timingWheel = TimingWheel.getSharedInstance();
+      return timingWheel;
+   }
+
+   /**
+    * Set the statistics the timer expirations are recorded in
+    */
+   void setFireStatistics(TimerFireStatistics fireStatistics)
+   {
+      this.fireStatistics = fireStatistics;
+   }
+
+   /**
+    * Record the expiration of a txtimer
+    *
+    * @param lag the milliseconds between the scheduled and actual expiration
+    */
+   void timerFired(long lag)
+   {
+      if (fireStatistics != null)
+         fireStatistics.fired(lag);
+   }
+
    void retryTimeout(TimerImpl txtimer)
    {
       try
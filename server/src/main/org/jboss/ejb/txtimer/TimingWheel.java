@@ -0,0 +1,430 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb.txtimer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.logging.Logger;
+
+/**
+ * A hierarchical timing wheel that schedules the expirations of the EJB
+ * timers and hands them to a bounded pool of dispatch threads.
+ * 
+ * Time advances in ticks of tickMillis. Level 0 has one bucket per tick,
+ * each higher level has buckets spanning a whole rotation of the level
+ * below, so scheduling and cancelling a timeout is O(1) whatever the number
+ * of timers. When the lower bits of the current tick wrap, the current
+ * bucket of the next level is cascaded down into the finer levels.
+ * 
+ * A single ticker thread advances the wheel, the expired tasks are run by
+ * the dispatch threads.
+ *
+ * @version $Revision: 81030 $
+ */
+public class TimingWheel
+{
+   // logging support
+   private static Logger log = Logger.getLogger(TimingWheel.class);
+
+   /** The bits of the tick number covered by each level */
+   private static final int LEVEL_BITS = 8;
+   /** The number of buckets per level */
+   private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+   private static final int LEVEL_MASK = LEVEL_SIZE - 1;
+   /** The number of levels, enough for 2^48 ticks */
+   private static final int LEVELS = 6;
+   /** The largest delay in ticks the levels can hold */
+   private static final long MAX_DELAY = (1L << (LEVEL_BITS * LEVELS)) - 1;
+
+   /** The default wheel shared by timer services not given one */
+   private static TimingWheel sharedInstance;
+
+   /** The milliseconds per tick */
+   private final long tickMillis;
+   /** The buckets, [level][index] */
+   private final Timeout[][] buckets = new Timeout[LEVELS][LEVEL_SIZE];
+   /** The last tick processed, guarded by this */
+   private long currentTick;
+   /** The number of scheduled timeouts, guarded by this */
+   private int size;
+
+   /** The dispatch threads */
+   private final ThreadPoolExecutor dispatcher;
+   /** The ticker */
+   private Thread ticker;
+   private volatile boolean running;
+
+   /**
+    * Create a timing wheel
+    * 
+    * @param name the prefix of the thread names
+    * @param tickMillis the resolution of the wheel in milliseconds
+    * @param dispatchThreads the maximum number of concurrently running tasks
+    */
+   public TimingWheel(final String name, long tickMillis, int dispatchThreads)
+   {
+      if (tickMillis < 1)
+         throw new IllegalArgumentException("Illegal tick: " + tickMillis);
+      if (dispatchThreads < 1)
+         throw new IllegalArgumentException("Illegal number of dispatch threads: " + dispatchThreads);
+      this.tickMillis = tickMillis;
+      this.currentTick = System.currentTimeMillis() / tickMillis;
+      dispatcher = new ThreadPoolExecutor(dispatchThreads, dispatchThreads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+            {
+               private final AtomicInteger count = new AtomicInteger(0);
+
+               public Thread newThread(Runnable r)
+               {
+                  Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                  thread.setDaemon(true);
+                  return thread;
+               }
+            });
+      dispatcher.allowCoreThreadTimeOut(true);
+   }
+
+   /**
+    * Get the wheel shared by the timer services that were not given one
+    */
+   public static synchronized TimingWheel getSharedInstance()
+   {
+      if (sharedInstance == null)
+      {
+         sharedInstance = new TimingWheel("EJB-Timer", 10, Runtime.getRuntime().availableProcessors() * 2);
+         sharedInstance.start();
+      }
+      return sharedInstance;
+   }
+
+   /**
+    * Start the ticker
+    */
+   public synchronized void start()
+   {
+      if (running)
+         return;
+      running = true;
+      currentTick = System.currentTimeMillis() / tickMillis;
+      ticker = new Thread(new Runnable()
+      {
+         public void run()
+         {
+            tickLoop();
+         }
+      }, "EJB-Timer-Wheel");
+      ticker.setDaemon(true);
+      ticker.start();
+   }
+
+   /**
+    * Stop the ticker and the dispatch threads, the
+    * scheduled timeouts are dropped.
+    */
+   public void stop()
+   {
+      Thread thread;
+      synchronized (this)
+      {
+         running = false;
+         thread = ticker;
+         ticker = null;
+         for (int level = 0; level < LEVELS; level++)
+            for (int index = 0; index < LEVEL_SIZE; index++)
+               buckets[level][index] = null;
+         size = 0;
+      }
+      if (thread != null)
+         thread.interrupt();
+      dispatcher.shutdown();
+   }
+
+   /**
+    * Schedule a task
+    * 
+    * @param task the task
+    * @param when the time in milliseconds at which the task should run
+    * @return the timeout that can be used to cancel the task
+    */
+   public Timeout schedule(Runnable task, long when)
+   {
+      Timeout timeout = new Timeout(task, when);
+      boolean expired;
+      synchronized (this)
+      {
+         expired = add(timeout) == false;
+      }
+      if (expired)
+         dispatch(timeout);
+      return timeout;
+   }
+
+   /**
+    * The number of scheduled timeouts
+    */
+   public synchronized int size()
+   {
+      return size;
+   }
+
+   /**
+    * The number of expired tasks waiting for a dispatch thread
+    */
+   public int getDispatchBacklog()
+   {
+      return dispatcher.getQueue().size();
+   }
+
+   public long getTickMillis()
+   {
+      return tickMillis;
+   }
+
+   /**
+    * Add a timeout to its bucket, guarded by this
+    * 
+    * @return false when it is already expired
+    */
+   private boolean add(Timeout timeout)
+   {
+      long delay = timeout.tick - currentTick;
+      if (delay <= 0)
+         return false;
+
+      // Timeouts beyond the wheel wait in the last level and get cascaded again
+      long tick = timeout.tick;
+      if (delay > MAX_DELAY)
+      {
+         delay = MAX_DELAY;
+         tick = currentTick + MAX_DELAY;
+      }
+
+      int level = 0;
+      while (delay >= (1L << (LEVEL_BITS * (level + 1))))
+         ++level;
+      int index = (int) (tick >>> (LEVEL_BITS * level)) & LEVEL_MASK;
+
+      Timeout head = buckets[level][index];
+      timeout.next = head;
+      timeout.prev = null;
+      if (head != null)
+         head.prev = timeout;
+      buckets[level][index] = timeout;
+      timeout.level = level;
+      timeout.index = index;
+      ++size;
+      return true;
+   }
+
+   /**
+    * Remove a timeout from its bucket, guarded by this
+    */
+   private void unlink(Timeout timeout)
+   {
+      if (timeout.level < 0)
+         return;
+      if (timeout.prev != null)
+         timeout.prev.next = timeout.next;
+      else
+         buckets[timeout.level][timeout.index] = timeout.next;
+      if (timeout.next != null)
+         timeout.next.prev = timeout.prev;
+      timeout.next = null;
+      timeout.prev = null;
+      timeout.level = -1;
+      --size;
+   }
+
+   /**
+    * Advance the wheel to the given tick
+    * 
+    * @param tick the tick
+    * @param expired the list the expired timeouts are added to
+    */
+   private synchronized void advance(long tick, List<Timeout> expired)
+   {
+      // After a clock jump re-adding everything is cheaper than walking the ticks
+      if (tick - currentTick > LEVEL_SIZE * LEVEL_SIZE)
+      {
+         List<Timeout> all = new ArrayList<Timeout>(size);
+         for (int level = 0; level < LEVELS; level++)
+         {
+            for (int index = 0; index < LEVEL_SIZE; index++)
+            {
+               for (Timeout timeout = buckets[level][index]; timeout != null; timeout = timeout.next)
+                  all.add(timeout);
+               buckets[level][index] = null;
+            }
+         }
+         size = 0;
+         currentTick = tick;
+         for (int i = 0; i < all.size(); i++)
+         {
+            Timeout timeout = all.get(i);
+            timeout.next = null;
+            timeout.prev = null;
+            timeout.level = -1;
+            if (add(timeout) == false)
+               expired.add(timeout);
+         }
+         return;
+      }
+
+      while (currentTick < tick)
+      {
+         ++currentTick;
+
+         // Cascade the higher levels whose lower bits wrapped
+         for (int level = 1; level < LEVELS; level++)
+         {
+            if ((currentTick & ((1L << (LEVEL_BITS * level)) - 1)) != 0)
+               break;
+            int index = (int) (currentTick >>> (LEVEL_BITS * level)) & LEVEL_MASK;
+            Timeout timeout = buckets[level][index];
+            buckets[level][index] = null;
+            while (timeout != null)
+            {
+               Timeout next = timeout.next;
+               timeout.next = null;
+               timeout.prev = null;
+               timeout.level = -1;
+               --size;
+               if (add(timeout) == false)
+                  expired.add(timeout);
+               timeout = next;
+            }
+         }
+
+         // Expire the current bucket
+         int index = (int) currentTick & LEVEL_MASK;
+         Timeout timeout = buckets[0][index];
+         buckets[0][index] = null;
+         while (timeout != null)
+         {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            timeout.prev = null;
+            timeout.level = -1;
+            --size;
+            expired.add(timeout);
+            timeout = next;
+         }
+      }
+   }
+
+   private void tickLoop()
+   {
+      List<Timeout> expired = new ArrayList<Timeout>();
+      while (running)
+      {
+         try
+         {
+            long now = System.currentTimeMillis();
+            advance(now / tickMillis, expired);
+            for (int i = 0; i < expired.size(); i++)
+               dispatch(expired.get(i));
+            expired.clear();
+
+            long sleep = tickMillis - (System.currentTimeMillis() % tickMillis);
+            Thread.sleep(sleep);
+         }
+         catch (InterruptedException e)
+         {
+            // stopped
+         }
+         catch (Throwable t)
+         {
+            log.error("Error advancing the timer wheel", t);
+         }
+      }
+   }
+
+   private void dispatch(Timeout timeout)
+   {
+      if (timeout.cancelled)
+         return;
+      try
+      {
+         dispatcher.execute(timeout.task);
+      }
+      catch (Throwable t)
+      {
+         log.warn("Cannot dispatch timeout, the wheel is stopped: " + timeout.task, t);
+      }
+   }
+
+   /**
+    * A scheduled task
+    */
+   public class Timeout
+   {
+      private final Runnable task;
+      private final long when;
+      /** The tick at which it expires, the first tick not before when */
+      private final long tick;
+      private volatile boolean cancelled;
+
+      // The bucket, guarded by the wheel
+      private Timeout prev;
+      private Timeout next;
+      private int level = -1;
+      private int index;
+
+      Timeout(Runnable task, long when)
+      {
+         this.task = task;
+         this.when = when;
+         this.tick = when > Long.MAX_VALUE - tickMillis ? Long.MAX_VALUE / tickMillis : (when + tickMillis - 1) / tickMillis;
+      }
+
+      /**
+       * The time in milliseconds at which the task should run
+       */
+      public long getWhen()
+      {
+         return when;
+      }
+
+      /**
+       * Cancel the task, it will not run unless it is already dispatched
+       */
+      public void cancel()
+      {
+         cancelled = true;
+         synchronized (TimingWheel.this)
+         {
+            unlink(this);
+         }
+      }
+
+      public boolean isCancelled()
+      {
+         return cancelled;
+      }
+   }
+}
@@ -76,6 +76,13 @@ public class Invocation
    public Method method;
    public InvocationType invocationType;
 
+   /**
+    * The index of the invoked method in the method table of the target
+    * container, -1 if not yet resolved. This is a local lookup hint and is
+    * never marshalled.
+    */
+   public int methodIndex = -1;
+
    // The variables used to indicate what type of data and where to put it.
 
    //
@@ -292,6 +299,24 @@ public class Invocation
    {
       return method;
    }
+
+   /**
+    * Set the index of the method in the method table of the target container.
+    */
+   public void setMethodIndex(int methodIndex)
+   {
+      this.methodIndex = methodIndex;
+   }
+
+   /**
+    * Get the index of the method in the method table of the target container.
+    *
+    * @return the index or -1 if not resolved
+    */
+   public int getMethodIndex()
+   {
+      return methodIndex;
+   }
    
    /**
     * A list of arguments for the method.
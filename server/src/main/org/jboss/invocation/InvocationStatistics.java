@@ -21,15 +21,28 @@
  */
 package org.jboss.invocation;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-
-import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /** A method invocation statistics collection class.
+ *
+ * Updates are lock free. The per method counters are striped over a small
+ * number of padded cells picked by the calling thread so concurrent calls of
+ * the same method rarely touch the same cache line, and every method keeps a
+ * {@link LatencyHistogram} of its invocation times in microseconds from which
+ * the p50/p99/p999 latencies are derived.
+ *
+ * The public fields are kept for compatibility. Those of a TimeStatistic are
+ * refreshed from the counters by {@link #getStats()} and on serialization.
  *
  * @author Scott.Stark@jboss.org
  * @version $Revision: 89743 $
@@ -40,12 +53,38 @@ public class InvocationStatistics
    /** @since 4.2.0 */
    private static final long serialVersionUID = -8031193044335393420L;
 
+   private static final AtomicLongFieldUpdater<InvocationStatistics> CONCURRENT_CALLS =
+      AtomicLongFieldUpdater.newUpdater(InvocationStatistics.class, "concurrentCalls");
+   private static final AtomicLongFieldUpdater<InvocationStatistics> MAX_CONCURRENT_CALLS =
+      AtomicLongFieldUpdater.newUpdater(InvocationStatistics.class, "maxConcurrentCalls");
+
+   /** The number of stripes, a power of two */
+   private static final int STRIPES;
+   /** The number of longs per stripe, 64 bytes to keep stripes on separate cache lines */
+   private static final int STRIPE_SIZE = 8;
+   private static final int COUNT = 0;
+   private static final int TOTAL = 1;
+   private static final int MIN = 2;
+   private static final int MAX = 3;
+
+   static
+   {
+      int cpus = Math.min(Runtime.getRuntime().availableProcessors(), 16);
+      int stripes = 1;
+      while (stripes < cpus)
+         stripes <<= 1;
+      STRIPES = stripes;
+   }
+
    /** A HashMap<Method, TimeStatistic> of the method invocations */
-   private Map<Method, TimeStatistic> methodStats;
+   private ConcurrentHashMap<Method, TimeStatistic> methodStats;
+
+   public volatile long concurrentCalls = 0;
+   public volatile long maxConcurrentCalls = 0;
+   public volatile long lastResetTime = System.currentTimeMillis();
 
-   public long concurrentCalls = 0;
-   public long maxConcurrentCalls = 0;
-   public long lastResetTime = System.currentTimeMillis();
+   /** Incremented by every resetStats() so snapshots can detect a reset */
+   private volatile int resetGeneration;
 
    public class TimeStatistic
       implements Serializable
@@ -53,57 +92,349 @@ public class InvocationStatistics
       /** @since 4.2.0 */
       private static final long serialVersionUID = -8689933338506854386L;
 
+      /** The values as of the last refresh(), times are in milliseconds */
       public volatile long count;
       public volatile long minTime = Long.MAX_VALUE;
       public volatile long maxTime;
       public volatile long totalTime;
 
+      /** The striped count, total, min and max with times in nanoseconds */
+      private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIPE_SIZE);
+
+      /** The invocation times in microseconds */
+      private final LatencyHistogram histogram = new LatencyHistogram();
+
+      public TimeStatistic()
+      {
+         clearCells();
+      }
+
+      /**
+       * Record an invocation.
+       *
+       * @param elapsed the invocation time in nanoseconds
+       */
+      public void record(long elapsed)
+      {
+         int base = stripe() * STRIPE_SIZE;
+         cells.incrementAndGet(base + COUNT);
+         cells.addAndGet(base + TOTAL, elapsed);
+         long current;
+         while (elapsed < (current = cells.get(base + MIN)))
+         {
+            if (cells.compareAndSet(base + MIN, current, elapsed))
+               break;
+         }
+         while (elapsed > (current = cells.get(base + MAX)))
+         {
+            if (cells.compareAndSet(base + MAX, current, elapsed))
+               break;
+         }
+         histogram.record(elapsed / 1000);
+      }
+
+      public long getCount()
+      {
+         long sum = 0;
+         for (int i = 0; i < STRIPES; ++i)
+            sum += cells.get(i * STRIPE_SIZE + COUNT);
+         return sum;
+      }
+
+      /**
+       * @return the total invocation time in nanoseconds
+       */
+      public long getTotalTimeNanos()
+      {
+         long sum = 0;
+         for (int i = 0; i < STRIPES; ++i)
+            sum += cells.get(i * STRIPE_SIZE + TOTAL);
+         return sum;
+      }
+
+      /**
+       * @return the minimum invocation time in nanoseconds or Long.MAX_VALUE
+       */
+      public long getMinTimeNanos()
+      {
+         long min = Long.MAX_VALUE;
+         for (int i = 0; i < STRIPES; ++i)
+            min = Math.min(min, cells.get(i * STRIPE_SIZE + MIN));
+         return min;
+      }
+
+      /**
+       * @return the maximum invocation time in nanoseconds
+       */
+      public long getMaxTimeNanos()
+      {
+         long max = 0;
+         for (int i = 0; i < STRIPES; ++i)
+            max = Math.max(max, cells.get(i * STRIPE_SIZE + MAX));
+         return max;
+      }
+
+      /**
+       * @return a copy of the latency histogram counts, see {@link LatencyHistogram}
+       */
+      public long[] getHistogram()
+      {
+         return histogram.getCounts();
+      }
+
+      /**
+       * @param percentile the percentile, 0 to 100
+       * @return the invocation time at the percentile in microseconds
+       */
+      public long getPercentile(double percentile)
+      {
+         return LatencyHistogram.valueAtPercentile(histogram.getCounts(), percentile);
+      }
+
+      /**
+       * Copy the current counters to the public fields.
+       */
+      public void refresh()
+      {
+         long min = getMinTimeNanos();
+         count = getCount();
+         minTime = min == Long.MAX_VALUE ? min : min / 1000000;
+         maxTime = getMaxTimeNanos() / 1000000;
+         totalTime = getTotalTimeNanos() / 1000000;
+      }
+
       public void reset()
       {
-         count = 0;
-         minTime = Long.MAX_VALUE;
-         maxTime = 0;
-         totalTime = 0;
+         clearCells();
+         histogram.reset();
+         refresh();
+      }
+
+      private void clearCells()
+      {
+         for (int i = 0; i < STRIPES; ++i)
+         {
+            int base = i * STRIPE_SIZE;
+            cells.set(base + COUNT, 0);
+            cells.set(base + TOTAL, 0);
+            cells.set(base + MIN, Long.MAX_VALUE);
+            cells.set(base + MAX, 0);
+         }
+      }
+
+      private void writeObject(ObjectOutputStream out) throws IOException
+      {
+         refresh();
+         out.defaultWriteObject();
+      }
+   }
+
+   /**
+    * The per method counters at a point in time. Snapshots are taken without
+    * resetting anything, the activity of an interval is the difference of two
+    * snapshots, see {@link Snapshot#since(Snapshot)}.
+    */
+   public static class MethodSnapshot
+   {
+      private final long count;
+      private final long totalTime;
+      private final long[] histogram;
+
+      MethodSnapshot(long count, long totalTime, long[] histogram)
+      {
+         this.count = count;
+         this.totalTime = totalTime;
+         this.histogram = histogram;
+      }
+
+      public long getCount()
+      {
+         return count;
+      }
+
+      /**
+       * @return the total invocation time in nanoseconds
+       */
+      public long getTotalTimeNanos()
+      {
+         return totalTime;
+      }
+
+      /**
+       * @return the invocation time at the percentile in microseconds
+       */
+      public long getPercentile(double percentile)
+      {
+         return LatencyHistogram.valueAtPercentile(histogram, percentile);
+      }
+
+      /**
+       * @return the highest invocation time in microseconds, to histogram precision
+       */
+      public long getMaxTime()
+      {
+         return LatencyHistogram.maxValue(histogram);
+      }
+
+      MethodSnapshot since(MethodSnapshot earlier)
+      {
+         if (earlier == null)
+            return this;
+         return new MethodSnapshot(count - earlier.count, totalTime - earlier.totalTime,
+            LatencyHistogram.subtract(histogram, earlier.histogram));
+      }
+   }
+
+   /**
+    * The counters of all methods at a point in time.
+    */
+   public static class Snapshot
+   {
+      private final long time;
+      private final InvocationStatistics source;
+      private final int resetGeneration;
+      private final long concurrentCalls;
+      private final Map<Method, MethodSnapshot> methods;
+
+      Snapshot(InvocationStatistics source, long time, int resetGeneration, long concurrentCalls,
+         Map<Method, MethodSnapshot> methods)
+      {
+         this.source = source;
+         this.time = time;
+         this.resetGeneration = resetGeneration;
+         this.concurrentCalls = concurrentCalls;
+         this.methods = Collections.unmodifiableMap(methods);
+      }
+
+      /**
+       * @return the time the snapshot was taken
+       */
+      public long getTime()
+      {
+         return time;
+      }
+
+      public long getConcurrentCalls()
+      {
+         return concurrentCalls;
+      }
+
+      /**
+       * @return the method snapshots indexed by method
+       */
+      public Map<Method, MethodSnapshot> getMethods()
+      {
+         return methods;
+      }
+
+      /**
+       * Get the activity between an earlier snapshot and this one. If the
+       * statistics were reset in between or the earlier snapshot was taken of
+       * other statistics, this snapshot is returned.
+       *
+       * @param earlier the earlier snapshot, may be null
+       * @return the snapshot of the interval
+       */
+      public Snapshot since(Snapshot earlier)
+      {
+         if (earlier == null || earlier.source != source || earlier.resetGeneration != resetGeneration)
+            return this;
+
+         Map<Method, MethodSnapshot> delta = new HashMap<Method, MethodSnapshot>();
+         for (Map.Entry<Method, MethodSnapshot> entry : methods.entrySet())
+         {
+            MethodSnapshot interval = entry.getValue().since(earlier.methods.get(entry.getKey()));
+            if (interval.getCount() > 0)
+               delta.put(entry.getKey(), interval);
+         }
+         return new Snapshot(source, time, resetGeneration, concurrentCalls, delta);
+      }
+
+      /** Generate an XML fragment for the snapshot. The format is
+       * <InvocationStatistics concurrentCalls="c" time="t">
+       *    <method name="aMethod" count="x" totalTime="t" p50="a" p99="b" p999="c" maxTime="m" />
+       *    ...
+       * </InvocationStatistics>
+       * with totalTime in milliseconds and the latencies in microseconds.
+       */
+      public String toString()
+      {
+         StringBuffer tmp = new StringBuffer("<InvocationStatistics concurrentCalls='");
+         tmp.append(concurrentCalls);
+         tmp.append("' time='");
+         tmp.append(time);
+         tmp.append("' >\n");
+         for (Map.Entry<Method, MethodSnapshot> entry : methods.entrySet())
+         {
+            MethodSnapshot stat = entry.getValue();
+            tmp.append("<method name='");
+            tmp.append(entry.getKey());
+            tmp.append("' count='");
+            tmp.append(stat.getCount());
+            tmp.append("' totalTime='");
+            tmp.append(stat.getTotalTimeNanos() / 1000000);
+            tmp.append("' p50='");
+            tmp.append(stat.getPercentile(50));
+            tmp.append("' p99='");
+            tmp.append(stat.getPercentile(99));
+            tmp.append("' p999='");
+            tmp.append(stat.getPercentile(99.9));
+            tmp.append("' maxTime='");
+            tmp.append(stat.getMaxTime());
+            tmp.append("' />\n");
+         }
+         tmp.append("</InvocationStatistics>");
+         return tmp.toString();
       }
    }
 
    public InvocationStatistics()
    {
-      methodStats = new ConcurrentReaderHashMap();
+      methodStats = new ConcurrentHashMap<Method, TimeStatistic>();
    }
 
-   /** Update the TimeStatistic for the given method. This synchronizes on
-    * m to ensure that the TimeStatistic for m is updated atomically.
+   /** Update the TimeStatistic for the given method.
     *
     * @param m the method to update the statistics for.
     * @param elapsed the elapsed time in milliseconds for the invocation.
     */
    public void updateStats(Method m, long elapsed)
+   {
+      updateStatsNanos(m, elapsed * 1000000);
+   }
+
+   /** Update the TimeStatistic for the given method.
+    *
+    * @param m the method to update the statistics for.
+    * @param elapsed the elapsed time in nanoseconds for the invocation.
+    */
+   public void updateStatsNanos(Method m, long elapsed)
    {
       TimeStatistic stat = methodStats.get(m);
       if (stat == null)
       {
          stat = new TimeStatistic();
-         methodStats.put(m, stat);
+         TimeStatistic existing = methodStats.putIfAbsent(m, stat);
+         if (existing != null)
+            stat = existing;
       }
-      stat.count++;
-      stat.totalTime += elapsed;
-      if (stat.minTime > elapsed)
-         stat.minTime = elapsed;
-      if (stat.maxTime < elapsed)
-         stat.maxTime = elapsed;
+      stat.record(elapsed);
    }
 
-   public synchronized void callIn()
+   public void callIn()
    {
-      concurrentCalls++;
-      if (concurrentCalls > maxConcurrentCalls)
-         maxConcurrentCalls = concurrentCalls;
+      long calls = CONCURRENT_CALLS.incrementAndGet(this);
+      long max;
+      while (calls > (max = maxConcurrentCalls))
+      {
+         if (MAX_CONCURRENT_CALLS.compareAndSet(this, max, calls))
+            break;
+      }
    }
 
-   public synchronized void callOut()
+   public void callOut()
    {
-      concurrentCalls--;
+      CONCURRENT_CALLS.decrementAndGet(this);
    }
 
    /** Resets all current TimeStatistics.
@@ -111,14 +442,12 @@ public class InvocationStatistics
     */
    public void resetStats()
    {
-      synchronized (methodStats)
+      resetGeneration++;
+      Iterator<TimeStatistic> iter = methodStats.values().iterator();
+      while (iter.hasNext())
       {
-         Iterator iter = methodStats.values().iterator();
-         while (iter.hasNext())
-         {
-            TimeStatistic stat = (TimeStatistic) iter.next();
-            stat.reset();
-         }
+         TimeStatistic stat = iter.next();
+         stat.reset();
       }
       maxConcurrentCalls = 0;
       lastResetTime = System.currentTimeMillis();
@@ -130,14 +459,40 @@ public class InvocationStatistics
     */
    public Map getStats()
    {
+      for (TimeStatistic stat : methodStats.values())
+         stat.refresh();
       return methodStats;
    }
 
+   /**
+    * Take a snapshot of the counters of all methods. Nothing is reset so any
+    * number of observers can track their own intervals.
+    *
+    * @return the snapshot
+    */
+   public Snapshot snapshot()
+   {
+      Map<Method, MethodSnapshot> methods = new HashMap<Method, MethodSnapshot>();
+      for (Map.Entry<Method, TimeStatistic> entry : methodStats.entrySet())
+      {
+         TimeStatistic stat = entry.getValue();
+         methods.put(entry.getKey(), new MethodSnapshot(stat.getCount(), stat.getTotalTimeNanos(), stat.getHistogram()));
+      }
+      return new Snapshot(this, System.currentTimeMillis(), resetGeneration, concurrentCalls, methods);
+   }
+
+   private void writeObject(ObjectOutputStream out) throws IOException
+   {
+      getStats();
+      out.defaultWriteObject();
+   }
+
    /** Generate an XML fragement for the InvocationStatistics. The format is
     * <InvocationStatistics concurrentCalls="c">
-    *    <method name="aMethod" count="x" minTime="y" maxTime="z" totalTime="t" />
+    *    <method name="aMethod" count="x" minTime="y" maxTime="z" totalTime="t" p50="a" p99="b" p999="c" />
     *    ...
     * </InvocationStatistics>
+    * with the times in milliseconds and the percentiles in microseconds.
     *
     * @return an XML representation of the InvocationStatistics
     */
@@ -154,6 +509,8 @@ public class InvocationStatistics
          TimeStatistic stat = (TimeStatistic) entry.getValue();
          if (stat != null)
          {
+            stat.refresh();
+            long[] histogram = stat.getHistogram();
             tmp.append("<method name='");
             tmp.append(entry.getKey());
             tmp.append("' count='");
@@ -164,6 +521,12 @@ public class InvocationStatistics
             tmp.append(stat.maxTime);
             tmp.append("' totalTime='");
             tmp.append(stat.totalTime);
+            tmp.append("' p50='");
+            tmp.append(LatencyHistogram.valueAtPercentile(histogram, 50));
+            tmp.append("' p99='");
+            tmp.append(LatencyHistogram.valueAtPercentile(histogram, 99));
+            tmp.append("' p999='");
+            tmp.append(LatencyHistogram.valueAtPercentile(histogram, 99.9));
             tmp.append("' />\n");
          }
       }
@@ -189,11 +552,16 @@ public class InvocationStatistics
       for (Map.Entry<Method, TimeStatistic> entry : methodStats.entrySet())
       {
          TimeStatistic stats = entry.getValue();
+         stats.refresh();
+         long[] histogram = stats.getHistogram();
          Map<String, Long> detypedStats = new HashMap<String, Long>(methodStats.size());
          detypedStats.put("count", stats.count);
          detypedStats.put("minTime", stats.minTime);
          detypedStats.put("maxTime", stats.maxTime);
          detypedStats.put("totalTime", stats.totalTime);
+         detypedStats.put("p50", LatencyHistogram.valueAtPercentile(histogram, 50));
+         detypedStats.put("p99", LatencyHistogram.valueAtPercentile(histogram, 99));
+         detypedStats.put("p999", LatencyHistogram.valueAtPercentile(histogram, 99.9));
          detyped.put(entry.getKey().getName(), detypedStats);
       }
 
@@ -205,4 +573,17 @@ public class InvocationStatistics
 
       return detyped;
    }
+
+   /**
+    * Get the stripe of the calling thread.
+    */
+   private static int stripe()
+   {
+      long id = Thread.currentThread().getId();
+      int h = (int) (id ^ (id >>> 32));
+      h ^= (h >>> 16);
+      h *= 0x85ebca6b;
+      h ^= (h >>> 13);
+      return h & (STRIPES - 1);
+   }
 }
@@ -219,8 +219,7 @@ public class InvokerInterceptor
    protected Object invokeMarshalled(Invocation invocation) throws Exception
    {
       MarshalledInvocation mi = new MarshalledInvocation(invocation);
-      MarshalledValue copy = new MarshalledValue(mi);
-      Invocation invocationCopy = (Invocation) copy.get();
+      Invocation invocationCopy = (Invocation) MarshalledValueStreams.copy(mi);
 
       // copy the Tx
       Transaction tx = invocation.getTransaction();
@@ -229,13 +228,11 @@ public class InvokerInterceptor
       try
       {
          Object rtnValue = localInvoker.invoke(invocationCopy);
-         MarshalledValue mv = new MarshalledValue(rtnValue);
-         return mv.get();
+         return MarshalledValueStreams.copy(rtnValue);
       }
       catch(Throwable t)
       {
-         MarshalledValue mv = new MarshalledValue(t);
-         Throwable t2 = (Throwable) mv.get();
+         Throwable t2 = (Throwable) MarshalledValueStreams.copy(t);
          if( t2 instanceof Exception )
             throw (Exception) t2;
          else
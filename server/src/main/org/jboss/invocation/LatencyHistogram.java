@@ -0,0 +1,164 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.invocation;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, log-linear latency histogram. Values below 16 get a bucket
+ * each, every power of two above is split into 16 linear sub-buckets so a
+ * recorded value is reported with a relative error below 1/16. Recording is
+ * a single atomic increment and never allocates.
+ *
+ * @version $Revision: 89743 $
+ */
+public class LatencyHistogram
+   implements Serializable
+{
+   private static final long serialVersionUID = 4466937725412186405L;
+
+   private static final int SUB_BUCKET_BITS = 4;
+   private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+   private static final int MAX_VALUE_BITS = 36;
+
+   /** The largest value tracked, larger values are clamped to it */
+   public static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+   /** The number of buckets */
+   public static final int BUCKETS = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+   /**
+    * Record a value.
+    *
+    * @param value the value, negative values are recorded as 0
+    */
+   public void record(long value)
+   {
+      counts.incrementAndGet(bucketIndex(value));
+   }
+
+   /**
+    * @return a copy of the bucket counts
+    */
+   public long[] getCounts()
+   {
+      long[] copy = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; ++i)
+         copy[i] = counts.get(i);
+      return copy;
+   }
+
+   /**
+    * Zero all buckets. Values recorded concurrently may or may not survive.
+    */
+   public void reset()
+   {
+      for (int i = 0; i < BUCKETS; ++i)
+         counts.set(i, 0);
+   }
+
+   /**
+    * Get the bucket index of a value.
+    */
+   public static int bucketIndex(long value)
+   {
+      if (value < SUB_BUCKETS)
+         return value < 0 ? 0 : (int) value;
+      if (value > MAX_VALUE)
+         value = MAX_VALUE;
+      int msb = 63 - Long.numberOfLeadingZeros(value);
+      int shift = msb - SUB_BUCKET_BITS;
+      return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+   }
+
+   /**
+    * Get the highest value that falls into a bucket.
+    */
+   public static long highestValue(int index)
+   {
+      if (index < SUB_BUCKETS)
+         return index;
+      int shift = index / SUB_BUCKETS - 1;
+      long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+      return lowest + (1L << shift) - 1;
+   }
+
+   /**
+    * Get the value at a percentile of a histogram.
+    *
+    * @param counts the bucket counts
+    * @param percentile the percentile, 0 to 100
+    * @return the highest value of the bucket holding the percentile or 0 if
+    *    the histogram is empty
+    */
+   public static long valueAtPercentile(long[] counts, double percentile)
+   {
+      long total = 0;
+      for (int i = 0; i < counts.length; ++i)
+         total += counts[i];
+      if (total == 0)
+         return 0;
+
+      long rank = (long) Math.ceil(percentile / 100.0 * total);
+      if (rank < 1)
+         rank = 1;
+      long seen = 0;
+      for (int i = 0; i < counts.length; ++i)
+      {
+         seen += counts[i];
+         if (seen >= rank)
+            return highestValue(i);
+      }
+      return highestValue(counts.length - 1);
+   }
+
+   /**
+    * Get the highest recorded value of a histogram.
+    *
+    * @return the highest value of the last non-empty bucket or 0
+    */
+   public static long maxValue(long[] counts)
+   {
+      for (int i = counts.length - 1; i >= 0; --i)
+      {
+         if (counts[i] > 0)
+            return highestValue(i);
+      }
+      return 0;
+   }
+
+   /**
+    * Subtract an earlier copy of the counts from a later one.
+    *
+    * @return the counts recorded in between
+    */
+   public static long[] subtract(long[] later, long[] earlier)
+   {
+      long[] delta = new long[later.length];
+      for (int i = 0; i < later.length; ++i)
+         delta[i] = Math.max(0, later[i] - earlier[i]);
+      return delta;
+   }
+}
@@ -21,8 +21,6 @@
  */
 package org.jboss.invocation;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
@@ -65,20 +63,23 @@ public class MarshalledValue
 
    public MarshalledValue(Object obj) throws IOException
    {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      MarshalledValueOutputStream mvos = new MarshalledValueOutputStream(baos);
-      mvos.writeObject(obj);
-      mvos.flush();
-      serializedForm = baos.toByteArray();
-      mvos.close();
+      serializedForm = MarshalledValueStreams.toByteArray(obj);
       // Use the java.rmi.MarshalledObject hash code calculation
-      int hash = 0;
-      for (int i = 0; i < serializedForm.length; i++)
-      {
-         hash = 31 * hash + serializedForm[i];
-      }
+      hashCode = MarshalledValueStreams.hash(serializedForm, 0, serializedForm.length);
+   }
 
-      hashCode = hash;
+   /**
+    * Write obj in the externalized form of a MarshalledValue without
+    * creating the intermediate value or copying the serialized bytes. The
+    * result is read back with <code>new MarshalledValue()</code> followed by
+    * readExternal.
+    *
+    * @param out the stream to write to
+    * @param obj the value to marshall
+    */
+   public static void writeValue(ObjectOutput out, Object obj) throws IOException
+   {
+      MarshalledValueStreams.writeValue(out, obj);
    }
 
    public Object get() throws IOException, ClassNotFoundException
@@ -86,11 +87,7 @@ public class MarshalledValue
       if (serializedForm == null)
          return null;
 
-      ByteArrayInputStream bais = new ByteArrayInputStream(serializedForm);
-      MarshalledValueInputStream mvis = new MarshalledValueInputStream(bais);
-      Object retValue =  mvis.readObject();
-      mvis.close();
-      return retValue;
+      return MarshalledValueStreams.fromByteArray(serializedForm);
    }
 
    public byte[] toByteArray()
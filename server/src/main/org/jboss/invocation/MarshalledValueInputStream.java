@@ -25,7 +25,12 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectStreamClass;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.jboss.util.collection.WeakValueHashMap;
 
 import org.jboss.logging.Logger;
@@ -44,6 +49,10 @@ public class MarshalledValueInputStream
    private static Logger log = Logger.getLogger(MarshalledValueInputStream.class);
    /** A class wide cache of proxy classes populated by resolveProxyClass */
    private static WeakValueHashMap classCache;
+   /** Map<ClassLoader, Map<String, WeakReference<Class>>> of the classes
+    resolved through a class loader that cannot change for the lifetime of
+    the loader, i.e. those defined by the loader or one of its parents */
+   private static final Map loaderClassCache = new WeakHashMap();
 
    /** Enable local caching of resolved proxy classes. This can only be used
     * if there is a single ULR and no redeployment of the proxy classes.
@@ -96,17 +105,22 @@ public class MarshalledValueInputStream
       if( resolvedClass == null )
       {
          ClassLoader loader = SecurityActions.getContextClassLoader();
-         try
-         {
-            resolvedClass = loader.loadClass(className);
-         }
-         catch(ClassNotFoundException e)
+         resolvedClass = getCachedClass(loader, className);
+         if( resolvedClass == null )
          {
-            /* Use the super.resolveClass() call which will resolve array
-            classes and primitives. We do not use this by default as this can
-            result in caching of stale values across redeployments.
-            */            
-            resolvedClass = super.resolveClass(v);
+            try
+            {
+               resolvedClass = loader.loadClass(className);
+            }
+            catch(ClassNotFoundException e)
+            {
+               /* Use the super.resolveClass() call which will resolve array
+               classes and primitives. We do not use this by default as this can
+               result in caching of stale values across redeployments.
+               */
+               resolvedClass = super.resolveClass(v);
+            }
+            cacheClass(loader, className, resolvedClass);
          }
          if( classCache != null )
          {
@@ -119,6 +133,71 @@ public class MarshalledValueInputStream
       return resolvedClass;
    }
 
+   /** Clear the cache of classes resolved by class loader.
+    */
+   public static void flushLoaderClassCache()
+   {
+      synchronized( loaderClassCache )
+      {
+         loaderClassCache.clear();
+      }
+   }
+
+   private static Class getCachedClass(ClassLoader loader, String className)
+   {
+      if( loader == null )
+         return null;
+      Map classes;
+      synchronized( loaderClassCache )
+      {
+         classes = (Map) loaderClassCache.get(loader);
+      }
+      if( classes == null )
+         return null;
+      WeakReference ref = (WeakReference) classes.get(className);
+      return ref != null ? (Class) ref.get() : null;
+   }
+
+   /** Remember a resolved class if it was defined by the loader or one of its
+    parents. Classes found elsewhere, e.g. in a sibling deployment of a shared
+    repository, may be redeployed and are not cached.
+    */
+   private static void cacheClass(ClassLoader loader, String className, Class resolvedClass)
+   {
+      if( loader == null || isDefinedByAncestor(loader, resolvedClass) == false )
+         return;
+      Map classes;
+      synchronized( loaderClassCache )
+      {
+         classes = (Map) loaderClassCache.get(loader);
+         if( classes == null )
+         {
+            classes = new ConcurrentHashMap();
+            loaderClassCache.put(loader, classes);
+         }
+      }
+      classes.put(className, new WeakReference(resolvedClass));
+   }
+
+   private static boolean isDefinedByAncestor(ClassLoader loader, Class c)
+   {
+      try
+      {
+         ClassLoader cl = c.getClassLoader();
+         if( cl == null )
+            return true;
+         for(ClassLoader l = loader; l != null; l = l.getParent())
+         {
+            if( l == cl )
+               return true;
+         }
+      }
+      catch(SecurityException ignore)
+      {
+      }
+      return false;
+   }
+
    protected Class resolveProxyClass(String[] interfaces)
       throws IOException, ClassNotFoundException
    {
@@ -0,0 +1,486 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.invocation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamConstants;
+
+/**
+ * Per thread pools of the MarshalledValueOutputStream/MarshalledValueInputStream
+ * pairs and buffers used to marshall values. A pooled output stream is reset
+ * between values so the bytes produced are identical to those of a new
+ * stream, and a pooled input stream is fed a TC_RESET in place of the stream
+ * header it has already consumed. After each value the input stream also
+ * reads a TC_RESET, so an idle pooled stream does not keep the last value,
+ * or the classes and class loaders it references, reachable.
+ *
+ * Streams are pooled per nesting level so that a value whose serialization
+ * marshalls further values, e.g. a MarshalledInvocation, also reuses streams.
+ * A stream that fails is discarded rather than returned to the pool.
+ *
+ * @version $Revision: 81179 $
+ */
+public final class MarshalledValueStreams
+{
+   /** The number of nesting levels that are pooled */
+   private static final int MAX_DEPTH = 4;
+   /** Buffers larger than this are not kept for reuse by the thread */
+   private static final int MAX_CACHED_BUFFER = 64 * 1024;
+   /** The number of values read before an input stream is replaced */
+   private static final int MAX_INPUT_USES = 256;
+   /** The serialization stream header */
+   private static final byte[] HEADER = {
+      (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8),
+      (byte) ObjectStreamConstants.STREAM_MAGIC,
+      (byte) (ObjectStreamConstants.STREAM_VERSION >>> 8),
+      (byte) ObjectStreamConstants.STREAM_VERSION
+   };
+   /** Read after each value so the stream drops its handles to the value */
+   private static final byte[] FORGET = {
+      ObjectStreamConstants.TC_RESET,
+      ObjectStreamConstants.TC_NULL
+   };
+
+   /** The per thread Pool */
+   private static final ThreadLocal pools = new ThreadLocal()
+   {
+      protected Object initialValue()
+      {
+         return new Pool();
+      }
+   };
+
+   private MarshalledValueStreams()
+   {
+   }
+
+   /**
+    * Serialize a value as a new MarshalledValueOutputStream would.
+    *
+    * @param obj the value
+    * @return the serialized form
+    * @throws IOException for any error
+    */
+   public static byte[] toByteArray(Object obj) throws IOException
+   {
+      Pool pool = (Pool) pools.get();
+      Output output = pool.write(obj);
+      try
+      {
+         return output.buffer.toByteArray();
+      }
+      finally
+      {
+         pool.release(output);
+      }
+   }
+
+   /**
+    * Write obj in the externalized form of a MarshalledValue without creating
+    * the intermediate value or copying the serialized bytes.
+    *
+    * @param out the stream to write to
+    * @param obj the value to marshall
+    * @throws IOException for any error
+    */
+   public static void writeValue(ObjectOutput out, Object obj) throws IOException
+   {
+      Pool pool = (Pool) pools.get();
+      Output output = pool.write(obj);
+      try
+      {
+         Buffer buffer = output.buffer;
+         int length = buffer.size();
+         out.writeInt(length);
+         out.write(buffer.buffer(), 0, length);
+         out.writeInt(buffer.hash());
+      }
+      finally
+      {
+         pool.release(output);
+      }
+   }
+
+   /**
+    * Read a value from its serialized form.
+    *
+    * @param bytes the serialized form
+    * @return the value
+    * @throws IOException for any error
+    * @throws ClassNotFoundException if a class cannot be resolved
+    */
+   public static Object fromByteArray(byte[] bytes)
+      throws IOException, ClassNotFoundException
+   {
+      return ((Pool) pools.get()).read(bytes, 0, bytes.length);
+   }
+
+   /**
+    * Copy a value by serializing it and reading it back from the thread's
+    * buffer, without creating the intermediate serialized form.
+    *
+    * @param obj the value
+    * @return the copy
+    * @throws IOException for any error
+    * @throws ClassNotFoundException if a class cannot be resolved
+    */
+   public static Object copy(Object obj)
+      throws IOException, ClassNotFoundException
+   {
+      Pool pool = (Pool) pools.get();
+      Output output = pool.write(obj);
+      try
+      {
+         Buffer buffer = output.buffer;
+         return pool.read(buffer.buffer(), 0, buffer.size());
+      }
+      finally
+      {
+         pool.release(output);
+      }
+   }
+
+   /**
+    * Use the java.rmi.MarshalledObject hash code calculation
+    */
+   static int hash(byte[] bytes, int offset, int length)
+   {
+      int hash = 0;
+      for (int i = offset; i < offset + length; i++)
+      {
+         hash = 31 * hash + bytes[i];
+      }
+      return hash;
+   }
+
+   /**
+    * The streams of a thread, indexed by nesting level.
+    */
+   private static class Pool
+   {
+      final Output[] outputs = new Output[MAX_DEPTH];
+      final Input[] inputs = new Input[MAX_DEPTH];
+      int outputDepth;
+      int inputDepth;
+
+      /**
+       * Serialize obj into a pooled buffer that the caller must release.
+       */
+      Output write(Object obj) throws IOException
+      {
+         int depth = outputDepth;
+         Output output = depth < MAX_DEPTH ? outputs[depth] : null;
+         if( output == null )
+            output = new Output();
+         outputDepth ++;
+         try
+         {
+            output.write(obj);
+         }
+         catch(IOException e)
+         {
+            discard(output);
+            throw e;
+         }
+         catch(RuntimeException e)
+         {
+            discard(output);
+            throw e;
+         }
+         catch(Error e)
+         {
+            discard(output);
+            throw e;
+         }
+         return output;
+      }
+
+      void release(Output output)
+      {
+         int depth = -- outputDepth;
+         if( depth >= MAX_DEPTH )
+            return;
+         try
+         {
+            output.recycle();
+            outputs[depth] = output;
+         }
+         catch(IOException e)
+         {
+            outputs[depth] = null;
+         }
+      }
+
+      private void discard(Output output)
+      {
+         int depth = -- outputDepth;
+         if( depth < MAX_DEPTH )
+            outputs[depth] = null;
+      }
+
+      Object read(byte[] bytes, int offset, int length)
+         throws IOException, ClassNotFoundException
+      {
+         int depth = inputDepth;
+         if( depth >= MAX_DEPTH || Input.hasHeader(bytes, offset, length) == false )
+         {
+            // Let a new stream read the value or report the corrupt header
+            ByteArrayInputStream bais = new ByteArrayInputStream(bytes, offset, length);
+            MarshalledValueInputStream mvis = new MarshalledValueInputStream(bais);
+            Object value = mvis.readObject();
+            mvis.close();
+            return value;
+         }
+
+         Input input = inputs[depth];
+         if( input == null )
+            input = new Input();
+         inputs[depth] = null;
+         inputDepth ++;
+         boolean reuse = false;
+         try
+         {
+            Object value = input.read(bytes, offset, length);
+            reuse = input.isReusable();
+            return value;
+         }
+         finally
+         {
+            inputDepth --;
+            if( reuse )
+               inputs[depth] = input;
+         }
+      }
+   }
+
+   /**
+    * A pooled MarshalledValueOutputStream and its buffer.
+    */
+   private static class Output
+   {
+      final Buffer buffer = new Buffer();
+      final MarshalledValueOutputStream out;
+
+      Output() throws IOException
+      {
+         out = new MarshalledValueOutputStream(buffer);
+         out.flush();
+      }
+
+      void write(Object obj) throws IOException
+      {
+         buffer.reset();
+         buffer.write(HEADER);
+         out.writeObject(obj);
+         out.flush();
+      }
+
+      /**
+       * Forget the handles written so the next value is written as if to a
+       * new stream. The TC_RESET this writes is dropped with the buffer
+       * contents on the next write.
+       */
+      void recycle() throws IOException
+      {
+         out.reset();
+         out.flush();
+         buffer.reset();
+         buffer.trim();
+      }
+   }
+
+   /**
+    * A pooled MarshalledValueInputStream and the source it reads from.
+    */
+   private static class Input
+   {
+      final Source source = new Source();
+      final MarshalledValueInputStream in;
+      int uses;
+
+      Input() throws IOException
+      {
+         source.set(HEADER, 0, HEADER.length, false);
+         in = new MarshalledValueInputStream(source);
+      }
+
+      static boolean hasHeader(byte[] bytes, int offset, int length)
+      {
+         if( length < HEADER.length )
+            return false;
+         for(int i = 0; i < HEADER.length; i ++)
+         {
+            if( bytes[offset + i] != HEADER[i] )
+               return false;
+         }
+         return true;
+      }
+
+      Object read(byte[] bytes, int offset, int length)
+         throws IOException, ClassNotFoundException
+      {
+         uses ++;
+         source.set(bytes, offset + HEADER.length, length - HEADER.length, true);
+         Object value;
+         try
+         {
+            value = in.readObject();
+         }
+         finally
+         {
+            // Do not hold onto the caller's bytes
+            source.clear();
+         }
+         if( source.consumed )
+            forget();
+         return value;
+      }
+
+      /**
+       * Clear the handle table, which holds the objects and class
+       * descriptors of the value just read until the next TC_RESET.
+       * The stream is discarded if this fails.
+       */
+      private void forget()
+      {
+         source.set(FORGET, 0, FORGET.length, false);
+         boolean cleared = false;
+         try
+         {
+            cleared = in.readObject() == null;
+         }
+         catch(Exception e)
+         {
+            // Discarded below
+         }
+         finally
+         {
+            source.clear();
+            if( cleared == false )
+               source.consumed = false;
+         }
+      }
+
+      /**
+       * The stream may be reused if the value was read completely. Streams
+       * are replaced periodically as ObjectInputStream accumulates counts
+       * across the stream for serialization filters.
+       */
+      boolean isReusable()
+      {
+         return source.consumed && uses < MAX_INPUT_USES;
+      }
+   }
+
+   /**
+    * An InputStream over a byte range preceded by an optional TC_RESET.
+    */
+   private static class Source extends InputStream
+   {
+      private byte[] bytes;
+      private int pos;
+      private int end;
+      private boolean reset;
+      boolean consumed;
+
+      void set(byte[] bytes, int offset, int length, boolean reset)
+      {
+         this.bytes = bytes;
+         this.pos = offset;
+         this.end = offset + length;
+         this.reset = reset;
+      }
+
+      void clear()
+      {
+         consumed = reset == false && pos == end;
+         bytes = null;
+         pos = end = 0;
+         reset = false;
+      }
+
+      public int read()
+      {
+         if( reset )
+         {
+            reset = false;
+            return ObjectStreamConstants.TC_RESET;
+         }
+         if( pos >= end )
+            return -1;
+         return bytes[pos ++] & 0xff;
+      }
+
+      public int read(byte[] b, int off, int len)
+      {
+         if( len == 0 )
+            return 0;
+         if( reset )
+         {
+            b[off] = (byte) read();
+            return 1;
+         }
+         int n = Math.min(len, end - pos);
+         if( n <= 0 )
+            return -1;
+         System.arraycopy(bytes, pos, b, off, n);
+         pos += n;
+         return n;
+      }
+
+      public int available()
+      {
+         return (reset ? 1 : 0) + end - pos;
+      }
+   }
+
+   /**
+    * A reusable serialization buffer exposing its backing array.
+    */
+   private static class Buffer extends ByteArrayOutputStream
+   {
+      Buffer()
+      {
+         super(256);
+      }
+
+      byte[] buffer()
+      {
+         return buf;
+      }
+
+      int hash()
+      {
+         return MarshalledValueStreams.hash(buf, 0, count);
+      }
+
+      void trim()
+      {
+         if( buf.length > MAX_CACHED_BUFFER )
+            buf = new byte[256];
+      }
+   }
+}
@@ -0,0 +1,143 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.invocation.http.interfaces;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** An OutputStream streaming its content to the stream returned by
+ {@link #open(boolean, int)}, gzipped once it reaches a threshold.
+
+ Up to threshold bytes are held back. If the stream is closed before that,
+ the content is written as is and its length is known, otherwise the target
+ is opened for compression and the content is compressed on the fly. With
+ a negative threshold nothing is held back and nothing is compressed.
+ Either way the content is never copied as a whole.
+
+ * @version $Revision: 81030 $
+ */
+public abstract class ThresholdGZIPOutputStream extends OutputStream
+{
+   /** The size from which the content is gzipped, -1 to never compress */
+   private final int threshold;
+   /** The content held back until the threshold is reached */
+   private byte[] buffer;
+   private int count;
+   /** The target once opened */
+   private OutputStream out;
+   private GZIPOutputStream gzos;
+   private boolean closed;
+
+   /**
+    @param threshold the size from which the content is gzipped, -1 to never compress
+    */
+   public ThresholdGZIPOutputStream(int threshold)
+   {
+      this.threshold = threshold;
+   }
+
+   /** Open the target stream, this is called once before the first byte is
+    written to it.
+
+    @param gzip whether the content written to the returned stream is gzipped
+    @param contentLength the length of the content, -1 when not known
+    @return the target stream
+    */
+   protected abstract OutputStream open(boolean gzip, int contentLength)
+      throws IOException;
+
+   /**
+    @return true once the content is gzipped
+    */
+   public boolean isCompressed()
+   {
+      return gzos != null;
+   }
+
+   public void write(int b) throws IOException
+   {
+      write(new byte[] {(byte) b}, 0, 1);
+   }
+
+   public void write(byte[] b, int off, int len) throws IOException
+   {
+      if( closed )
+         throw new IOException("Stream closed");
+      if( out == null )
+      {
+         if( threshold < 0 )
+         {
+            out = open(false, -1);
+         }
+         else if( count + len < threshold )
+         {
+            if( buffer == null )
+               buffer = new byte[Math.min(threshold, Math.max(512, 2 * len))];
+            else if( count + len > buffer.length )
+            {
+               byte[] larger = new byte[Math.min(threshold, Math.max(count + len, 2 * buffer.length))];
+               System.arraycopy(buffer, 0, larger, 0, count);
+               buffer = larger;
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+            return;
+         }
+         else
+         {
+            gzos = new GZIPOutputStream(open(true, -1));
+            out = gzos;
+            if( count > 0 )
+               out.write(buffer, 0, count);
+            buffer = null;
+         }
+      }
+      out.write(b, off, len);
+   }
+
+   /** Only flushes the target once it is open, flushing does not force the
+    decision whether to compress
+    */
+   public void flush() throws IOException
+   {
+      if( out != null )
+         out.flush();
+   }
+
+   /** Write the content held back, finish the compression and close the target
+    */
+   public void close() throws IOException
+   {
+      if( closed )
+         return;
+      closed = true;
+      if( out == null )
+      {
+         out = open(false, count);
+         if( count > 0 )
+            out.write(buffer, 0, count);
+         buffer = null;
+      }
+      out.close();
+   }
+}
@@ -21,6 +21,7 @@
  */
 package org.jboss.invocation.http.interfaces;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectStreamException;
@@ -57,6 +58,8 @@ public class Util
    public static final String IGNORE_HTTPS_HOST = "org.jboss.security.ignoreHttpsHost";
    /** A property to install the https connection ssl socket factory */
    public static final String SSL_FACTORY_BUILDER = "org.jboss.security.httpInvoker.sslSocketFactoryBuilder";
+   /** A property giving the size in bytes from which requests are gzipped, -1 (the default) to never compress */
+   public static final String REQUEST_GZIP_THRESHOLD = "org.jboss.invocation.http.requestGzipThreshold";
    /**
     * A serialized MarshalledInvocation
     */
@@ -65,6 +68,11 @@ public class Util
    private static Logger log = Logger.getLogger(Util.class);
    /** A custom SSLSocketFactory builder to use for https connections */
    private static SSLSocketFactoryBuilder sslSocketFactoryBuilder;
+   /** The factory obtained from the builder. The same instance must be used
+    for every connection for the JDK to reuse the kept alive https connections */
+   private static SSLSocketFactory sslSocketFactory;
+   /** The request size from which the request is gzipped */
+   private static int requestGzipThreshold = -1;
 
    static class SetAuthenticator implements PrivilegedAction
    {
@@ -83,6 +91,13 @@ public class Util
          return value;
       }
    }
+   static class ReadGzipThreshold implements PrivilegedAction
+   {
+      public Object run()
+      {
+         return Integer.getInteger(REQUEST_GZIP_THRESHOLD, -1);
+      }
+   }
 
    static
    {
@@ -121,6 +136,16 @@ public class Util
             log.warn("Could not instantiate SSLSocketFactoryFactory", e);
          }
       }
+
+      try
+      {
+         ReadGzipThreshold action = new ReadGzipThreshold();
+         requestGzipThreshold = ((Integer) AccessController.doPrivileged(action)).intValue();
+      }
+      catch(Exception e)
+      {
+         log.warn("Failed to read "+REQUEST_GZIP_THRESHOLD, e);
+      }
    }
 
    /** Install the SecurityAssociationAuthenticator as the default
@@ -139,53 +164,83 @@ public class Util
       }
    }
 
-   /** Post the Invocation as a serialized MarshalledInvocation object. This is
-    using the URL class for now but this should be improved to a cluster aware
-    layer with full usage of HTTP 1.1 features, pooling, etc.
+   /** Post the Invocation as a serialized MarshalledInvocation object.
+
+    The connection is kept alive by the HttpURLConnection keep-alive cache
+    (sized with the http.maxConnections system property) provided the
+    response is read up to its end, which is done here for the normal as
+    well as for the error responses. Requests of at least
+    org.jboss.invocation.http.requestGzipThreshold bytes are gzipped.
    */
    public static Object invoke(URL externalURL, Invocation mi)
       throws Exception
    {
       if( log.isTraceEnabled() )
          log.trace("invoke, externalURL="+externalURL);
-      /* Post the MarshalledInvocation data. This is using the URL class
-       for now but this should be improved to a cluster aware layer with
-       full usage of HTTP 1.1 features, pooling, etc.
-       */
-      HttpURLConnection conn = (HttpURLConnection) externalURL.openConnection();
+
+      final HttpURLConnection conn = (HttpURLConnection) externalURL.openConnection();
       configureHttpsHostVerifier(conn);
+      configureSSLSocketFactory(conn);
       conn.setDoInput(true);
       conn.setDoOutput(true);
       conn.setRequestProperty("ContentType", REQUEST_CONTENT_TYPE);
       conn.setRequestMethod("POST");
       // @todo this should be configurable
       conn.setRequestProperty("Accept-Encoding", "x-gzip,x-deflate,gzip,deflate");
-      OutputStream os = conn.getOutputStream();
+      // Serialize straight to the connection, gzipping on the fly from the threshold
+      OutputStream os = new ThresholdGZIPOutputStream(requestGzipThreshold)
+      {
+         protected OutputStream open(boolean gzip, int contentLength)
+            throws IOException
+         {
+            if( gzip )
+               conn.setRequestProperty("Content-Encoding", "gzip");
+            return conn.getOutputStream();
+         }
+      };
       ObjectOutputStream oos = new ObjectOutputStream(os);
       try
       {
          oos.writeObject(mi);
-         oos.flush();
+         oos.close();
       }
       catch (ObjectStreamException e)
       {
+         conn.disconnect();
          // This generally represents a programming/deployment error,
          // not a communication problem
          throw new InvocationException(e);
       }
 
       // Get the response MarshalledValue object
-      InputStream is = conn.getInputStream();
-      // Check the headers for gzip Content-Encoding
-      String encoding = conn.getHeaderField("Content-Encoding");
-      if( encoding != null && encoding.indexOf("gzip") >= 0 )
-         is = new GZIPInputStream(is);
-      ObjectInputStream ois = new ObjectInputStream(is);
-      MarshalledValue mv = (MarshalledValue) ois.readObject();
-      // A hack for jsse connection pooling (see patch ).
-      ois.read();
-      ois.close();
-      oos.close();
+      InputStream is;
+      try
+      {
+         is = conn.getInputStream();
+      }
+      catch (IOException e)
+      {
+         // Consume the error body so the connection can be reused
+         drain(conn.getErrorStream());
+         throw e;
+      }
+      MarshalledValue mv;
+      try
+      {
+         // Check the headers for gzip Content-Encoding
+         String encoding = conn.getHeaderField("Content-Encoding");
+         InputStream in = is;
+         if( encoding != null && encoding.indexOf("gzip") >= 0 )
+            in = new GZIPInputStream(is);
+         ObjectInputStream ois = new ObjectInputStream(in);
+         mv = (MarshalledValue) ois.readObject();
+         // Read up to the end of the response for the connection to be reused
+         drain(in);
+      }
+      finally
+      {
+         is.close();
+      }
 
       // If the encoded value is an exception throw it
       Object value = mv.get();
@@ -233,7 +288,7 @@ public class Util
       {
          try
          {
-            SSLSocketFactory socketFactory = sslSocketFactoryBuilder.getSocketFactory();
+            SSLSocketFactory socketFactory = getSSLSocketFactory();
             Class[] sig = {SSLSocketFactory.class};
             Method method = connClass.getMethod("setSSLSocketFactory", sig);
             Object[] args = {socketFactory};
@@ -247,6 +302,30 @@ public class Util
       }
    }
 
+   private static synchronized SSLSocketFactory getSSLSocketFactory()
+      throws Exception
+   {
+      if( sslSocketFactory == null )
+         sslSocketFactory = sslSocketFactoryBuilder.getSocketFactory();
+      return sslSocketFactory;
+   }
+
+   private static void drain(InputStream is)
+   {
+      if( is == null )
+         return;
+      try
+      {
+         byte[] buffer = new byte[512];
+         while( is.read(buffer) >= 0 )
+            ;
+         is.close();
+      }
+      catch(IOException ignore)
+      {
+      }
+   }
+
    /**
     * First try to use the externalURLValue as a URL string and if this
     * fails to produce a valid URL treat the externalURLValue as a system
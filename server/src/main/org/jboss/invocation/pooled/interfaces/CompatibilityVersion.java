@@ -24,6 +24,7 @@ package org.jboss.invocation.pooled.interfaces;
 /**
  * PooledInvokers had a change on its serialization at JBoss 4.0.4. 
  * If you need to use the old protocol, just define a System property <pre>org.jboss.invocation.pooled.Legacy</pre>, and PooledInvokers are going to use the old binary protocol. 
+ * Peers that both support it switch a connection to the descriptor table encoding after the first invocation.
  * @author Clebert Suconic
  *
  */
@@ -31,4 +32,12 @@ public class CompatibilityVersion
 {
 	   public static boolean pooledInvokerLegacy = System.getProperty("org.jboss.invocation.pooled.Legacy")!=null;
 
+	   /**
+	    * Whether this side offers per connection descriptor tables to its peers. Tables are only
+	    * used once both ends of a connection advertised them, define <pre>org.jboss.invocation.pooled.NoDescriptorTable</pre>
+	    * to never offer them.
+	    */
+	   public static boolean pooledInvokerDescriptorTable = pooledInvokerLegacy == false
+	      && System.getProperty("org.jboss.invocation.pooled.NoDescriptorTable")==null;
+
 }
@@ -25,9 +25,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Map;
 import java.util.WeakHashMap;
@@ -52,6 +54,13 @@ public class OptimizedObjectInputStream
    private static ConcurrentReaderHashMap objectStreamClassCache;
    private static Method lookupStreamClass = null;
 
+   /** Whether the descriptor tables have been negotiated for this stream */
+   private boolean descriptorTable;
+   /** The class descriptors as read from the peer, indexed by id */
+   private ArrayList classTable;
+   /** The payload keys / method hashes read from the peer, indexed by id */
+   private ArrayList keyTable;
+
    static
    {
       useClassCache(true);
@@ -182,12 +191,77 @@ public class OptimizedObjectInputStream
 	      }
 	      return osc;
 	  }
+	  else if (descriptorTable)
+	  {
+	     int type = readUnsignedByte();
+	     if (type == OptimizedObjectOutputStream.ENTRY_REF)
+	     {
+	        int id = readUnsignedShort();
+	        if (id >= classTable.size())
+	           throw new StreamCorruptedException("Unknown class descriptor id " + id);
+	        return (ObjectStreamClass) classTable.get(id);
+	     }
+	     ObjectStreamClass osc = super.readClassDescriptor();
+	     if (type == OptimizedObjectOutputStream.ENTRY_NEW)
+	        classTable.add(osc);
+	     return osc;
+	  }
 	  else
 	  {
 		  return super.readClassDescriptor();
 	  }
    }
 
+   /**
+    * Switch this stream to the descriptor table encoding, the counterpart
+    * of OptimizedObjectOutputStream.enableDescriptorTable.
+    */
+   public void enableDescriptorTable()
+   {
+      if (descriptorTable)
+         return;
+      classTable = new ArrayList();
+      keyTable = new ArrayList();
+      descriptorTable = true;
+   }
+
+   public boolean isDescriptorTableEnabled()
+   {
+      return descriptorTable;
+   }
+
+   /**
+    * Read the trailer that ends a request or response message.
+    *
+    * @return true if the peer offers descriptor tables
+    */
+   public boolean readMessageEnd() throws IOException, ClassNotFoundException
+   {
+      Object trailer = readObject();
+      return OptimizedObjectOutputStream.DESCRIPTOR_TABLE_VERSION.equals(trailer);
+   }
+
+   /**
+    * Read a key written by OptimizedObjectOutputStream.writeKey
+    */
+   public Object readKey() throws IOException, ClassNotFoundException
+   {
+      if (descriptorTable == false)
+         return readObject();
+      int type = readUnsignedByte();
+      if (type == OptimizedObjectOutputStream.ENTRY_REF)
+      {
+         int id = readUnsignedShort();
+         if (id >= keyTable.size())
+            throw new StreamCorruptedException("Unknown key id " + id);
+         return keyTable.get(id);
+      }
+      Object key = readObject();
+      if (type == OptimizedObjectOutputStream.ENTRY_NEW)
+         keyTable.add(key);
+      return key;
+   }
+
    /**
     * Use the thread context class loader to resolve the class
     *
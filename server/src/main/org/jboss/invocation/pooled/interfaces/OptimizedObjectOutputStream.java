@@ -28,6 +28,12 @@ import java.io.ObjectStreamClass;
 import java.rmi.Remote;
 import java.rmi.server.RemoteObject;
 import java.rmi.server.RemoteStub;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.jboss.invocation.InvocationKey;
+import org.jboss.invocation.InvocationType;
 
 /**
  * An ObjectOutputStream subclass used by the MarshalledValue class to
@@ -42,6 +48,31 @@ import java.rmi.server.RemoteStub;
 public class OptimizedObjectOutputStream
    extends ObjectOutputStream
 {
+   /**
+    * The message trailer written by peers offering descriptor tables, peers
+    * that do not know about them just discard it like the Boolean.TRUE
+    * trailer they write themselves.
+    */
+   public static final Integer DESCRIPTOR_TABLE_VERSION = new Integer(1);
+
+   /** Maximum number of entries of a descriptor or key table */
+   static final int MAX_TABLE_SIZE = 4096;
+
+   /** A descriptor or key written in full without a table entry */
+   static final int ENTRY_PLAIN = 0;
+   /** A descriptor or key written in full which defines the next table entry */
+   static final int ENTRY_NEW = 1;
+   /** A reference to a previously defined table entry */
+   static final int ENTRY_REF = 2;
+
+   /** Whether the descriptor tables have been negotiated for this stream */
+   private boolean descriptorTable;
+   /** The class to descriptor id table, weak so that it does not pin redeployed classes */
+   private Map classIds;
+   private int nextClassId;
+   /** The payload key / method hash to id table */
+   private Map keyIds;
+   private int nextKeyId;
 	
    /** Creates a new instance of MarshalledValueOutputStream
     If there is a security manager installed, this method requires a
@@ -66,12 +97,106 @@ public class OptimizedObjectOutputStream
 	  {
 		  writeUTF(classdesc.getName());
 	  }
+	  else if (descriptorTable)
+	  {
+	     Class clazz = classdesc.forClass();
+	     Integer id = (Integer) classIds.get(clazz);
+	     if (id != null)
+	     {
+	        writeByte(ENTRY_REF);
+	        writeShort(id.intValue());
+	     }
+	     else
+	     {
+	        if (clazz != null && nextClassId < MAX_TABLE_SIZE)
+	        {
+	           classIds.put(clazz, new Integer(nextClassId++));
+	           writeByte(ENTRY_NEW);
+	        }
+	        else
+	        {
+	           writeByte(ENTRY_PLAIN);
+	        }
+	        super.writeClassDescriptor(classdesc);
+	     }
+	  }
 	  else
 	  {
 		  super.writeClassDescriptor(classdesc);
 	  }
    }
 
+   /**
+    * Switch this stream to the descriptor table encoding. Only to be called
+    * between messages, once the peer advertised DESCRIPTOR_TABLE_VERSION.
+    */
+   public void enableDescriptorTable()
+   {
+      if (descriptorTable)
+         return;
+      classIds = new WeakHashMap();
+      keyIds = new HashMap();
+      descriptorTable = true;
+   }
+
+   public boolean isDescriptorTableEnabled()
+   {
+      return descriptorTable;
+   }
+
+   /**
+    * Write the trailer that ends a request or response message.
+    */
+   public void writeMessageEnd() throws IOException
+   {
+      if (CompatibilityVersion.pooledInvokerDescriptorTable)
+         writeObject(DESCRIPTOR_TABLE_VERSION);
+      else
+         writeObject(Boolean.TRUE);
+   }
+
+   /**
+    * Write an invocation payload key or method hash. Once the descriptor
+    * tables are enabled, repeated keys are sent as their table id.
+    *
+    * @param key the key, must be read with OptimizedObjectInputStream.readKey
+    */
+   public void writeKey(Object key) throws IOException
+   {
+      if (descriptorTable == false)
+      {
+         writeObject(key);
+         return;
+      }
+      Integer id = (Integer) keyIds.get(key);
+      if (id != null)
+      {
+         writeByte(ENTRY_REF);
+         writeShort(id.intValue());
+         return;
+      }
+      if (nextKeyId < MAX_TABLE_SIZE && isTableKey(key))
+      {
+         keyIds.put(key, new Integer(nextKeyId++));
+         writeByte(ENTRY_NEW);
+      }
+      else
+      {
+         writeByte(ENTRY_PLAIN);
+      }
+      writeObject(key);
+   }
+
+   /**
+    * Only immutable server side types are kept in the key table, anything
+    * else could pin an application class loader for the life of the connection.
+    */
+   private static boolean isTableKey(Object key)
+   {
+      return key instanceof String || key instanceof Long || key instanceof Integer
+         || key instanceof InvocationKey || key instanceof InvocationType;
+   }
+
    /** Override replaceObject to check for Remote objects that are
     not RemoteStubs.
    */
@@ -27,8 +27,6 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.io.BufferedOutputStream;
 import java.io.BufferedInputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.EOFException;
 import java.io.OptionalDataException;
 import java.io.UnsupportedEncodingException;
@@ -125,8 +123,8 @@ public class PooledInvokerProxy
    protected static class ClientSocket
       implements HandshakeCompletedListener
    {
-      public ObjectOutputStream out;
-      public ObjectInputStream in;
+      public OptimizedObjectOutputStream out;
+      public OptimizedObjectInputStream in;
       public Socket socket;
       public int timeout;
       public String sessionID;
@@ -628,7 +626,7 @@ public class PooledInvokerProxy
             log.trace("Sending invocation to: "+mi.getObjectName());
          socket.out.writeObject(mi);
          socket.out.reset();
-         socket.out.writeObject(Boolean.TRUE); // for stupid ObjectInputStream reset
+         socket.out.writeMessageEnd(); // for stupid ObjectInputStream reset
          socket.out.flush();
          socket.out.reset();
          end = System.currentTimeMillis() - start;
@@ -638,7 +636,15 @@ public class PooledInvokerProxy
          // to make sure stream gets reset
          // Stupid ObjectInputStream holds object graph
          // can only be set by the client/server sending a TC_RESET
-         socket.in.readObject();
+         if( socket.in.readMessageEnd() && CompatibilityVersion.pooledInvokerDescriptorTable
+            && socket.out.isDescriptorTableEnabled() == false )
+         {
+            // Both sides advertised descriptor tables, use them from the next message on
+            socket.out.enableDescriptorTable();
+            socket.in.enableDescriptorTable();
+            if( trace )
+               log.trace("Enabled descriptor tables for: "+socket);
+         }
          end = System.currentTimeMillis() - start;
          readTime += end;
       }
@@ -32,6 +32,7 @@ import java.lang.reflect.Method;
 import java.security.Principal;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
  * The MarshalledInvocation is an invocation that travels.  As such it serializes
@@ -185,6 +186,15 @@ public class PooledMarshalledInvocation
    public void writeExternal(java.io.ObjectOutput out)
            throws IOException
    {
+      if (out instanceof OptimizedObjectOutputStream)
+      {
+         OptimizedObjectOutputStream oos = (OptimizedObjectOutputStream) out;
+         if (oos.isDescriptorTableEnabled())
+         {
+            writeCompact(oos);
+            return;
+         }
+      }
       out.writeObject(invocationType);
       // FIXME marcf: the "specific" treatment of Transactions should be abstracted.
       // Write the TPC, not the local transaction
@@ -244,6 +254,15 @@ public class PooledMarshalledInvocation
    public void readExternal(java.io.ObjectInput in)
            throws IOException, ClassNotFoundException
    {
+      if (in instanceof OptimizedObjectInputStream)
+      {
+         OptimizedObjectInputStream ois = (OptimizedObjectInputStream) in;
+         if (ois.isDescriptorTableEnabled())
+         {
+            readCompact(ois);
+            return;
+         }
+      }
       invocationType = (InvocationType)in.readObject();
       tpc = in.readObject();
       this.methodHash = in.readLong();
@@ -276,4 +295,84 @@ public class PooledMarshalledInvocation
          }
       }
    }
+
+   /**
+    * The encoding used once the connection negotiated descriptor tables.
+    * The invocation type, method hash and payload keys go through the
+    * connection key table and the arguments are written in place from the
+    * thread's marshalling buffer.
+    */
+   private void writeCompact(OptimizedObjectOutputStream out)
+           throws IOException
+   {
+      out.writeKey(invocationType);
+      out.writeObject(tpc);
+      out.writeKey(new Long(calculateHash(this.method)));
+      out.writeInt(((Integer)this.objectName).intValue());
+      PooledMarshalledValue.writeValue(out, this.args);
+
+      if (payload == null)
+         out.writeInt(0);
+      else
+      {
+         out.writeInt(payload.size());
+         Iterator entries = payload.entrySet().iterator();
+         while (entries.hasNext())
+         {
+            Map.Entry entry = (Map.Entry) entries.next();
+            out.writeKey(entry.getKey());
+            out.writeObject(new MarshalledValue(entry.getValue()));
+         }
+      }
+
+      if (as_is_payload == null)
+         out.writeInt(0);
+      else
+      {
+         out.writeInt(as_is_payload.size());
+         Iterator entries = as_is_payload.entrySet().iterator();
+         while (entries.hasNext())
+         {
+            Map.Entry entry = (Map.Entry) entries.next();
+            out.writeKey(entry.getKey());
+            out.writeObject(entry.getValue());
+         }
+      }
+   }
+
+   private void readCompact(OptimizedObjectInputStream in)
+           throws IOException, ClassNotFoundException
+   {
+      invocationType = (InvocationType) in.readKey();
+      tpc = in.readObject();
+      this.methodHash = ((Long) in.readKey()).longValue();
+      this.objectName = new Integer(in.readInt());
+
+      pooledMarshalledArgs = new PooledMarshalledValue();
+      pooledMarshalledArgs.readExternal(in);
+
+      int payloadSize = in.readInt();
+      if (payloadSize > 0)
+      {
+         payload = new HashMap();
+         for (int i = 0; i < payloadSize; i++)
+         {
+            Object key = in.readKey();
+            Object value = in.readObject();
+            payload.put(key, value);
+         }
+      }
+
+      int as_is_payloadSize = in.readInt();
+      if (as_is_payloadSize > 0)
+      {
+         as_is_payload = new HashMap();
+         for (int i = 0; i < as_is_payloadSize; i++)
+         {
+            Object key = in.readKey();
+            Object value = in.readObject();
+            as_is_payload.put(key, value);
+         }
+      }
+   }
 }
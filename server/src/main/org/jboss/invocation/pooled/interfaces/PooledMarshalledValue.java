@@ -57,6 +57,12 @@ public class PooledMarshalledValue
     */
    private int hashCode;
 
+   /** Buffers larger than this are not kept for reuse by the thread */
+   private static final int MAX_CACHED_BUFFER = 64 * 1024;
+
+   /** The per thread serialization buffer */
+   private static final ThreadLocal buffers = new ThreadLocal();
+
    /**
     * Exposed for externalization.
     */
@@ -67,20 +73,76 @@ public class PooledMarshalledValue
 
    public PooledMarshalledValue(Object obj) throws IOException
    {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      ObjectOutputStream mvos = new OptimizedObjectOutputStream(baos);
-      mvos.writeObject(obj);
-      mvos.flush();
-      serializedForm = baos.toByteArray();
-      mvos.close();
-      // Use the java.rmi.MarshalledObject hash code calculation
-      int hash = 0;
-      for (int i = 0; i < serializedForm.length; i++)
+      Buffer baos = serialize(obj);
+      try
+      {
+         serializedForm = baos.toByteArray();
+         hashCode = baos.hash();
+      }
+      finally
+      {
+         baos.release();
+      }
+   }
+
+   /**
+    * Write obj in the externalized form of a PooledMarshalledValue without
+    * creating the intermediate value or copying the serialized bytes. The
+    * result is read back with <code>new PooledMarshalledValue()</code>
+    * followed by readExternal.
+    *
+    * @param out the stream to write to
+    * @param obj the value to marshall
+    */
+   public static void writeValue(ObjectOutput out, Object obj) throws IOException
+   {
+      Buffer baos = serialize(obj);
+      try
+      {
+         int length = baos.size();
+         out.writeInt(length);
+         if( length > 0 )
+            out.write(baos.buffer(), 0, length);
+         out.writeInt(baos.hash());
+      }
+      finally
+      {
+         baos.release();
+      }
+   }
+
+   /**
+    * Serialize obj into the thread's buffer, or a new one if the thread's
+    * buffer is already in use by an enclosing marshalling.
+    */
+   private static Buffer serialize(Object obj) throws IOException
+   {
+      Buffer baos = (Buffer) buffers.get();
+      if( baos == null || baos.inUse )
+      {
+         baos = new Buffer();
+         if( buffers.get() == null )
+            buffers.set(baos);
+      }
+      baos.inUse = true;
+      try
       {
-         hash = 31 * hash + serializedForm[i];
+         ObjectOutputStream mvos = new OptimizedObjectOutputStream(baos);
+         mvos.writeObject(obj);
+         mvos.flush();
+         mvos.close();
       }
-      
-      hashCode = hash;
+      catch(IOException e)
+      {
+         baos.release();
+         throw e;
+      }
+      catch(RuntimeException e)
+      {
+         baos.release();
+         throw e;
+      }
+      return baos;
    }
 
    public Object get() throws IOException, ClassNotFoundException
@@ -188,4 +250,43 @@ public class PooledMarshalledValue
       }
       out.writeInt(hashCode);
    }
+
+   /**
+    * A reusable serialization buffer exposing its backing array.
+    */
+   private static class Buffer extends ByteArrayOutputStream
+   {
+      boolean inUse;
+
+      Buffer()
+      {
+         super(256);
+      }
+
+      byte[] buffer()
+      {
+         return buf;
+      }
+
+      /**
+       * Use the java.rmi.MarshalledObject hash code calculation
+       */
+      int hash()
+      {
+         int hash = 0;
+         for (int i = 0; i < count; i++)
+         {
+            hash = 31 * hash + buf[i];
+         }
+         return hash;
+      }
+
+      void release()
+      {
+         reset();
+         inUse = false;
+         if( buf.length > MAX_CACHED_BUFFER && buffers.get() == this )
+            buffers.set(null);
+      }
+   }
 }
@@ -0,0 +1,210 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.invocation.pooled.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Blocking streams with a timeout over a non-blocking SocketChannel.
+ *
+ * The streams of a channel's socket ignore the socket timeout, so a worker
+ * reading from a client that stopped sending would block forever. Instead,
+ * the channel stays in non-blocking mode and a read or write that cannot
+ * make progress waits on a temporary selector for at most the timeout. The
+ * temporary selectors are pooled, there are at most as many as threads
+ * waiting at the same time.
+ *
+ * @version $Revision: 81030 $
+ */
+public class ChannelStreams
+{
+   /** The idle temporary selectors */
+   private final ConcurrentLinkedQueue selectors = new ConcurrentLinkedQueue();
+
+   private volatile boolean closed;
+
+   /**
+    * Get an input stream over a non-blocking channel
+    *
+    * @param channel the channel
+    * @param timeout the read timeout in milliseconds, 0 to wait forever
+    * @return the stream
+    */
+   public InputStream getInputStream(SocketChannel channel, int timeout)
+   {
+      return new ChannelInputStream(channel, timeout);
+   }
+
+   /**
+    * Get an output stream over a non-blocking channel
+    *
+    * @param channel the channel
+    * @param timeout the write timeout in milliseconds, 0 to wait forever
+    * @return the stream
+    */
+   public OutputStream getOutputStream(SocketChannel channel, int timeout)
+   {
+      return new ChannelOutputStream(channel, timeout);
+   }
+
+   /**
+    * Close the idle temporary selectors, the ones in use are closed when released
+    */
+   public void close()
+   {
+      closed = true;
+      Selector selector;
+      while ((selector = (Selector) selectors.poll()) != null)
+         closeSelector(selector);
+   }
+
+   /**
+    * Wait until the channel is ready for the operation
+    *
+    * @throws SocketTimeoutException when the timeout expires first
+    */
+   void await(SocketChannel channel, int op, int timeout) throws IOException
+   {
+      Selector selector = (Selector) selectors.poll();
+      if (selector == null)
+         selector = Selector.open();
+      try
+      {
+         SelectionKey key = channel.register(selector, op);
+         try
+         {
+            if (selector.select(timeout) == 0)
+               throw new SocketTimeoutException((op == SelectionKey.OP_READ ? "Read" : "Write") + " timed out after " + timeout + "ms");
+         }
+         finally
+         {
+            key.cancel();
+            // Deregister the channel before the selector is reused
+            selector.selectNow();
+         }
+      }
+      catch (IOException e)
+      {
+         closeSelector(selector);
+         selector = null;
+         throw e;
+      }
+      finally
+      {
+         if (selector != null)
+         {
+            selectors.add(selector);
+            if (closed)
+               close();
+         }
+      }
+   }
+
+   private static void closeSelector(Selector selector)
+   {
+      try
+      {
+         selector.close();
+      }
+      catch (IOException ignored)
+      {
+      }
+   }
+
+   private class ChannelInputStream extends InputStream
+   {
+      private final SocketChannel channel;
+      private final int timeout;
+
+      ChannelInputStream(SocketChannel channel, int timeout)
+      {
+         this.channel = channel;
+         this.timeout = timeout;
+      }
+
+      public int read() throws IOException
+      {
+         byte[] b = new byte[1];
+         int n = read(b, 0, 1);
+         return n < 0 ? -1 : b[0] & 0xff;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         if (len == 0)
+            return 0;
+         ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+         int n = channel.read(buffer);
+         while (n == 0)
+         {
+            await(channel, SelectionKey.OP_READ, timeout);
+            n = channel.read(buffer);
+         }
+         return n;
+      }
+
+      public void close() throws IOException
+      {
+         channel.close();
+      }
+   }
+
+   private class ChannelOutputStream extends OutputStream
+   {
+      private final SocketChannel channel;
+      private final int timeout;
+
+      ChannelOutputStream(SocketChannel channel, int timeout)
+      {
+         this.channel = channel;
+         this.timeout = timeout;
+      }
+
+      public void write(int b) throws IOException
+      {
+         write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+         ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+         while (buffer.hasRemaining())
+         {
+            if (channel.write(buffer) == 0)
+               await(channel, SelectionKey.OP_WRITE, timeout);
+         }
+      }
+
+      public void close() throws IOException
+      {
+         channel.close();
+      }
+   }
+}
@@ -0,0 +1,199 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.invocation.pooled.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+import org.jboss.invocation.Invocation;
+import org.jboss.invocation.pooled.interfaces.CompatibilityVersion;
+import org.jboss.invocation.pooled.interfaces.OptimizedObjectInputStream;
+import org.jboss.invocation.pooled.interfaces.OptimizedObjectOutputStream;
+import org.jboss.logging.Logger;
+
+/**
+ * A client connection of the {@link NIOServer}.
+ *
+ * The object streams live as long as the connection, as with ServerThread,
+ * but no thread is attached to the connection between requests. Each run()
+ * serves the requests available on the connection, then hands the
+ * connection back to the selector. The channel stays in non-blocking mode,
+ * the streams block with the socket timeout through {@link ChannelStreams}.
+ *
+ * @version $Revision: 81030 $
+ */
+public class NIOConnection implements Runnable
+{
+   final static private Logger log = Logger.getLogger(NIOConnection.class);
+
+   protected final NIOServer server;
+   protected final PooledInvoker invoker;
+   protected final SocketChannel channel;
+   protected final Socket socket;
+   protected final int timeout;
+   protected BufferedInputStream bis;
+   protected OptimizedObjectInputStream in;
+   protected OptimizedObjectOutputStream out;
+   protected volatile long lastActivity = System.currentTimeMillis();
+   protected volatile boolean closed;
+
+   public NIOConnection(NIOServer server, PooledInvoker invoker, SocketChannel channel, int timeout)
+   {
+      this.server = server;
+      this.invoker = invoker;
+      this.channel = channel;
+      this.socket = channel.socket();
+      this.timeout = timeout;
+   }
+
+   public SocketChannel getChannel()
+   {
+      return channel;
+   }
+
+   public long getLastActivity()
+   {
+      return lastActivity;
+   }
+
+   public void run()
+   {
+      boolean trace = log.isTraceEnabled();
+      try
+      {
+         if (in == null)
+         {
+            // Always do first one without an ACK because its not needed
+            ChannelStreams streams = server.getChannelStreams();
+            BufferedOutputStream bos = new BufferedOutputStream(streams.getOutputStream(channel, timeout));
+            out = new OptimizedObjectOutputStream(bos);
+            out.flush();
+            bis = new BufferedInputStream(streams.getInputStream(channel, timeout));
+            in = new OptimizedObjectInputStream(bis);
+            processInvocation();
+         }
+         else
+         {
+            acknowledge();
+            processInvocation();
+         }
+
+         // Serve the requests that arrived meanwhile, they are already
+         // buffered and the selector would not see them
+         while (bis.available() > 0)
+         {
+            acknowledge();
+            processInvocation();
+         }
+
+         lastActivity = System.currentTimeMillis();
+         server.resume(this);
+      }
+      catch (Throwable t)
+      {
+         if( trace )
+            log.trace("invocation failed, closing " + this, t);
+         close();
+      }
+      finally
+      {
+         // clear any interruption so that the worker can be reused
+         Thread.interrupted();
+      }
+   }
+
+   public void close()
+   {
+      if (closed)
+         return;
+      closed = true;
+      server.closed(this);
+      try
+      {
+         if (in != null) in.close();
+         if (out != null) out.close();
+      }
+      catch (Exception ignored)
+      {
+      }
+      try
+      {
+         channel.close();
+      }
+      catch (Exception ex)
+      {
+         log.debug("Failed cleanup", ex);
+      }
+   }
+
+   public String toString()
+   {
+      return "NIOConnection[" + socket + "]";
+   }
+
+   protected void acknowledge() throws Exception
+   {
+      // Perform acknowledgement to convince client
+      // that the socket is still active
+      byte ACK = in.readByte();
+      out.writeByte(ACK);
+      out.flush();
+   }
+
+   protected void processInvocation() throws Exception
+   {
+      // Ok, now read invocation and invoke
+      Invocation invocation = (Invocation)in.readObject();
+      // for stupid ObjectInputStream reset, also tells if the client offers descriptor tables
+      boolean clientTables = in.readMessageEnd();
+      Object response = null;
+      try
+      {
+         // Make absolutely sure thread interrupted is cleared.
+         Thread.interrupted();
+         response = invoker.invoke(invocation);
+      }
+      catch (Exception ex)
+      {
+         response = ex;
+      }
+      Thread.interrupted(); // clear interrupted state so we don't fail on socket writes
+      out.writeObject(response);
+      out.reset();
+      // to make sure stream gets reset
+      // Stupid ObjectInputStream holds object graph
+      // can only be set by the client/server sending a TC_RESET
+      out.writeMessageEnd();
+      out.flush();
+      out.reset();
+      if( clientTables && CompatibilityVersion.pooledInvokerDescriptorTable
+         && out.isDescriptorTableEnabled() == false )
+      {
+         // Both sides advertised descriptor tables, use them from the next message on
+         out.enableDescriptorTable();
+         in.enableDescriptorTable();
+      }
+   }
+}
@@ -0,0 +1,392 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.invocation.pooled.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+
+/**
+ * The selector based server side of the PooledInvoker.
+ *
+ * Instead of parking one ServerThread per client socket, idle connections
+ * are registered with a single Selector. When a client starts a request
+ * its connection is taken off the selector and handed to a bounded pool of
+ * worker threads, which run the unchanged blocking PooledInvokerProxy
+ * protocol (ACK byte, invocation, response) and then give the connection
+ * back to the selector. Thread count is therefore bounded by the number of
+ * concurrent requests, not by the number of connected clients.
+ *
+ * Connections idle for longer than the socket timeout are closed by the
+ * selector thread, the proxy then reconnects transparently like it does
+ * when the ServerThread times out. The same timeout bounds the reads and
+ * writes of a request.
+ *
+ * At most maxWorkers requests wait for a worker. When the queue is full the
+ * selector and the acceptors wait for room, like the acceptors of the
+ * blocking server wait for a free ServerThread, so the work is throttled
+ * instead of queued without bound.
+ *
+ * @version $Revision: 81030 $
+ */
+public class NIOServer implements Runnable
+{
+   final static private Logger log = Logger.getLogger(NIOServer.class);
+
+   /** How often the selector looks for idle connections */
+   private static final long IDLE_CHECK_INTERVAL = 1000;
+
+   protected final PooledInvoker invoker;
+   protected final ServerSocketChannel serverChannel;
+   protected final int timeout;
+   protected final int numAcceptThreads;
+   protected final int maxWorkers;
+
+   protected Selector selector;
+   protected final ChannelStreams channelStreams = new ChannelStreams();
+   protected ThreadPoolExecutor workers;
+   protected Thread selectorThread;
+   protected Thread[] acceptThreads;
+   protected volatile boolean running;
+   protected boolean trace;
+
+   /** The open connections */
+   protected final Map connections = new ConcurrentHashMap();
+   /** The connections to register with the selector */
+   protected final ConcurrentLinkedQueue pendingRegistrations = new ConcurrentLinkedQueue();
+
+   protected final AtomicLong acceptedCount = new AtomicLong();
+   protected final AtomicLong requestCount = new AtomicLong();
+   protected final AtomicLong idleClosedCount = new AtomicLong();
+
+   public NIOServer(PooledInvoker invoker, ServerSocketChannel serverChannel,
+      int numAcceptThreads, int maxWorkers, int timeout)
+   {
+      this.invoker = invoker;
+      this.serverChannel = serverChannel;
+      this.numAcceptThreads = numAcceptThreads;
+      this.maxWorkers = maxWorkers;
+      this.timeout = timeout;
+   }
+
+   public void start() throws IOException
+   {
+      trace = log.isTraceEnabled();
+      running = true;
+      selector = Selector.open();
+      final int port = serverChannel.socket().getLocalPort();
+      workers = new ThreadPoolExecutor(maxWorkers, maxWorkers, 60, TimeUnit.SECONDS,
+         new LinkedBlockingQueue(maxWorkers), new ThreadFactory()
+         {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r)
+            {
+               return new Thread(r, "PooledInvokerWorker#" + count.incrementAndGet() + "-" + port);
+            }
+         }, new WaitForRoom());
+
+      selectorThread = new Thread(this, "PooledInvokerSelector-" + port);
+      selectorThread.start();
+
+      acceptThreads = new Thread[numAcceptThreads];
+      for (int i = 0; i < numAcceptThreads; i++)
+      {
+         String name = "PooledInvokerAcceptor#" + i + "-" + port;
+         acceptThreads[i] = new Thread(new Acceptor(), name);
+         acceptThreads[i].start();
+      }
+   }
+
+   public void stop()
+   {
+      running = false;
+      try
+      {
+         serverChannel.close();
+      }
+      catch (IOException ignored)
+      {
+      }
+      if (selector != null)
+         selector.wakeup();
+      if (workers != null)
+         workers.shutdownNow();
+      channelStreams.close();
+      for (Iterator i = connections.keySet().iterator(); i.hasNext();)
+      {
+         NIOConnection connection = (NIOConnection) i.next();
+         connection.close();
+      }
+   }
+
+   /**
+    * @return the streams used by the connections
+    */
+   ChannelStreams getChannelStreams()
+   {
+      return channelStreams;
+   }
+
+   /**
+    * @return the number of requests waiting for a worker
+    */
+   public int getQueuedRequestCount()
+   {
+      return workers == null ? 0 : workers.getQueue().size();
+   }
+
+   /**
+    * @return the number of open client connections
+    */
+   public int getConnectionCount()
+   {
+      return connections.size();
+   }
+
+   /**
+    * @return the number of workers currently serving a request
+    */
+   public int getActiveWorkerCount()
+   {
+      return workers == null ? 0 : workers.getActiveCount();
+   }
+
+   public long getAcceptedCount()
+   {
+      return acceptedCount.get();
+   }
+
+   public long getRequestCount()
+   {
+      return requestCount.get();
+   }
+
+   public long getIdleClosedCount()
+   {
+      return idleClosedCount.get();
+   }
+
+   /**
+    * The selector loop.
+    */
+   public void run()
+   {
+      ArrayList ready = new ArrayList();
+      long lastIdleCheck = System.currentTimeMillis();
+      while (running)
+      {
+         try
+         {
+            selector.select(IDLE_CHECK_INTERVAL);
+            registerPending();
+            collectReady(ready);
+            while (ready.isEmpty() == false)
+            {
+               // Flush the cancelled keys so that the served channels
+               // can be registered again
+               selector.selectNow();
+               for (int i = 0; i < ready.size(); ++i)
+               {
+                  NIOConnection connection = (NIOConnection) ready.get(i);
+                  requestCount.incrementAndGet();
+                  workers.execute(connection);
+               }
+               ready.clear();
+               collectReady(ready);
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL)
+            {
+               closeIdle(now);
+               lastIdleCheck = now;
+            }
+         }
+         catch (Throwable t)
+         {
+            if (running)
+               log.error("Failed in selector loop", t);
+         }
+      }
+
+      try
+      {
+         selector.close();
+      }
+      catch (IOException ignored)
+      {
+      }
+   }
+
+   /**
+    * Called by a worker when a connection has been served and should
+    * wait for its next request on the selector.
+    */
+   void resume(NIOConnection connection)
+   {
+      if (running == false)
+      {
+         connection.close();
+         return;
+      }
+      pendingRegistrations.add(connection);
+      selector.wakeup();
+   }
+
+   /**
+    * Called by a connection when it is closed.
+    */
+   void closed(NIOConnection connection)
+   {
+      connections.remove(connection);
+   }
+
+   private void registerPending()
+   {
+      NIOConnection connection;
+      while ((connection = (NIOConnection) pendingRegistrations.poll()) != null)
+      {
+         SocketChannel channel = connection.getChannel();
+         try
+         {
+            channel.register(selector, SelectionKey.OP_READ, connection);
+         }
+         catch (ClosedChannelException e)
+         {
+            connection.close();
+         }
+         catch (IOException e)
+         {
+            if (trace)
+               log.trace("Failed to register " + connection, e);
+            connection.close();
+         }
+      }
+   }
+
+   private void collectReady(ArrayList ready)
+   {
+      Iterator keys = selector.selectedKeys().iterator();
+      while (keys.hasNext())
+      {
+         SelectionKey key = (SelectionKey) keys.next();
+         keys.remove();
+         key.cancel();
+         ready.add(key.attachment());
+      }
+   }
+
+   private void closeIdle(long now)
+   {
+      if (timeout <= 0)
+         return;
+      Iterator keys = selector.keys().iterator();
+      while (keys.hasNext())
+      {
+         SelectionKey key = (SelectionKey) keys.next();
+         NIOConnection connection = (NIOConnection) key.attachment();
+         if (key.isValid() && now - connection.getLastActivity() > timeout)
+         {
+            if (trace)
+               log.trace("Closing idle connection " + connection);
+            key.cancel();
+            connection.close();
+            idleClosedCount.incrementAndGet();
+         }
+      }
+   }
+
+   /**
+    * Waits for room in the full worker queue, closing the connection if the
+    * server stops meanwhile
+    */
+   private class WaitForRoom implements RejectedExecutionHandler
+   {
+      public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+      {
+         try
+         {
+            while (executor.getQueue().offer(r, IDLE_CHECK_INTERVAL, TimeUnit.MILLISECONDS) == false)
+            {
+               if (running == false || executor.isShutdown())
+               {
+                  ((NIOConnection) r).close();
+                  return;
+               }
+            }
+         }
+         catch (InterruptedException e)
+         {
+            ((NIOConnection) r).close();
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   /**
+    * Accepts the client connections, the first request of a connection is
+    * served right away since the client sends it without an ACK.
+    */
+   private class Acceptor implements Runnable
+   {
+      public void run()
+      {
+         while (running)
+         {
+            try
+            {
+               SocketChannel channel = serverChannel.accept();
+               channel.configureBlocking(false);
+               if( trace )
+                  log.trace("Accepted: " + channel);
+               NIOConnection connection = new NIOConnection(NIOServer.this, invoker, channel, timeout);
+               connections.put(connection, connection);
+               acceptedCount.incrementAndGet();
+               requestCount.incrementAndGet();
+               workers.execute(connection);
+            }
+            catch (Throwable t)
+            {
+               if (running)
+                  log.error("Failed to accept socket connection", t);
+            }
+         }
+      }
+   }
+}
@@ -22,6 +22,7 @@
 package org.jboss.invocation.pooled.server;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
@@ -31,6 +32,7 @@ import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.lang.reflect.Method;
 import java.rmi.NoSuchObjectException;
+import java.nio.channels.ServerSocketChannel;
 import javax.management.ObjectName;
 import javax.naming.InitialContext;
 import javax.transaction.Transaction;
@@ -143,6 +145,13 @@ public class PooledInvoker extends ServiceMBeanSupport
 
    protected LRUPool clientpool;
    protected LinkedList threadpool;
+   /**
+    * Serve the connections from a selector and a bounded worker pool
+    * instead of a thread per connection.
+    */
+   protected boolean useNIO = false;
+   /** The selector based server when useNIO is set */
+   protected NIOServer nioServer;
    protected boolean running = true;
    /** The logging trace level flag */
    protected boolean trace = false;
@@ -218,10 +227,21 @@ public class PooledInvoker extends ServiceMBeanSupport
       clientpool = new LRUPool(2, maxPoolSize);
       clientpool.create();
       threadpool = new LinkedList();
+      ServerSocketChannel serverChannel = null;
+      if( useNIO && serverSocketFactory != null )
+      {
+         log.warn("UseNIO is not supported with a custom server socket factory, using blocking mode");
+      }
        try
        {
           if( serverSocketFactory != null )
             serverSocket = serverSocketFactory.createServerSocket(serverBindPort, backlog, bindAddress);
+          else if( useNIO )
+          {
+            serverChannel = ServerSocketChannel.open();
+            serverSocket = serverChannel.socket();
+            serverSocket.bind(new InetSocketAddress(bindAddress, serverBindPort), backlog);
+          }
           else
             serverSocket = new ServerSocket(serverBindPort, backlog, bindAddress);
        }
@@ -244,6 +264,15 @@ public class PooledInvoker extends ServiceMBeanSupport
       log.debug("Bound invoker for JMX node");
       ctx.close();
 
+      if( serverChannel != null )
+      {
+         nioServer = new NIOServer(this, serverChannel, numAcceptThreads, maxPoolSize, timeout);
+         nioServer.start();
+         acceptThreads = new Thread[0];
+         log.debug("Serving connections using a selector and "+maxPoolSize+" workers");
+         return;
+      }
+
       acceptThreads = new Thread[numAcceptThreads];
       for (int i = 0; i < numAcceptThreads; i++)
       {
@@ -327,6 +356,11 @@ public class PooledInvoker extends ServiceMBeanSupport
    public void stopService() throws Exception
    {
       running = false;
+      if (nioServer != null)
+      {
+         nioServer.stop();
+         nioServer = null;
+      }
       maxPoolSize = 0; // so ServerThreads don't reinsert themselves
       for (int i = 0; i < acceptThreads.length; i++)
       {
@@ -502,6 +536,9 @@ public class PooledInvoker extends ServiceMBeanSupport
     */
    public int getCurrentClientPoolSize()
    {
+      NIOServer nio = nioServer;
+      if (nio != null)
+         return nio.getConnectionCount();
       return clientpool.size();
    }
 
@@ -512,9 +549,66 @@ public class PooledInvoker extends ServiceMBeanSupport
     */
    public int getCurrentThreadPoolSize()
    {
+      NIOServer nio = nioServer;
+      if (nio != null)
+         return nio.getActiveWorkerCount();
       return threadpool.size();
    }
 
+   /**
+    * Getter for property useNIO
+    *
+    * @return Value of property useNIO
+    * @jmx:managed-attribute
+    */
+   public boolean isUseNIO()
+   {
+      return useNIO;
+   }
+
+   /**
+    * Serve the client connections from a selector and a pool of MaxPoolSize
+    * workers rather than with one thread per connection. Only used at start,
+    * not available with a custom server socket factory.
+    *
+    * @param useNIO New value of property useNIO
+    * @jmx:managed-attribute
+    */
+   public void setUseNIO(boolean useNIO)
+   {
+      this.useNIO = useNIO;
+   }
+
+   /**
+    * @return the number of connections accepted in NIO mode
+    * @jmx:managed-attribute
+    */
+   public long getAcceptedConnectionCount()
+   {
+      NIOServer nio = nioServer;
+      return nio == null ? 0 : nio.getAcceptedCount();
+   }
+
+   /**
+    * @return the number of requests dispatched to workers in NIO mode
+    * @jmx:managed-attribute
+    */
+   public long getDispatchedRequestCount()
+   {
+      NIOServer nio = nioServer;
+      return nio == null ? 0 : nio.getRequestCount();
+   }
+
+   /**
+    * @return the number of connections closed for being idle in NIO mode
+    * @jmx:managed-attribute
+    */
+   public long getIdleClosedConnectionCount()
+   {
+      NIOServer nio = nioServer;
+      return nio == null ? 0 : nio.getIdleClosedCount();
+   }
+
    /**
     * Getter for property serverBindPort.
     *
@@ -200,4 +200,32 @@ public interface PooledInvokerMBean extends org.jboss.system.ServiceMBean
    public String getSslDomain();
    public void setSslDomain(String sslDomain);
    
+
+   /**
+    * Whether the connections are served from a selector and a bounded
+    * worker pool instead of one thread per connection.
+    * @return Value of property useNIO
+    */
+   boolean isUseNIO();
+
+   /**
+    * Setter for property useNIO, only used at start.
+    * @param useNIO New value of property useNIO
+    */
+   void setUseNIO(boolean useNIO);
+
+   /**
+    * @return the number of connections accepted in NIO mode
+    */
+   long getAcceptedConnectionCount();
+
+   /**
+    * @return the number of requests dispatched to workers in NIO mode
+    */
+   long getDispatchedRequestCount();
+
+   /**
+    * @return the number of connections closed for being idle in NIO mode
+    */
+   long getIdleClosedConnectionCount();
 }
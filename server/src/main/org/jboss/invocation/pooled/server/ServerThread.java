@@ -24,12 +24,11 @@ package org.jboss.invocation.pooled.server;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.InterruptedIOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.LinkedList;
 
 import org.jboss.invocation.Invocation;
+import org.jboss.invocation.pooled.interfaces.CompatibilityVersion;
 import org.jboss.invocation.pooled.interfaces.OptimizedObjectInputStream;
 import org.jboss.invocation.pooled.interfaces.OptimizedObjectOutputStream;
 import org.jboss.logging.Logger;
@@ -56,8 +55,8 @@ public class ServerThread extends Thread
 {
    final static private Logger log = Logger.getLogger(ServerThread.class);
 
-   protected ObjectInputStream in;
-   protected ObjectOutputStream out;
+   protected OptimizedObjectInputStream in;
+   protected OptimizedObjectOutputStream out;
    protected Socket socket;
    protected PooledInvoker invoker;
    protected LRUPool clientpool;
@@ -224,7 +223,8 @@ public class ServerThread extends Thread
       handlingResponse = true;
       // Ok, now read invocation and invoke
       Invocation invocation = (Invocation)in.readObject();
-      in.readObject(); // for stupid ObjectInputStream reset
+      // for stupid ObjectInputStream reset, also tells if the client offers descriptor tables
+      boolean clientTables = in.readMessageEnd();
       Object response = null;
       try
       {
@@ -242,9 +242,16 @@ public class ServerThread extends Thread
       // to make sure stream gets reset
       // Stupid ObjectInputStream holds object graph
       // can only be set by the client/server sending a TC_RESET
-      out.writeObject(Boolean.TRUE); 
+      out.writeMessageEnd();
       out.flush();
       out.reset();
+      if( clientTables && CompatibilityVersion.pooledInvokerDescriptorTable
+         && out.isDescriptorTableEnabled() == false )
+      {
+         // Both sides advertised descriptor tables, use them from the next message on
+         out.enableDescriptorTable();
+         in.enableDescriptorTable();
+      }
       handlingResponse = false;
    }
 
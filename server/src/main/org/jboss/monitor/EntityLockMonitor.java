@@ -201,6 +201,56 @@ public class EntityLockMonitor  extends ServiceMBeanSupport
       return rtn.toString();
    }
    
+   /**
+    * @jmx.managed-operation
+    * 
+    * @return the wait time histogram of the jndiName or null,
+    *         see {@link LockMonitor#getWaitTimeHistogram()}
+    */
+   public long[] getWaitTimeHistogram(String jndiName)
+   {
+      LockMonitor lm = getLockMonitor(jndiName);
+      return lm == null ? null : lm.getWaitTimeHistogram();
+   }
+   
+   /**
+    * @jmx.managed-operation
+    */
+   public String printWaitTimeHistograms()
+   {
+      long[] bounds = LockMonitor.WAIT_TIME_BUCKETS;
+      StringBuffer rtn = new StringBuffer();
+      rtn.append("<table width=\"1\" border=\"1\">");
+      rtn.append("<tr><td><b>EJB JNDI-NAME</b></td>");
+      for (int i = 0; i < bounds.length; i++)
+      {
+         rtn.append("<td><b>&lt;=").append(bounds[i]).append("ms</b></td>");
+      }
+      rtn.append("<td><b>&gt;").append(bounds[bounds.length - 1]).append("ms</b></td>");
+      rtn.append("<td><b>p50</b></td><td><b>p99</b></td><td><b>p999</b></td></tr>");
+      synchronized(monitorMap)
+      {
+         Iterator it = monitorMap.keySet().iterator();
+         while (it.hasNext())
+         {
+            String jndiName = (String)it.next();
+            LockMonitor lm = (LockMonitor)monitorMap.get(jndiName);
+            long[] histogram = lm.getWaitTimeHistogram();
+            rtn.append("<tr><td>").append(jndiName).append("</td>");
+            for (int i = 0; i < histogram.length; i++)
+            {
+               rtn.append("<td>").append(histogram[i]).append("</td>");
+            }
+            rtn.append("<td>").append(formatPercentile(lm.getWaitTimePercentile(0.5))).append("</td>");
+            rtn.append("<td>").append(formatPercentile(lm.getWaitTimePercentile(0.99))).append("</td>");
+            rtn.append("<td>").append(formatPercentile(lm.getWaitTimePercentile(0.999))).append("</td>");
+            rtn.append("</tr>");
+         }
+      }
+      rtn.append("</table>");
+      return rtn.toString();
+   }
+   
    /**
     * @jmx.managed-operation
     */
@@ -263,6 +313,15 @@ public class EntityLockMonitor  extends ServiceMBeanSupport
    
    // Private -------------------------------------------------------
    
+   private static String formatPercentile(long value)
+   {
+      if (value == Long.MAX_VALUE)
+      {
+         return "&gt;" + LockMonitor.WAIT_TIME_BUCKETS[LockMonitor.WAIT_TIME_BUCKETS.length - 1];
+      }
+      return "&lt;=" + value;
+   }
+   
    private void bind() throws NamingException
    {
       Context ctx = new InitialContext();
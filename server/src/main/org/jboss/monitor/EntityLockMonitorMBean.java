@@ -45,5 +45,7 @@ public interface EntityLockMonitorMBean extends ServiceMBean
    public String printLockMonitor();
    public Set listMonitoredBeans();
    public LockMonitor getLockMonitor(String jndiName);
+   public long[] getWaitTimeHistogram(String jndiName);
+   public String printWaitTimeHistograms();
    
 }
\ No newline at end of file
@@ -21,6 +21,8 @@
  */
 package org.jboss.monitor;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 /**
@@ -43,12 +45,21 @@ public class LockMonitor implements Serializable
    /** @since 4.0.2 */
    private static final long serialVersionUID = -6710878502772579272L;
    
+   /**
+    * The upper bounds in milliseconds of the wait time histogram buckets,
+    * an extra bucket counts the waits longer than the last bound
+    */
+   public static final long[] WAIT_TIME_BUCKETS = {
+      1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000
+   };
+   
    /* Lock Stats */
    private long totalTime;
    private long numContentions;
    private long timeouts;
    private long maxContenders;
    private long currentContenders;
+   private long[] waitTimeHistogram = new long[WAIT_TIME_BUCKETS.length + 1];
    
    /** Back reference to the non-Serializable LockMonitor factory */
    private transient EntityLockMonitor parent;
@@ -89,6 +100,42 @@ public class LockMonitor implements Serializable
    {
       return currentContenders;
    }
+
+   /**
+    * Get a copy of the wait time histogram, element i counts the waits
+    * not longer than WAIT_TIME_BUCKETS[i] and not counted by element i-1,
+    * the last element counts the waits longer than all the bounds.
+    */
+   public synchronized long[] getWaitTimeHistogram()
+   {
+      return (long[]) waitTimeHistogram.clone();
+   }
+
+   /**
+    * Get the wait time in milliseconds under which the given fraction
+    * of the waits completed, as the upper bound of the histogram bucket.
+    * Returns Long.MAX_VALUE if it falls in the overflow bucket.
+    * 
+    * @param fraction the fraction, e.g. 0.99
+    */
+   public synchronized long getWaitTimePercentile(double fraction)
+   {
+      long count = 0;
+      for (int i = 0; i < waitTimeHistogram.length; i++)
+         count += waitTimeHistogram[i];
+      if (count == 0)
+         return 0;
+
+      long threshold = (long) Math.ceil(count * fraction);
+      long seen = 0;
+      for (int i = 0; i < WAIT_TIME_BUCKETS.length; i++)
+      {
+         seen += waitTimeHistogram[i];
+         if (seen >= threshold)
+            return WAIT_TIME_BUCKETS[i];
+      }
+      return Long.MAX_VALUE;
+   }
    
    // Modifiers -----------------------------------------------------
    
@@ -132,6 +179,7 @@ public class LockMonitor implements Serializable
       {	
          totalTime += time;
          --currentContenders;
+         ++waitTimeHistogram[bucketOf(time)];
 	  }
 
       // Remark Ulf Schroeter: DO NOT include following call into the
@@ -169,7 +217,32 @@ public class LockMonitor implements Serializable
          numContentions = 0;
          // maxContenders always >= currentContenders
          maxContenders = currentContenders;
+         for (int i = 0; i < waitTimeHistogram.length; i++)
+            waitTimeHistogram[i] = 0;
+      }
+   }
+   
+   // Private -------------------------------------------------------
+   
+   private static int bucketOf(long time)
+   {
+      for (int i = 0; i < WAIT_TIME_BUCKETS.length; i++)
+      {
+         if (time <= WAIT_TIME_BUCKETS[i])
+            return i;
       }
+      return WAIT_TIME_BUCKETS.length;
+   }
+
+   /**
+    * Streams written before the wait time histogram was added
+    * leave it null, start those with an empty histogram
+    */
+   private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+   {
+      in.defaultReadObject();
+      if (waitTimeHistogram == null)
+         waitTimeHistogram = new long[WAIT_TIME_BUCKETS.length + 1];
    }
    
    // Object overrides ----------------------------------------------
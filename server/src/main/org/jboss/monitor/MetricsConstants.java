@@ -66,6 +66,21 @@ public interface MetricsConstants {
     final static String CHECKPOINT  = "CHECKPOINT";
     /** Message property 'METHOD' */
     final static String METHOD      = "METHOD";
+    /** Message property 'COUNT' */
+    final static String COUNT       = "COUNT";
+    /** Message property 'TOTAL_TIME' */
+    final static String TOTAL_TIME  = "TOTAL_TIME";
+    /** Message property 'MAX_TIME' */
+    final static String MAX_TIME    = "MAX_TIME";
+    /** Message property 'P50' */
+    final static String P50         = "P50";
+    /** Message property 'P99' */
+    final static String P99         = "P99";
+    /** Message property 'P999' */
+    final static String P999        = "P999";
+
+    /** Invocation metrics CHECKPOINT of an interval summary */
+    final static String INTERVAL    = "INTERVAL";
    
    
     /** System Monitor TYPE */
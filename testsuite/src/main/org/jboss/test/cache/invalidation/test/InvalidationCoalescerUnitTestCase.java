@@ -0,0 +1,252 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.cache.invalidation.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.rmi.dgc.VMID;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.jboss.cache.invalidation.BatchInvalidation;
+import org.jboss.cache.invalidation.InvalidationCoalescer;
+import org.jboss.cache.invalidation.bridges.JMSCacheInvalidationMessage;
+
+/**
+ * Tests the coalescing of invalidations and the compression of the JMS
+ * bridge messages.
+ *
+ * @version $Revision: 81030 $
+ */
+public class InvalidationCoalescerUnitTestCase extends TestCase
+{
+   /** Messages serialized by the JMSCacheInvalidationMessage without compression
+    * support: keys {"1", 2} of group "A", and an invalidate all of group "B" */
+   private static final String BASELINE_KEYS =
+           "aced0005737200406f72672e6a626f73732e63616368652e696e76616c696461"
+         + "74696f6e2e627269646765732e4a4d534361636865496e76616c69646174696f"
+         + "6e4d6573736167658b0aa80f959ae7060200035b00036269737400315b4c6f72"
+         + "672f6a626f73732f63616368652f696e76616c69646174696f6e2f4261746368"
+         + "496e76616c69646174696f6e3b4c0007656d69747465727400134c6a6176612f"
+         + "726d692f6467632f564d49443b4c0016696e76616c6964617465416c6c47726f"
+         + "75704e616d657400124c6a6176612f6c616e672f537472696e673b7870757200"
+         + "315b4c6f72672e6a626f73732e63616368652e696e76616c69646174696f6e2e"
+         + "4261746368496e76616c69646174696f6e3b96a9160a67863c2a020000787000"
+         + "0000017372002e6f72672e6a626f73732e63616368652e696e76616c69646174"
+         + "696f6e2e4261746368496e76616c69646174696f6e0e65f6c2e9c996cb020002"
+         + "5b00036964737400175b4c6a6176612f696f2f53657269616c697a61626c653b"
+         + "4c0015696e76616c69646174696f6e47726f75704e616d6571007e0003787075"
+         + "7200175b4c6a6176612e696f2e53657269616c697a61626c653baed009ac53d7"
+         + "ed4902000078700000000274000131737200116a6176612e6c616e672e496e74"
+         + "6567657212e2a0a4f781873802000149000576616c7565787200106a6176612e"
+         + "6c616e672e4e756d62657286ac951d0b94e08b02000078700000000274000141"
+         + "737200116a6176612e726d692e6467632e564d4944f8865bafa4a56db6020002"
+         + "5b0004616464727400025b424c00037569647400154c6a6176612f726d692f73"
+         + "65727665722f5549443b7870757200025b42acf317f8060854e0020000787000"
+         + "0000088ec1d59e0ccb5af5737200136a6176612e726d692e7365727665722e55"
+         + "49440f12700dbf364f12020003530005636f756e744a000474696d6549000675"
+         + "6e6971756578708000000001a14eeb2ed514825d6870";
+   private static final String BASELINE_ALL =
+           "aced0005737200406f72672e6a626f73732e63616368652e696e76616c696461"
+         + "74696f6e2e627269646765732e4a4d534361636865496e76616c69646174696f"
+         + "6e4d6573736167658b0aa80f959ae7060200035b00036269737400315b4c6f72"
+         + "672f6a626f73732f63616368652f696e76616c69646174696f6e2f4261746368"
+         + "496e76616c69646174696f6e3b4c0007656d69747465727400134c6a6176612f"
+         + "726d692f6467632f564d49443b4c0016696e76616c6964617465416c6c47726f"
+         + "75704e616d657400124c6a6176612f6c616e672f537472696e673b7870707372"
+         + "00116a6176612e726d692e6467632e564d4944f8865bafa4a56db60200025b00"
+         + "04616464727400025b424c00037569647400154c6a6176612f726d692f736572"
+         + "7665722f5549443b7870757200025b42acf317f8060854e00200007870000000"
+         + "088ec1d59e0ccb5af5737200136a6176612e726d692e7365727665722e554944"
+         + "0f12700dbf364f12020003530005636f756e744a000474696d65490006756e69"
+         + "71756578708000000001a14eeb2ed514825d6874000142";
+
+   public InvalidationCoalescerUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testWindowDeduplicatesKeys() throws Exception
+   {
+      RecordingSink sink = new RecordingSink();
+      InvalidationCoalescer coalescer = new InvalidationCoalescer(sink, "test", 60000, 1000);
+      coalescer.start();
+      try
+      {
+         coalescer.invalidate("A", new Serializable[] {"1", "2"});
+         coalescer.invalidate("A", new Serializable[] {"2", "3"});
+         coalescer.invalidate("B", new Serializable[] {"1"});
+         assertEquals(0, sink.batches.size());
+
+         coalescer.flush();
+         assertEquals(1, sink.batches.size());
+         BatchInvalidation[] batch = (BatchInvalidation[]) sink.batches.get(0);
+         assertEquals(2, batch.length);
+         for (int i = 0; i < batch.length; ++i)
+         {
+            if ("A".equals(batch[i].getInvalidationGroupName()))
+               assertEquals(Arrays.asList(new Serializable[] {"1", "2", "3"}), Arrays.asList(batch[i].getIds()));
+            else
+               assertEquals(1, batch[i].getIds().length);
+         }
+         assertEquals(3, coalescer.getSubmissions());
+         assertEquals(5, coalescer.getSubmittedKeys());
+         assertEquals(1, coalescer.getSentMessages());
+         assertEquals(4, coalescer.getSentKeys());
+      }
+      finally
+      {
+         coalescer.stop();
+      }
+   }
+
+   public void testInvalidateAllSupersedesKeys() throws Exception
+   {
+      RecordingSink sink = new RecordingSink();
+      InvalidationCoalescer coalescer = new InvalidationCoalescer(sink, "test", 60000, 1000);
+      coalescer.start();
+      coalescer.invalidate("A", new Serializable[] {"1"});
+      coalescer.invalidateAll("A");
+      coalescer.invalidate("A", new Serializable[] {"2"});
+      coalescer.stop();
+      assertEquals(0, sink.batches.size());
+      assertEquals(Arrays.asList(new String[] {"A"}), sink.all);
+   }
+
+   public void testFlushOnWindowAndSize() throws Exception
+   {
+      RecordingSink sink = new RecordingSink();
+      InvalidationCoalescer coalescer = new InvalidationCoalescer(sink, "test", 50, 3);
+      coalescer.start();
+      try
+      {
+         coalescer.invalidate("A", new Serializable[] {"1", "2", "3"});
+         assertEquals("full batch is sent right away", 1, sink.batches.size());
+
+         coalescer.invalidate("A", new Serializable[] {"4"});
+         long deadline = System.currentTimeMillis() + 5000;
+         while (sink.batchCount() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+         assertEquals("window expired", 2, sink.batchCount());
+      }
+      finally
+      {
+         coalescer.stop();
+      }
+   }
+
+   public void testCompressedMessage() throws Exception
+   {
+      Serializable[] keys = new Serializable[500];
+      for (int i = 0; i < keys.length; ++i)
+         keys[i] = new Integer(i);
+      JMSCacheInvalidationMessage msg = new JMSCacheInvalidationMessage(new VMID(), "A", keys);
+      msg.setCompressionThreshold(100);
+      assertTrue(msg.isCompressed());
+
+      byte[] compressed = serialize(msg);
+      msg.setCompressionThreshold(0);
+      byte[] plain = serialize(msg);
+      assertTrue(compressed.length + " < " + plain.length, compressed.length < plain.length);
+
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(compressed));
+      JMSCacheInvalidationMessage copy = (JMSCacheInvalidationMessage) in.readObject();
+      assertEquals(1, copy.getInvalidations().length);
+      assertEquals("A", copy.getInvalidations()[0].getInvalidationGroupName());
+      assertEquals(Arrays.asList(keys), Arrays.asList(copy.getInvalidations()[0].getIds()));
+   }
+
+   public void testBaselineSerializedForm() throws Exception
+   {
+      JMSCacheInvalidationMessage keys = (JMSCacheInvalidationMessage) deserialize(fromHex(BASELINE_KEYS));
+      assertEquals(1, keys.getInvalidations().length);
+      assertEquals("A", keys.getInvalidations()[0].getInvalidationGroupName());
+      assertEquals(Arrays.asList(new Serializable[] {"1", new Integer(2)}),
+         Arrays.asList(keys.getInvalidations()[0].getIds()));
+
+      JMSCacheInvalidationMessage all = (JMSCacheInvalidationMessage) deserialize(fromHex(BASELINE_ALL));
+      assertEquals(0, all.getInvalidations().length);
+
+      // Written back uncompressed, the message keeps the baseline stream identity
+      assertFalse(keys.isCompressed());
+      JMSCacheInvalidationMessage copy = (JMSCacheInvalidationMessage) deserialize(serialize(keys));
+      assertEquals(Arrays.asList(keys.getInvalidations()[0].getIds()),
+         Arrays.asList(copy.getInvalidations()[0].getIds()));
+      DataInputStream data = new DataInputStream(new ByteArrayInputStream(fromHex(BASELINE_KEYS)));
+      // magic, version, TC_OBJECT, TC_CLASSDESC, class name
+      data.skipBytes(6);
+      assertEquals(JMSCacheInvalidationMessage.class.getName(), data.readUTF());
+      assertEquals(data.readLong(), ObjectStreamClass.lookup(JMSCacheInvalidationMessage.class).getSerialVersionUID());
+   }
+
+   private static Object deserialize(byte[] bytes) throws Exception
+   {
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+      return in.readObject();
+   }
+
+   private static byte[] fromHex(String hex)
+   {
+      byte[] bytes = new byte[hex.length() / 2];
+      for (int i = 0; i < bytes.length; ++i)
+         bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+      return bytes;
+   }
+
+   private static byte[] serialize(Object o) throws Exception
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(o);
+      out.close();
+      return bytes.toByteArray();
+   }
+
+   private static class RecordingSink implements InvalidationCoalescer.Sink
+   {
+      final List batches = new ArrayList();
+      final List all = new ArrayList();
+
+      public synchronized void sendBatch(BatchInvalidation[] invalidations)
+      {
+         batches.add(invalidations);
+      }
+
+      public synchronized void sendInvalidateAll(String groupName)
+      {
+         all.add(groupName);
+      }
+
+      synchronized int batchCount()
+      {
+         return batches.size();
+      }
+   }
+}
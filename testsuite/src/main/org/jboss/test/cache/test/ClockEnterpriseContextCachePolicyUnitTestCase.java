@@ -0,0 +1,259 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.cache.test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb.plugins.ClockEnterpriseContextCachePolicy;
+import org.jboss.ejb.plugins.EntityInstanceCache;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests of the victim selection of the CLOCK instance cache policy
+ *
+ * @see org.jboss.ejb.plugins.ClockEnterpriseContextCachePolicy
+ * @version $Revision: 81036 $
+ */
+public class ClockEnterpriseContextCachePolicyUnitTestCase extends TestCase
+{
+   private static final int THREADS = 8;
+
+   private static final int ITERATIONS = 20000;
+
+   public ClockEnterpriseContextCachePolicyUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   /**
+    * Entries in use stay cached over capacity and keep being swept, but a
+    * victim is never handed out again while its passivation is in progress,
+    * not even to a sweep started from within that passivation.
+    */
+   public void testNoVictimReturnedTwice() throws Exception
+   {
+      final RecordingPolicy policy = new RecordingPolicy(1, 1);
+      policy.nested = new Runnable()
+      {
+         int next = 100;
+
+         public void run()
+         {
+            policy.insert("nested" + next, "nested" + next++);
+         }
+      };
+      policy.insert("a", "a");
+      policy.insert("b", "b");
+      policy.insert("c", "c");
+      policy.insert("d", "d");
+
+      assertEquals(0, policy.duplicates.get());
+      assertTrue("Expected victims", policy.victims.size() > 0);
+      // Nothing was passivated
+      assertEquals(4 + policy.nestedInserts, policy.size());
+      assertEquals(policy.victims.size(), policy.getEvictionCount());
+   }
+
+   /**
+    * Passivated victims leave the cache, the rest are swept again later
+    */
+   public void testPassivatedVictimsAreRemoved() throws Exception
+   {
+      RecordingPolicy policy = new RecordingPolicy(4, 1);
+      policy.passivate = true;
+      for (int i = 0; i < 20; ++i)
+      {
+         String key = "key" + i;
+         policy.insert(key, key);
+         // Keep the first one hot
+         policy.get("key0");
+      }
+      assertEquals(0, policy.duplicates.get());
+      assertEquals(4, policy.size());
+      assertNotNull("The referenced entry should survive", policy.peek("key0"));
+      assertNotNull("The last entry should survive", policy.peek("key19"));
+   }
+
+   /**
+    * Concurrent gets, inserts and removes while victims are passivated or
+    * left in the cache as in use.
+    */
+   public void testConcurrentGetInsertSweep() throws Exception
+   {
+      final RecordingPolicy policy = new RecordingPolicy(64, 4);
+      policy.passivate = true;
+      policy.random = true;
+      final List keys = new ArrayList();
+      final Throwable[] failure = new Throwable[1];
+      final CountDownLatch start = new CountDownLatch(1);
+      Thread[] threads = new Thread[THREADS];
+      for (int t = 0; t < THREADS; ++t)
+      {
+         final List own = new ArrayList();
+         keys.add(own);
+         final int id = t;
+         threads[t] = new Thread()
+         {
+            public void run()
+            {
+               Random random = new Random(id);
+               try
+               {
+                  start.await();
+                  for (int i = 0; i < ITERATIONS; ++i)
+                  {
+                     String key = id + ":" + i;
+                     policy.insert(key, key);
+                     own.add(key);
+                     for (int j = 0; j < 4; ++j)
+                     {
+                        String hit = id + ":" + random.nextInt(i + 1);
+                        Object value = policy.get(hit);
+                        if (value != null && value.equals(hit) == false)
+                           throw new IllegalStateException("Got " + value + " for " + hit);
+                     }
+                     if (random.nextInt(10) == 0)
+                        policy.remove(id + ":" + random.nextInt(i + 1));
+                  }
+               }
+               catch (Throwable t)
+               {
+                  failure[0] = t;
+               }
+            }
+         };
+         threads[t].start();
+      }
+      start.countDown();
+      for (int t = 0; t < THREADS; ++t)
+         threads[t].join();
+      if (failure[0] != null)
+         throw new RuntimeException("Worker failed", failure[0]);
+
+      assertEquals(0, policy.duplicates.get());
+      assertTrue("Expected evictions", policy.getEvictionCount() > 0);
+      int cached = 0;
+      for (int t = 0; t < THREADS; ++t)
+      {
+         List own = (List) keys.get(t);
+         for (int i = 0; i < own.size(); ++i)
+         {
+            if (policy.peek(own.get(i)) != null)
+               ++cached;
+         }
+      }
+      assertEquals(cached, policy.size());
+      assertTrue("Cache should be near capacity: " + cached, cached <= 2 * 64);
+
+      // The ring is still consistent after everything was passivated
+      policy.random = false;
+      policy.flush();
+      assertEquals(0, policy.size());
+   }
+
+   private static Element getConfig(int capacity, int segments) throws Exception
+   {
+      String xml = "<cache-policy-conf><max-capacity>" + capacity + "</max-capacity>" +
+         "<segments>" + segments + "</segments></cache-policy-conf>";
+      return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml))).getDocumentElement();
+   }
+
+   /**
+    * Records the victims instead of releasing them to an instance cache
+    */
+   private static class RecordingPolicy extends ClockEnterpriseContextCachePolicy
+   {
+      final ConcurrentHashMap inFlight = new ConcurrentHashMap();
+      final List victims = new ArrayList();
+      final AtomicInteger duplicates = new AtomicInteger();
+      final Random randomSource = new Random(0);
+      /** Whether victims are passivated, otherwise they are in use */
+      volatile boolean passivate;
+      /** Whether victims are passivated at random */
+      volatile boolean random;
+      /** Run while the first victim is being passivated */
+      Runnable nested;
+      int nestedInserts;
+
+      RecordingPolicy(int capacity, int segments) throws Exception
+      {
+         super(new EntityInstanceCache());
+         importXml(getConfig(capacity, segments));
+         create();
+      }
+
+      public void flush()
+      {
+         passivate = true;
+         super.flush();
+      }
+
+      protected void ageOut(Entry entry)
+      {
+         Object key = entry.getKey();
+         if (inFlight.putIfAbsent(key, Boolean.TRUE) != null)
+         {
+            duplicates.incrementAndGet();
+            return;
+         }
+         try
+         {
+            synchronized (victims)
+            {
+               victims.add(key);
+            }
+            if (nested != null)
+            {
+               Runnable r = nested;
+               nested = null;
+               ++nestedInserts;
+               r.run();
+            }
+            boolean remove = passivate;
+            if (random)
+            {
+               synchronized (randomSource)
+               {
+                  remove = randomSource.nextBoolean();
+               }
+            }
+            if (remove)
+               remove(key);
+         }
+         finally
+         {
+            inFlight.remove(key);
+         }
+      }
+   }
+}
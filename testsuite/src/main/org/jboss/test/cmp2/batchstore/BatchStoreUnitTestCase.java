@@ -0,0 +1,346 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.cmp2.batchstore;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Properties;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+import javax.transaction.UserTransaction;
+
+import junit.framework.Test;
+
+import org.jboss.ejb.EjbModule;
+import org.jboss.ejb.plugins.cmp.ejbql.Catalog;
+import org.jboss.ejb.plugins.cmp.jdbc.JDBCStoreManager;
+import org.jboss.ejb.plugins.cmp.jdbc.bridge.JDBCEntityBridge;
+import org.jboss.mx.util.MBeanServerLocator;
+import org.jboss.test.JBossTestCase;
+import org.jboss.test.util.ejb.EJBTestCase;
+
+/**
+ * Tests the updates of an entity with batch-store enabled are executed in
+ * JDBC batches and are in the database after commit.
+ *
+ * @version <tt>$Revision: 81036 $</tt>
+ */
+public class BatchStoreUnitTestCase
+   extends EJBTestCase
+{
+   private static final int ITEMS = 10;
+
+   private JDBCStoreManager manager;
+
+   public static Test suite() throws Exception
+   {
+      return JBossTestCase.getDeploySetup(BatchStoreUnitTestCase.class, "cmp2-batchstore.jar");
+   }
+
+   public BatchStoreUnitTestCase(String methodName)
+   {
+      super(methodName);
+   }
+
+   public void setUpEJB(Properties props) throws Exception
+   {
+      super.setUpEJB(props);
+      ItemLocalHome home = getItemLocalHome();
+      for(int i = 0; i < ITEMS; ++i)
+      {
+         home.create(new Integer(i), "item" + i);
+      }
+
+      MBeanServer server = MBeanServerLocator.locateJBoss();
+      ObjectName name = new ObjectName("jboss.j2ee:jndiName=" + ItemLocalHome.JNDI_NAME + ",service=EJB");
+      EjbModule ejbModule = (EjbModule) server.getAttribute(name, "EjbModule");
+      Catalog catalog = (Catalog) ejbModule.getModuleData("CATALOG");
+      JDBCEntityBridge bridge = (JDBCEntityBridge) catalog.getEntityByEJBName("ItemEJB");
+      manager = (JDBCStoreManager) bridge.getManager();
+   }
+
+   public void tearDownEJB(Properties props) throws Exception
+   {
+      Collection items = getItemLocalHome().findAll();
+      for(Iterator i = items.iterator(); i.hasNext();)
+      {
+         ((ItemLocal) i.next()).remove();
+      }
+      super.tearDownEJB(props);
+   }
+
+   // Tests
+
+   /**
+    * Updates of the same fields of several instances go in one batch at commit
+    */
+   public void testBatchStoreAtCommit() throws Exception
+   {
+      long batches = manager.getStoreBatchCount();
+      long rows = manager.getBatchedStoreCount();
+
+      UserTransaction tx = getUserTransaction();
+      tx.begin();
+      try
+      {
+         ItemLocal[] items = findItems();
+         for(int i = 0; i < ITEMS; ++i)
+         {
+            ItemLocal item = items[i];
+            item.setName("updated" + i);
+            item.setQuantity(i * 10);
+         }
+      }
+      catch(Exception e)
+      {
+         tx.rollback();
+         throw e;
+      }
+      tx.commit();
+
+      assertEquals(batches + 1, manager.getStoreBatchCount());
+      assertEquals(rows + ITEMS, manager.getBatchedStoreCount());
+      for(int i = 0; i < ITEMS; ++i)
+      {
+         assertEquals("updated" + i, selectName(i));
+         assertEquals(i * 10, selectQuantity(i));
+      }
+   }
+
+   /**
+    * Instances with different dirty fields are stored in one batch per set of fields
+    */
+   public void testBatchPerDirtyFields() throws Exception
+   {
+      long batches = manager.getStoreBatchCount();
+      long rows = manager.getBatchedStoreCount();
+
+      UserTransaction tx = getUserTransaction();
+      tx.begin();
+      try
+      {
+         ItemLocal[] items = findItems();
+         for(int i = 0; i < ITEMS; ++i)
+         {
+            ItemLocal item = items[i];
+            if(i % 2 == 0)
+               item.setName("even" + i);
+            else
+               item.setQuantity(i);
+         }
+      }
+      catch(Exception e)
+      {
+         tx.rollback();
+         throw e;
+      }
+      tx.commit();
+
+      assertEquals(batches + 2, manager.getStoreBatchCount());
+      assertEquals(rows + ITEMS, manager.getBatchedStoreCount());
+      for(int i = 0; i < ITEMS; ++i)
+      {
+         if(i % 2 == 0)
+         {
+            assertEquals("even" + i, selectName(i));
+            assertEquals(0, selectQuantity(i));
+         }
+         else
+         {
+            assertEquals("item" + i, selectName(i));
+            assertEquals(i, selectQuantity(i));
+         }
+      }
+   }
+
+   /**
+    * The batch is flushed before a finder so the finder sees the updates
+    */
+   public void testFlushBeforeFinder() throws Exception
+   {
+      long flushes = manager.getStoreFlushCount();
+
+      UserTransaction tx = getUserTransaction();
+      tx.begin();
+      try
+      {
+         ItemLocal[] items = findItems();
+         for(int i = 0; i < 3; ++i)
+         {
+            items[i].setQuantity(42);
+         }
+         assertEquals(3, getItemLocalHome().findByQuantity(42).size());
+         assertEquals(flushes + 1, manager.getStoreFlushCount());
+      }
+      catch(Exception e)
+      {
+         tx.rollback();
+         throw e;
+      }
+      tx.commit();
+
+      for(int i = 0; i < 3; ++i)
+      {
+         assertEquals(42, selectQuantity(i));
+      }
+   }
+
+   /**
+    * A failed synchronization rolls back the queued updates, later
+    * transactions are batched again
+    */
+   public void testFailedStore() throws Exception
+   {
+      UserTransaction tx = getUserTransaction();
+      tx.begin();
+      try
+      {
+         ItemLocal[] items = findItems();
+         for(int i = 0; i < ITEMS; ++i)
+         {
+            items[i].setQuantity(7);
+         }
+         items[ITEMS - 1].setName(ItemBean.FAIL_STORE);
+      }
+      catch(Exception e)
+      {
+         tx.rollback();
+         throw e;
+      }
+      try
+      {
+         tx.commit();
+         fail("Expected the commit to fail");
+      }
+      catch(Exception expected)
+      {
+      }
+      for(int i = 0; i < ITEMS; ++i)
+      {
+         assertEquals(0, selectQuantity(i));
+      }
+
+      long batches = manager.getStoreBatchCount();
+      tx.begin();
+      try
+      {
+         ItemLocal[] items = findItems();
+         for(int i = 0; i < ITEMS; ++i)
+         {
+            items[i].setQuantity(8);
+         }
+      }
+      catch(Exception e)
+      {
+         tx.rollback();
+         throw e;
+      }
+      tx.commit();
+
+      assertEquals(batches + 1, manager.getStoreBatchCount());
+      for(int i = 0; i < ITEMS; ++i)
+      {
+         assertEquals(8, selectQuantity(i));
+      }
+   }
+
+   // Private
+
+   /**
+    * Finds all the items with a single finder, every finder flushes the
+    * updates queued so far
+    *
+    * @return the items indexed by id
+    */
+   private ItemLocal[] findItems() throws Exception
+   {
+      ItemLocal[] items = new ItemLocal[ITEMS];
+      Collection all = getItemLocalHome().findAll();
+      for(Iterator i = all.iterator(); i.hasNext();)
+      {
+         ItemLocal item = (ItemLocal) i.next();
+         items[item.getId().intValue()] = item;
+      }
+      return items;
+   }
+
+   private String selectName(int id) throws Exception
+   {
+      return (String) select("NAME", id);
+   }
+
+   private int selectQuantity(int id) throws Exception
+   {
+      return ((Number) select("QUANTITY", id)).intValue();
+   }
+
+   /**
+    * Reads a column directly from the database, bypassing the entity cache
+    */
+   private Object select(String column, int id) throws Exception
+   {
+      DataSource ds = (DataSource) lookup("java:/DefaultDS");
+      Connection con = ds.getConnection();
+      try
+      {
+         PreparedStatement ps = con.prepareStatement("SELECT " + column + " FROM BATCH_ITEM WHERE ID=?");
+         try
+         {
+            ps.setInt(1, id);
+            ResultSet rs = ps.executeQuery();
+            assertTrue("No row for id " + id, rs.next());
+            return rs.getObject(1);
+         }
+         finally
+         {
+            ps.close();
+         }
+      }
+      finally
+      {
+         con.close();
+      }
+   }
+
+   private UserTransaction getUserTransaction() throws NamingException
+   {
+      return (UserTransaction) lookup("java:comp/UserTransaction");
+   }
+
+   private ItemLocalHome getItemLocalHome() throws NamingException
+   {
+      return (ItemLocalHome) lookup(ItemLocalHome.JNDI_NAME);
+   }
+
+   private Object lookup(String name) throws NamingException
+   {
+      InitialContext ic = new InitialContext();
+      return ic.lookup(name);
+   }
+}
@@ -0,0 +1,117 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.cmp2.batchstore;
+
+import javax.ejb.CreateException;
+import javax.ejb.EJBException;
+import javax.ejb.EntityBean;
+import javax.ejb.EntityContext;
+import javax.ejb.RemoveException;
+
+/**
+ * An entity stored with batch-store enabled
+ *
+ * @version <tt>$Revision: 81036 $</tt>
+ */
+public abstract class ItemBean implements EntityBean
+{
+   /** ejbStore fails for an instance with this name */
+   public static final String FAIL_STORE = "fail-store";
+
+   // CMP accessors --------------------------------------------
+   /**
+    * @ejb.pk-field
+    * @ejb.persistent-field
+    * @ejb.interface-method
+    */
+   public abstract Integer getId();
+
+   public abstract void setId(Integer id);
+
+   /**
+    * @ejb.persistent-field
+    * @ejb.interface-method
+    */
+   public abstract String getName();
+
+   /**
+    * @ejb.interface-method
+    */
+   public abstract void setName(String name);
+
+   /**
+    * @ejb.persistent-field
+    * @ejb.interface-method
+    */
+   public abstract int getQuantity();
+
+   /**
+    * @ejb.interface-method
+    */
+   public abstract void setQuantity(int quantity);
+
+   /**
+    * @throws javax.ejb.CreateException
+    * @ejb.create-method
+    */
+   public Integer ejbCreate(Integer id, String name)
+      throws CreateException
+   {
+      setId(id);
+      setName(name);
+      return null;
+   }
+
+   public void ejbPostCreate(Integer id, String name)
+   {
+   }
+
+   public void setEntityContext(EntityContext ctx)
+   {
+   }
+
+   public void unsetEntityContext()
+   {
+   }
+
+   public void ejbActivate()
+   {
+   }
+
+   public void ejbLoad()
+   {
+   }
+
+   public void ejbPassivate()
+   {
+   }
+
+   public void ejbRemove() throws RemoveException
+   {
+   }
+
+   public void ejbStore()
+   {
+      if (FAIL_STORE.equals(getName()))
+         throw new EJBException("Failing the store of " + getId());
+   }
+}
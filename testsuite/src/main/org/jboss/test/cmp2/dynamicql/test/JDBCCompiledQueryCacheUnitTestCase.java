@@ -0,0 +1,168 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.cmp2.dynamicql.test;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb.plugins.cmp.jdbc.JDBCCompiledQueryCache;
+
+/**
+ * Tests the cache of compiled dynamic-ql queries finds a query by its
+ * metadata, text and parameter types, evicts the least recently used
+ * query at the size limit and counts its lookups.
+ *
+ * @version $Revision: 81030 $
+ */
+public class JDBCCompiledQueryCacheUnitTestCase extends TestCase
+{
+   private static final String QL = "SELECT OBJECT(o) FROM Order o WHERE o.number = ?1";
+
+   private static final Class[] INT = new Class[] { Integer.TYPE };
+
+   private final Object query = new Object();
+
+   public JDBCCompiledQueryCacheUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testHitsAndMisses() throws Exception
+   {
+      JDBCCompiledQueryCache cache = new JDBCCompiledQueryCache();
+      Object compiled = new Object();
+      assertNull(cache.get(key(query, QL, INT)));
+      cache.put(key(query, QL, INT), compiled);
+
+      // equal keys, built for each execution
+      assertSame(compiled, cache.get(key(query, QL, new Class[] { Integer.TYPE })));
+      assertSame(compiled, cache.get(key(query, new String(QL), INT)));
+
+      // the metadata is compared by identity
+      assertNull(cache.get(key(new Object(), QL, INT)));
+      assertNull(cache.get(key(query, QL + " ORDER BY o.number", INT)));
+      assertNull(cache.get(key(query, QL, new Class[] { Integer.class })));
+      assertNull(cache.get(key(query, QL, new Class[0])));
+
+      assertEquals(1, cache.size());
+      assertEquals(2, cache.getHits());
+      assertEquals(5, cache.getMisses());
+      assertEquals(0, cache.getEvictions());
+   }
+
+   public void testEviction() throws Exception
+   {
+      JDBCCompiledQueryCache cache = new JDBCCompiledQueryCache(3);
+      for(int i = 0; i < 3; ++i)
+      {
+         cache.put(key(query, QL + i, INT), new Integer(i));
+      }
+      assertEquals(3, cache.size());
+      assertEquals(0, cache.getEvictions());
+
+      // using the eldest query keeps it, the next one is evicted
+      assertEquals(new Integer(0), cache.get(key(query, QL + 0, INT)));
+      cache.put(key(query, QL + 3, INT), new Integer(3));
+      assertEquals(3, cache.size());
+      assertEquals(1, cache.getEvictions());
+      assertNull(cache.get(key(query, QL + 1, INT)));
+      assertEquals(new Integer(0), cache.get(key(query, QL + 0, INT)));
+      assertEquals(new Integer(2), cache.get(key(query, QL + 2, INT)));
+      assertEquals(new Integer(3), cache.get(key(query, QL + 3, INT)));
+
+      // replacing a cached query does not evict
+      cache.put(key(query, QL + 3, INT), new Integer(33));
+      assertEquals(3, cache.size());
+      assertEquals(1, cache.getEvictions());
+      assertEquals(new Integer(33), cache.get(key(query, QL + 3, INT)));
+
+      for(int i = 4; i < 10; ++i)
+      {
+         cache.put(key(query, QL + i, INT), new Integer(i));
+      }
+      assertEquals(3, cache.size());
+      assertEquals(7, cache.getEvictions());
+   }
+
+   public void testStatistics() throws Exception
+   {
+      JDBCCompiledQueryCache cache = new JDBCCompiledQueryCache();
+      assertEquals(JDBCCompiledQueryCache.DEFAULT_MAX_SIZE, cache.getMaxSize());
+      assertEquals(0.0, cache.getHitRate(), 0.0);
+
+      cache.put(key(query, QL, INT), QL);
+      for(int i = 0; i < 3; ++i)
+      {
+         cache.get(key(query, QL, INT));
+      }
+      cache.get(key(query, QL + 1, INT));
+      assertEquals(3, cache.getHits());
+      assertEquals(1, cache.getMisses());
+      assertEquals(0.75, cache.getHitRate(), 0.0);
+
+      // clearing drops the queries but not the statistics
+      cache.clear();
+      assertEquals(0, cache.size());
+      assertEquals(3, cache.getHits());
+      assertNull(cache.get(key(query, QL, INT)));
+      assertEquals(2, cache.getMisses());
+
+      cache.resetStatistics();
+      assertEquals(0, cache.getHits());
+      assertEquals(0, cache.getMisses());
+      assertEquals(0, cache.getEvictions());
+      assertEquals(0.0, cache.getHitRate(), 0.0);
+
+      JDBCCompiledQueryCache small = new JDBCCompiledQueryCache(1);
+      assertEquals(1, small.getMaxSize());
+      small.put(key(query, QL, INT), QL);
+      small.put(key(query, QL + 1, INT), QL);
+      assertEquals(1, small.getEvictions());
+      small.resetStatistics();
+      assertEquals(0, small.getEvictions());
+      assertEquals(1, small.size());
+   }
+
+   public void testInvalidMaxSize() throws Exception
+   {
+      try
+      {
+         new JDBCCompiledQueryCache(0);
+         fail("Expected IllegalArgumentException");
+      }
+      catch(IllegalArgumentException expected)
+      {
+      }
+      try
+      {
+         new JDBCCompiledQueryCache(-1);
+         fail("Expected IllegalArgumentException");
+      }
+      catch(IllegalArgumentException expected)
+      {
+      }
+   }
+
+   private static Object key(Object query, String ql, Class[] parameterTypes)
+   {
+      return JDBCCompiledQueryCache.createKey(query, ql, parameterTypes);
+   }
+}
@@ -0,0 +1,271 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.cmp2.jdbc2pm.tablecache.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Transaction;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb.plugins.cmp.jdbc2.schema.PartitionedTableCache;
+import org.jboss.ejb.plugins.cmp.jdbc2.schema.TableCache;
+import org.jboss.logging.Logger;
+
+/**
+ * Tests the row cache of the jdbc2 CMP engine and benchmarks lock-free
+ * reads with a concurrent writer.
+ *
+ * @version $Revision: 60899 $
+ */
+public class TableCacheUnitTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(TableCacheUnitTestCase.class);
+
+   private static final long BENCHMARK_MS = Long.getLong("jbosstest.cmp2.tablecache.benchmark.ms", 3000).longValue();
+
+   private static final Transaction NO_TX = null;
+
+   public TableCacheUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testPutAndGet() throws Exception
+   {
+      TableCache cache = new TableCache(0, 10, 100);
+      put(cache, "a", new Object[]{"a", new Integer(1)}, new Object[]{"r"});
+
+      Object[][] row = cache.getRow("a");
+      assertNotNull(row);
+      assertEquals(new Integer(1), row[0][1]);
+      assertEquals("r", row[1][0]);
+
+      // the returned arrays are copies
+      row[0][1] = new Integer(2);
+      assertEquals(new Integer(1), cache.getFields("a")[1]);
+
+      // relations are kept if not passed
+      put(cache, "a", new Object[]{"a", new Integer(3)}, null);
+      assertEquals(new Integer(3), cache.getFields("a")[1]);
+      assertEquals("r", cache.getRelations("a")[0]);
+
+      assertNull(cache.getRow("b"));
+      assertEquals(3, cache.getHitCount());
+      assertEquals(1, cache.getMissCount());
+   }
+
+   public void testLockedRowIsNotRead() throws Exception
+   {
+      TableCache cache = new TableCache(0, 10, 2);
+      Transaction tx = new TestTransaction();
+      put(cache, "a", new Object[]{"a"}, null);
+      cache.lockForUpdate(tx, "a");
+      assertNull(cache.getRow("a"));
+      assertTrue(cache.contains(tx, "a"));
+
+      // locked rows are not evicted
+      put(cache, "b", new Object[]{"b"}, null);
+      put(cache, "c", new Object[]{"c"}, null);
+      put(cache, "d", new Object[]{"d"}, null);
+      assertTrue(cache.contains(tx, "a"));
+      assertEquals(2, cache.size());
+
+      cache.releaseLock(tx, "a");
+      assertNotNull(cache.getRow("a"));
+   }
+
+   public void testScanDoesNotEvictHotRows() throws Exception
+   {
+      final int capacity = 1000;
+      final int hot = 500;
+      TableCache cache = new TableCache(0, capacity, capacity);
+      for(int i = 0; i < hot; ++i)
+      {
+         put(cache, "hot" + i, new Object[]{new Integer(i)}, null);
+      }
+      for(int i = 0; i < hot; ++i)
+      {
+         assertNotNull(cache.getFields("hot" + i));
+      }
+
+      // a scan through ten times the capacity
+      for(int i = 0; i < capacity * 10; ++i)
+      {
+         put(cache, "cold" + i, new Object[]{new Integer(i)}, null);
+      }
+
+      int retained = 0;
+      for(int i = 0; i < hot; ++i)
+      {
+         if(cache.getFields("hot" + i) != null)
+         {
+            ++retained;
+         }
+      }
+      log.debug("hot rows retained after scan: " + retained + "/" + hot);
+      assertEquals(hot, retained);
+      assertEquals(capacity, cache.size());
+      assertEquals(capacity * 10 + hot - capacity, cache.getEvictionCount());
+   }
+
+   /**
+    * Readers hit the cache while a writer keeps updating the rows. Each update
+    * writes the same value to both fields so a reader that sees different
+    * values read an inconsistent row.
+    */
+   public void testReadHeavyBenchmark() throws Exception
+   {
+      final int rows = 10000;
+      final int readers = Math.max(2, Runtime.getRuntime().availableProcessors());
+      final PartitionedTableCache cache = new PartitionedTableCache(rows, rows, 10);
+      for(int i = 0; i < rows; ++i)
+      {
+         Integer pk = new Integer(i);
+         cache.lock(pk);
+         try
+         {
+            cache.put(NO_TX, pk, new Object[]{new Integer(0), new Integer(0)}, null);
+         }
+         finally
+         {
+            cache.unlock(pk);
+         }
+      }
+
+      final AtomicBoolean stop = new AtomicBoolean();
+      final AtomicLong reads = new AtomicLong();
+      final AtomicLong writes = new AtomicLong();
+      final AtomicInteger inconsistent = new AtomicInteger();
+      final CountDownLatch done = new CountDownLatch(readers + 1);
+
+      for(int t = 0; t < readers; ++t)
+      {
+         final int seed = t;
+         new Thread("TableCacheReader-" + t)
+         {
+            public void run()
+            {
+               long count = 0;
+               int i = seed;
+               while(!stop.get())
+               {
+                  i = (i * 1103515245 + 12345) & Integer.MAX_VALUE;
+                  Object[][] row = cache.getRow(new Integer(i % rows));
+                  if(row != null && !row[0][0].equals(row[0][1]))
+                  {
+                     inconsistent.incrementAndGet();
+                  }
+                  ++count;
+               }
+               reads.addAndGet(count);
+               done.countDown();
+            }
+         }.start();
+      }
+
+      new Thread("TableCacheWriter")
+      {
+         public void run()
+         {
+            long count = 0;
+            while(!stop.get())
+            {
+               Integer pk = new Integer((int) (count % rows));
+               Integer value = new Integer((int) count);
+               cache.lock(pk);
+               try
+               {
+                  cache.put(NO_TX, pk, new Object[]{value, value}, null);
+               }
+               finally
+               {
+                  cache.unlock(pk);
+               }
+               ++count;
+            }
+            writes.addAndGet(count);
+            done.countDown();
+         }
+      }.start();
+
+      Thread.sleep(BENCHMARK_MS);
+      stop.set(true);
+      done.await();
+
+      log.info(readers + " readers: " + (reads.get() * 1000 / BENCHMARK_MS) + " reads/s, 1 writer: " +
+         (writes.get() * 1000 / BENCHMARK_MS) + " writes/s, hits=" + cache.getHitCount() +
+         ", misses=" + cache.getMissCount());
+      assertEquals(0, inconsistent.get());
+      assertEquals(0, cache.getMissCount());
+   }
+
+   private static void put(TableCache cache, Object pk, Object[] fields, Object[] relations)
+   {
+      cache.lock(pk);
+      try
+      {
+         cache.put(NO_TX, pk, fields, relations);
+      }
+      finally
+      {
+         cache.unlock(pk);
+      }
+   }
+
+   private static class TestTransaction implements Transaction
+   {
+      public void commit()
+      {
+      }
+
+      public boolean delistResource(javax.transaction.xa.XAResource xaRes, int flag)
+      {
+         return false;
+      }
+
+      public boolean enlistResource(javax.transaction.xa.XAResource xaRes)
+      {
+         return false;
+      }
+
+      public int getStatus()
+      {
+         return javax.transaction.Status.STATUS_ACTIVE;
+      }
+
+      public void registerSynchronization(javax.transaction.Synchronization sync)
+      {
+      }
+
+      public void rollback()
+      {
+      }
+
+      public void setRollbackOnly()
+      {
+      }
+   }
+}
@@ -0,0 +1,183 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.cmp2.keygen.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+import javax.transaction.TransactionManager;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb.plugins.keygenerator.KeyGenerator;
+import org.jboss.ejb.plugins.keygenerator.hilo.HiLoKeyGenerator;
+
+/**
+ * Tests of the HiLoKeyGenerator block prefetch against an in-memory
+ * sequence row.
+ *
+ * @version $Revision: 81036 $
+ */
+public class HiLoKeyGeneratorUnitTestCase extends TestCase
+{
+   public HiLoKeyGeneratorUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testPrefetch() throws Exception
+   {
+      ExecutorService prefetcher = Executors.newCachedThreadPool();
+      try
+      {
+         KeyGenerator generator = newGenerator(new Sequence(), prefetcher);
+         assertKeys(generator, 1, 100);
+      }
+      finally
+      {
+         prefetcher.shutdown();
+      }
+   }
+
+   /**
+    * HiLoKeyGeneratorFactory.stopService shuts the prefetch executor down
+    * while containers still hold its generators. Generating keys must then
+    * reserve the blocks synchronously rather than wait for a prefetch that
+    * never runs.
+    */
+   public void testGenerateAfterFactoryStop() throws Exception
+   {
+      ExecutorService prefetcher = Executors.newCachedThreadPool();
+      final KeyGenerator generator = newGenerator(new Sequence(), prefetcher);
+      assertKeys(generator, 1, 3);
+      prefetcher.shutdown();
+      assertTrue(prefetcher.awaitTermination(10, TimeUnit.SECONDS));
+
+      final Throwable[] failure = new Throwable[1];
+      Thread thread = new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               assertKeys(generator, 4, 50);
+            }
+            catch(Throwable t)
+            {
+               failure[0] = t;
+            }
+         }
+      };
+      thread.setDaemon(true);
+      thread.start();
+      thread.join(10000);
+      assertFalse("generateKey hangs after the prefetcher was shut down", thread.isAlive());
+      if(failure[0] != null)
+      {
+         fail(failure[0].toString());
+      }
+   }
+
+   private static void assertKeys(KeyGenerator generator, long first, long last)
+   {
+      for(long expected = first; expected <= last; ++expected)
+      {
+         assertEquals(new Long(expected), generator.generateKey());
+      }
+   }
+
+   private static KeyGenerator newGenerator(Sequence sequence, ExecutorService prefetcher)
+   {
+      DataSource ds = (DataSource) proxy(DataSource.class, sequence);
+      TransactionManager tm = (TransactionManager) proxy(TransactionManager.class, new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args)
+         {
+            return null;
+         }
+      });
+      return new HiLoKeyGenerator(ds, "HILOSEQUENCES", "SEQUENCENAME", "general", "HIGHVALUES", null, 8, tm,
+         prefetcher);
+   }
+
+   private static Object proxy(Class type, InvocationHandler handler)
+   {
+      return Proxy.newProxyInstance(HiLoKeyGeneratorUnitTestCase.class.getClassLoader(), new Class[]{type}, handler);
+   }
+
+   /**
+    * Emulates the JDBC calls of HiLoKeyGenerator on a single sequence row.
+    */
+   private static class Sequence implements InvocationHandler
+   {
+      private long hi;
+      private long[] params = new long[3];
+
+      public synchronized Object invoke(Object proxy, Method method, Object[] args)
+      {
+         String name = method.getName();
+         if(name.equals("getConnection"))
+         {
+            return proxy(Connection.class, this);
+         }
+         if(name.equals("prepareStatement"))
+         {
+            return proxy(PreparedStatement.class, this);
+         }
+         if(name.equals("setLong"))
+         {
+            params[((Integer) args[0]).intValue()] = ((Long) args[1]).longValue();
+            return null;
+         }
+         if(name.equals("executeQuery"))
+         {
+            return proxy(ResultSet.class, this);
+         }
+         if(name.equals("next"))
+         {
+            return Boolean.TRUE;
+         }
+         if(name.equals("getLong"))
+         {
+            return new Long(hi);
+         }
+         if(name.equals("executeUpdate"))
+         {
+            if(params[2] != hi)
+            {
+               return new Integer(0);
+            }
+            hi = params[1];
+            return new Integer(1);
+         }
+         return null;
+      }
+   }
+}
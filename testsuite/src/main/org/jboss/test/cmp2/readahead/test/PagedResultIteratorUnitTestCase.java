@@ -0,0 +1,169 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.cmp2.readahead.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb.plugins.cmp.jdbc.PagedResultIterator;
+
+/**
+ * Tests the pages of a lazily loaded query result are read once,
+ * and before their first result is returned.
+ *
+ * @version $Revision: 81030 $
+ */
+public class PagedResultIteratorUnitTestCase extends TestCase
+{
+   public PagedResultIteratorUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testPages() throws Exception
+   {
+      RecordingIterator iterator = new RecordingIterator(new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 }, 3);
+      for(int i = 0; i < 10; ++i)
+      {
+         assertTrue(iterator.hasNext());
+         assertEquals(new Integer(i), iterator.next());
+         // the page of the result was read before it was returned,
+         // the next page is only read when it is needed
+         assertEquals(i / 3 + 1, iterator.pages.size());
+      }
+      assertFalse(iterator.hasNext());
+      assertFalse(iterator.hasNext());
+
+      assertEquals(Arrays.asList(new Object[] {
+         list(new int[] { 0, 1, 2 }),
+         list(new int[] { 3, 4, 5 }),
+         list(new int[] { 6, 7, 8 }),
+         list(new int[] { 9 })
+      }), iterator.pages);
+      assertEquals(1, iterator.finished);
+      assertEquals(11, iterator.rowsMoved);
+
+      try
+      {
+         iterator.next();
+         fail("Expected NoSuchElementException");
+      }
+      catch(NoSuchElementException expected)
+      {
+      }
+   }
+
+   public void testPagesOfDistinctResults() throws Exception
+   {
+      // rows of the same primary key, as read with on-find cmr, give one result
+      RecordingIterator iterator = new RecordingIterator(new int[] { 0, 0, 1, 1, 1, 2, 3, 3 }, 2);
+      List results = new ArrayList();
+      while(iterator.hasNext())
+      {
+         results.add(iterator.next());
+      }
+      assertEquals(list(new int[] { 0, 1, 2, 3 }), results);
+      assertEquals(Arrays.asList(new Object[] {
+         list(new int[] { 0, 1 }),
+         list(new int[] { 2, 3 })
+      }), iterator.pages);
+      assertEquals(1, iterator.finished);
+   }
+
+   public void testEmpty() throws Exception
+   {
+      RecordingIterator iterator = new RecordingIterator(new int[0], 3);
+      assertFalse(iterator.hasNext());
+      assertTrue(iterator.pages.isEmpty());
+      assertEquals(1, iterator.finished);
+   }
+
+   private static List list(int[] values)
+   {
+      List list = new ArrayList();
+      for(int i = 0; i < values.length; ++i)
+      {
+         list.add(new Integer(values[i]));
+      }
+      return list;
+   }
+
+   /**
+    * Iterates an array of keys as rows, skipping a row
+    * with the same key as the previous one
+    */
+   private static class RecordingIterator extends PagedResultIterator
+   {
+      private final int[] keys;
+      private int row = -1;
+      private Integer prevKey;
+
+      List pages = new ArrayList();
+      int rowsMoved;
+      int finished;
+
+      RecordingIterator(int[] keys, int pageSize)
+      {
+         super(pageSize);
+         this.keys = keys;
+      }
+
+      protected boolean nextRow()
+      {
+         ++rowsMoved;
+         assertTrue("Moved past the last row", row < keys.length);
+         return ++row < keys.length;
+      }
+
+      protected void readRow(List rows)
+      {
+         Integer key = new Integer(keys[row]);
+         if(!key.equals(prevKey))
+         {
+            rows.add(key);
+            prevKey = key;
+         }
+      }
+
+      protected void pageRead(List rows)
+      {
+         assertFalse("Page read twice: " + rows, pages.contains(rows));
+         pages.add(new ArrayList(rows));
+      }
+
+      protected Object getResult(Object row)
+      {
+         List page = (List)pages.get(pages.size() - 1);
+         assertTrue("Result " + row + " returned before its page was read", page.contains(row));
+         return row;
+      }
+
+      protected void finished()
+      {
+         ++finished;
+      }
+   }
+}
@@ -0,0 +1,97 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.ejb.sessionlog;
+
+import javax.ejb.CreateException;
+import javax.ejb.SessionBean;
+import javax.ejb.SessionContext;
+
+/**
+ * A stateful session bean with some state to passivate.
+ *
+ * @version <tt>$Revision: 81036 $</tt>
+ */
+public class SessionLogBean implements SessionBean
+{
+   /** The size of the padding passivated with the count */
+   public static final int PAYLOAD_SIZE = 1024;
+
+   private int count;
+
+   private byte[] payload;
+
+   public void ejbCreate(int count) throws CreateException
+   {
+      setCount(count);
+   }
+
+   public int getCount()
+   {
+      return count;
+   }
+
+   public int increment()
+   {
+      return ++count;
+   }
+
+   public void setCount(int count)
+   {
+      this.count = count;
+      payload = new byte[PAYLOAD_SIZE];
+      for(int i = 0; i < PAYLOAD_SIZE; ++i)
+      {
+         payload[i] = (byte) (count + i);
+      }
+   }
+
+   /**
+    * @return whether the payload still matches the count
+    */
+   public boolean isPayloadValid()
+   {
+      if(payload == null || payload.length != PAYLOAD_SIZE)
+         return false;
+      for(int i = 0; i < PAYLOAD_SIZE; ++i)
+      {
+         if(payload[i] != (byte) (count + i))
+            return false;
+      }
+      return true;
+   }
+
+   public void ejbActivate()
+   {
+   }
+
+   public void ejbPassivate()
+   {
+   }
+
+   public void ejbRemove()
+   {
+   }
+
+   public void setSessionContext(SessionContext ctx)
+   {
+   }
+}
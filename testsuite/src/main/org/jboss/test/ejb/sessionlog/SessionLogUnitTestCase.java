@@ -0,0 +1,324 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.ejb.sessionlog;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.ejb.EJBException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.naming.InitialContext;
+
+import junit.framework.Test;
+
+import org.jboss.ejb.EjbModule;
+import org.jboss.ejb.StatefulSessionContainer;
+import org.jboss.ejb.StatefulSessionEnterpriseContext;
+import org.jboss.ejb.plugins.StatefulSessionLogPersistenceManager;
+import org.jboss.mx.util.MBeanServerLocator;
+import org.jboss.test.JBossTestCase;
+import org.jboss.test.util.ejb.EJBTestCase;
+
+/**
+ * Tests the session log persistence manager passivates, activates and
+ * removes sessions, compacts its segments and releases them, and starts
+ * over with a new log after a restart.
+ *
+ * @version <tt>$Revision: 81036 $</tt>
+ */
+public class SessionLogUnitTestCase
+   extends EJBTestCase
+{
+   private static final int SESSIONS = 40;
+
+   /** Small enough to roll over and compact a few segments */
+   private static final int SEGMENT_SIZE = 16 * 1024;
+
+   private static final long TIMEOUT = 60000;
+
+   private StatefulSessionContainer container;
+
+   private StatefulSessionLogPersistenceManager manager;
+
+   public static Test suite() throws Exception
+   {
+      return JBossTestCase.getDeploySetup(SessionLogUnitTestCase.class, "ejb-sessionlog.jar");
+   }
+
+   public SessionLogUnitTestCase(String methodName)
+   {
+      super(methodName);
+   }
+
+   public void setUpEJB(Properties props) throws Exception
+   {
+      super.setUpEJB(props);
+      MBeanServer server = MBeanServerLocator.locateJBoss();
+      ObjectName name = new ObjectName("jboss.j2ee:jndiName=" + SessionLogLocalHome.JNDI_NAME + ",service=EJB");
+      EjbModule ejbModule = (EjbModule) server.getAttribute(name, "EjbModule");
+      container = (StatefulSessionContainer) ejbModule.getContainer("SessionLogEJB");
+
+      // A manager of our own so the segments can be kept small
+      manager = new StatefulSessionLogPersistenceManager();
+      manager.setContainer(container);
+      manager.setSegmentSize(SEGMENT_SIZE);
+      manager.create();
+      manager.start();
+   }
+
+   public void tearDownEJB(Properties props) throws Exception
+   {
+      manager.stop();
+      manager.destroy();
+      super.tearDownEJB(props);
+   }
+
+   // Tests
+
+   /**
+    * Sessions passivated through the container are activated and removed
+    */
+   public void testDeployedManager() throws Exception
+   {
+      StatefulSessionLogPersistenceManager deployed =
+         (StatefulSessionLogPersistenceManager) container.getPersistenceManager();
+      long passivations = deployed.getPassivationCount();
+      long activations = deployed.getActivationCount();
+
+      SessionLogLocalHome home = (SessionLogLocalHome) new InitialContext().lookup(SessionLogLocalHome.JNDI_NAME);
+      SessionLogLocal[] sessions = new SessionLogLocal[3];
+      for(int i = 0; i < sessions.length; ++i)
+      {
+         // The cache holds one session, creating another passivates it
+         sessions[i] = home.create(i);
+      }
+      for(int i = 0; i < sessions.length; ++i)
+      {
+         assertEquals(i + 1, sessions[i].increment());
+      }
+      for(int i = 0; i < sessions.length; ++i)
+      {
+         sessions[i].remove();
+      }
+
+      assertTrue("passivated", deployed.getPassivationCount() > passivations);
+      assertTrue("activated", deployed.getActivationCount() > activations);
+   }
+
+   /**
+    * Activated, removed and compacted sessions release their segments
+    */
+   public void testPassivateActivateRemove() throws Exception
+   {
+      Object[] ids = new Object[SESSIONS];
+      ids[0] = passivate(0);
+      waitFor("first write", new Condition()
+      {
+         public boolean isTrue()
+         {
+            return manager.getBytesWritten() > 0;
+         }
+      });
+      // All the sessions serialize to the same size
+      final long length = manager.getBytesWritten();
+      for(int i = 1; i < SESSIONS; ++i)
+      {
+         ids[i] = passivate(i);
+      }
+      waitFor("all writes", new Condition()
+      {
+         public boolean isTrue()
+         {
+            return manager.getBytesWritten() == SESSIONS * length;
+         }
+      });
+
+      final int segments = manager.getSegmentCount();
+      assertTrue("rolled over: " + segments, segments > 2);
+      assertEquals(SESSIONS, manager.getPassivatedSessionCount());
+      waitForSegments();
+
+      // Leave a quarter of each segment live so they get compacted
+      for(int i = 0; i < SESSIONS; ++i)
+      {
+         if(i % 4 == 1)
+            manager.removePassivated(ids[i]);
+         else if(i % 4 != 0)
+            activate(ids[i], i);
+      }
+      assertEquals(SESSIONS / 4, manager.getPassivatedSessionCount());
+
+      waitFor("compaction", new Condition()
+      {
+         public boolean isTrue()
+         {
+            return manager.getCompactionCount() > 0 && manager.getSegmentCount() < segments;
+         }
+      });
+      waitForSegments();
+
+      // The moved sessions are read from their new segment
+      for(int i = 0; i < SESSIONS; i += 4)
+      {
+         activate(ids[i], i);
+      }
+      assertEquals(0, manager.getPassivatedSessionCount());
+      assertEquals(SESSIONS / 4 * 3, manager.getActivationCount());
+      waitForSegments();
+   }
+
+   /**
+    * A restarted manager drops the old log and its mappings and opens a new one
+    */
+   public void testRestart() throws Exception
+   {
+      Object[] ids = new Object[SESSIONS];
+      for(int i = 0; i < SESSIONS; ++i)
+      {
+         ids[i] = passivate(i);
+      }
+      waitFor("writes", new Condition()
+      {
+         public boolean isTrue()
+         {
+            return manager.getPendingWriteCount() == 0 && manager.getSegmentCount() > 1;
+         }
+      });
+      for(int i = 0; i < SESSIONS; i += 2)
+      {
+         activate(ids[i], i);
+      }
+      File storeDir = manager.getStoreDirectory();
+      assertTrue(storeDir.isDirectory());
+
+      manager.stop();
+      manager.destroy();
+      assertFalse("old log deleted", storeDir.exists());
+      assertEquals(0, manager.getSegmentCount());
+      assertEquals(0, manager.getPassivatedSessionCount());
+      assertEquals(0, manager.getMappedBytes());
+
+      manager.create();
+      manager.start();
+      assertTrue(manager.getStoreDirectory().isDirectory());
+      assertFalse(storeDir.equals(manager.getStoreDirectory()));
+      try
+      {
+         activate(ids[1], 1);
+         fail("Passivated state does not survive a restart");
+      }
+      catch(EJBException expected)
+      {
+      }
+
+      final long bytesWritten = manager.getBytesWritten();
+      List newIds = new ArrayList();
+      for(int i = 0; i < SESSIONS; ++i)
+      {
+         newIds.add(passivate(i));
+      }
+      waitFor("writes after restart", new Condition()
+      {
+         public boolean isTrue()
+         {
+            return manager.getPendingWriteCount() == 0 && manager.getBytesWritten() > bytesWritten;
+         }
+      });
+      for(int i = 0; i < SESSIONS; ++i)
+      {
+         activate(newIds.get(i), i);
+      }
+      assertEquals(0, manager.getPassivatedSessionCount());
+      waitForSegments();
+   }
+
+   // Helpers
+
+   private Object passivate(int count) throws Exception
+   {
+      StatefulSessionEnterpriseContext ctx = createContext();
+      ((SessionLogBean) ctx.getInstance()).setCount(count);
+      Object id = manager.createId(ctx);
+      ctx.setId(id);
+      manager.passivateSession(ctx);
+      return id;
+   }
+
+   private void activate(Object id, int count) throws Exception
+   {
+      StatefulSessionEnterpriseContext ctx = createContext();
+      ctx.setId(id);
+      manager.activateSession(ctx);
+      SessionLogBean bean = (SessionLogBean) ctx.getInstance();
+      assertEquals(count, bean.getCount());
+      assertTrue("payload of " + count, bean.isPayloadValid());
+   }
+
+   private StatefulSessionEnterpriseContext createContext() throws Exception
+   {
+      return new StatefulSessionEnterpriseContext(container.createBeanClassInstance(), container);
+   }
+
+   /**
+    * Waits for only the segments of the log to be mapped and have a file,
+    * the writer may still be rolling over or deleting one
+    */
+   private void waitForSegments() throws Exception
+   {
+      waitFor("segments released", new Condition()
+      {
+         public boolean isTrue()
+         {
+            int segments = manager.getSegmentCount();
+            String[] files = manager.getStoreDirectory().list(new FilenameFilter()
+            {
+               public boolean accept(File dir, String name)
+               {
+                  return name.endsWith(".log");
+               }
+            });
+            return manager.getMappedBytes() == (long) segments * SEGMENT_SIZE
+               && files.length == segments;
+         }
+      });
+   }
+
+   private void waitFor(String what, Condition condition) throws Exception
+   {
+      long end = System.currentTimeMillis() + TIMEOUT;
+      while(condition.isTrue() == false)
+      {
+         if(System.currentTimeMillis() > end)
+            fail("Timed out waiting for " + what);
+         Thread.sleep(100);
+      }
+   }
+
+   private interface Condition
+   {
+      boolean isTrue();
+   }
+}
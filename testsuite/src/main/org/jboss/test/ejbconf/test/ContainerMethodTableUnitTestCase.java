@@ -0,0 +1,119 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.ejbconf.test;
+
+import java.lang.reflect.Method;
+import java.security.Principal;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb.ContainerMethodTable;
+import org.jboss.invocation.Invocation;
+import org.jboss.invocation.InvocationType;
+import org.jboss.invocation.MarshalledInvocation;
+import org.jboss.metadata.MetaData;
+import org.jboss.security.SimplePrincipal;
+
+/**
+ * Tests the resolution of invocations through the ContainerMethodTable.
+ *
+ * @version $Revision: 81036 $
+ */
+public class ContainerMethodTableUnitTestCase extends TestCase
+{
+   public ContainerMethodTableUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testInvocationResolvesToIndexedEntry() throws Exception
+   {
+      ContainerMethodTable table = createTable();
+      // Proxies invoke with their own instances of the interface methods
+      Method m = Counter.class.getMethod("add", new Class[] {Integer.TYPE});
+      Invocation mi = new Invocation();
+      mi.setMethod(m);
+      mi.setType(InvocationType.REMOTE);
+      assertEquals(-1, mi.getMethodIndex());
+
+      ContainerMethodTable.Entry entry = table.getEntry(mi);
+      assertNotNull(entry);
+      assertNotSame(m, entry.getMethod());
+      assertEquals(m, entry.getMethod());
+      assertEquals(InvocationType.REMOTE, entry.getType());
+      assertEquals(MetaData.TX_REQUIRED, entry.getTransactionType());
+      assertTrue(entry.getPermissions().contains(new SimplePrincipal("Counter")));
+      assertEquals(entry.getId(), mi.getMethodIndex());
+
+      // The cached index resolves the same entry for another method instance
+      mi.setMethod(Counter.class.getMethod("add", new Class[] {Integer.TYPE}));
+      assertSame(entry, table.getEntry(mi));
+
+      // An index cached for another type is not used
+      mi.setType(InvocationType.LOCAL);
+      ContainerMethodTable.Entry local = table.getEntry(mi);
+      assertNotNull(local);
+      assertNotSame(entry, local);
+      assertEquals(local.getId(), mi.getMethodIndex());
+   }
+
+   public void testMarshalledHashResolvesToIndexedEntry() throws Exception
+   {
+      ContainerMethodTable table = createTable();
+      Method m = Counter.class.getMethod("reset", new Class[0]);
+      long hash = MarshalledInvocation.calculateHash(m);
+
+      ContainerMethodTable.Entry entry = table.getEntry(hash, InvocationType.REMOTE);
+      assertNotNull(entry);
+      assertEquals(m, entry.getMethod());
+      assertEquals(hash, entry.getHash());
+      assertNull(table.getEntry(hash, InvocationType.HOME));
+      assertNull(table.getEntry(hash + 1, InvocationType.REMOTE));
+   }
+
+   private static ContainerMethodTable createTable()
+   {
+      Set<Principal> roles = new HashSet<Principal>();
+      roles.add(new SimplePrincipal("Counter"));
+      ContainerMethodTable.Builder builder = new ContainerMethodTable.Builder();
+      InvocationType[] types = {InvocationType.REMOTE, InvocationType.LOCAL};
+      for (int t = 0; t < types.length; ++t)
+      {
+         Method[] methods = Counter.class.getMethods();
+         for (int i = 0; i < methods.length; ++i)
+         {
+            Method m = methods[i];
+            builder.add(m, types[t], roles, MetaData.TX_REQUIRED, MarshalledInvocation.calculateHash(m));
+         }
+      }
+      return builder.build();
+   }
+
+   public interface Counter
+   {
+      int add(int delta);
+
+      void reset();
+   }
+}
@@ -0,0 +1,359 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.invokers.test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import org.jboss.invocation.MarshalledInvocation;
+import org.jboss.invocation.MarshalledValue;
+import org.jboss.invocation.http.interfaces.ThresholdGZIPOutputStream;
+import org.jboss.invocation.http.interfaces.Util;
+import org.jboss.logging.Logger;
+
+/**
+ * Tests the streamed, optionally gzipped, HTTP invoker payloads and the
+ * reuse of the kept alive connections.
+ *
+ * @version $Revision: 89743 $
+ */
+public class HttpInvokerStreamingUnitTestCase extends TestCase
+{
+   private static final Logger log = Logger.getLogger(HttpInvokerStreamingUnitTestCase.class);
+
+   private static final int THRESHOLD = 1024;
+
+   public HttpInvokerStreamingUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testBelowThresholdIsNotCompressed() throws Exception
+   {
+      RecordingStream rs = new RecordingStream(THRESHOLD);
+      byte[] content = serialize(createValue(10));
+      assertTrue(content.length < THRESHOLD);
+      rs.write(content);
+      assertFalse("Opened before close", rs.opened);
+      rs.close();
+      assertFalse(rs.isCompressed());
+      assertFalse(rs.gzip);
+      assertEquals(content.length, rs.contentLength);
+      assertEquals(createValue(10), deserialize(rs.target.toByteArray()));
+   }
+
+   public void testGzipRoundTrip() throws Exception
+   {
+      RecordingStream rs = new RecordingStream(THRESHOLD);
+      ObjectOutputStream oos = new ObjectOutputStream(rs);
+      oos.writeObject(createValue(5000));
+      oos.close();
+      assertTrue(rs.isCompressed());
+      assertTrue(rs.gzip);
+      assertEquals(-1, rs.contentLength);
+      byte[] zipped = rs.target.toByteArray();
+      assertTrue("Not compressed: " + zipped.length, zipped.length < serialize(createValue(5000)).length);
+      InputStream in = new GZIPInputStream(new ByteArrayInputStream(zipped));
+      assertEquals(createValue(5000), new ObjectInputStream(in).readObject());
+   }
+
+   public void testNoThresholdStreamsAsIs() throws Exception
+   {
+      RecordingStream rs = new RecordingStream(-1);
+      rs.write(1);
+      assertTrue("Should open on the first write", rs.opened);
+      ObjectOutputStream oos = new ObjectOutputStream(rs);
+      oos.writeObject(createValue(5000));
+      oos.close();
+      assertFalse(rs.isCompressed());
+      assertEquals(-1, rs.contentLength);
+      byte[] content = rs.target.toByteArray();
+      assertEquals(1, content[0]);
+      ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(content, 1, content.length - 1));
+      assertEquals(createValue(5000), ois.readObject());
+   }
+
+   /**
+    * Small responses with a Content-Length and large gzipped chunked
+    * responses must both leave the connection reusable.
+    */
+   public void testInvokeReusesConnection() throws Exception
+   {
+      InvokerServer server = new InvokerServer();
+      server.start();
+      try
+      {
+         URL url = new URL("http://localhost:" + server.getPort() + "/invoker/JMXInvokerServlet");
+         MarshalledInvocation mi = new MarshalledInvocation(null, Object.class.getMethod("toString", new Class[0]),
+            new Object[0], null, null, null);
+         for (int i = 0; i < 20; ++i)
+         {
+            Object expected = createValue(i % 2 == 0 ? 10 : 5000);
+            server.value = expected;
+            assertEquals("Invocation " + i, expected, Util.invoke(url, mi));
+         }
+         assertEquals(20, server.requests);
+         assertTrue("Expected gzipped responses", server.gzipped > 0);
+         assertEquals("Connections opened", 1, server.connections);
+      }
+      finally
+      {
+         server.close();
+      }
+   }
+
+   private static ArrayList createValue(int size)
+   {
+      ArrayList value = new ArrayList(size);
+      for (int i = 0; i < size; ++i)
+         value.add("element " + i);
+      return value;
+   }
+
+   private static byte[] serialize(Object value) throws IOException
+   {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      oos.writeObject(value);
+      oos.close();
+      return baos.toByteArray();
+   }
+
+   private static Object deserialize(byte[] bytes) throws Exception
+   {
+      return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+   }
+
+   /**
+    * Records how the target was opened
+    */
+   private static class RecordingStream extends ThresholdGZIPOutputStream
+   {
+      ByteArrayOutputStream target = new ByteArrayOutputStream();
+      boolean opened;
+      boolean gzip;
+      int contentLength;
+
+      RecordingStream(int threshold)
+      {
+         super(threshold);
+      }
+
+      protected OutputStream open(boolean gzip, int contentLength)
+      {
+         assertFalse("Opened twice", opened);
+         this.opened = true;
+         this.gzip = gzip;
+         this.contentLength = contentLength;
+         return target;
+      }
+   }
+
+   /**
+    * A minimal HTTP/1.1 server answering like the InvokerServlet
+    */
+   private static class InvokerServer extends Thread
+   {
+      private final ServerSocket serverSocket;
+      volatile Object value;
+      volatile int connections;
+      volatile int requests;
+      volatile int gzipped;
+
+      InvokerServer() throws IOException
+      {
+         super("InvokerServer");
+         setDaemon(true);
+         serverSocket = new ServerSocket(0);
+      }
+
+      int getPort()
+      {
+         return serverSocket.getLocalPort();
+      }
+
+      void close() throws IOException
+      {
+         serverSocket.close();
+      }
+
+      public void run()
+      {
+         try
+         {
+            while (true)
+            {
+               final Socket socket = serverSocket.accept();
+               ++connections;
+               Thread handler = new Thread("InvokerServer connection")
+               {
+                  public void run()
+                  {
+                     serve(socket);
+                  }
+               };
+               handler.setDaemon(true);
+               handler.start();
+            }
+         }
+         catch (IOException ignored)
+         {
+            // closed
+         }
+      }
+
+      private void serve(Socket socket)
+      {
+         try
+         {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            while (true)
+            {
+               String line = readLine(in);
+               if (line == null)
+                  break;
+               int contentLength = 0;
+               boolean acceptGzip = false;
+               for (String header = readLine(in); header != null && header.length() > 0; header = readLine(in))
+               {
+                  String lower = header.toLowerCase();
+                  if (lower.startsWith("content-length:"))
+                     contentLength = Integer.parseInt(header.substring(15).trim());
+                  else if (lower.startsWith("accept-encoding:") && lower.indexOf("gzip") >= 0)
+                     acceptGzip = true;
+               }
+               for (int i = 0; i < contentLength; ++i)
+                  in.read();
+               ++requests;
+
+               out.write("HTTP/1.1 200 OK\r\nContent-Type: application/x-java-serialized-object\r\n".getBytes());
+               OutputStream body = new ThresholdGZIPOutputStream(acceptGzip ? THRESHOLD : -1)
+               {
+                  protected OutputStream open(boolean gzip, int length) throws IOException
+                  {
+                     if (gzip || length < 0)
+                     {
+                        if (gzip)
+                        {
+                           out.write("Content-Encoding: gzip\r\n".getBytes());
+                           ++gzipped;
+                        }
+                        out.write("Transfer-Encoding: chunked\r\n\r\n".getBytes());
+                        return new ChunkedOutputStream(out);
+                     }
+                     out.write(("Content-Length: " + length + "\r\n\r\n").getBytes());
+                     return new FilterOutputStream(out)
+                     {
+                        public void write(byte[] b, int off, int len) throws IOException
+                        {
+                           out.write(b, off, len);
+                        }
+
+                        public void close() throws IOException
+                        {
+                           flush();
+                        }
+                     };
+                  }
+               };
+               ObjectOutputStream oos = new ObjectOutputStream(body);
+               oos.writeObject(new MarshalledValue(value));
+               oos.close();
+            }
+         }
+         catch (IOException e)
+         {
+            log.debug("Connection closed", e);
+         }
+         finally
+         {
+            try
+            {
+               socket.close();
+            }
+            catch (IOException ignored)
+            {
+            }
+         }
+      }
+
+      private static String readLine(InputStream in) throws IOException
+      {
+         StringBuffer buffer = new StringBuffer();
+         int c;
+         while ((c = in.read()) != '\n')
+         {
+            if (c < 0)
+               return buffer.length() == 0 ? null : buffer.toString();
+            if (c != '\r')
+               buffer.append((char) c);
+         }
+         return buffer.toString();
+      }
+   }
+
+   /**
+    * Writes each write as one chunk, close ends the body but keeps the connection
+    */
+   private static class ChunkedOutputStream extends FilterOutputStream
+   {
+      ChunkedOutputStream(OutputStream out)
+      {
+         super(out);
+      }
+
+      public void write(int b) throws IOException
+      {
+         write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+         if (len == 0)
+            return;
+         out.write((Integer.toHexString(len) + "\r\n").getBytes());
+         out.write(b, off, len);
+         out.write("\r\n".getBytes());
+      }
+
+      public void close() throws IOException
+      {
+         out.write("0\r\n\r\n".getBytes());
+         out.flush();
+      }
+   }
+}
@@ -0,0 +1,145 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.invokers.test;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.jboss.invocation.InvocationStatistics;
+import org.jboss.invocation.LatencyHistogram;
+
+/**
+ * Tests the invocation statistics and their latency histograms.
+ *
+ * @version $Revision: 89743 $
+ */
+public class InvocationStatisticsUnitTestCase extends TestCase
+{
+   public InvocationStatisticsUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testHistogramBuckets() throws Exception
+   {
+      int last = -1;
+      for (long v = 0; v < 100000; ++v)
+      {
+         int index = LatencyHistogram.bucketIndex(v);
+         assertTrue("monotonic at " + v, index == last || index == last + 1);
+         long high = LatencyHistogram.highestValue(index);
+         assertTrue(v + " <= " + high, v <= high);
+         assertTrue("relative error at " + v, high - v <= v / 16);
+         last = index;
+      }
+      assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+      assertEquals(0, LatencyHistogram.bucketIndex(-1));
+   }
+
+   public void testPercentiles() throws Exception
+   {
+      LatencyHistogram histogram = new LatencyHistogram();
+      for (int i = 1; i <= 1000; ++i)
+         histogram.record(i);
+      long[] counts = histogram.getCounts();
+      assertNear(500, LatencyHistogram.valueAtPercentile(counts, 50));
+      assertNear(990, LatencyHistogram.valueAtPercentile(counts, 99));
+      assertNear(999, LatencyHistogram.valueAtPercentile(counts, 99.9));
+      assertNear(1000, LatencyHistogram.maxValue(counts));
+      assertEquals(0, LatencyHistogram.valueAtPercentile(new long[LatencyHistogram.BUCKETS], 50));
+   }
+
+   public void testConcurrentUpdates() throws Exception
+   {
+      final InvocationStatistics stats = new InvocationStatistics();
+      final Method m = Object.class.getMethod("toString", new Class[0]);
+      final int threads = 8;
+      final int calls = 20000;
+      Thread[] workers = new Thread[threads];
+      for (int i = 0; i < threads; ++i)
+      {
+         workers[i] = new Thread()
+         {
+            public void run()
+            {
+               for (int j = 1; j <= calls; ++j)
+               {
+                  stats.callIn();
+                  stats.updateStatsNanos(m, j * 1000L);
+                  stats.callOut();
+               }
+            }
+         };
+         workers[i].start();
+      }
+      for (int i = 0; i < threads; ++i)
+         workers[i].join();
+
+      InvocationStatistics.TimeStatistic stat = (InvocationStatistics.TimeStatistic) stats.getStats().get(m);
+      assertEquals(threads * calls, stat.count);
+      assertEquals(threads * (long) calls * (calls + 1) / 2 * 1000 / 1000000, stat.totalTime);
+      assertEquals(0, stat.minTime);
+      assertEquals(calls / 1000, stat.maxTime);
+      assertEquals(0, stats.concurrentCalls);
+      assertTrue(stats.maxConcurrentCalls >= 1 && stats.maxConcurrentCalls <= threads);
+      assertNear(calls / 2, stat.getPercentile(50));
+
+      Map<String, Map<String, Long>> detyped = stats.toDetypedMap();
+      assertEquals(new Long(threads * calls), detyped.get("toString").get("count"));
+      assertNotNull(detyped.get("toString").get("p99"));
+   }
+
+   public void testIntervalSnapshots() throws Exception
+   {
+      InvocationStatistics stats = new InvocationStatistics();
+      Method a = Object.class.getMethod("toString", new Class[0]);
+      Method b = Object.class.getMethod("hashCode", new Class[0]);
+      stats.updateStatsNanos(a, 1000);
+      stats.updateStatsNanos(b, 1000);
+      InvocationStatistics.Snapshot first = stats.snapshot();
+
+      for (int i = 0; i < 10; ++i)
+         stats.updateStatsNanos(a, 5000000);
+      InvocationStatistics.Snapshot interval = stats.snapshot().since(first);
+      assertEquals(1, interval.getMethods().size());
+      InvocationStatistics.MethodSnapshot ms = interval.getMethods().get(a);
+      assertEquals(10, ms.getCount());
+      assertEquals(50000000, ms.getTotalTimeNanos());
+      assertNear(5000, ms.getPercentile(50));
+
+      // the cumulative counters were not reset by taking snapshots
+      assertEquals(11, stats.snapshot().getMethods().get(a).getCount());
+
+      stats.resetStats();
+      stats.updateStatsNanos(b, 1000);
+      InvocationStatistics.Snapshot afterReset = stats.snapshot();
+      assertSame(afterReset, afterReset.since(first));
+   }
+
+   private static void assertNear(long expected, long actual)
+   {
+      assertTrue("expected about " + expected + " but was " + actual,
+         actual >= expected && actual - expected <= expected / 16);
+   }
+}
@@ -0,0 +1,229 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.invokers.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.jboss.invocation.MarshalledValue;
+import org.jboss.invocation.MarshalledValueInputStream;
+import org.jboss.invocation.MarshalledValueOutputStream;
+import org.jboss.invocation.MarshalledValueStreams;
+import org.jboss.logging.Logger;
+
+/**
+ * Tests the thread pooled MarshalledValue serialization streams.
+ *
+ * @version $Revision: 89743 $
+ */
+public class MarshalledValueStreamsUnitTestCase extends TestCase
+{
+   private static final Logger log = Logger.getLogger(MarshalledValueStreamsUnitTestCase.class);
+
+   public MarshalledValueStreamsUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testSameBytesAsNewStream() throws Exception
+   {
+      Object[] values = {null, "a string", new Integer(42), createValue(3),
+         new Date(0), createValue(10), "a string"};
+      for (int i = 0; i < values.length; ++i)
+      {
+         byte[] expected = serialize(values[i]);
+         byte[] pooled = MarshalledValueStreams.toByteArray(values[i]);
+         assertTrue("bytes of value " + i, Arrays.equals(expected, pooled));
+         assertEquals(values[i], MarshalledValueStreams.fromByteArray(pooled));
+      }
+   }
+
+   public void testMarshalledValue() throws Exception
+   {
+      HashMap value = createValue(5);
+      MarshalledValue mv = new MarshalledValue(value);
+      assertEquals(new MarshalledValue(value), mv);
+      assertEquals(value, mv.get());
+      assertEquals(value, mv.get());
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      MarshalledValue.writeValue(oos, value);
+      oos.close();
+      ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+      MarshalledValue read = new MarshalledValue();
+      read.readExternal(ois);
+      assertEquals(mv, read);
+      assertEquals(mv.hashCode(), read.hashCode());
+   }
+
+   public void testCopy() throws Exception
+   {
+      Nested nested = new Nested(createValue(4));
+      Nested copy = (Nested) MarshalledValueStreams.copy(nested);
+      assertNotSame(nested, copy);
+      assertEquals(nested.value, copy.value);
+      List list = new ArrayList();
+      list.add(nested);
+      list.add(nested);
+      List listCopy = (List) MarshalledValueStreams.copy(list);
+      assertSame(listCopy.get(0), listCopy.get(1));
+   }
+
+   public void testFailureDiscardsStream() throws Exception
+   {
+      List list = new ArrayList();
+      list.add("before");
+      list.add(new Object());
+      try
+      {
+         MarshalledValueStreams.toByteArray(list);
+         fail("Expected NotSerializableException");
+      }
+      catch (NotSerializableException expected)
+      {
+      }
+      try
+      {
+         MarshalledValueStreams.fromByteArray(new byte[] {1, 2, 3, 4, 5});
+         fail("Expected IOException");
+      }
+      catch (IOException expected)
+      {
+      }
+      byte[] bytes = serialize(createValue(3));
+      byte[] truncated = new byte[bytes.length / 2];
+      System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+      try
+      {
+         MarshalledValueStreams.fromByteArray(truncated);
+         fail("Expected IOException");
+      }
+      catch (IOException expected)
+      {
+      }
+      testSameBytesAsNewStream();
+   }
+
+   /**
+    * An idle pooled stream must not keep the last value it read reachable,
+    * at the top level or in a nested MarshalledValue.
+    */
+   public void testLastValueCollectable() throws Exception
+   {
+      Nested nested = (Nested) MarshalledValueStreams.copy(new Nested(createValue(3)));
+      WeakReference inner = new WeakReference(nested.value);
+      Object value = MarshalledValueStreams.fromByteArray(serialize(createValue(3)));
+      WeakReference top = new WeakReference(value);
+      value = null;
+      nested = null;
+
+      for (int i = 0; i < 20 && (top.get() != null || inner.get() != null); ++i)
+      {
+         System.gc();
+         Thread.sleep(50);
+      }
+      assertNull("Top level value still reachable", top.get());
+      assertNull("Nested value still reachable", inner.get());
+      // The pooled streams are still usable
+      testSameBytesAsNewStream();
+   }
+
+   public void testThroughput() throws Exception
+   {
+      HashMap value = createValue(20);
+      int iterations = 20000;
+      for (int pass = 0; pass < 2; ++pass)
+      {
+         long start = System.nanoTime();
+         for (int i = 0; i < iterations; ++i)
+            new MarshalledValue(value).get();
+         long pooled = System.nanoTime() - start;
+         start = System.nanoTime();
+         for (int i = 0; i < iterations; ++i)
+            deserialize(serialize(value));
+         long unpooled = System.nanoTime() - start;
+         log.info("MarshalledValue roundtrip: pooled " + pooled / iterations
+            + "ns, new streams " + unpooled / iterations + "ns");
+      }
+   }
+
+   private static HashMap createValue(int size)
+   {
+      HashMap map = new HashMap();
+      for (int i = 0; i < size; ++i)
+         map.put("key" + i, new Long(i));
+      return map;
+   }
+
+   private static byte[] serialize(Object value) throws IOException
+   {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      MarshalledValueOutputStream mvos = new MarshalledValueOutputStream(baos);
+      mvos.writeObject(value);
+      mvos.close();
+      return baos.toByteArray();
+   }
+
+   private static Object deserialize(byte[] bytes) throws Exception
+   {
+      ObjectInputStream ois = new MarshalledValueInputStream(new ByteArrayInputStream(bytes));
+      return ois.readObject();
+   }
+
+   /**
+    * A value whose serialization marshalls a nested value.
+    */
+   public static class Nested implements Serializable
+   {
+      private static final long serialVersionUID = 1L;
+      HashMap value;
+
+      Nested(HashMap value)
+      {
+         this.value = value;
+      }
+
+      private void writeObject(ObjectOutputStream out) throws IOException
+      {
+         out.writeObject(new MarshalledValue(value));
+      }
+
+      private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+      {
+         value = (HashMap) ((MarshalledValue) in.readObject()).get();
+      }
+   }
+}
@@ -0,0 +1,137 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.jca.test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+
+import javax.resource.spi.ManagedConnectionFactory;
+
+import junit.framework.TestCase;
+
+import org.jboss.logging.Logger;
+import org.jboss.resource.connectionmanager.BaseConnectionManager2;
+import org.jboss.resource.connectionmanager.CachedConnectionManager;
+import org.jboss.resource.connectionmanager.ConnectionListener;
+import org.jboss.resource.connectionmanager.InternalManagedConnectionPool;
+import org.jboss.resource.connectionmanager.JBossManagedConnectionPool;
+import org.jboss.resource.connectionmanager.ManagedConnectionPool;
+import org.jboss.resource.connectionmanager.NoTxConnectionManager;
+import org.jboss.test.jca.adapter.TestManagedConnectionFactory;
+
+/**
+ * Concurrent returns and kills of the same connection must leave the
+ * InternalManagedConnectionPool counters consistent.
+ *
+ * @version $Revision: 85731 $
+ */
+public class InternalManagedConnectionPoolConcurrencyUnitTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(InternalManagedConnectionPoolConcurrencyUnitTestCase.class);
+
+   private static final int MAX_SIZE = 10;
+   private static final int ITERATIONS = 200;
+
+   private CachedConnectionManager ccm = new CachedConnectionManager();
+
+   public InternalManagedConnectionPoolConcurrencyUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   private BaseConnectionManager2 getCM() throws Exception
+   {
+      InternalManagedConnectionPool.PoolParams pp = new InternalManagedConnectionPool.PoolParams();
+      pp.minSize = 0;
+      pp.maxSize = MAX_SIZE;
+      pp.blockingTimeout = 1000;
+      pp.idleTimeout = 0;
+      ManagedConnectionFactory mcf = new TestManagedConnectionFactory();
+      ManagedConnectionPool poolingStrategy = new JBossManagedConnectionPool.OnePool(mcf, pp, false, log);
+      BaseConnectionManager2 cm = new NoTxConnectionManager(ccm, poolingStrategy);
+      poolingStrategy.setConnectionListenerFactory(cm);
+      return cm;
+   }
+
+   public void testConcurrentReturn() throws Exception
+   {
+      runConcurrentReturns(false);
+   }
+
+   public void testConcurrentReturnAndKill() throws Exception
+   {
+      runConcurrentReturns(true);
+   }
+
+   /**
+    * Return each connection from two threads at once, one of them killing
+    * it when kill is true, then check that the pool hands out exactly
+    * MAX_SIZE live connections.
+    */
+   private void runConcurrentReturns(final boolean kill) throws Exception
+   {
+      BaseConnectionManager2 cm = getCM();
+      final ManagedConnectionPool ps = cm.getPoolingStrategy();
+      try
+      {
+         for (int i = 0; i < ITERATIONS; ++i)
+         {
+            final ConnectionListener cl = ps.getConnection(null, null, null);
+            final CyclicBarrier barrier = new CyclicBarrier(2);
+            Thread other = new Thread()
+            {
+               public void run()
+               {
+                  try
+                  {
+                     barrier.await();
+                     ps.returnConnection(cl, kill);
+                  }
+                  catch (Exception e)
+                  {
+                     log.warn("Unexpected error returning " + cl, e);
+                  }
+               }
+            };
+            other.start();
+            barrier.await();
+            ps.returnConnection(cl, false);
+            other.join();
+            assertEquals("In use after iteration " + i, 0, ps.getInUseConnectionCount());
+         }
+
+         Set listeners = new HashSet();
+         for (int i = 0; i < MAX_SIZE; ++i)
+         {
+            ConnectionListener cl = ps.getConnection(null, null, null);
+            assertTrue("Got a destroyed connection " + cl, cl.getState() == ConnectionListener.NORMAL);
+            assertTrue("Got connection twice " + cl, listeners.add(cl));
+         }
+         assertEquals(MAX_SIZE, ps.getInUseConnectionCount());
+      }
+      finally
+      {
+         ps.shutdown();
+      }
+   }
+}
@@ -0,0 +1,294 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.jca.test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.resource.ResourceException;
+import javax.resource.spi.ConnectionRequestInfo;
+import javax.resource.spi.ManagedConnection;
+import javax.resource.spi.ValidatingManagedConnectionFactory;
+import javax.security.auth.Subject;
+
+import junit.framework.TestCase;
+
+import org.jboss.logging.Logger;
+import org.jboss.resource.connectionmanager.BaseConnectionManager2;
+import org.jboss.resource.connectionmanager.CachedConnectionManager;
+import org.jboss.resource.connectionmanager.ConnectionListener;
+import org.jboss.resource.connectionmanager.InternalManagedConnectionPool;
+import org.jboss.resource.connectionmanager.JBossManagedConnectionPool;
+import org.jboss.resource.connectionmanager.ManagedConnectionPool;
+import org.jboss.resource.connectionmanager.NoTxConnectionManager;
+import org.jboss.resource.connectionmanager.PoolFiller;
+import org.jboss.resource.connectionmanager.PoolMaintenanceScheduler;
+import org.jboss.test.jca.adapter.TestConnectionRequestInfo;
+import org.jboss.test.jca.adapter.TestManagedConnection;
+import org.jboss.test.jca.adapter.TestManagedConnectionFactory;
+
+/**
+ * Hung maintenance work must be aborted and failed fills must back off.
+ *
+ * @version $Revision: 102148 $
+ */
+public class PoolMaintenanceSchedulerUnitTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(PoolMaintenanceSchedulerUnitTestCase.class);
+
+   private static final long TIMEOUT = 200;
+
+   private static final long WAIT = 20000;
+
+   private CachedConnectionManager ccm = new CachedConnectionManager();
+
+   public PoolMaintenanceSchedulerUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   /**
+    * Block every maintenance thread with work that ignores interrupts, like
+    * a read from a dead socket. The watchdog must still abort all of it.
+    */
+   public void testHungWorkIsAborted() throws Exception
+   {
+      int threads = PoolMaintenanceScheduler.getThreads();
+      List tasks = new ArrayList();
+      List works = new ArrayList();
+      try
+      {
+         for (int i = 0; i < threads; ++i)
+         {
+            HungWork work = new HungWork();
+            works.add(work);
+            tasks.add(PoolMaintenanceScheduler.schedule("HungWork#" + i, work, 10, TIMEOUT));
+         }
+         for (int i = 0; i < threads; ++i)
+         {
+            HungWork work = (HungWork) works.get(i);
+            assertTrue("Work " + i + " was not aborted", work.aborted.await(WAIT, TimeUnit.MILLISECONDS));
+            PoolMaintenanceScheduler.Task task = (PoolMaintenanceScheduler.Task) tasks.get(i);
+            assertTrue("Timeout not counted for " + task, task.getTimeouts() >= 1);
+         }
+      }
+      finally
+      {
+         for (Iterator i = tasks.iterator(); i.hasNext();)
+            ((PoolMaintenanceScheduler.Task) i.next()).cancel();
+      }
+   }
+
+   /**
+    * A validation blocked on a dead connection is unblocked by destroying
+    * the connection, which is then removed from the pool.
+    */
+   public void testHungValidationDestroysConnection() throws Exception
+   {
+      HangingValidationManagedConnectionFactory mcf = new HangingValidationManagedConnectionFactory();
+      InternalManagedConnectionPool.PoolParams pp = new InternalManagedConnectionPool.PoolParams();
+      pp.minSize = 0;
+      pp.maxSize = 2;
+      pp.blockingTimeout = 1000;
+      pp.idleTimeout = 0;
+      final InternalManagedConnectionPool mcp = getPool(mcf, pp);
+      try
+      {
+         ConnectionListener cl = mcp.getConnection(null, null);
+         mcp.returnConnection(cl, false);
+         assertEquals(1, mcp.getConnectionCount());
+
+         final Exception[] error = new Exception[1];
+         Thread validation = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  mcp.validateConnections();
+               }
+               catch (Exception e)
+               {
+                  error[0] = e;
+               }
+            }
+         };
+         validation.start();
+         assertTrue("Validation did not start", mcf.validating.await(WAIT, TimeUnit.MILLISECONDS));
+         // Interrupting does not help
+         validation.interrupt();
+         validation.join(TIMEOUT);
+         assertTrue("Validation should still be blocked", validation.isAlive());
+
+         mcp.abortValidation();
+         validation.join(WAIT);
+         assertFalse("Validation was not aborted", validation.isAlive());
+         assertNotNull("Expected the validation to fail", error[0]);
+         assertEquals(0, mcp.getConnectionCount());
+         assertEquals(1, mcp.getConnectionDestroyedCount());
+
+         // The pool still works
+         cl = mcp.getConnection(null, null);
+         assertTrue(cl.getManagedConnection() != mcf.hung);
+         mcp.returnConnection(cl, true);
+      }
+      finally
+      {
+         mcp.shutdown();
+      }
+   }
+
+   /**
+    * Failed fills are retried with a doubling delay that resets on success
+    */
+   public void testFillBackoff() throws Exception
+   {
+      TestManagedConnectionFactory mcf = new TestManagedConnectionFactory();
+      mcf.setFailure("createManagedConnectionResource");
+      InternalManagedConnectionPool.PoolParams pp = new InternalManagedConnectionPool.PoolParams();
+      pp.minSize = 1;
+      pp.maxSize = 2;
+      pp.blockingTimeout = 1000;
+      pp.idleTimeout = 0;
+      InternalManagedConnectionPool mcp = getPool(mcf, pp);
+      try
+      {
+         PoolFiller.fillPool(mcp);
+         waitForBackoff(mcp, PoolFiller.INITIAL_BACKOFF);
+         assertEquals(0, mcp.getConnectionCount());
+
+         // Requests during the backoff do not fill early
+         PoolFiller.fillPool(mcp);
+         waitForBackoff(mcp, 2 * PoolFiller.INITIAL_BACKOFF);
+         assertEquals(0, mcp.getConnectionCount());
+
+         mcf.setFailure(null);
+         waitForBackoff(mcp, 0);
+         assertEquals(1, mcp.getConnectionCount());
+      }
+      finally
+      {
+         mcp.shutdown();
+      }
+   }
+
+   private void waitForBackoff(InternalManagedConnectionPool mcp, long expected) throws Exception
+   {
+      long end = System.currentTimeMillis() + WAIT;
+      while (PoolFiller.getBackoff(mcp) != expected && System.currentTimeMillis() < end)
+         Thread.sleep(10);
+      assertEquals(expected, PoolFiller.getBackoff(mcp));
+   }
+
+   private InternalManagedConnectionPool getPool(TestManagedConnectionFactory mcf, InternalManagedConnectionPool.PoolParams pp) throws Exception
+   {
+      ManagedConnectionPool poolingStrategy = new JBossManagedConnectionPool.OnePool(mcf, pp, false, log);
+      BaseConnectionManager2 cm = new NoTxConnectionManager(ccm, poolingStrategy);
+      poolingStrategy.setConnectionListenerFactory(cm);
+      JBossManagedConnectionPool.SubPoolContext context = new JBossManagedConnectionPool.SubPoolContext(null, mcf, cm, null, null, pp, null, log);
+      return context.getSubPool();
+   }
+
+   /**
+    * Work that only stops when it is aborted
+    */
+   public static class HungWork implements Runnable, PoolMaintenanceScheduler.Abortable
+   {
+      CountDownLatch aborted = new CountDownLatch(1);
+
+      public void run()
+      {
+         while (aborted.getCount() > 0)
+         {
+            try
+            {
+               aborted.await();
+            }
+            catch (InterruptedException ignored)
+            {
+            }
+         }
+      }
+
+      public void abort()
+      {
+         aborted.countDown();
+      }
+   }
+
+   /**
+    * Validation blocks until the connection being validated is destroyed
+    */
+   public static class HangingValidationManagedConnectionFactory extends TestManagedConnectionFactory implements ValidatingManagedConnectionFactory
+   {
+      private static final long serialVersionUID = 1L;
+
+      CountDownLatch validating = new CountDownLatch(1);
+
+      volatile HangingManagedConnection hung;
+
+      int ids = 0;
+
+      public synchronized ManagedConnection createManagedConnection(Subject subject, ConnectionRequestInfo cri) throws ResourceException
+      {
+         return new HangingManagedConnection(this, subject, (TestConnectionRequestInfo) cri, ++ids);
+      }
+
+      public Set getInvalidConnections(Set connectionSet) throws ResourceException
+      {
+         HangingManagedConnection mc = (HangingManagedConnection) connectionSet.iterator().next();
+         hung = mc;
+         validating.countDown();
+         while (mc.destroyed.getCount() > 0)
+         {
+            try
+            {
+               mc.destroyed.await();
+            }
+            catch (InterruptedException ignored)
+            {
+            }
+         }
+         throw new ResourceException("Connection closed");
+      }
+   }
+
+   public static class HangingManagedConnection extends TestManagedConnection
+   {
+      CountDownLatch destroyed = new CountDownLatch(1);
+
+      public HangingManagedConnection(TestManagedConnectionFactory mcf, Subject subject, TestConnectionRequestInfo cri, int id)
+      {
+         super(mcf, subject, cri, id);
+      }
+
+      public void destroy() throws ResourceException
+      {
+         super.destroy();
+         destroyed.countDown();
+      }
+   }
+}
@@ -0,0 +1,294 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.jca.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.jboss.resource.adapter.jdbc.CachedPreparedStatement;
+import org.jboss.resource.adapter.jdbc.LFUPreparedStatementCache;
+import org.jboss.resource.adapter.jdbc.PreparedStatementCache;
+import org.jboss.resource.adapter.jdbc.PreparedStatementCacheStatistics;
+import org.jboss.resource.adapter.jdbc.WrappedConnectionFactory;
+import org.jboss.util.CachePolicy;
+
+/**
+ * Tests of the LFU prepared statement cache and the datasource wide
+ * prepared statement cache statistics, without a database.
+ *
+ * @version $Revision: 81036 $
+ */
+public class PreparedStatementCacheUnitTestCase extends TestCase
+{
+   /** The sql of the statements closed so far */
+   private final List closed = new ArrayList();
+
+   private WrappedConnectionFactory factory;
+
+   public PreparedStatementCacheUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      Class clazz;
+      try
+      {
+         clazz = Class.forName("org.jboss.resource.adapter.jdbc.jdk6.WrappedConnectionFactoryJDK6");
+      }
+      catch (ClassNotFoundException e)
+      {
+         clazz = Class.forName("org.jboss.resource.adapter.jdbc.jdk5.WrappedConnectionFactoryJDK5");
+      }
+      factory = (WrappedConnectionFactory) clazz.newInstance();
+   }
+
+   /**
+    * The least frequently used statement is evicted and closed
+    */
+   public void testLFUEviction() throws Exception
+   {
+      PreparedStatementCacheStatistics statistics = new PreparedStatementCacheStatistics();
+      LFUPreparedStatementCache cache = new LFUPreparedStatementCache(2, statistics);
+      insert(cache, "a");
+      insert(cache, "b");
+      assertNotNull(cache.get(key("a")));
+      assertNotNull(cache.get(key("a")));
+      assertNotNull(cache.get(key("b")));
+      assertNull(cache.get(key("c")));
+
+      insert(cache, "c");
+      assertEquals(2, cache.size());
+      assertNull("b should be evicted", cache.peek(key("b")));
+      assertNotNull(cache.peek(key("a")));
+      assertNotNull(cache.peek(key("c")));
+      assertEquals(list("b"), closed);
+      assertEquals(1, statistics.getEvictions());
+   }
+
+   /**
+    * Of two equally used statements the least recently used one is evicted
+    */
+   public void testLFUTieEvictsLeastRecentlyUsed() throws Exception
+   {
+      LFUPreparedStatementCache cache = new LFUPreparedStatementCache(2);
+      insert(cache, "a");
+      insert(cache, "b");
+      cache.get(key("a"));
+      cache.get(key("b"));
+
+      insert(cache, "c");
+      assertEquals(list("a"), closed);
+      assertNotNull(cache.peek(key("b")));
+   }
+
+   /**
+    * Use counts decay, so a statement that was hot in the past is evicted
+    * before one that is used now
+    */
+   public void testLFUDecay() throws Exception
+   {
+      // The counts are halved every 16 lookups
+      LFUPreparedStatementCache cache = new LFUPreparedStatementCache(2);
+      insert(cache, "old");
+      for (int i = 0; i < 15; ++i)
+         cache.get(key("old"));
+      insert(cache, "new");
+      for (int i = 0; i < 13; ++i)
+         cache.get(key("new"));
+
+      insert(cache, "c");
+      assertEquals(list("old"), closed);
+      assertNotNull(cache.peek(key("new")));
+   }
+
+   /**
+    * Removed and flushed statements are closed
+    */
+   public void testLFURemoveAndFlush() throws Exception
+   {
+      LFUPreparedStatementCache cache = new LFUPreparedStatementCache(4);
+      insert(cache, "a");
+      insert(cache, "b");
+      insert(cache, "c");
+      try
+      {
+         insert(cache, "a");
+         fail("Expected a duplicate insert to fail");
+      }
+      catch (IllegalStateException expected)
+      {
+      }
+
+      cache.remove(key("b"));
+      assertEquals(list("b"), closed);
+      assertEquals(2, cache.size());
+
+      cache.flush();
+      assertEquals(0, cache.size());
+      assertEquals(3, closed.size());
+      assertTrue(closed.contains("a"));
+      assertTrue(closed.contains("c"));
+   }
+
+   /**
+    * The LRU cache counts its evictions in the statistics as well
+    */
+   public void testLRUEvictionStatistics() throws Exception
+   {
+      PreparedStatementCacheStatistics statistics = new PreparedStatementCacheStatistics();
+      PreparedStatementCache cache = new PreparedStatementCache(2, statistics);
+      insert(cache, "a");
+      insert(cache, "b");
+      cache.get(key("a"));
+      insert(cache, "c");
+
+      assertEquals(list("b"), closed);
+      assertEquals(1, statistics.getEvictions());
+   }
+
+   /**
+    * The totals and the ranking of the most prepared statements
+    */
+   public void testStatistics() throws Exception
+   {
+      PreparedStatementCacheStatistics statistics = new PreparedStatementCacheStatistics();
+      statistics.miss(key("a"));
+      statistics.hit(key("a"));
+      statistics.hit(key("a"));
+      statistics.miss(key("b"));
+      statistics.miss(key("c"));
+      statistics.hit(key("c"));
+      statistics.eviction();
+
+      assertEquals(3, statistics.getHits());
+      assertEquals(3, statistics.getMisses());
+      assertEquals(1, statistics.getEvictions());
+      assertEquals(list(key("a"), key("c")), statistics.getTop(2));
+      assertEquals(3, statistics.getTop(10).size());
+      assertEquals(0, statistics.getTop(0).size());
+
+      String report = statistics.listTop(1);
+      assertTrue(report, report.indexOf("Prepared Statement Cache Hits:3") != -1);
+      assertTrue(report, report.indexOf("1: prepares=3 hits=2 type=PS sql=a") != -1);
+      assertTrue(report, report.indexOf("sql=c") == -1);
+
+      statistics.reset();
+      assertEquals(0, statistics.getHits());
+      assertEquals(0, statistics.getMisses());
+      assertEquals(0, statistics.getEvictions());
+      assertEquals(0, statistics.getTop(10).size());
+   }
+
+   /**
+    * A negative count lists no statements instead of failing
+    */
+   public void testNegativeCount() throws Exception
+   {
+      PreparedStatementCacheStatistics statistics = new PreparedStatementCacheStatistics();
+      statistics.miss(key("a"));
+      assertEquals(0, statistics.getTop(-1).size());
+      String report = statistics.listTop(-1);
+      assertTrue(report, report.indexOf("sql=a") == -1);
+   }
+
+   /**
+    * Once MAX_TRACKED statements are counted the least prepared ones make
+    * room for new statements
+    */
+   public void testTrackingLimit() throws Exception
+   {
+      PreparedStatementCacheStatistics statistics = new PreparedStatementCacheStatistics();
+      for (int i = 0; i < 5; ++i)
+         statistics.miss(key("hot"));
+      for (int i = 0; i < PreparedStatementCacheStatistics.MAX_TRACKED * 2; ++i)
+         statistics.miss(key("cold" + i));
+      statistics.miss(key("new"));
+      statistics.miss(key("new"));
+
+      List all = statistics.getTop(Integer.MAX_VALUE);
+      assertTrue("Too many statements counted: " + all.size(), all.size() <= PreparedStatementCacheStatistics.MAX_TRACKED);
+      assertEquals(key("hot"), all.get(0));
+      assertEquals(key("new"), all.get(1));
+      assertEquals(5 + PreparedStatementCacheStatistics.MAX_TRACKED * 2 + 2, statistics.getMisses());
+   }
+
+   private static PreparedStatementCache.Key key(String sql)
+   {
+      return new PreparedStatementCache.Key(sql, PreparedStatementCache.Key.PREPARED_STATEMENT,
+            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+   }
+
+   private static List list(Object first)
+   {
+      List result = new ArrayList();
+      result.add(first);
+      return result;
+   }
+
+   private static List list(Object first, Object second)
+   {
+      List result = list(first);
+      result.add(second);
+      return result;
+   }
+
+   /**
+    * Cache a statement and close it, like an application done with it
+    */
+   private void insert(CachePolicy cache, String sql) throws Exception
+   {
+      CachedPreparedStatement ps = statement(sql);
+      cache.insert(key(sql), ps);
+      ps.close();
+   }
+
+   /**
+    * A cached statement over a statement that only records its close
+    */
+   private CachedPreparedStatement statement(final String sql) throws Exception
+   {
+      PreparedStatement ps = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class[] { PreparedStatement.class }, new InvocationHandler()
+            {
+               public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+               {
+                  if (method.getName().equals("close"))
+                     closed.add(sql);
+                  if (method.getReturnType() == Integer.TYPE)
+                     return new Integer(0);
+                  if (method.getReturnType() == Boolean.TYPE)
+                     return Boolean.FALSE;
+                  return null;
+               }
+            });
+      return factory.createCachedPreparedStatement(ps);
+   }
+}
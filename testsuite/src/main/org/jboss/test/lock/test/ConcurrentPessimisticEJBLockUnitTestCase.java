@@ -0,0 +1,403 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.lock.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.xa.XAResource;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb.plugins.lock.ConcurrentPessimisticEJBLock;
+import org.jboss.invocation.Invocation;
+import org.jboss.monitor.LockMonitor;
+
+/**
+ * Tests of the scheduling of the ReentrantLock based pessimistic lock
+ *
+ * @see org.jboss.ejb.plugins.lock.ConcurrentPessimisticEJBLock
+ * @version $Revision: 81036 $
+ */
+public class ConcurrentPessimisticEJBLockUnitTestCase extends TestCase
+{
+   private static final long TIMEOUT = 10000;
+
+   private ConcurrentPessimisticEJBLock lock;
+
+   private LockMonitor monitor;
+
+   public ConcurrentPessimisticEJBLockUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      monitor = new LockMonitor(null);
+      lock = new TestLock(monitor);
+      lock.setId("TestEntity");
+      lock.setDeadlockDetection(false);
+   }
+
+   /**
+    * The owning transaction and the thread holding the sync mutex
+    * get in again without contending
+    */
+   public void testReentrancy() throws Exception
+   {
+      TestTransaction tx = new TestTransaction();
+      lock.schedule(invocation(tx));
+      lock.schedule(invocation(tx));
+      assertSame(tx, lock.getTransaction());
+
+      lock.sync();
+      assertTrue(lock.attemptSync());
+      lock.sync();
+      assertFalse("held by another thread", attemptSyncFromOtherThread());
+      lock.releaseSync();
+      lock.releaseSync();
+      lock.releaseSync();
+      assertTrue("released", attemptSyncFromOtherThread());
+
+      endTransaction(tx);
+      assertNull(lock.getTransaction());
+      assertEquals(0, monitor.getNumContentions());
+      assertEquals(0, monitor.getWaitTimePercentile(0.5));
+   }
+
+   /**
+    * Waiting transactions get the lock in arrival order when it is released
+    */
+   public void testFifoHandOff() throws Exception
+   {
+      TestTransaction tx1 = new TestTransaction();
+      TestTransaction tx2 = new TestTransaction();
+      TestTransaction tx3 = new TestTransaction();
+      lock.schedule(invocation(tx1));
+
+      Scheduler second = new Scheduler(tx2);
+      waitForContenders(1);
+      Scheduler third = new Scheduler(tx3);
+      waitForContenders(2);
+      assertFalse(second.isDone());
+      assertFalse(third.isDone());
+
+      endTransaction(tx1);
+      second.assertScheduled();
+      assertSame(tx2, lock.getTransaction());
+      assertFalse("still waiting", third.isDone());
+
+      // Another thread of the owning transaction goes straight in
+      lock.schedule(invocation(tx2));
+
+      endTransaction(tx2);
+      third.assertScheduled();
+      assertSame(tx3, lock.getTransaction());
+
+      endTransaction(tx3);
+      assertNull(lock.getTransaction());
+      assertEquals(2, monitor.getNumContentions());
+      assertEquals(0, monitor.getCurrentContenders());
+      assertEquals(2, monitor.getMaxContenders());
+   }
+
+   /**
+    * The threads of one waiting transaction share its queue slot
+    * and are all woken up when it gets the lock
+    */
+   public void testThreadsOfOneTransaction() throws Exception
+   {
+      TestTransaction tx1 = new TestTransaction();
+      TestTransaction tx2 = new TestTransaction();
+      lock.schedule(invocation(tx1));
+
+      Scheduler first = new Scheduler(tx2);
+      waitForContenders(1);
+      Scheduler second = new Scheduler(tx2);
+      waitForContenders(2);
+
+      endTransaction(tx1);
+      first.assertScheduled();
+      second.assertScheduled();
+      assertSame(tx2, lock.getTransaction());
+      endTransaction(tx2);
+      assertNull(lock.getTransaction());
+   }
+
+   /**
+    * Non-transactional waiters are scheduled one after the other
+    * and hand the lock on
+    */
+   public void testNonTransactionalWaiters() throws Exception
+   {
+      TestTransaction tx = new TestTransaction();
+      lock.schedule(invocation(tx));
+
+      Scheduler first = new Scheduler(null);
+      waitForContenders(1);
+      Scheduler second = new Scheduler(null);
+      waitForContenders(2);
+
+      endTransaction(tx);
+      first.assertScheduled();
+      second.assertScheduled();
+      assertNull(lock.getTransaction());
+
+      // Uncontended non-transactional calls do not take the lock
+      lock.schedule(invocation(null));
+      assertNull(lock.getTransaction());
+   }
+
+   /**
+    * A waiter whose transaction is rolled back while waiting gives up its
+    * turn at the next timeout and the lock is not handed to it
+    */
+   public void testTimeout() throws Exception
+   {
+      lock.setTimeout(100);
+      TestTransaction tx1 = new TestTransaction();
+      TestTransaction tx2 = new TestTransaction();
+      lock.schedule(invocation(tx1));
+
+      Scheduler waiter = new Scheduler(tx2);
+      waitForContenders(1);
+      Thread.sleep(300);
+      assertFalse("active transactions keep waiting", waiter.isDone());
+
+      tx2.status = Status.STATUS_MARKED_ROLLBACK;
+      waiter.join(TIMEOUT);
+      assertNotNull("timed out", waiter.failure);
+      assertTrue(waiter.failure instanceof RuntimeException);
+      assertEquals(1, monitor.getTimeouts());
+      assertSame(tx1, lock.getTransaction());
+
+      endTransaction(tx1);
+      assertNull("not handed to the dequeued transaction", lock.getTransaction());
+
+      // A transaction already marked for rollback is refused right away
+      try
+      {
+         lock.schedule(invocation(tx2));
+         fail("Expected a rolled back transaction to be refused");
+      }
+      catch(RuntimeException expected)
+      {
+      }
+      assertNull(lock.getTransaction());
+   }
+
+   /**
+    * Contended waits are counted in the histogram bucket of their duration
+    */
+   public void testWaitTimeHistogram() throws Exception
+   {
+      TestTransaction tx1 = new TestTransaction();
+      TestTransaction tx2 = new TestTransaction();
+      lock.schedule(invocation(tx1));
+
+      long start = System.currentTimeMillis();
+      Scheduler waiter = new Scheduler(tx2);
+      waitForContenders(1);
+      Thread.sleep(100);
+      endTransaction(tx1);
+      waiter.assertScheduled();
+      long waited = System.currentTimeMillis() - start;
+      endTransaction(tx2);
+
+      long[] histogram = monitor.getWaitTimeHistogram();
+      assertEquals(LockMonitor.WAIT_TIME_BUCKETS.length + 1, histogram.length);
+      int bucket = -1;
+      for(int i = 0; i < histogram.length; ++i)
+      {
+         if(histogram[i] != 0)
+         {
+            assertEquals("one wait", -1, bucket);
+            assertEquals(1, histogram[i]);
+            bucket = i;
+         }
+      }
+      assertTrue("counted", bucket >= 0);
+      // The wait lasted between the sleep and the whole measured time
+      assertTrue(LockMonitor.WAIT_TIME_BUCKETS[bucket] >= 50);
+      assertTrue(bucket == 0 || LockMonitor.WAIT_TIME_BUCKETS[bucket - 1] < waited);
+      assertEquals(LockMonitor.WAIT_TIME_BUCKETS[bucket], monitor.getWaitTimePercentile(0.99));
+      assertTrue(monitor.getTotalTime() >= 50);
+
+      monitor.reset();
+      histogram = monitor.getWaitTimeHistogram();
+      for(int i = 0; i < histogram.length; ++i)
+      {
+         assertEquals(0, histogram[i]);
+      }
+   }
+
+   // Helpers
+
+   private static Invocation invocation(Transaction tx)
+   {
+      Invocation mi = new Invocation();
+      mi.setTransaction(tx);
+      mi.setId("TestEntity");
+      return mi;
+   }
+
+   /**
+    * Release the lock like the transaction synchronization does
+    */
+   private void endTransaction(Transaction tx)
+   {
+      lock.sync();
+      try
+      {
+         lock.endTransaction(tx);
+      }
+      finally
+      {
+         lock.releaseSync();
+      }
+   }
+
+   private boolean attemptSyncFromOtherThread() throws Exception
+   {
+      final boolean[] result = new boolean[1];
+      Thread thread = new Thread()
+      {
+         public void run()
+         {
+            result[0] = lock.attemptSync();
+            if(result[0])
+               lock.releaseSync();
+         }
+      };
+      thread.start();
+      thread.join(TIMEOUT);
+      return result[0];
+   }
+
+   private void waitForContenders(long contenders) throws Exception
+   {
+      long end = System.currentTimeMillis() + TIMEOUT;
+      while(monitor.getCurrentContenders() < contenders)
+      {
+         if(System.currentTimeMillis() > end)
+            fail("Timed out waiting for " + contenders + " contenders");
+         Thread.sleep(10);
+      }
+   }
+
+   /**
+    * Sets the lock monitor, that is otherwise taken from the container
+    */
+   private static class TestLock extends ConcurrentPessimisticEJBLock
+   {
+      TestLock(LockMonitor monitor)
+      {
+         lockMonitor = monitor;
+      }
+   }
+
+   /**
+    * Schedules an invocation of the given transaction in its own thread
+    */
+   private class Scheduler extends Thread
+   {
+      private final Invocation mi;
+      private final CountDownLatch done = new CountDownLatch(1);
+      volatile Exception failure;
+
+      Scheduler(Transaction tx)
+      {
+         mi = invocation(tx);
+         setDaemon(true);
+         start();
+      }
+
+      public void run()
+      {
+         try
+         {
+            lock.schedule(mi);
+         }
+         catch(Exception e)
+         {
+            failure = e;
+         }
+         finally
+         {
+            done.countDown();
+         }
+      }
+
+      boolean isDone()
+      {
+         return done.getCount() == 0;
+      }
+
+      void assertScheduled() throws Exception
+      {
+         assertTrue("scheduled", done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+         if(failure != null)
+            throw failure;
+      }
+   }
+
+   private static class TestTransaction implements Transaction
+   {
+      volatile int status = Status.STATUS_ACTIVE;
+
+      public void commit()
+      {
+      }
+
+      public boolean delistResource(XAResource xaRes, int flag)
+      {
+         return false;
+      }
+
+      public boolean enlistResource(XAResource xaRes)
+      {
+         return false;
+      }
+
+      public int getStatus()
+      {
+         return status;
+      }
+
+      public void registerSynchronization(Synchronization sync)
+      {
+      }
+
+      public void rollback()
+      {
+      }
+
+      public void setRollbackOnly()
+      {
+         status = Status.STATUS_MARKED_ROLLBACK;
+      }
+   }
+}
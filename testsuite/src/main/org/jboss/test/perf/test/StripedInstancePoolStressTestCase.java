@@ -0,0 +1,134 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.perf.test;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb.EnterpriseContext;
+import org.jboss.ejb.InstancePool;
+import org.jboss.logging.Logger;
+import org.jboss.test.perf.test.StripedInstancePoolUnitTestCase.TestStripedPool;
+
+/**
+ * Contention benchmark of the striped instance pool against the
+ * synchronized pool it replaces. Every thread repeatedly borrows and
+ * returns an instance, the throughput of both pools is logged for each
+ * thread count.
+ *
+ * @see org.jboss.ejb.plugins.AbstractStripedInstancePool
+ * @version $Revision: 81036 $
+ */
+public class StripedInstancePoolStressTestCase extends TestCase
+{
+   private static final Logger log = Logger.getLogger(StripedInstancePoolStressTestCase.class);
+
+   private static final int ITERATIONS = Integer.getInteger("jbosstest.pool.iterations", 100000).intValue();
+
+   public StripedInstancePoolStressTestCase(String name)
+   {
+      super(name);
+   }
+
+   public void testContention8Threads() throws Exception
+   {
+      compare(8);
+   }
+
+   public void testContention32Threads() throws Exception
+   {
+      compare(32);
+   }
+
+   public void testContention64Threads() throws Exception
+   {
+      compare(64);
+   }
+
+   private void compare(int threads) throws Exception
+   {
+      // Warm up both pools before measuring
+      run(StripedInstancePoolUnitTestCase.createSynchronizedPool(threads), threads, ITERATIONS / 10);
+      run(StripedInstancePoolUnitTestCase.createStripedPool(threads, false, 0, 0), threads, ITERATIONS / 10);
+
+      long synchronizedTime = run(StripedInstancePoolUnitTestCase.createSynchronizedPool(threads), threads, ITERATIONS);
+      TestStripedPool striped = StripedInstancePoolUnitTestCase.createStripedPool(threads, false, 0, 0);
+      long stripedTime = run(striped, threads, ITERATIONS);
+
+      long calls = (long) threads * ITERATIONS;
+      log.info(threads + " threads, " + calls + " get/free calls: synchronized pool "
+         + synchronizedTime + "ms (" + throughput(calls, synchronizedTime) + " calls/ms), striped pool "
+         + stripedTime + "ms (" + throughput(calls, stripedTime) + " calls/ms), stripes="
+         + striped.getStripes() + ", created=" + striped.getCreatedCount() + ", stolen="
+         + striped.getStolenCount() + ", overflow=" + striped.getOverflowCount());
+
+      assertTrue("Pool exceeds MaximumSize", striped.getCurrentSize() <= threads);
+      assertEquals(striped.contexts.size() - striped.discarded.get(), striped.getCurrentSize());
+   }
+
+   private static long throughput(long calls, long time)
+   {
+      return calls / Math.max(time, 1);
+   }
+
+   /**
+    * @return the elapsed time in milliseconds
+    */
+   private static long run(final InstancePool pool, int threads, final int iterations) throws Exception
+   {
+      final CountDownLatch start = new CountDownLatch(1);
+      final Throwable[] failure = new Throwable[1];
+      Thread[] workers = new Thread[threads];
+      for (int t = 0; t < threads; ++t)
+      {
+         workers[t] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  start.await();
+                  for (int i = 0; i < iterations; ++i)
+                  {
+                     EnterpriseContext ctx = pool.get();
+                     pool.free(ctx);
+                  }
+               }
+               catch (Throwable t)
+               {
+                  failure[0] = t;
+               }
+            }
+         };
+         workers[t].start();
+      }
+      long begin = System.currentTimeMillis();
+      start.countDown();
+      for (int t = 0; t < threads; ++t)
+         workers[t].join();
+      long elapsed = System.currentTimeMillis() - begin;
+      if (failure[0] != null)
+         throw new RuntimeException("Worker failed", failure[0]);
+      return elapsed;
+   }
+}
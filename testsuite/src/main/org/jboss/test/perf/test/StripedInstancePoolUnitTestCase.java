@@ -0,0 +1,336 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.perf.test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ejb.EJBContext;
+import javax.ejb.EJBException;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb.Container;
+import org.jboss.ejb.EnterpriseContext;
+import org.jboss.ejb.StatelessSessionContainer;
+import org.jboss.ejb.plugins.AbstractInstancePool;
+import org.jboss.ejb.plugins.AbstractStripedInstancePool;
+import org.jboss.ejb.plugins.StatelessSessionInstancePool;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests of the lock-free striped instance pool
+ *
+ * @see org.jboss.ejb.plugins.AbstractStripedInstancePool
+ * @version $Revision: 81036 $
+ */
+public class StripedInstancePoolUnitTestCase extends TestCase
+{
+   public StripedInstancePoolUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   /**
+    * A freed instance is handed out again instead of creating a new one
+    */
+   public void testBorrowReturn() throws Exception
+   {
+      TestStripedPool pool = createStripedPool(4, false, 0, 4);
+      EnterpriseContext first = pool.get();
+      EnterpriseContext second = pool.get();
+      assertNotSame(first, second);
+      assertEquals(2, pool.getCreatedCount());
+      assertEquals(0, pool.getCurrentSize());
+
+      pool.free(first);
+      pool.free(second);
+      assertEquals(2, pool.getCurrentSize());
+
+      EnterpriseContext again = pool.get();
+      assertTrue("Expected a pooled instance", again == first || again == second);
+      assertEquals(2, pool.getCreatedCount());
+      assertEquals(1, pool.getCurrentSize());
+
+      pool.free(again);
+      pool.clear();
+      assertEquals(0, pool.getCurrentSize());
+      assertEquals(2, pool.contexts.size());
+      assertEquals(2, pool.discarded.get());
+   }
+
+   /**
+    * A thread gets back the instance it freed into its own stripe, another
+    * thread only gets it by stealing it
+    */
+   public void testStriping() throws Exception
+   {
+      final TestStripedPool pool = createStripedPool(4, false, 0, 8);
+      assertEquals(8, pool.getStripes());
+
+      EnterpriseContext ctx = pool.get();
+      pool.free(ctx);
+      assertSame("Expected the instance from the own stripe", ctx, pool.get());
+      assertEquals(0, pool.getStolenCount());
+      pool.free(ctx);
+
+      // Run on a thread that maps to another stripe
+      final EnterpriseContext[] result = new EnterpriseContext[1];
+      final Throwable[] failure = new Throwable[1];
+      Runnable task = new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               result[0] = pool.get();
+            }
+            catch (Throwable t)
+            {
+               failure[0] = t;
+            }
+         }
+      };
+      Thread thread = new Thread(task);
+      while (stripeIndex(thread, 8) == stripeIndex(Thread.currentThread(), 8))
+         thread = new Thread(task);
+      thread.start();
+      thread.join();
+      if (failure[0] != null)
+         throw new RuntimeException("Worker failed", failure[0]);
+
+      assertSame("Expected the instance to be stolen", ctx, result[0]);
+      assertEquals(1, pool.getStolenCount());
+      assertEquals(1, pool.getCreatedCount());
+      assertEquals(0, pool.getCurrentSize());
+
+      pool.resetStatistics();
+      assertEquals(0, pool.getStolenCount());
+      assertEquals(0, pool.getCreatedCount());
+   }
+
+   /**
+    * Freeing more instances than MaximumSize discards the overflow
+    */
+   public void testMaximumSize() throws Exception
+   {
+      TestStripedPool pool = createStripedPool(3, false, 0, 2);
+      List active = new ArrayList();
+      for (int i = 0; i < 5; ++i)
+         active.add(pool.get());
+      for (int i = 0; i < active.size(); ++i)
+         pool.free((EnterpriseContext) active.get(i));
+
+      assertEquals(3, pool.getCurrentSize());
+      assertEquals(2, pool.getOverflowCount());
+      assertEquals(2, pool.discarded.get());
+   }
+
+   /**
+    * With strictMaximumSize no more than MaximumSize instances are active
+    * and a get() times out once strictTimeout elapsed
+    */
+   public void testStrictMaximumSize() throws Exception
+   {
+      TestStripedPool pool = createStripedPool(2, true, 200, 2);
+      EnterpriseContext first = pool.get();
+      EnterpriseContext second = pool.get();
+      assertEquals(0, pool.getAvailableCount());
+
+      long start = System.currentTimeMillis();
+      try
+      {
+         pool.get();
+         fail("Expected the strict max semaphore to time out");
+      }
+      catch (EJBException expected)
+      {
+      }
+      assertTrue("Should have waited for strictTimeout", System.currentTimeMillis() - start >= 150);
+      assertEquals(1, pool.getStrictWaitCount());
+      assertEquals(1, pool.getStrictTimeoutCount());
+
+      pool.free(first);
+      assertEquals(1, pool.getAvailableCount());
+      assertSame(first, pool.get());
+      pool.discard(second);
+      assertEquals(1, pool.getAvailableCount());
+      assertEquals(1, pool.discarded.get());
+   }
+
+   /**
+    * Concurrent get()/free() never exceed MaximumSize nor lose instances
+    */
+   public void testConcurrentBorrowReturn() throws Exception
+   {
+      final int threads = 16;
+      final int iterations = 10000;
+      final TestStripedPool pool = createStripedPool(8, true, 10000, 4);
+      final AtomicInteger active = new AtomicInteger();
+      final Throwable[] failure = new Throwable[1];
+      Thread[] workers = new Thread[threads];
+      for (int t = 0; t < threads; ++t)
+      {
+         workers[t] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int i = 0; i < iterations; ++i)
+                  {
+                     EnterpriseContext ctx = pool.get();
+                     if (active.incrementAndGet() > 8)
+                        throw new IllegalStateException("More than MaximumSize instances active");
+                     active.decrementAndGet();
+                     pool.free(ctx);
+                  }
+               }
+               catch (Throwable t)
+               {
+                  failure[0] = t;
+               }
+            }
+         };
+         workers[t].start();
+      }
+      for (int t = 0; t < threads; ++t)
+         workers[t].join();
+      if (failure[0] != null)
+         throw new RuntimeException("Worker failed", failure[0]);
+
+      assertEquals(pool.contexts.size() - pool.discarded.get(), pool.getCurrentSize());
+      assertTrue("Pool exceeds MaximumSize", pool.getCurrentSize() <= 8);
+      assertEquals(8, pool.getAvailableCount());
+      assertEquals(0, pool.getStrictTimeoutCount());
+   }
+
+   static TestStripedPool createStripedPool(int maxSize, boolean strict, long timeout, int stripes) throws Exception
+   {
+      TestStripedPool pool = new TestStripedPool();
+      pool.setContainer(new TestContainer());
+      String xml = "<container-pool-conf><MaximumSize>" + maxSize + "</MaximumSize>" +
+         "<strictMaximumSize>" + strict + "</strictMaximumSize>" +
+         (strict ? "<strictTimeout>" + timeout + "</strictTimeout>" : "") +
+         (stripes > 0 ? "<Stripes>" + stripes + "</Stripes>" : "") +
+         "</container-pool-conf>";
+      pool.importXml(getConfig(xml));
+      pool.create();
+      pool.start();
+      return pool;
+   }
+
+   static AbstractInstancePool createSynchronizedPool(int maxSize) throws Exception
+   {
+      TestSynchronizedPool pool = new TestSynchronizedPool();
+      pool.setContainer(new TestContainer());
+      pool.importXml(getConfig("<container-pool-conf><MaximumSize>" + maxSize + "</MaximumSize></container-pool-conf>"));
+      pool.create();
+      pool.start();
+      return pool;
+   }
+
+   private static Element getConfig(String xml) throws Exception
+   {
+      return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml))).getDocumentElement();
+   }
+
+   /**
+    * Mirrors the stripe selection of AbstractStripedInstancePool
+    */
+   private static int stripeIndex(Thread thread, int stripes)
+   {
+      long id = thread.getId();
+      return (int) (id ^ (id >>> 16)) & (stripes - 1);
+   }
+
+   /**
+    * A container that only knows how to create bean instances
+    */
+   static class TestContainer extends StatelessSessionContainer
+   {
+      public Object createBeanClassInstance() throws Exception
+      {
+         return new Object();
+      }
+   }
+
+   /**
+    * A context without any bean callbacks
+    */
+   static class TestContext extends EnterpriseContext
+   {
+      private final AtomicInteger discarded;
+
+      TestContext(Object instance, Container con, AtomicInteger discarded)
+      {
+         super(instance, con);
+         this.discarded = discarded;
+      }
+
+      public void discard()
+      {
+         discarded.incrementAndGet();
+      }
+
+      public EJBContext getEJBContext()
+      {
+         return null;
+      }
+   }
+
+   /**
+    * Records the contexts it creates and discards
+    */
+   static class TestStripedPool extends AbstractStripedInstancePool
+   {
+      final List contexts = new ArrayList();
+      final AtomicInteger discarded = new AtomicInteger();
+
+      protected EnterpriseContext create(Object instance) throws Exception
+      {
+         EnterpriseContext ctx = new TestContext(instance, getContainer(), discarded);
+         synchronized (contexts)
+         {
+            contexts.add(ctx);
+         }
+         return ctx;
+      }
+   }
+
+   /**
+    * The synchronized pool the striped pool replaces
+    */
+   static class TestSynchronizedPool extends StatelessSessionInstancePool
+   {
+      final AtomicInteger discarded = new AtomicInteger();
+
+      protected EnterpriseContext create(Object instance) throws Exception
+      {
+         return new TestContext(instance, getContainer(), discarded);
+      }
+   }
+}
@@ -0,0 +1,118 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.perf.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb.txtimer.TimingWheel;
+import org.jboss.logging.Logger;
+
+/**
+ * Benchmarks the TimingWheel the EJB timers are scheduled on with a
+ * million timeouts, logging the heap used by the scheduled timeouts and
+ * the delay between their scheduled and actual expiration.
+ *
+ * @see org.jboss.test.txtimer.test.TimingWheelTestCase
+ * @version $Revision: 81036 $
+ */
+public class TimingWheelStressTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(TimingWheelStressTestCase.class);
+
+   private static final int TIMERS = Integer.getInteger("jbosstest.txtimer.wheel.timers", 1000000).intValue();
+
+   private TimingWheel wheel;
+
+   public TimingWheelStressTestCase(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      wheel = new TimingWheel("TimingWheelStressTest", 10, 4);
+      wheel.start();
+   }
+
+   protected void tearDown() throws Exception
+   {
+      wheel.stop();
+   }
+
+   /**
+    * Schedule TIMERS timeouts spread over a few seconds
+    * and wait for all of them to be delivered.
+    */
+   public void testMillionTimers() throws Exception
+   {
+      final CountDownLatch latch = new CountDownLatch(TIMERS);
+      final AtomicLong totalLag = new AtomicLong(0);
+      final AtomicLong maxLag = new AtomicLong(0);
+      final AtomicInteger early = new AtomicInteger(0);
+
+      long before = usedMemory();
+      long start = System.currentTimeMillis();
+      long first = start + 2000;
+      for (int i = 0; i < TIMERS; i++)
+      {
+         final long when = first + (i % 3000);
+         wheel.schedule(new Runnable()
+         {
+            public void run()
+            {
+               long lag = System.currentTimeMillis() - when;
+               if (lag < 0)
+                  early.incrementAndGet();
+               totalLag.addAndGet(lag);
+               long max = maxLag.get();
+               while (lag > max && maxLag.compareAndSet(max, lag) == false)
+                  max = maxLag.get();
+               latch.countDown();
+            }
+         }, when);
+      }
+      long scheduled = System.currentTimeMillis() - start;
+      long after = usedMemory();
+
+      assertTrue("Timeouts not delivered: " + latch.getCount(), latch.await(60, TimeUnit.SECONDS));
+
+      log.info(TIMERS + " timers scheduled in " + scheduled + " ms, heap used " + ((after - before) / TIMERS) + " bytes per timer");
+      log.info("Fire lag average " + (totalLag.get() / TIMERS) + " ms, maximum " + maxLag.get() + " ms");
+      assertEquals("Timeouts delivered early", 0, early.get());
+   }
+
+   private static long usedMemory() throws Exception
+   {
+      Runtime runtime = Runtime.getRuntime();
+      for (int i = 0; i < 3; i++)
+      {
+         System.gc();
+         Thread.sleep(100);
+      }
+      return runtime.totalMemory() - runtime.freeMemory();
+   }
+}
@@ -0,0 +1,281 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.pooled.test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jboss.invocation.Invocation;
+import org.jboss.invocation.InvocationType;
+import org.jboss.invocation.pooled.interfaces.CompatibilityVersion;
+import org.jboss.invocation.pooled.interfaces.OptimizedObjectInputStream;
+import org.jboss.invocation.pooled.interfaces.OptimizedObjectOutputStream;
+import org.jboss.invocation.pooled.interfaces.PooledMarshalledInvocation;
+import org.jboss.invocation.pooled.server.NIOServer;
+import org.jboss.invocation.pooled.server.PooledInvoker;
+import org.jboss.logging.Logger;
+
+/**
+ * Drives the selector based PooledInvoker server with many concurrent
+ * clients speaking the PooledInvokerProxy protocol, and checks that the
+ * worker queue stays bounded and that a client stalling in the middle of a
+ * request does not hold a worker beyond the socket timeout.
+ *
+ * @version $Revision: 81036 $
+ */
+public class NIOServerStressTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(NIOServerStressTestCase.class);
+
+   private static final int WORKERS = 4;
+
+   private static final int CLIENTS = 64;
+
+   private static final int CALLS = 200;
+
+   private static final int TIMEOUT = 1000;
+
+   private Method method;
+
+   private ServerSocketChannel serverChannel;
+
+   private NIOServer server;
+
+   public NIOServerStressTestCase(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      method = Comparable.class.getMethod("compareTo", new Class[] {Object.class});
+   }
+
+   protected void tearDown() throws Exception
+   {
+      if (server != null)
+         server.stop();
+   }
+
+   public void testConcurrentClients() throws Exception
+   {
+      startServer(WORKERS, 60000);
+      final AtomicInteger failures = new AtomicInteger();
+      final AtomicInteger maxQueued = new AtomicInteger();
+      final CountDownLatch done = new CountDownLatch(CLIENTS);
+      for (int c = 0; c < CLIENTS; ++c)
+      {
+         final int id = c;
+         new Thread("Client#" + c)
+         {
+            public void run()
+            {
+               try
+               {
+                  Client client = new Client();
+                  try
+                  {
+                     for (int i = 0; i < CALLS; ++i)
+                     {
+                        String value = id + ":" + i;
+                        Object result = client.invoke(createInvocation(value));
+                        if (value.equals(result) == false)
+                           throw new IllegalStateException("Expected " + value + " got " + result);
+                     }
+                  }
+                  finally
+                  {
+                     client.close();
+                  }
+               }
+               catch (Throwable t)
+               {
+                  log.error("Client " + id + " failed", t);
+                  failures.incrementAndGet();
+               }
+               finally
+               {
+                  done.countDown();
+               }
+            }
+         }.start();
+      }
+
+      long start = System.currentTimeMillis();
+      while (done.getCount() > 0)
+      {
+         int queued = server.getQueuedRequestCount();
+         if (queued > maxQueued.get())
+            maxQueued.set(queued);
+         Thread.sleep(5);
+      }
+      long time = System.currentTimeMillis() - start;
+      log.info(CLIENTS * CALLS + " calls from " + CLIENTS + " clients on " + WORKERS + " workers in " + time
+         + "ms, max queued " + maxQueued.get() + ", dispatches " + server.getRequestCount());
+
+      assertEquals("Failed clients", 0, failures.get());
+      assertEquals(CLIENTS, server.getAcceptedCount());
+      assertTrue("Queue exceeded its bound: " + maxQueued.get(), maxQueued.get() <= WORKERS);
+   }
+
+   /**
+    * A client that sends half a request must be dropped after the timeout,
+    * freeing the only worker for the other clients.
+    */
+   public void testStalledClientTimesOut() throws Exception
+   {
+      startServer(1, TIMEOUT);
+
+      Socket stalled = new Socket(InetAddress.getLocalHost(), serverChannel.socket().getLocalPort());
+      try
+      {
+         OptimizedObjectOutputStream out = new OptimizedObjectOutputStream(new BufferedOutputStream(stalled.getOutputStream()));
+         out.flush();
+         // Start an object and stop sending
+         stalled.getOutputStream().write(0x73);
+         stalled.getOutputStream().flush();
+
+         long start = System.currentTimeMillis();
+         stalled.setSoTimeout(10 * TIMEOUT);
+         InputStream in = stalled.getInputStream();
+         try
+         {
+            // The stream header, then the end of the stream when the server gives up
+            while (in.read() >= 0)
+               ;
+         }
+         catch (SocketTimeoutException e)
+         {
+            fail("The server did not time out the stalled request");
+         }
+         catch (IOException expected)
+         {
+            // reset by the server
+         }
+         long time = System.currentTimeMillis() - start;
+         log.info("Stalled connection closed after " + time + "ms");
+         assertTrue("Closed too early: " + time, time >= TIMEOUT / 2);
+      }
+      finally
+      {
+         stalled.close();
+      }
+
+      Client client = new Client();
+      try
+      {
+         assertEquals("after", client.invoke(createInvocation("after")));
+      }
+      finally
+      {
+         client.close();
+      }
+   }
+
+   private void startServer(int workers, int timeout) throws Exception
+   {
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.socket().bind(new InetSocketAddress(InetAddress.getLocalHost(), 0));
+      PooledInvoker invoker = new PooledInvoker()
+      {
+         public Object invoke(Invocation invocation) throws Exception
+         {
+            return invocation.getArguments()[0];
+         }
+      };
+      server = new NIOServer(invoker, serverChannel, 1, workers, timeout);
+      server.start();
+   }
+
+   private PooledMarshalledInvocation createInvocation(String value)
+   {
+      PooledMarshalledInvocation mi = new PooledMarshalledInvocation(null, method, new Object[] {value}, null, null, null);
+      mi.setObjectName(new Integer(7));
+      mi.setType(InvocationType.REMOTE);
+      return mi;
+   }
+
+   /**
+    * The client side of the protocol as driven by PooledInvokerProxy
+    */
+   private class Client
+   {
+      private final Socket socket;
+      private final OptimizedObjectOutputStream out;
+      private final OptimizedObjectInputStream in;
+      private boolean first = true;
+
+      Client() throws IOException
+      {
+         socket = new Socket(InetAddress.getLocalHost(), serverChannel.socket().getLocalPort());
+         socket.setTcpNoDelay(true);
+         socket.setSoTimeout(60000);
+         out = new OptimizedObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+         out.flush();
+         in = new OptimizedObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+      }
+
+      Object invoke(Invocation mi) throws Exception
+      {
+         // The first request goes out without an ACK
+         if (first == false)
+         {
+            out.writeByte(1);
+            out.flush();
+            in.readByte();
+         }
+         first = false;
+         out.writeObject(mi);
+         out.reset();
+         out.writeMessageEnd();
+         out.flush();
+         out.reset();
+         Object response = in.readObject();
+         if (in.readMessageEnd() && CompatibilityVersion.pooledInvokerDescriptorTable
+            && out.isDescriptorTableEnabled() == false)
+         {
+            out.enableDescriptorTable();
+            in.enableDescriptorTable();
+         }
+         if (response instanceof Exception)
+            throw (Exception) response;
+         return response;
+      }
+
+      void close() throws IOException
+      {
+         socket.close();
+      }
+   }
+}
@@ -0,0 +1,176 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.pooled.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import org.jboss.invocation.InvocationType;
+import org.jboss.invocation.MarshalledInvocation;
+import org.jboss.invocation.pooled.interfaces.OptimizedObjectInputStream;
+import org.jboss.invocation.pooled.interfaces.OptimizedObjectOutputStream;
+import org.jboss.invocation.pooled.interfaces.PooledMarshalledInvocation;
+import org.jboss.logging.Logger;
+
+/**
+ * Compares the PooledInvoker request encoding with and without the per
+ * connection descriptor tables. The requests are written and read back
+ * through in memory streams the way PooledInvokerProxy and ServerThread
+ * drive them, and the bytes per call and round trip time of both paths are
+ * logged.
+ *
+ * @version $Revision: 81036 $
+ */
+public class PooledMarshallingUnitTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(PooledMarshallingUnitTestCase.class);
+
+   private static final int CALLS = 2000;
+
+   private Method method;
+
+   public PooledMarshallingUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      method = Comparable.class.getMethod("compareTo", new Class[] {Object.class});
+   }
+
+   public void testPlainRoundTrip() throws Exception
+   {
+      Result plain = run(false);
+      assertEquals(CALLS, plain.calls);
+   }
+
+   public void testDescriptorTableRoundTrip() throws Exception
+   {
+      Result table = run(true);
+      assertEquals(CALLS, table.calls);
+   }
+
+   /**
+    * The descriptor table encoding must be smaller once the connection has
+    * seen the classes and keys of the first request.
+    */
+   public void testDescriptorTableIsSmaller() throws Exception
+   {
+      // Warm up both paths before timing them
+      run(false);
+      run(true);
+
+      Result plain = run(false);
+      Result table = run(true);
+      log.info("plain: " + plain);
+      log.info("descriptor table: " + table);
+      assertTrue("table bytes/call " + table.bytesPerCall() + " < plain bytes/call " + plain.bytesPerCall(),
+         table.bytesPerCall() < plain.bytesPerCall());
+   }
+
+   private Result run(boolean descriptorTable) throws Exception
+   {
+      ByteArrayOutputStream wire = new ByteArrayOutputStream();
+      OptimizedObjectOutputStream out = new OptimizedObjectOutputStream(wire);
+      out.flush();
+      int headerSize = wire.size();
+
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < CALLS; i++)
+      {
+         // The first request always goes out before the negotiation
+         if (descriptorTable && i == 1)
+            out.enableDescriptorTable();
+         out.writeObject(createInvocation(i));
+         out.reset();
+         out.writeMessageEnd();
+         out.flush();
+         out.reset();
+      }
+      int written = wire.size() - headerSize;
+
+      ClassLoader loader = Thread.currentThread().getContextClassLoader();
+      if (loader == null)
+         Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+      OptimizedObjectInputStream in = new OptimizedObjectInputStream(new ByteArrayInputStream(wire.toByteArray()));
+      long hash = MarshalledInvocation.calculateHash(method);
+      for (int i = 0; i < CALLS; i++)
+      {
+         if (descriptorTable && i == 1)
+            in.enableDescriptorTable();
+         PooledMarshalledInvocation mi = (PooledMarshalledInvocation) in.readObject();
+         in.readMessageEnd();
+         assertEquals(hash, mi.getMethodHash());
+         assertEquals(new Integer(7), mi.getObjectName());
+         assertEquals(InvocationType.REMOTE, mi.getType());
+         Object[] args = mi.getArguments();
+         assertEquals(new Integer(i), args[0]);
+         assertEquals("arg" + i, args[1]);
+         assertEquals("value" + i, mi.getValue("KEY"));
+      }
+      long time = System.currentTimeMillis() - start;
+      return new Result(CALLS, written, time);
+   }
+
+   private PooledMarshalledInvocation createInvocation(int i)
+   {
+      ArrayList list = new ArrayList();
+      list.add(new Date(i));
+      Object[] args = {new Integer(i), "arg" + i, list};
+      PooledMarshalledInvocation mi = new PooledMarshalledInvocation(null, method, args, null, null, null);
+      mi.setObjectName(new Integer(7));
+      mi.setType(InvocationType.REMOTE);
+      mi.setValue("KEY", "value" + i);
+      return mi;
+   }
+
+   private static class Result
+   {
+      int calls;
+      int bytes;
+      long time;
+
+      Result(int calls, int bytes, long time)
+      {
+         this.calls = calls;
+         this.bytes = bytes;
+         this.time = time;
+      }
+
+      int bytesPerCall()
+      {
+         return bytes / calls;
+      }
+
+      public String toString()
+      {
+         return calls + " calls, " + bytesPerCall() + " bytes/call, "
+            + (time * 1000 / calls) + " us/call round trip";
+      }
+   }
+}
@@ -0,0 +1,325 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.txtimer.test;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.transaction.TransactionManager;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb.txtimer.DatabasePersistencePluginBatch;
+import org.jboss.ejb.txtimer.DatabasePersistencePolicy;
+import org.jboss.ejb.txtimer.TimedObjectId;
+import org.jboss.ejb.txtimer.TimerHandleImpl;
+import org.jboss.mx.util.ObjectNameFactory;
+import org.jboss.tm.TransactionManagerFactory;
+
+/**
+ * Tests the write behind of the DatabasePersistencePolicy
+ * with a plugin that records the timers it writes.
+ *
+ * @version $Revision: 60899 $
+ */
+public class DatabasePersistencePolicyUnitTestCase extends TestCase
+{
+   private static final TimedObjectId TIMED_OBJECT_ID =
+      new TimedObjectId(ObjectNameFactory.create("jboss.j2ee:jndiName=TimedObject,service=EJB"));
+
+   private DatabasePersistencePolicy policy;
+
+   public DatabasePersistencePolicyUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      RecordingPlugin.reset();
+      policy = new DatabasePersistencePolicy();
+      policy.setDatabasePersistencePlugin(RecordingPlugin.class.getName());
+      policy.setTransactionManagerFactory(new NoTxManagerFactory());
+      policy.setBatchSize(3);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      RecordingPlugin.release();
+      policy.stop();
+   }
+
+   public void testBatches() throws Exception
+   {
+      policy.start();
+
+      // The first insert blocks the writer while the others are queued
+      policy.insertTimer("t0", TIMED_OBJECT_ID, new Date(), 0, null);
+      assertTrue(RecordingPlugin.entered.await(10, TimeUnit.SECONDS));
+      policy.insertTimer("t1", TIMED_OBJECT_ID, new Date(), 0, null);
+      policy.insertTimer("t2", TIMED_OBJECT_ID, new Date(), 0, null);
+      policy.deleteTimer("t1", TIMED_OBJECT_ID);
+      policy.insertTimer("t3", TIMED_OBJECT_ID, new Date(), 0, null);
+      policy.insertTimer("t4", TIMED_OBJECT_ID, new Date(), 0, null);
+      policy.insertTimer("t5", TIMED_OBJECT_ID, new Date(), 0, null);
+      policy.deleteTimer("t0", TIMED_OBJECT_ID);
+      assertEquals(7, policy.getPendingCount());
+      RecordingPlugin.release();
+
+      // Listing the timers writes the queued timers first
+      assertEquals(list(new String[] { "t2", "t3", "t4", "t5" }), policy.listTimerHandles());
+      assertEquals(0, policy.getPendingCount());
+
+      // [+t0] [+t1 +t2 -t1] [+t3 +t4 +t5] [-t0], t1 is never written
+      assertEquals(list(new String[] { "+t0", "+t2", "+t3", "+t4", "+t5", "-t0" }), RecordingPlugin.writes);
+      assertEquals(list(new String[] { "1", "1", "3", "1" }), RecordingPlugin.batches);
+      assertEquals(4, policy.getBatchCount());
+      assertEquals(6, policy.getBatchedOperationCount());
+   }
+
+   public void testFlushOnStop() throws Exception
+   {
+      policy.start();
+
+      policy.insertTimer("t0", TIMED_OBJECT_ID, new Date(), 0, null);
+      assertTrue(RecordingPlugin.entered.await(10, TimeUnit.SECONDS));
+      for (int i = 1; i < 5; i++)
+         policy.insertTimer("t" + i, TIMED_OBJECT_ID, new Date(), 0, null);
+
+      Thread stopper = new Thread(new Runnable()
+      {
+         public void run()
+         {
+            policy.stop();
+         }
+      });
+      stopper.start();
+      RecordingPlugin.release();
+      stopper.join(10000);
+      assertFalse(stopper.isAlive());
+
+      assertEquals(0, policy.getPendingCount());
+      assertEquals(list(new String[] { "+t0", "+t1", "+t2", "+t3", "+t4" }), RecordingPlugin.writes);
+      assertEquals(list(new String[] { "1", "3", "1" }), RecordingPlugin.batches);
+
+      // Once stopped the timers are written synchronously
+      RecordingPlugin.writes.clear();
+      policy.insertTimer("t5", TIMED_OBJECT_ID, new Date(), 0, null);
+      assertEquals(list(new String[] { "+t5" }), RecordingPlugin.writes);
+   }
+
+   public void testWriteFailure() throws Exception
+   {
+      policy.start();
+
+      policy.insertTimer("t0", TIMED_OBJECT_ID, new Date(), 0, null);
+      assertTrue(RecordingPlugin.entered.await(10, TimeUnit.SECONDS));
+      RecordingPlugin.failBatches = true;
+      policy.insertTimer("t1", TIMED_OBJECT_ID, new Date(), 0, null);
+      policy.insertTimer("t2", TIMED_OBJECT_ID, new Date(), 0, null);
+      RecordingPlugin.release();
+
+      // a failing batch is written one timer at a time
+      assertEquals(list(new String[] { "t0", "t1", "t2" }), policy.listTimerHandles());
+      assertEquals(list(new String[] { "1" }), RecordingPlugin.batches);
+      assertEquals(1, policy.getBatchCount());
+   }
+
+   private static List list(String[] values)
+   {
+      List list = new ArrayList();
+      Collections.addAll(list, values);
+      return list;
+   }
+
+   /**
+    * A TransactionManagerFactory whose TransactionManager has no transactions
+    */
+   public static class NoTxManagerFactory implements TransactionManagerFactory
+   {
+      public TransactionManager getTransactionManager()
+      {
+         return (TransactionManager)Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class[] { TransactionManager.class }, new InvocationHandler()
+         {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+               return null;
+            }
+         });
+      }
+   }
+
+   /**
+    * A plugin recording the ids of the timers in memory. The first
+    * batch blocks until released so the tests can queue timers.
+    */
+   public static class RecordingPlugin implements DatabasePersistencePluginBatch
+   {
+      /** The written operations, +id for an insert and -id for a delete */
+      static List writes;
+      /** The size of each written batch */
+      static List batches;
+      /** The ids of the persisted timers */
+      static List timers;
+      static volatile boolean failBatches;
+      static CountDownLatch entered;
+      static CountDownLatch released;
+
+      static void reset()
+      {
+         writes = Collections.synchronizedList(new ArrayList());
+         batches = Collections.synchronizedList(new ArrayList());
+         timers = Collections.synchronizedList(new ArrayList());
+         failBatches = false;
+         entered = new CountDownLatch(1);
+         released = new CountDownLatch(1);
+      }
+
+      static void release()
+      {
+         released.countDown();
+      }
+
+      private void batch(int size) throws SQLException
+      {
+         boolean fail = failBatches;
+         entered.countDown();
+         try
+         {
+            released.await();
+         }
+         catch (InterruptedException e)
+         {
+            throw new SQLException(e.toString());
+         }
+         if (fail)
+            throw new SQLException("Batch failed");
+         batches.add(String.valueOf(size));
+      }
+
+      public void insertTimers(List handles) throws SQLException
+      {
+         batch(handles.size());
+         for (Iterator i = handles.iterator(); i.hasNext();)
+         {
+            TimerHandleImpl handle = (TimerHandleImpl)i.next();
+            insertTimer(handle.getTimerId(), handle.getTimedObjectId(), handle.getFirstTime(), handle.getPeriode(), handle.getInfo());
+         }
+      }
+
+      public void deleteTimers(List handles) throws SQLException
+      {
+         batch(handles.size());
+         for (Iterator i = handles.iterator(); i.hasNext();)
+         {
+            TimerHandleImpl handle = (TimerHandleImpl)i.next();
+            deleteTimer(handle.getTimerId(), handle.getTimedObjectId());
+         }
+      }
+
+      public void insertTimer(String timerId, TimedObjectId timedObjectId, Date initialExpiration, long intervalDuration, Serializable info)
+      {
+         writes.add("+" + timerId);
+         timers.add(timerId);
+      }
+
+      public void deleteTimer(String timerId, TimedObjectId timedObjectId)
+      {
+         writes.add("-" + timerId);
+         timers.remove(timerId);
+      }
+
+      public List selectTimers(ObjectName containerId)
+      {
+         return new ArrayList(timers);
+      }
+
+      public void clearTimers()
+      {
+         timers.clear();
+      }
+
+      public void setFetchSize(int fetchSize)
+      {
+      }
+
+      public void init(MBeanServer server, ObjectName dataSource, String tableName)
+      {
+      }
+
+      public void init(MBeanServer server, ObjectName dataSource)
+      {
+      }
+
+      public void createTableIfNotExists()
+      {
+      }
+
+      public String getTableName()
+      {
+         return "TIMERS";
+      }
+
+      public String getColumnTimerID()
+      {
+         return "TIMERID";
+      }
+
+      public String getColumnTargetID()
+      {
+         return "TARGETID";
+      }
+
+      public String getColumnInitialDate()
+      {
+         return "INITIALDATE";
+      }
+
+      public String getColumnTimerInterval()
+      {
+         return "TIMERINTERVAL";
+      }
+
+      public String getColumnInstancePK()
+      {
+         return "INSTANCEPK";
+      }
+
+      public String getColumnInfo()
+      {
+         return "INFO";
+      }
+   }
+}
@@ -0,0 +1,116 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.txtimer.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb.txtimer.TimingWheel;
+
+/**
+ * Tests the TimingWheel the EJB timers are scheduled on.
+ *
+ * @see org.jboss.test.perf.test.TimingWheelStressTestCase
+ *
+ * @version $Revision: 60899 $
+ */
+public class TimingWheelTestCase extends TestCase
+{
+   private TimingWheel wheel;
+
+   public TimingWheelTestCase(String name)
+   {
+      super(name);
+   }
+
+   protected void setUp() throws Exception
+   {
+      wheel = new TimingWheel("TimingWheelTest", 10, 4);
+      wheel.start();
+   }
+
+   protected void tearDown() throws Exception
+   {
+      wheel.stop();
+   }
+
+   public void testNotBeforeExpiration() throws Exception
+   {
+      final int count = 100;
+      final CountDownLatch latch = new CountDownLatch(count);
+      final AtomicInteger early = new AtomicInteger(0);
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < count; i++)
+      {
+         final long when = now + 50 + i * 7;
+         wheel.schedule(new Runnable()
+         {
+            public void run()
+            {
+               if (System.currentTimeMillis() < when)
+                  early.incrementAndGet();
+               latch.countDown();
+            }
+         }, when);
+      }
+      assertTrue("Timeouts not delivered", latch.await(10, TimeUnit.SECONDS));
+      assertEquals("Timeouts delivered early", 0, early.get());
+      assertEquals(0, wheel.size());
+   }
+
+   public void testCancel() throws Exception
+   {
+      final AtomicInteger fired = new AtomicInteger(0);
+      Runnable task = new Runnable()
+      {
+         public void run()
+         {
+            fired.incrementAndGet();
+         }
+      };
+      long now = System.currentTimeMillis();
+      TimingWheel.Timeout first = wheel.schedule(task, now + 100);
+      TimingWheel.Timeout second = wheel.schedule(task, now + 100000);
+      assertEquals(2, wheel.size());
+      first.cancel();
+      second.cancel();
+      assertEquals(0, wheel.size());
+      Thread.sleep(300);
+      assertEquals("Cancelled timeout delivered", 0, fired.get());
+   }
+
+   public void testPastExpiration() throws Exception
+   {
+      final CountDownLatch latch = new CountDownLatch(1);
+      wheel.schedule(new Runnable()
+      {
+         public void run()
+         {
+            latch.countDown();
+         }
+      }, System.currentTimeMillis() - 1000);
+      assertTrue("Expired timeout not delivered", latch.await(5, TimeUnit.SECONDS));
+   }
+}
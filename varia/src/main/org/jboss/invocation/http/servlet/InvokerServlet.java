@@ -22,19 +22,20 @@
 package org.jboss.invocation.http.servlet;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.security.PrivilegedAction;
 import java.security.Principal;
 import java.security.AccessController;
+import java.util.zip.GZIPInputStream;
 import javax.management.MalformedObjectNameException;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
-import javax.servlet.ServletInputStream;
-import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -42,6 +43,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.jboss.invocation.InvocationException;
 import org.jboss.invocation.MarshalledInvocation;
 import org.jboss.invocation.MarshalledValue;
+import org.jboss.invocation.http.interfaces.ThresholdGZIPOutputStream;
 import org.jboss.logging.Logger;
 import org.jboss.mx.util.MBeanServerLocator;
 import org.jboss.mx.util.JMXExceptionDecoder;
@@ -56,6 +58,10 @@ import org.jboss.security.SecurityAssociation;
 
  The method signature of the invoker must be Object invoke(org.jboss.invocation.Invocation).
 
+ Requests posted with a gzip Content-Encoding are inflated. Responses are
+ streamed, those of at least gzipResponseThreshold bytes (init parameter, -1
+ by default to disable) are gzipped on the fly for clients that accept it.
+
  @see org.jboss.system.Registry
  @see org.jboss.invocation.Invocation
 
@@ -73,6 +79,9 @@ public class InvokerServlet extends HttpServlet
       "application/x-java-serialized-object; class=org.jboss.invocation.MarshalledValue";
    private MBeanServer mbeanServer;
    private ObjectName localInvokerName;
+   /** The response size from which responses are gzipped for clients
+    accepting it, -1 to never compress */
+   private int gzipResponseThreshold = -1;
 
    /** Initializes the servlet.
     */
@@ -94,6 +103,19 @@ public class InvokerServlet extends HttpServlet
          throw new ServletException("Failed to build invokerName", e);
       }
 
+      String threshold = config.getInitParameter("gzipResponseThreshold");
+      if( threshold != null )
+      {
+         try
+         {
+            gzipResponseThreshold = Integer.parseInt(threshold.trim());
+         }
+         catch(NumberFormatException e)
+         {
+            throw new ServletException("Invalid gzipResponseThreshold: "+threshold, e);
+         }
+      }
+
       // Lookup the MBeanServer
       mbeanServer = MBeanServerLocator.locateJBoss();
       if( mbeanServer == null )
@@ -132,7 +154,10 @@ public class InvokerServlet extends HttpServlet
          if( mi == null )
          {
             // Get the invocation from the post
-            ServletInputStream sis = request.getInputStream();
+            InputStream sis = request.getInputStream();
+            String encoding = request.getHeader("Content-Encoding");
+            if( encoding != null && encoding.indexOf("gzip") >= 0 )
+               sis = new GZIPInputStream(sis);
             ObjectInputStream ois = new ObjectInputStream(sis);
             mi = (MarshalledInvocation) ois.readObject();
             ois.close();
@@ -163,10 +188,7 @@ public class InvokerServlet extends HttpServlet
          if( returnValueAsAttribute == null || returnValueAsAttribute.booleanValue() == false )
          {
             MarshalledValue mv = new MarshalledValue(value);
-            ServletOutputStream sos = response.getOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(sos);
-            oos.writeObject(mv);
-            oos.close();
+            writeResponse(request, response, mv);
          }
          else
          {
@@ -190,12 +212,18 @@ public class InvokerServlet extends HttpServlet
          // Marshall the exception
          if( returnValueAsAttribute == null || returnValueAsAttribute.booleanValue() == false )
          {
+            if( response.isCommitted() )
+            {
+               // Part of the value was already streamed, the client sees a broken response
+               log.error("Failed to write the response", t);
+               return;
+            }
             response.resetBuffer();
+            // The exception is not gzipped
+            if( response.containsHeader("Content-Encoding") )
+               response.setHeader("Content-Encoding", "identity");
             MarshalledValue mv = new MarshalledValue(appException);
-            ServletOutputStream sos = response.getOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(sos);
-            oos.writeObject(mv);
-            oos.close();
+            writeResponse(request, response, mv);
          }
          else
          {
@@ -204,6 +232,40 @@ public class InvokerServlet extends HttpServlet
       }
    }
 
+   /** Serialize the MarshalledValue straight to the response instead of
+    holding it in memory. When gzip applies, responses below the threshold
+    get a Content-Length and larger ones are gzipped on the fly and sent
+    chunked, which keeps the HTTP/1.1 connection reusable.
+    */
+   protected void writeResponse(HttpServletRequest request, final HttpServletResponse response,
+      MarshalledValue mv)
+      throws IOException
+   {
+      int threshold = -1;
+      if( gzipResponseThreshold >= 0 )
+      {
+         String accept = request.getHeader("Accept-Encoding");
+         if( accept != null && accept.indexOf("gzip") >= 0 )
+            threshold = gzipResponseThreshold;
+      }
+
+      OutputStream os = new ThresholdGZIPOutputStream(threshold)
+      {
+         protected OutputStream open(boolean gzip, int contentLength)
+            throws IOException
+         {
+            if( gzip )
+               response.setHeader("Content-Encoding", "gzip");
+            else if( contentLength >= 0 )
+               response.setContentLength(contentLength);
+            return response.getOutputStream();
+         }
+      };
+      ObjectOutputStream oos = new ObjectOutputStream(os);
+      oos.writeObject(mv);
+      oos.close();
+   }
+
    /** Handles the HTTP <code>GET</code> method.
     * @param request servlet request
     * @param response servlet response